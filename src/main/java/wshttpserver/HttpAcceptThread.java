@@ -0,0 +1,192 @@
+package wshttpserver;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepts new connections as soon as the server channel reports them, and hands them to the download threads.
+ * Accepting stops while the connection limit has been reached, or while the server sheds load. The pending
+ * connections then wait in the backlog.
+ *
+ * @author Joris
+ */
+class HttpAcceptThread extends Thread
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        static final int ACCEPT_BATCH = 64; // The maximum amount of connections to accept per select()
+        static final long ACCEPT_ERROR_DELAY = 100; // ms. For example when running out of file descriptors
+        private final ServerSocketChannel ssChannel;
+        private final ChannelHandler handler;
+        private final int maxConnections;
+        private volatile boolean ready = false;
+        private volatile boolean paused = false;
+        private Selector selector;
+
+        /**
+         * @param ssChannel The server channel, it must not be used by any other thread
+         * @param handler Receives the accepted channels
+         * @param maxConnections The maximum amount of connections that may be open at the same time
+         */
+        HttpAcceptThread(ServerSocketChannel ssChannel, ChannelHandler handler, int maxConnections)
+        {
+                this.ssChannel = ssChannel;
+                this.handler = handler;
+                this.maxConnections = maxConnections;
+        }
+
+        static interface ChannelHandler
+        {
+                /** @return The number of connections that are currently open */
+                @ThreadSafe
+                int getConnectionCount();
+
+                /** @return true if no connections should be accepted because the server is overloaded */
+                @ThreadSafe
+                boolean isOverloaded();
+
+                void newChannel(SocketChannel sChannel) throws IOException;
+        }
+
+        public void startWaitReady()
+        {
+                this.start();
+                while (!ready)
+                {
+                        try
+                        {
+                                Thread.sleep(1);
+                        }
+                        catch (InterruptedException ex)
+                        {
+                                Thread.currentThread().interrupt();
+                                return;
+                        }
+                }
+        }
+
+        /** Must be called whenever a connection has been closed, so that accepting can resume. */
+        @ThreadSafe
+        void connectionRemoved()
+        {
+                wakeupIfPaused();
+        }
+
+        /** Must be called once the server is no longer overloaded, so that accepting can resume. */
+        @ThreadSafe
+        void overloadEnded()
+        {
+                wakeupIfPaused();
+        }
+
+        @ThreadSafe
+        private void wakeupIfPaused()
+        {
+                if (paused)
+                {
+                        try
+                        {
+                                selector.wakeup();
+                        }
+                        catch (IllegalStateException | NullPointerException ex)
+                        {
+                                // Thread has not started yet, or it just stopped
+                        }
+                }
+        }
+
+        @Override
+        public void run()
+        {
+                setName("HttpAccept-"+threadId());
+                try
+                {
+                        selector = Selector.open();
+                        ssChannel.configureBlocking(false);
+                        SelectionKey key = ssChannel.register(selector, SelectionKey.OP_ACCEPT);
+                        ready = true;
+
+                        while (!this.isInterrupted())
+                        {
+                                try
+                                {
+                                        selector.select();
+                                }
+                                catch (ClosedSelectorException ex)
+                                {
+                                        break;
+                                }
+                                selector.selectedKeys().clear();
+
+                                int available = maxConnections - handler.getConnectionCount();
+                                if (available <= 0 || handler.isOverloaded())
+                                {
+                                        paused = true;
+                                        key.interestOps(0);
+                                        // A connection might have been removed, or the overload ended, before paused was set
+                                        available = maxConnections - handler.getConnectionCount();
+                                        if (available <= 0 || handler.isOverloaded())
+                                        {
+                                                continue;
+                                        }
+                                }
+
+                                if (paused)
+                                {
+                                        paused = false;
+                                        key.interestOps(SelectionKey.OP_ACCEPT);
+                                }
+
+                                if (!accept(Math.min(available, ACCEPT_BATCH)))
+                                {
+                                        break;
+                                }
+                        }
+
+                        selector.close();
+                        selector = null;
+                }
+                catch (IOException ex)
+                {
+                        log.log(Level.SEVERE, null, ex);
+                }
+        }
+
+        /** @return false if the server channel has been closed */
+        private boolean accept(int max) throws IOException
+        {
+                try
+                {
+                        SocketChannel sChannel;
+                        for (int a = 0; a < max && (sChannel = ssChannel.accept()) != null; ++a)
+                        {
+                                handler.newChannel(sChannel);
+                        }
+                }
+                catch (ClosedChannelException ex)
+                {
+                        log.log(Level.INFO, "Channel closed in accept()");
+                        return false;
+                }
+                catch (IOException ex)
+                {
+                        log.log(Level.SEVERE, "IOException in accept()", ex);
+                        try
+                        {
+                                Thread.sleep(ACCEPT_ERROR_DELAY);
+                        }
+                        catch (InterruptedException ex2)
+                        {
+                                Thread.currentThread().interrupt();
+                        }
+                }
+
+                return true;
+        }
+}
@@ -0,0 +1,28 @@
+package wshttpserver;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Handles the requests of a dynamic route, like {@link HttpHandler}, and returns a future (such as a
+ * CompletableFuture) of the work that answers the request. See
+ * {@link HttpServer#addRouteAsyncHandler(HttpUtil.METHOD, String, HttpAsyncHandler)}
+ *
+ * @author Joris
+ */
+public interface HttpAsyncHandler
+{
+        /**
+         * Handle a request. This method is called from the executor of the route, never from the thread that
+         * serves the connection. The request must be answered exactly once using one of the methods of reply,
+         * from any thread, before the returned future completes.
+         *
+         * If this method throws a RuntimeException, or the future completes exceptionally or without a reply
+         * having been sent, "500 Internal Server Error" is sent.
+         *
+         * @param request The request, including the (complete) request body
+         * @param reply Used to send the response
+         * @return Completes once the request has been answered
+         */
+        @ThreadSafe
+        public CompletionStage<?> handle(HttpRequest request, HttpReply reply);
+}
@@ -0,0 +1,359 @@
+package wshttpserver;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Bandwidth limits for the responses of plain http connections: a token bucket per route (shared by every response
+ * of that route), per connection and per remote address (shared by its connections). All limits may be changed while
+ * the server runs.
+ *
+ * The limits are enforced by the write scheduler of the HttpDownloadThread. Before a connection writes, its budget
+ * for the iteration is reduced to what its buckets allow, and afterwards the unused part is returned. A connection
+ * whose buckets are empty parks: it drops OP_WRITE and its timer restores it once the buckets have refilled halfway.
+ * A bucket holds BANDWIDTH_BURST worth of bytes, twice the precision of the timers, so that a parked connection
+ * still reaches its rate.
+ *
+ * Connections that no limit applies to have no buckets at all, they only cost a check per write.
+ *
+ * @author Joris
+ */
+class HttpBandwidth
+{
+        private volatile long connectionRate; // bytes per second, 0 for unlimited
+        private volatile long clientRate;
+        private final ConcurrentHashMap<String, Bucket> routes = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<InetAddress, Bucket> clients = new ConcurrentHashMap<>();
+
+        /** @param bytesPerSecond The limit of every connection, 0 for unlimited */
+        @ThreadSafe
+        void setConnectionRate(long bytesPerSecond)
+        {
+                if (bytesPerSecond < 0)
+                {
+                        throw new IllegalArgumentException();
+                }
+                connectionRate = bytesPerSecond;
+        }
+
+        @ThreadSafe
+        long getConnectionRate()
+        {
+                return connectionRate;
+        }
+
+        /** @param bytesPerSecond The limit of all connections of a remote address together, 0 for unlimited */
+        @ThreadSafe
+        void setClientRate(long bytesPerSecond)
+        {
+                if (bytesPerSecond < 0)
+                {
+                        throw new IllegalArgumentException();
+                }
+                clientRate = bytesPerSecond;
+                for (Bucket bucket : clients.values())
+                {
+                        bucket.setRate(bytesPerSecond);
+                }
+        }
+
+        @ThreadSafe
+        long getClientRate()
+        {
+                return clientRate;
+        }
+
+        /**
+         * @param path A route prefix, for example "mirror" or "abc/def", the same as for static routes
+         * @param bytesPerSecond The limit of all responses of the route together, 0 for unlimited
+         */
+        @ThreadSafe
+        void setRouteRate(String path, long bytesPerSecond)
+        {
+                if (bytesPerSecond < 0)
+                {
+                        throw new IllegalArgumentException();
+                }
+
+                if (bytesPerSecond == 0)
+                {
+                        Bucket bucket = routes.remove(path);
+                        if (bucket != null)
+                        {
+                                bucket.setRate(0); // responses that are being sent keep their bucket
+                        }
+                        return;
+                }
+
+                Bucket bucket = routes.get(path);
+                if (bucket == null)
+                {
+                        Bucket existing = routes.putIfAbsent(path, bucket = new Bucket(bytesPerSecond));
+                        if (existing != null)
+                        {
+                                bucket = existing;
+                        }
+                }
+                bucket.setRate(bytesPerSecond);
+        }
+
+        /** @return The bucket of the longest route that is a prefix of the request path, or null if it is unlimited */
+        @ThreadSafe
+        Bucket getRouteBucket(String requestPath)
+        {
+                if (routes.isEmpty() || requestPath == null)
+                {
+                        return null;
+                }
+
+                int start = 0;
+                while (start < requestPath.length() && requestPath.charAt(start) == '/')
+                {
+                        ++start;
+                }
+
+                int len = HttpRoutes.findRoute(routes, requestPath, start, requestPath.length());
+                return len < start ? null : routes.get(requestPath.substring(start, len));
+        }
+
+        /**
+         * @return The bucket shared by the connections of the address, or null if clients are unlimited. Must be
+         *         followed by {@link #releaseClient(InetAddress)} once the connection no longer uses it.
+         */
+        @ThreadSafe
+        Bucket acquireClient(InetAddress address)
+        {
+                final long rate = clientRate;
+                if (rate == 0)
+                {
+                        return null;
+                }
+
+                return clients.compute(address, new BiFunction<InetAddress, Bucket, Bucket>()
+                {
+                        @Override
+                        public Bucket apply(InetAddress key, Bucket bucket)
+                        {
+                                if (bucket == null)
+                                {
+                                        bucket = new Bucket(rate);
+                                }
+                                ++bucket.users;
+                                return bucket;
+                        }
+                });
+        }
+
+        @ThreadSafe
+        void releaseClient(InetAddress address)
+        {
+                clients.computeIfPresent(address, new BiFunction<InetAddress, Bucket, Bucket>()
+                {
+                        @Override
+                        public Bucket apply(InetAddress key, Bucket bucket)
+                        {
+                                return --bucket.users == 0 ? null : bucket;
+                        }
+                });
+        }
+
+        /** @return The number of remote addresses that have a bucket */
+        @ThreadSafe
+        int clientCount()
+        {
+                return clients.size();
+        }
+
+        /**
+         * Reduce the budget of a connection to what its buckets allow. Must be followed by 
+         * {@link #settle(Shaping, long, long)} once the connection has written.
+         * @param route The bucket of the route of the response that is written next, or null
+         * @return The bytes that the connection may write now
+         */
+        long take(Shaping shaping, Bucket route, long budget, long nowNanos)
+        {
+                long rate = connectionRate;
+                if (rate != shaping.connectionRate)
+                {
+                        shaping.connectionRate = rate;
+                        if (shaping.connection == null)
+                        {
+                                shaping.connection = new Bucket(rate);
+                        }
+                        shaping.connection.setRate(rate);
+                }
+
+                if (!shaping.clientAcquired && clientRate != 0 && shaping.address != null)
+                {
+                        shaping.client = acquireClient(shaping.address);
+                        shaping.clientAcquired = shaping.client != null;
+                }
+
+                shaping.buckets[0] = shaping.connection;
+                shaping.buckets[1] = shaping.client;
+                shaping.buckets[2] = route;
+                
+                long allowed = budget;
+                for (int a = 0; a < shaping.buckets.length; ++a)
+                {
+                        Bucket bucket = shaping.buckets[a];
+                        if (bucket != null)
+                        {
+                                shaping.taken[a] = bucket.take(allowed, nowNanos);
+                                allowed = shaping.taken[a];
+                        }
+                }
+                
+                // Every bucket gives up the same amount, the last one may have allowed less than the first
+                for (int a = 0; a < shaping.buckets.length; ++a)
+                {
+                        Bucket bucket = shaping.buckets[a];
+                        if (bucket != null && shaping.taken[a] > allowed)
+                        {
+                                bucket.refund(shaping.taken[a] - allowed);
+                        }
+                }
+                
+                shaping.allowed = allowed;
+                shaping.limited = allowed < budget;
+                return allowed;
+        }
+
+        /**
+         * Return what the connection did not write to its buckets.
+         * @return The ns until the buckets are half full again if they limited the connection and it used up what 
+         *         they allowed, otherwise 0
+         */
+        long settle(Shaping shaping, long written, long nowNanos)
+        {
+                long unused = shaping.allowed - written;
+                long wait = 0;
+                for (int a = 0; a < shaping.buckets.length; ++a)
+                {
+                        Bucket bucket = shaping.buckets[a];
+                        if (bucket == null)
+                        {
+                                continue;
+                        }
+                        shaping.buckets[a] = null;
+                        
+                        if (unused > 0)
+                        {
+                                bucket.refund(unused);
+                        }
+                        else if (shaping.limited)
+                        {
+                                wait = Math.max(wait, bucket.untilRefilled(nowNanos));
+                        }
+                }
+                return wait;
+        }
+
+        /** Stop using the buckets of a connection that has been closed */
+        void release(Shaping shaping)
+        {
+                if (shaping.client != null)
+                {
+                        shaping.client = null;
+                        releaseClient(shaping.address);
+                }
+        }
+
+        /** The buckets of a single connection, created once a limit applies to it. Only used by its thread. */
+        static final class Shaping
+        {
+                final InetAddress address; // null if unknown, the connection is then not limited as a client
+                private Bucket connection; // null until connections are limited
+                private long connectionRate; // the rate of the connection bucket
+                private Bucket client;
+                private boolean clientAcquired;
+                private final Bucket[] buckets = new Bucket[3]; // connection, client and route, between take() and settle()
+                private final long[] taken = new long[3];
+                private long allowed;
+                private boolean limited; // a bucket allowed less than the budget
+                boolean parked; // the connection waits for its buckets to refill, without OP_WRITE
+                long parkedUntil; // System.nanoTime()
+
+                Shaping(InetAddress address)
+                {
+                        this.address = address;
+                }
+        }
+
+        /** A token bucket of bytes, which may be shared by several threads */
+        static final class Bucket
+        {
+                private long rate; // bytes per second, 0 for unlimited
+                private double tokens;
+                private long lastRefill; // System.nanoTime()
+                private boolean started;
+                private int users; // guarded by the map of the client buckets
+
+                Bucket(long rate)
+                {
+                        this.rate = rate;
+                }
+
+                synchronized void setRate(long bytesPerSecond)
+                {
+                        rate = bytesPerSecond;
+                        tokens = Math.min(tokens, burst());
+                }
+
+                private double burst()
+                {
+                        return rate * (HttpServer.BANDWIDTH_BURST / 1e9);
+                }
+
+                private void refill(long nowNanos)
+                {
+                        if (!started)
+                        {
+                                started = true;
+                                tokens = burst();
+                        }
+                        else if (nowNanos - lastRefill > 0)
+                        {
+                                tokens = Math.min(burst(), tokens + (nowNanos - lastRefill) * (rate / 1e9));
+                        }
+                        lastRefill = nowNanos;
+                }
+
+                /** @return The bytes that may be written now, at most max. They must be returned if they are not used. */
+                synchronized long take(long max, long nowNanos)
+                {
+                        if (rate == 0)
+                        {
+                                return max;
+                        }
+
+                        refill(nowNanos);
+                        long taken = Math.min(max, (long) tokens);
+                        tokens -= taken;
+                        return taken;
+                }
+
+                /** Return bytes that have been taken, but not written */
+                synchronized void refund(long bytes)
+                {
+                        if (rate != 0)
+                        {
+                                tokens = Math.min(burst(), tokens + bytes);
+                        }
+                }
+
+                /** @return The ns until the bucket is at least half full again */
+                synchronized long untilRefilled(long nowNanos)
+                {
+                        if (rate == 0)
+                        {
+                                return 0;
+                        }
+
+                        refill(nowNanos);
+                        double missing = burst() / 2 - tokens;
+                        return missing <= 0 ? 0 : (long) (missing / rate * 1e9) + 1;
+                }
+        }
+}
@@ -0,0 +1,23 @@
+package wshttpserver;
+
+/**
+ * Produces the body of a streaming response. See {@link HttpReply#stream(int, String, String, HttpBodyProducer)}
+ *
+ * @author Joris
+ */
+public interface HttpBodyProducer
+{
+        /**
+         * Called when the stream is able to accept more data. Data is written using
+         * {@link HttpResponseStream#write(java.nio.ByteBuffer)}, the response ends with 
+         * {@link HttpResponseStream#end()}.
+         * 
+         * This method is called from the executor of the route, never concurrently for the same stream. Until 
+         * end() has been called, it is called again once the data that has been written so far has been passed on
+         * to the socket. If nothing is written, this method is not called again until more data is written (from
+         * any thread).
+         *
+         * @param stream The stream to write to
+         */
+        public void produce(HttpResponseStream stream);
+}
@@ -4,370 +4,1228 @@ import wshttpserver.HttpUtil.HttpException;
 import wshttpserver.HttpUtil.METHOD;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 
 /**
+ * A plain HTTP connection, served by a single thread. The connection is the timer of its own timeout. Everything
+ * that is only needed while a request is being received or a response is being sent is taken from the pool of the
+ * thread, so that an idle keep-alive connection consists of little more than this object.
  *
  * @author Joris
  */
-class HttpConnection
+class HttpConnection extends HttpTimerWheel.Timer implements HttpMemoryAccountant.Consumer
 {
         private static final Logger log = Logger.getLogger("wshttpserver");
-        private final int RAWHEAD_SIZE = 512;
+        private static final int RAWHEAD_SIZE = 512;
         
         ConnectionStateChangeListener stateChangeListener;
         SelectionKey key;
         SocketChannel channel;
-        File defaultRoute;
-        Map<String, File> routes;
+        HttpRoutes routes;
+        Executor reactor; // Runs tasks on the thread that serves this connection
+        private final HttpTimerWheel timers; // owned by the thread that serves this connection
+        private final HttpRequestState.Pool pool; // owned by the thread that serves this connection
+        private final HttpRateLimiter limiter; // null if clients are not limited
+        private final HttpLoadShedder shedder; // null if load is never shed
+        private final HttpMemoryAccountant.Ledger ledger; // null if memory is not accounted
+        private final HttpBandwidth bandwidth; // null if bandwidth is never limited
+        private static final long NO_TIMEOUT = Long.MIN_VALUE;
         
         long nanoLastReceived;
-        private final LinkedList<HttpResponse> responses = new LinkedList<>(); // responses that still have to be sent out
+        private long nanoLastWritten; // or when the connection started to wait for the socket to become writable
+        private long nanoHeadStart; // when the first byte of the current request was received
+        private boolean idle; // waiting for the next request on a keep-alive connection, nothing has been received yet
+        private ArrayDeque<HttpResponse> responses; // responses that still have to be sent out, null instead of empty
         private HttpResponse currentResponse; // the response that is currently being sent;
         private boolean keepAlive;
+        private boolean readPaused; // reading from the socket has been suspended until the handler catches up
+        private boolean readThrottled; // reading from the socket has been suspended because of the memory budget
+        private long memory; // the buffered bytes that have been reported to the ledger
+        long writeRemaining; // only used by the write scheduler of the thread that serves this connection
+        private HttpBandwidth.Shaping shaping; // null until a bandwidth limit applies to this connection
         
         // Data about the current state (remember that multiple request may be made per connection):
         STATE state;
-        METHOD method;
-        URI requestUri;
-        int clientHttpMinor; // The minor http version of the request. Aka 123 in HTTP/1.123
-        boolean websocket = false;
-        private ByteBuffer lineBuffer;
-        ByteBuffer rawHead; // The bytes of the entire head (request-line and headers)
-        HashMap<String, String> headers = new HashMap<>();
-
+        HttpRequestState request; // null while the connection is idle between requests
+        
         static enum STATE
         {
                 WAIT_FOR_REQUEST_LINE, // Just accepted the connection, waiting for http reponse
                 READING_HEADERS, // read the http version, reading the headers
+                READING_BODY, // read the headers, reading the request body
 
                 // Data for this request is sent during/after these states:
                 DONE_READING,
                 UPGRADE, // This connection is being upgraded to a websocket, no further parsing by this object
                 BAD_REQUEST, // Client sent a bad request. Ignore everything the client sends. The connection is closing.
+                CLOSING, // The last response is being sent. Ignore everything the client sends.
                 CLOSED;
         }
+        
+        static enum CHUNK_STATE
+        {
+                SIZE, // chunk-size [ chunk-extension ] CRLF
+                DATA, // chunk-data
+                DATA_END, // CRLF after chunk-data
+                TRAILER; // *(entity-header CRLF) CRLF
+        }
        
         
-        HttpConnection(ConnectionStateChangeListener stateChangeListener, SelectionKey key, SocketChannel sChannel, File defaultRoute, Map<String, File> routes)
+        HttpConnection(ConnectionStateChangeListener stateChangeListener, SelectionKey key, SocketChannel sChannel, HttpRoutes routes, Executor reactor, HttpTimerWheel timers, HttpRequestState.Pool pool, HttpRateLimiter limiter, HttpLoadShedder shedder, HttpMemoryAccountant.Ledger ledger, HttpBandwidth bandwidth)
         {
                 this.stateChangeListener = stateChangeListener;
                 this.key = key;
                 this.channel = sChannel;
-                this.defaultRoute = defaultRoute;
                 this.routes = routes;
+                this.reactor = reactor;
+                this.timers = timers;
+                this.pool = pool;
+                this.limiter = limiter;
+                this.shedder = shedder;
+                this.ledger = ledger;
+                this.bandwidth = bandwidth;
 
                 setState(STATE.WAIT_FOR_REQUEST_LINE);
 
+                // The client should send its first request right away
                 nanoLastReceived = System.nanoTime();
+                nanoLastWritten = nanoLastReceived;
+                nanoHeadStart = nanoLastReceived;
+                updateTimeout();
 
-                try
+                if (log.isLoggable(Level.FINE))
                 {
-                        log.log(Level.INFO, "New TCP Connection: {0}", sChannel.getRemoteAddress());
-                }
-                catch (IOException | NullPointerException ex)
-                {
-                        log.log(Level.SEVERE, null, ex);
+                        try
+                        {
+                                log.log(Level.FINE, "New TCP Connection: {0}", sChannel.getRemoteAddress());
+                        }
+                        catch (IOException | NullPointerException ex)
+                        {
+                                log.log(Level.SEVERE, null, ex);
+                        }
                 }
         }
 
         // https://www.rfc-editor.org/rfc/rfc2616.txt
-        @SuppressWarnings("unchecked")
         public void read(ByteBuffer buf) throws IOException
         {
                 nanoLastReceived = System.nanoTime();
+                if (idle)
+                {
+                        idle = false;
+                        nanoHeadStart = nanoLastReceived;
+                }
+                
+                if (request == null && isReading())
+                {
+                        request = pool.takeRequest();
+                }
 
                 //log.log(Level.INFO, buf.position() + ":" + buf.limit() + ":{0};", dumpBuffer(buf, false));
 
-                if (state == STATE.CLOSED || state == STATE.BAD_REQUEST || state == STATE.UPGRADE)
+                while (buf.hasRemaining() && isReading())
                 {
-                        return;
+                        if (shedder != null && state == STATE.WAIT_FOR_REQUEST_LINE && !request.hasPartialLine() && shedder.isShedding())
+                        {
+                                shed();
+                                break;
+                        }
+                        
+                        try
+                        {
+                                if (readHttpRequest(buf))
+                                {
+                                        requestDone();
+                                }
+                        }
+                        catch (HttpException ex)
+                        {
+                                requestFailed(ex);
+                        }
+                }
+                
+                if (idle && request != null && request.hasPartialLine())
+                {
+                        // The next request has already started
+                        idle = false;
+                        nanoHeadStart = nanoLastReceived;
+                }
+                
+                releaseRequestIfIdle();
+        }
+        
+        /**
+         * An idle keep-alive connection does not keep any per request state, it is taken from the pool again once the
+         * next request arrives.
+         */
+        private void releaseRequestIfIdle()
+        {
+                if (request != null && state == STATE.WAIT_FOR_REQUEST_LINE && !request.hasPartialLine())
+                {
+                        request.reset();
+                        pool.release(request);
+                        request = null;
                 }
+        }
 
-                while (buf.hasRemaining())
+        /**
+         * Transfer the body of a request that is being uploaded directly from the socket channel to the file,
+         * without copying it through the read buffer of the download thread.
+         *
+         * @return The number of bytes transferred. If 0, the regular read path should be used instead (this is also
+         * how the end of the stream is detected).
+         */
+        long transferBody() throws IOException
+        {
+                if (state != STATE.READING_BODY || request.chunked || request.upload == null || request.bodyRemaining == 0)
                 {
-                        boolean requestReady = false;
-                        try
+                        return 0;
+                }
+
+                long transferred = request.upload.transferFrom(channel, Math.min(request.bodyRemaining, HttpServer.BODY_TRANSFER_SIZE));
+                if (transferred > 0)
+                {
+                        nanoLastReceived = System.nanoTime();
+                        request.bodyRemaining -= transferred;
+                        request.bodyReceived += transferred;
+
+                        if (request.bodyRemaining == 0)
                         {
-                                requestReady = readHttpRequest(buf);
+                                requestDone();
+                                releaseRequestIfIdle();
                         }
-                        catch (HttpException ex)
+                }
+
+                return transferred;
+        }
+
+        /** @return false if the connection no longer parses anything the client sends */
+        private boolean isReading()
+        {
+                return state != STATE.CLOSED && state != STATE.CLOSING && state != STATE.BAD_REQUEST && state != STATE.UPGRADE;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void requestDone() throws IOException
+        {
+                HashMap<String, String> requestHeaders = (HashMap<String, String>) request.headers.clone();
+
+                if (request.bodyStream != null)
+                {
+                        // The handler is already running
+                        request.bodyStream.end();
+                        request.bodyStream = null;
+                }
+                else if (request.handler != null)
+                {
+                        ByteBuffer body = request.requestBody == null ? ByteBuffer.allocate(0) : request.requestBody;
+                        body.flip();
+                        dispatchRequest(requestHeaders, body);
+                }
+                else if (request.upload != null)
+                {
+                        HttpUpload finishedUpload = request.upload;
+                        request.upload = null;
+
+                        try
                         {
-                                addResponse(new HttpResponse(method, (HashMap<String, String>) headers.clone(), ex.status, ex.getMessage(), ex.fatal || !this.keepAlive, null));
+                                finishedUpload.commit();
+                                log.log(Level.INFO, "Received upload {0} ({1} bytes)", new Object[]{finishedUpload.target, finishedUpload.written});
 
-                                if (ex.fatal)
+                                if (finishedUpload.existed)
                                 {
-                                        setState(STATE.BAD_REQUEST);
+                                        addResponse(new HttpResponse(request.method, requestHeaders, 200, "Updated", !this.keepAlive, null));
                                 }
                                 else
                                 {
-                                        setState(STATE.WAIT_FOR_REQUEST_LINE);
+                                        addResponse(new HttpResponse(request.method, requestHeaders, 201, "Created", !this.keepAlive, null));
                                 }
+                        }
+                        catch (IOException ex)
+                        {
+                                finishedUpload.abort();
+                                log.log(Level.SEVERE, "Unable to store upload", ex);
+                                addResponse(new HttpResponse(request.method, requestHeaders, 500, "Unable to store file", !this.keepAlive, null));
+                        }
+                }
+                else
+                {
+                        File file = null;
 
-                                log.log(Level.SEVERE, null, ex);
+                        try
+                        {
+                                file = routes.getStaticFile(request.requestUri.getPath());
                         }
-                        
-                        if (requestReady)
+                        catch (NoSuchFileException ex)
                         {
-                                File file = null;
-                                
-                                try
+                                log.log(Level.INFO, "No such file: ", ex.getMessage());
+                        }
+
+                        if (file == null)
+                        {
+                                addResponse(new HttpResponse(request.method, requestHeaders, 404, "File Not Found", !this.keepAlive, null));
+                        }
+                        else
+                        {
+                                HttpResponse resp = new HttpResponse(request.method, requestHeaders, 200, "Okay!", !this.keepAlive, file);
+                                resp.bandwidth = routeBandwidth();
+                                addResponse(resp);
+                        }
+                }
+
+                // this clears our current header info, etc
+                if (this.keepAlive)
+                {
+                        setState(STATE.WAIT_FOR_REQUEST_LINE);
+                }
+                else
+                {
+                        // the connection is closed after the response has been written
+                        setState(STATE.CLOSING);
+                }
+        }
+
+        /**
+         * Pass the current request on to its handler.
+         */
+        private void dispatchRequest(HashMap<String, String> requestHeaders, ByteBuffer body)
+        {
+                // The response keeps its place until the handler replies (the client may pipeline requests)
+                HttpResponse resp = new HttpResponse(request.method, requestHeaders, 0, null, !this.keepAlive, null);
+                resp.dynamic = true;
+                resp.pending = true;
+                resp.bandwidth = routeBandwidth();
+                queueResponse(resp);
+
+                InetSocketAddress remoteAddress = null;
+                try
+                {
+                        remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+                }
+                catch (IOException ex)
+                {
+                }
+
+                HttpRequest httpRequest = new HttpRequest(request.method, request.requestUri, requestHeaders, request.route.paramNames, request.pathParams, body, request.bodyStream, remoteAddress);
+                request.pathParams = null;
+                
+                dispatch(request.handler,
+                         httpRequest,
+                         new HttpReply(this, resp, reactor, request.handler.executor, request.clientHttpMinor > 0));
+        }
+
+        private static void dispatch(final HttpRoutes.Handler handler, final HttpRequest request, final HttpReply reply)
+        {
+                try
+                {
+                        handler.executor.execute(new Runnable()
+                        {
+                                @Override
+                                public void run()
                                 {
-                                        file = getRoute(requestUri.getPath());
+                                        try
+                                        {
+                                                handler.handler.handle(request, reply);
+                                        }
+                                        catch (RuntimeException ex)
+                                        {
+                                                log.log(Level.SEVERE, "Exception in HttpHandler", ex);
+                                                if (!reply.isReplied())
+                                                {
+                                                        reply.send(500, "Internal Server Error");
+                                                }
+                                        }
+                                        finally
+                                        {
+                                                if (handler.blocking)
+                                                {
+                                                        // A blocking handler is done once it returns
+                                                        if (!reply.isReplied())
+                                                        {
+                                                                log.log(Level.SEVERE, "HttpHandler did not reply to {0}", request.getUri());
+                                                                reply.send(500, "Internal Server Error");
+                                                        }
+
+                                                        // Discard what the handler did not read, so that the
+                                                        // connection does not stall
+                                                        HttpRequestBodyStream body = (HttpRequestBodyStream) request.getStreamedBody();
+                                                        if (body != null)
+                                                        {
+                                                                body.close();
+                                                        }
+                                                }
+                                        }
                                 }
-                                catch (NoSuchFileException ex)
+                        });
+                }
+                catch (RejectedExecutionException ex)
+                {
+                        log.log(Level.WARNING, "Unable to run HttpHandler", ex);
+                        reply.send(503, "Service Unavailable");
+                }
+        }
+
+        /** 
+         * Called from the thread that serves this connection, when the handler of a dynamic route has replied.
+         */
+        void replied(HttpResponse resp)
+        {
+                resp.pending = false;
+
+                if (state == STATE.CLOSED)
+                {
+                        resp.cancel();
+                        return;
+                }
+
+                responseReady();
+        }
+
+        /** 
+         * Called from the thread that serves this connection, when a response has more data to write.
+         */
+        void responseReady()
+        {
+                if (state != STATE.CLOSED && key.isValid())
+                {
+                        requestWrite();
+                        updateTimeout();
+                        updateMemory();
+                }
+        }
+
+        /** 
+         * Called from the thread that serves this connection, when the handler has caught up with the request body.
+         */
+        void resumeReading()
+        {
+                if (readPaused)
+                {
+                        readPaused = false;
+                        if (state != STATE.CLOSED && key.isValid())
+                        {
+                                key.interestOps(key.interestOps() | readInterest());
+                                updateTimeout();
+                        }
+                }
+        }
+
+        private void pauseReading()
+        {
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        private int readInterest()
+        {
+                return readPaused || readThrottled ? 0 : SelectionKey.OP_READ;
+        }
+        
+        /** 
+         * Report the bytes that this connection buffers to the ledger. Called by the thread that serves this 
+         * connection after anything that might have changed them.
+         */
+        void updateMemory()
+        {
+                if (ledger == null)
+                {
+                        return;
+                }
+                
+                long bytes = 0;
+                if (state != STATE.CLOSED && state != STATE.UPGRADE)
+                {
+                        if (request != null)
+                        {
+                                bytes += request.bufferedBytes();
+                        }
+                        if (currentResponse != null)
+                        {
+                                bytes += currentResponse.bufferedBytes();
+                        }
+                        if (responses != null)
+                        {
+                                for (HttpResponse resp : responses)
                                 {
-                                        log.log(Level.INFO, "No such file: ", ex.getMessage());
+                                        bytes += resp.bufferedBytes();
                                 }
-                                
-                                if (file == null)
+                        }
+                }
+                
+                ledger.add(bytes - memory);
+                memory = bytes;
+        }
+
+        @Override
+        public long getMemory()
+        {
+                return memory;
+        }
+
+        @Override
+        public void throttleReads(boolean throttle)
+        {
+                readThrottled = throttle;
+                if (state != STATE.CLOSED && key.isValid())
+                {
+                        key.interestOps(throttle ? key.interestOps() & ~SelectionKey.OP_READ : key.interestOps() | readInterest());
+                        updateTimeout();
+                }
+        }
+
+        @Override
+        public boolean isReadThrottled()
+        {
+                return readThrottled;
+        }
+
+        @Override
+        public void closeForMemory()
+        {
+                closed();
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+                return state == STATE.CLOSED;
+        }
+
+        @Override
+        public String toString()
+        {
+                try
+                {
+                        return "HttpConnection " + channel.getRemoteAddress();
+                }
+                catch (IOException ex)
+                {
+                        return "HttpConnection";
+                }
+        }
+
+        /** @return true if the connection is idle because of a handler, instead of because of the client */
+        boolean isWaitingForHandler()
+        {
+                return readPaused 
+                       || (currentResponse != null && currentResponse.isWaiting()) 
+                       || (currentResponse == null && responses != null && responses.getFirst().pending);
+        }
+        
+        private void requestWrite()
+        {
+                int ops = key.interestOps();
+                if ((ops & SelectionKey.OP_WRITE) == 0)
+                {
+                        // The write timeout starts now
+                        nanoLastWritten = System.nanoTime();
+                }
+                key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+        }
+        
+        /** @return The System.nanoTime() at which this connection times out in its current state, or NO_TIMEOUT */
+        private long timeoutDeadline()
+        {
+                if (state == STATE.CLOSED || state == STATE.UPGRADE || !key.isValid())
+                {
+                        return NO_TIMEOUT;
+                }
+                
+                if (shaping != null && shaping.parked)
+                {
+                        return shaping.parkedUntil; // not a timeout, see expired()
+                }
+                
+                if ((key.interestOps() & SelectionKey.OP_WRITE) != 0)
+                {
+                        // The client is not accepting the response
+                        return nanoLastWritten + HttpServer.WRITE_TIMEOUT;
+                }
+                
+                if (isWaitingForHandler() || readThrottled)
+                {
+                        return NO_TIMEOUT; // not the fault of the client
+                }
+                
+                switch (state)
+                {
+                        case WAIT_FOR_REQUEST_LINE:
+                                if (idle)
+                                {
+                                        return Math.max(nanoLastReceived, nanoLastWritten) + HttpServer.KEEP_ALIVE_TIMEOUT;
+                                }
+                                return nanoHeadStart + HttpServer.HEAD_TIMEOUT;
+                        case READING_HEADERS:
+                                return nanoHeadStart + HttpServer.HEAD_TIMEOUT;
+                        case READING_BODY:
+                                return nanoLastReceived + HttpServer.BODY_TIMEOUT;
+                        default:
+                                return Math.max(nanoLastReceived, nanoLastWritten) + HttpServer.WRITE_TIMEOUT;
+                }
+        }
+        
+        /**
+         * Make sure the timeout of this connection expires at, or before, the deadline of its current state. Must be 
+         * called after anything that changes the deadline to an earlier time. Later deadlines are picked up when the 
+         * timer expires, so that the progress of a connection does not have to touch the timer.
+         */
+        void updateTimeout()
+        {
+                long deadline = timeoutDeadline();
+                if (deadline == NO_TIMEOUT)
+                {
+                        timers.cancel(this);
+                }
+                else if (!isScheduled() || deadline - getDeadline() < 0)
+                {
+                        timers.schedule(this, deadline);
+                }
+        }
+        
+        @Override
+        void expired(long nowNanos)
+        {
+                long deadline = timeoutDeadline();
+                if (deadline == NO_TIMEOUT)
+                {
+                        return;
+                }
+                
+                if (nowNanos - deadline < 0)
+                {
+                        // The connection made progress
+                        timers.schedule(this, deadline);
+                        return;
+                }
+                
+                if (shaping != null && shaping.parked)
+                {
+                        // The bandwidth buckets have refilled
+                        shaping.parked = false;
+                        requestWrite();
+                        updateTimeout();
+                        return;
+                }
+                
+                try
+                {
+                        log.log(Level.INFO, "Dropping connection {0} because of timeout in state {1}", new Object[] { channel.getRemoteAddress(), state });
+                }
+                catch (IOException ex)
+                {
+                }
+                closed();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void requestFailed(HttpException ex)
+        {
+                HttpResponse resp = new HttpResponse(request.method, (HashMap<String, String>) request.headers.clone(), ex.status, ex.getMessage(), ex.fatal || !this.keepAlive, null);
+                if (ex.retryAfter > 0)
+                {
+                        resp.extraHeaders = "Retry-After: " + ex.retryAfter + "\r\n";
+                }
+                addResponse(resp);
+
+                if (ex.fatal)
+                {
+                        setState(STATE.BAD_REQUEST);
+                }
+                else
+                {
+                        setState(STATE.WAIT_FOR_REQUEST_LINE);
+                }
+
+                if (ex.status == 429)
+                {
+                        // Expected traffic of a client that exceeds its limit, it must not be able to flood the log
+                        logRefused("Too many requests from {0}");
+                }
+                else
+                {
+                        log.log(Level.SEVERE, null, ex);
+                }
+        }
+        
+        /** 
+         * Answer the request that is about to start with "503 Service Unavailable", without parsing it. Requests
+         * that have already started are served as usual.
+         */
+        private void shed()
+        {
+                HttpResponse resp = new HttpResponse(null, null, 503, "Service Unavailable", true, null);
+                resp.encoded = shedder.getResponse();
+                addResponse(resp);
+                setState(STATE.BAD_REQUEST);
+                logRefused("Shedding a request from {0}");
+        }
+        
+        private void logRefused(String message)
+        {
+                if (log.isLoggable(Level.FINE))
+                {
+                        try
+                        {
+                                log.log(Level.FINE, message, channel.getRemoteAddress());
+                        }
+                        catch (IOException ex)
+                        {
+                        }
+                }
+        }
+        
+        /** @return The bandwidth limit of the route of the current request, or null if it is unlimited */
+        private HttpBandwidth.Bucket routeBandwidth()
+        {
+                return bandwidth == null ? null : bandwidth.getRouteBucket(request.requestUri.getPath());
+        }
+        
+        private void addResponse(HttpResponse resp)
+        {
+                queueResponse(resp);
+                requestWrite();
+        }
+        
+        private void queueResponse(HttpResponse resp)
+        {
+                if (responses == null)
+                {
+                        responses = pool.takeResponseQueue();
+                }
+                responses.add(resp);
+        }
+
+        /**
+         * @return true if the reqeust has been fully read and a response may be sent
+         */
+        private boolean readHttpRequest(ByteBuffer buf) throws HttpException
+        {
+                /*
+                 * Request       = Request-Line              ; Section 5.1
+                 *                 *(( general-header        ; Section 4.5
+                 *                  | request-header         ; Section 5.3
+                 *                  | entity-header ) CRLF)  ; Section 7.1
+                 *                 CRLF
+                 *                 [ message-body ]          ; Section 4.3
+                 */
+
+
+
+                if (request.lineBuffer != null && request.lineBuffer.limit() > 0)
+                {
+                        assert request.lineBuffer.position() == 0 : "lineBuffer should have been flip()ed";
+                        int pos = buf.position() - request.lineBuffer.limit();
+                        buf.position(pos);
+                        buf.put(request.lineBuffer);
+                        request.lineBuffer.limit(0);
+                        buf.position(pos);
+                }
+
+                //log.log(Level.INFO, buf.position() + ":" + buf.limit() + ":{0};", dumpBuffer(buf, false));
+
+                // The raw head is only needed for a websocket upgrade. As long as the head is inside the read
+                // buffer, it is referenced using rawHeadStart instead of being copied. A head that spans reads is 
+                // never copied, see rebuildRawHead().
+                request.rawHeadStart = buf.position();
+
+                if (state == STATE.WAIT_FOR_REQUEST_LINE)
+                {
+                        request.upgradeCandidate = true; // unknown until the request line has been read
+                        readRequestLine(buf);
+                }
+
+                // not "else"!
+                if (state == STATE.READING_HEADERS)
+                {
+                        
+
+                        readHeaders(buf);
+                }
+
+                if (state == STATE.DONE_READING)
+                {
+                        checkRequestRate();
+                        
+                        if (request.upgradeCandidate && "websocket".equalsIgnoreCase(request.headers.get("upgrade")))
+                        {
+                                if (request.headSpansReads)
                                 {
-                                        addResponse(new HttpResponse(method, (HashMap<String, String>)headers.clone(), 404, "File Not Found", !this.keepAlive, null));
+                                        rebuildRawHead();
                                 }
                                 else
                                 {
-                                        addResponse(new HttpResponse(method, (HashMap<String, String>)headers.clone(), 200, "Okay!", !this.keepAlive, file));
+                                        rawHead_putToPos(buf, request.rawHeadStart);
                                 }
-                                
-                                // this clears our current header info, etc
-                                if (this.keepAlive)
+                                request.websocket = true;
+                                setState(STATE.UPGRADE);
+                                return false;
+                        }
+                        
+                        startBody();
+
+                        //log.log(Level.SEVERE, "Remaining in buffer:{0}", dumpBuffer(buf, true));
+
+                        if (state == STATE.DONE_READING)
+                        {
+                                return true; // no body
+                        }
+                }
+
+                if (state == STATE.READING_BODY)
+                {
+                        if (readBody(buf))
+                        {
+                                return true;
+                        }
+                }
+
+                if (state == STATE.READING_HEADERS)
+                {
+                        // The read buffer is reused for the next read, the lines that have been parsed so far are gone
+                        request.headSpansReads = true;
+                }
+
+                // Some line that spans multiple socket reads() 
+                if (buf.hasRemaining())
+                {
+                        if (state == STATE.WAIT_FOR_REQUEST_LINE 
+                            || state == STATE.READING_HEADERS 
+                            || (state == STATE.READING_BODY && request.chunked && request.chunkState != CHUNK_STATE.DATA))
+                        {
+                                if (request.lineBuffer == null)
                                 {
-                                        setState(STATE.WAIT_FOR_REQUEST_LINE);
+                                        request.lineBuffer = ByteBuffer.allocate(HttpServer.LINEBUFFER_SIZE);
                                 }
-                                else
+
+                                try
+                                {
+                                        request.lineBuffer.clear();
+                                        request.lineBuffer.put(buf);
+                                        request.lineBuffer.flip();
+                                }
+                                catch (BufferOverflowException ex)
+                                {
+                                        throw new HttpException(413, true, "Line in Request-Entity is too Large", ex);
+                                }
+                        }
+                }
+
+                return false;
+        }
+        
+        /** Answer "429 Too Many Requests" if the client has no requests left. The body is not read. */
+        private void checkRequestRate() throws HttpException
+        {
+                if (limiter == null)
+                {
+                        return;
+                }
+                
+                long wait;
+                try
+                {
+                        wait = limiter.acquireRequest(((InetSocketAddress) channel.getRemoteAddress()).getAddress(), nanoLastReceived);
+                }
+                catch (IOException ex)
+                {
+                        throw new HttpException(500, true, "Unknown remote address", ex);
+                }
+                
+                if (wait > 0)
+                {
+                        HttpException ex = new HttpException(429, true, "Too Many Requests");
+                        ex.retryAfter = (int) Math.min(Integer.MAX_VALUE, (wait + 999_999_999l) / 1_000_000_000l);
+                        throw ex;
+                }
+        }
+        
+        /**
+         * Validate the framing of the request body and prepare to receive it.
+         * Moves the state to READING_BODY if there is a body.
+         */
+        private void startBody() throws HttpException
+        {
+                String transferEncoding = request.headers.get("transfer-encoding");
+                String contentLength = request.headers.get("content-length");
+
+                if (transferEncoding != null && contentLength != null)
+                {
+                        // A proxy in front of this server may frame the body by the other one (request smuggling)
+                        throw new HttpException(400, true, "Transfer-Encoding with Content-Length");
+                }
+
+                if (transferEncoding != null && !"identity".equalsIgnoreCase(transferEncoding))
+                {
+                        // Other transfer-codings (gzip, etc) are not supported
+                        if (!"chunked".equalsIgnoreCase(transferEncoding))
+                        {
+                                throw new HttpException(501, true, "Transfer-Encoding Not Implemented");
+                        }
+
+                        request.chunked = true;
+                }
+                else if (contentLength != null)
+                {
+                        // Only digits: parseLong also accepts a sign
+                        for (int i = 0; i < contentLength.length(); ++i)
+                        {
+                                char c = contentLength.charAt(i);
+                                if (c < '0' || c > '9')
                                 {
-                                        setState(STATE.CLOSED);
+                                        throw new HttpException(400, true, "Invalid Content-Length");
                                 }
                         }
 
+                        try
+                        {
+                                request.bodyRemaining = Long.parseLong(contentLength, 10);
+                        }
+                        catch (NumberFormatException ex)
+                        {
+                                throw new HttpException(400, true, "Invalid Content-Length", ex);
+                        }
+
+                        if (request.bodyRemaining < 0)
+                        {
+                                throw new HttpException(400, true, "Invalid Content-Length");
+                        }
                 }
-        }
-        
-        private File getRoute(String requestPath) throws NoSuchFileException, IOException
-        {
-                if (requestPath == null || requestPath.isEmpty())
+
+                if (request.pathParams == null)
                 {
-                        return defaultRoute;
+                        request.pathParams = routes.newParams();
                 }
-                
-                
-                int start = 0;
-                while (start < requestPath.length() && requestPath.charAt(start) == '/')
+                request.route = routes.getHandler(request.method, request.requestUri.getRawPath(), request.pathParams);
+                request.handler = request.route == null ? null : request.route.getHandler(request.method);
+                if (request.handler != null)
                 {
-                        ++start;
+                        // A streamed body is not kept in memory, the handler decides how much of it it reads
+                        request.bodyMaxSize = request.handler.blocking ? Long.MAX_VALUE : HttpServer.MAX_HANDLER_BODY_SIZE;
                 }
-                
-                int len = requestPath.length();
-                while (len >= start && requestPath.charAt(len-1) == '/')
+                else if (request.method == METHOD.PUT)
                 {
-                        --len;
+                        if (!request.chunked && contentLength == null)
+                        {
+                                throw new HttpException(411, true, "Length Required");
+                        }
+
+                        request.upload = routes.getUpload(request.requestUri.getPath());
+                        request.bodyMaxSize = request.upload.route.maxSize;
                 }
-                
-                if (start == len)
+                else if (request.method == METHOD.GET || request.method == METHOD.HEAD)
                 {
-                        return defaultRoute;
+                        // A body is allowed, but it has no meaning
+                        request.bodyMaxSize = HttpServer.MAX_DISCARD_BODY_SIZE;
                 }
-                
-                
-                while (len >= start)
+                else
                 {
-                        // /a/b/c/d/e.txt
-                        // first try "/a/b/c/d/e.txt"
-                        // then try "/a/b/c/d"
-                        // then try "/a/b/c" etc
-                        
-                        File routeFile = routes.get(requestPath.substring(start, len));
-                        
-                        if (routeFile == null)
+                        // POST, OPTIONS, etc is not supported
+                        throw new HttpException(405, true, "Method Not Allowed");
+                }
+
+                if (request.bodyRemaining > request.bodyMaxSize)
+                {
+                        throw new HttpException(413, true, "Request Entity Too Large");
+                }
+
+                boolean hasBody = request.chunked || request.bodyRemaining > 0;
+
+                String expect = request.headers.get("expect");
+                if (expect != null)
+                {
+                        if (!"100-continue".equalsIgnoreCase(expect))
                         {
-                                len = requestPath.lastIndexOf('/', len-1);
-                                continue;
+                                throw new HttpException(417, true, "Expectation Failed");
                         }
-                        
-                        String remainingPath = requestPath.substring(len);
-                        
-                        File file = remainingPath.length() > 0 
-                                    ? new File(routeFile.getPath() + File.separator + remainingPath) 
-                                    : routeFile;
-                        
-                        file = file.getCanonicalFile();
-                        if (!file.getPath().startsWith(routeFile.getPath()))
+
+                        if (hasBody && request.clientHttpMinor > 0)
                         {
-                                log.log(Level.WARNING, "Attempt to access file outside of the route directory");
-                                throw new NoSuchFileException(file.getPath());
+                                HttpResponse resp = new HttpResponse(request.method, null, 100, "Continue", false, null);
+                                resp.interim = true;
+                                addResponse(resp);
                         }
+                }
 
-                        return file;
-
+                if (request.handler != null && hasBody)
+                {
+                        if (request.handler.blocking)
+                        {
+                                request.bodyStream = new HttpRequestBodyStream(this, reactor);
+                        }
+                        else
+                        {
+                                request.requestBody = ByteBuffer.allocate((int) (request.chunked ? Math.min(request.bodyMaxSize, HttpServer.LINEBUFFER_SIZE) : request.bodyRemaining));
+                        }
                 }
-                
 
-                if (defaultRoute == null)
+                if (request.upload != null)
                 {
-                        throw new NoSuchFileException("defaultRoute not set");
+                        try
+                        {
+                                request.upload.open();
+                        }
+                        catch (IOException ex)
+                        {
+                                throw new HttpException(500, true, "Unable to store file", ex);
+                        }
                 }
 
-                File file = new File(defaultRoute.getPath() + File.separator + requestPath);
-                file = file.getCanonicalFile();
+                if (hasBody)
+                {
+                        request.chunkState = CHUNK_STATE.SIZE;
+                        setState(STATE.READING_BODY);
+                }
 
-                if (!file.getPath().startsWith(defaultRoute.getPath()))
+                if (request.bodyStream != null)
                 {
-                        log.log(Level.WARNING, "Attempt to access file outside of the route directory");
-                        throw new NoSuchFileException(file.getPath());
+                        // The handler reads the body while it is being received
+                        @SuppressWarnings("unchecked")
+                        HashMap<String, String> requestHeaders = (HashMap<String, String>) request.headers.clone();
+                        dispatchRequest(requestHeaders, ByteBuffer.allocate(0));
                 }
-                
-                return file;
-        }
-        
-        private void addResponse(HttpResponse resp)
-        {
-                responses.add(resp);
-                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
 
         /**
-         * @return true if the reqeust has been fully read and a response may be sent
+         * @return true if the request body has been read completely
          */
-        private boolean readHttpRequest(ByteBuffer buf) throws HttpException
+        private boolean readBody(ByteBuffer buf) throws HttpException
         {
-                /*
-                 * Request       = Request-Line              ; Section 5.1
-                 *                 *(( general-header        ; Section 4.5
-                 *                  | request-header         ; Section 5.3
-                 *                  | entity-header ) CRLF)  ; Section 7.1
-                 *                 CRLF
-                 *                 [ message-body ]          ; Section 4.3
-                 */
+                if (!request.chunked)
+                {
+                        consumeBody(buf);
+                        return request.bodyRemaining == 0;
+                }
+
+                // Chunked-Body = *chunk last-chunk trailer CRLF
+                StringBuilder line = request.line;
+                line.setLength(0);
+                while (true)
+                {
+                        switch (request.chunkState)
+                        {
+                                case SIZE:
+                                        if (!HttpUtil.readLine(line, buf, false))
+                                        {
+                                                return false;
+                                        }
 
+                                        request.bodyRemaining = parseChunkSize(line);
+                                        line.setLength(0);
+                                        request.chunkState = request.bodyRemaining == 0 ? CHUNK_STATE.TRAILER : CHUNK_STATE.DATA;
+                                        break;
+
+                                case DATA:
+                                        consumeBody(buf);
+                                        if (request.bodyRemaining > 0)
+                                        {
+                                                return false;
+                                        }
 
+                                        request.chunkState = CHUNK_STATE.DATA_END;
+                                        break;
 
-                if (lineBuffer != null && lineBuffer.limit() > 0)
-                {
-                        assert lineBuffer.position() == 0 : "lineBuffer should have been flip()ed";
-                        int pos = buf.position() - lineBuffer.limit();
-                        buf.position(pos);
-                        buf.put(lineBuffer);
-                        lineBuffer.clear();
-                        buf.position(pos);
+                                case DATA_END:
+                                        if (!HttpUtil.readLine(line, buf, false))
+                                        {
+                                                return false;
+                                        }
+
+                                        if (line.length() > 0)
+                                        {
+                                                throw new HttpException(400, true, "Invalid chunk-data");
+                                        }
+
+                                        request.chunkState = CHUNK_STATE.SIZE;
+                                        break;
+
+                                case TRAILER:
+                                        if (!HttpUtil.readLine(line, buf, false))
+                                        {
+                                                return false;
+                                        }
+
+                                        if (line.length() == 0)
+                                        {
+                                                return true;
+                                        }
+
+                                        line.setLength(0); // trailer headers are ignored
+                                        break;
+                        }
                 }
+        }
 
-                //log.log(Level.INFO, buf.position() + ":" + buf.limit() + ":{0};", dumpBuffer(buf, false));
+        private static long parseChunkSize(StringBuilder line) throws HttpException
+        {
+                // chunk-size [ chunk-extension ]
+                int end = line.indexOf(";");
+                String size = (end < 0 ? line.toString() : line.substring(0, end)).trim();
 
-                if (state == STATE.WAIT_FOR_REQUEST_LINE)
+                if (size.isEmpty() || size.length() > 15)
                 {
-                        readRequestLine(buf);
+                        throw new HttpException(400, true, "Invalid chunk-size");
                 }
 
-                // not "else"!
-                if (state == STATE.READING_HEADERS)
+                long ret;
+                try
                 {
-                        
-
-                        readHeaders(buf);
+                        ret = Long.parseLong(size, 16);
                 }
-
-                if (state == STATE.DONE_READING)
+                catch (NumberFormatException ex)
                 {
-                        if ("websocket".equalsIgnoreCase(headers.get("upgrade")))
-                        {
-                                websocket = true;
-                                setState(STATE.UPGRADE);
-                                return false;
-                        }
-                        
-                        if (method != METHOD.GET && method != METHOD.HEAD)
-                        {
-                                throw new HttpException(405, true, "Method Not Allowed");
-                        }
-                        
-                        
-                        if (headers.containsKey("content-length"))
-                        {
-                                // POST, OPTIONS, etc is not supported
-                                throw new HttpException(400, true, "Request body is not allowed for this method");
-                        }
+                        throw new HttpException(400, true, "Invalid chunk-size", ex);
+                }
 
-                        //log.log(Level.SEVERE, "Remaining in buffer:{0}", dumpBuffer(buf, true));
+                if (ret < 0)
+                {
+                        throw new HttpException(400, true, "Invalid chunk-size");
+                }
 
+                return ret;
+        }
 
+        /**
+         * Consume up to bodyRemaining bytes of body data from buf.
+         */
+        private void consumeBody(ByteBuffer buf) throws HttpException
+        {
+                int length = (int) Math.min(buf.remaining(), request.bodyRemaining);
 
-                        return true;
+                request.bodyReceived += length;
+                if (request.bodyReceived > request.bodyMaxSize)
+                {
+                        throw new HttpException(413, true, "Request Entity Too Large");
                 }
 
-                // Some line that spans multiple socket reads() 
-                if (buf.hasRemaining())
+                request.bodyRemaining -= length;
+
+                if (request.bodyStream != null)
                 {
-                        if (state == STATE.WAIT_FOR_REQUEST_LINE || state == STATE.READING_HEADERS)
+                        int limit = buf.limit();
+                        buf.limit(buf.position() + length);
+                        if (!request.bodyStream.offer(buf))
                         {
-                                if (lineBuffer == null)
-                                {
-                                        lineBuffer = ByteBuffer.allocate(HttpServer.LINEBUFFER_SIZE);
-                                }
+                                pauseReading();
+                        }
+                        buf.limit(limit);
+                        return;
+                }
 
-                                try
-                                {
-                                        lineBuffer.put(buf);
-                                        lineBuffer.flip();
-                                }
-                                catch (BufferOverflowException ex)
-                                {
-                                        throw new HttpException(413, true, "Line in Request-Entity is too Large", ex);
-                                }
+                if (request.requestBody != null)
+                {
+                        if (request.requestBody.remaining() < length)
+                        {
+                                int newCap = (int) Math.min(request.bodyMaxSize, Math.max(request.requestBody.capacity() * 2L, request.requestBody.position() + length));
+                                ByteBuffer newBuf = ByteBuffer.allocate(newCap);
+                                request.requestBody.flip();
+                                newBuf.put(request.requestBody);
+                                request.requestBody = newBuf;
                         }
+
+                        int limit = buf.limit();
+                        buf.limit(buf.position() + length);
+                        request.requestBody.put(buf);
+                        buf.limit(limit);
+                        return;
                 }
 
-                return false;
+                if (request.upload == null)
+                {
+                        buf.position(buf.position() + length);
+                        return;
+                }
+
+                int limit = buf.limit();
+                buf.limit(buf.position() + length);
+                try
+                {
+                        request.upload.write(buf);
+                }
+                catch (IOException ex)
+                {
+                        throw new HttpException(500, true, "Unable to store file", ex);
+                }
+                finally
+                {
+                        buf.limit(limit);
+                }
         }
         
         private void ensureRawHeadHasRemaining(int remaining)
         {
-                if (rawHead == null)
+                if (request.rawHead == null)
                 {
                         // ensure the buffer is a multiple of RAWHEAD_SIZE
-                        rawHead = ByteBuffer.allocate((remaining / RAWHEAD_SIZE + 1) * RAWHEAD_SIZE);
+                        request.rawHead = ByteBuffer.allocate((remaining / RAWHEAD_SIZE + 1) * RAWHEAD_SIZE);
                 }
-                else if (remaining > rawHead.remaining())
+                else if (remaining > request.rawHead.remaining())
                 {
-                        int newCap = rawHead.capacity();
-                        newCap += remaining - rawHead.remaining();
+                        int newCap = request.rawHead.capacity();
+                        newCap += remaining - request.rawHead.remaining();
                         newCap = (newCap / RAWHEAD_SIZE + 1) * RAWHEAD_SIZE;
                         
                         ByteBuffer newBuf = ByteBuffer.allocate(newCap);
                         
-                        rawHead.flip();
-                        newBuf.put(rawHead);
+                        request.rawHead.flip();
+                        newBuf.put(request.rawHead);
                         newBuf.limit(newBuf.capacity());
-                        rawHead = newBuf;
+                        request.rawHead = newBuf;
                         
-                        assert rawHead.remaining() >= remaining;
+                        assert request.rawHead.remaining() >= remaining;
                 }
         }
 
-        private void rawHead_putToPos(ByteBuffer buf, int beforeLinePosition)
+        /**
+         * Write the head of an upgrade request that spanned several reads to rawHead, from what has been parsed. Only 
+         * an upgrade pays for this, a plain request that spans reads is never copied. Java-WebSocket looks the 
+         * headers up regardless of case, and only the last one of repeated headers has been kept.
+         */
+        private void rebuildRawHead()
+        {
+                StringBuilder head = request.line;
+                head.setLength(0);
+                head.append(request.method.name()).append(' ').append(request.requestUri).append(" HTTP/1.").append(request.clientHttpMinor).append("\r\n");
+                for (Map.Entry<String, String> header : request.headers.entrySet())
+                {
+                        head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+                head.append("\r\n");
+                
+                byte[] bytes = head.toString().getBytes(HttpUtil.UTF8);
+                ensureRawHeadHasRemaining(bytes.length);
+                request.rawHead.put(bytes);
+        }
+
+        private void rawHead_putToPos(ByteBuffer buf, int startPosition)
         {
                 int position = buf.position();
                 int limit = buf.limit();
 
-                // set the buffer to the line that was just read
-                buf.position(beforeLinePosition);
+                // set the buffer to the part of the head that was just read
+                buf.position(startPosition);
                 buf.limit(position);
                 
                 ensureRawHeadHasRemaining(buf.remaining());
                 
                 // add it to rawHead
-                rawHead.put(buf);
+                request.rawHead.put(buf);
 
                 // reset buf to what it was before
                 buf.position(position);
@@ -379,7 +1237,8 @@ class HttpConnection
          */
         private void readRequestLine(ByteBuffer buf) throws HttpException
         {
-                StringBuilder line = new StringBuilder();
+                StringBuilder line = request.line;
+                line.setLength(0);
 
                 try
                 {
@@ -387,14 +1246,10 @@ class HttpConnection
                         {
                                 line.setLength(0);
                                 
-                                int beforeLinePosition = buf.position();
-                                
                                 if (!HttpUtil.readLine(line, buf, false))
                                 {
                                         return;
                                 }
-                                
-                                rawHead_putToPos(buf, beforeLinePosition);
 
                                 if (line.length() == 0)
                                 {
@@ -418,9 +1273,9 @@ class HttpConnection
                                         Matcher requestLine = HttpUtil.requestLine.matcher(line.subSequence(0, line.length()));
                                         if (requestLine.matches())
                                         {
-                                                method = METHOD.fromRequestLine(requestLine.group(1));
+                                                request.method = METHOD.fromRequestLine(requestLine.group(1));
 
-                                                if (method == METHOD.UNKNOWN)
+                                                if (request.method == METHOD.UNKNOWN)
                                                 {
                                                         throw new HttpException(501, true, "Unknown Method");
                                                 }
@@ -432,8 +1287,14 @@ class HttpConnection
                                                 }
                                                 else
                                                 {
-                                                        requestUri = new URI(uri);
-                                                        this.clientHttpMinor = Integer.parseInt(requestLine.group(3), 10);
+                                                        request.requestUri = new URI(uri);
+                                                        request.clientHttpMinor = Integer.parseInt(requestLine.group(3), 10);
+                                                }
+
+                                                // RFC 6455: the opening handshake must be a HTTP/1.1 (or higher) GET
+                                                if (request.method != METHOD.GET || request.clientHttpMinor < 1)
+                                                {
+                                                        request.upgradeCandidate = false;
                                                 }
                                         }
                                         else
@@ -462,20 +1323,18 @@ class HttpConnection
 
         private void readHeaders(ByteBuffer buf) throws HttpException
         {
-                StringBuilder line = new StringBuilder();
+                StringBuilder line = request.line;
+                line.setLength(0);
                 try
                 {
                         while (true)
                         {
                                 line.setLength(0);
                                 
-                                int beforeLinePosition = buf.position();
                                 if (!HttpUtil.readLine(line, buf, true))
                                 {
                                         return;
                                 }
-
-                                rawHead_putToPos(buf, beforeLinePosition);
                                 
                                 //System.out.println(">" + line);
 
@@ -487,8 +1346,13 @@ class HttpConnection
                                         String name = headerLine.group(1);
                                         String value = headerLine.group(2);
                                         // todo: multiple headers with the same name
-                                        headers.put(name.toLowerCase(), value.trim());
-                                        if (headers.size() > 50)
+                                        String lowerName = name.toLowerCase();
+                                        if (request.headers.put(lowerName, value.trim()) != null && "content-length".equals(lowerName))
+                                        {
+                                                // Which one frames the body would be up to every hop to decide (request smuggling)
+                                                throw new HttpException(400, true, "Duplicate Content-Length");
+                                        }
+                                        if (request.headers.size() > 50)
                                         {
                                                 throw new HttpException(400, true, "Too many headers");
                                         }
@@ -504,11 +1368,7 @@ class HttpConnection
                                         if (HttpUtil.isCR(buf.get(buf.position()))
                                                 && HttpUtil.isLF(buf.get(buf.position() + 1)))
                                         {
-                                                ensureRawHeadHasRemaining(2);
-                                                
-                                                // .get() also moves the position
-                                                rawHead.put(buf.get());
-                                                rawHead.put(buf.get());
+                                                buf.position(buf.position() + 2);
                                                 
                                                 setState(STATE.DONE_READING);
                                                 return;
@@ -534,9 +1394,9 @@ class HttpConnection
 
                 if (newState == STATE.DONE_READING)
                 {
-                        if (this.clientHttpMinor > 0)
+                        if (request.clientHttpMinor > 0)
                         {
-                                this.keepAlive = "keep-alive".equals(headers.get("connection"));
+                                this.keepAlive = "keep-alive".equals(request.headers.get("connection"));
                                 //log.log(Level.INFO, "Keep-alive enabled");
                         }
                         else
@@ -547,62 +1407,207 @@ class HttpConnection
                 
                 stateChangeListener.connectionStateChange(this, oldState, newState);
                 
+                if (newState == STATE.CLOSED || newState == STATE.UPGRADE)
+                {
+                        timers.cancel(this);
+                        updateMemory(); // releases everything
+                        if (shaping != null)
+                        {
+                                bandwidth.release(shaping);
+                        }
+                }
+                
+                if (newState == STATE.WAIT_FOR_REQUEST_LINE && oldState != null)
+                {
+                        idle = true;
+                }
+                
+                if (newState == STATE.CLOSED)
+                {
+                        if (currentResponse != null)
+                        {
+                                currentResponse.cancel();
+                                currentResponse = null;
+                        }
+                        
+                        if (responses != null)
+                        {
+                                for (HttpResponse resp : responses)
+                                {
+                                        resp.cancel();
+                                }
+                                responses.clear();
+                                pool.release(responses);
+                                responses = null;
+                        }
+                }
+                
                 // clear state variables
                 // do not clear when the new state is UPGRADE!
-                if (newState == STATE.WAIT_FOR_REQUEST_LINE || newState == STATE.CLOSED || newState == STATE.BAD_REQUEST)
+                if (newState == STATE.WAIT_FOR_REQUEST_LINE || newState == STATE.CLOSING || newState == STATE.CLOSED || newState == STATE.BAD_REQUEST)
                 {
-                        this.requestUri = null;
-                        this.clientHttpMinor = 0;
-                        this.websocket = false;
+                        this.keepAlive = false;
                         
-                        if (this.lineBuffer != null)
+                        if (request != null)
                         {
-                                this.lineBuffer.clear();
-                        }
+                                if (request.upload != null)
+                                {
+                                        // the request did not complete
+                                        request.upload.abort();
+                                }
 
-                        if (this.rawHead != null)
+                                if (request.bodyStream != null)
+                                {
+                                        // the request did not complete
+                                        request.bodyStream.fail();
+                                }
+
+                                request.reset();
+                                
+                                if (newState != STATE.WAIT_FOR_REQUEST_LINE)
+                                {
+                                        // nothing is parsed anymore
+                                        pool.release(request);
+                                        request = null;
+                                }
+                        }
+                }
+        }
+        
+        
+        /** Make the next queued response the current one, if the handler has replied to it. */
+        private boolean nextResponse()
+        {
+                if (responses == null || responses.getFirst().pending)
+                {
+                        return false;
+                }
+                
+                currentResponse = responses.removeFirst();
+                if (responses.isEmpty())
+                {
+                        pool.release(responses);
+                        responses = null;
+                }
+                currentResponse.prepare();
+                return true;
+        }
+        
+        /** 
+         * @return The bytes that remain to be written of the response that is written next, 0 if there is nothing
+         *         to write yet, Long.MAX_VALUE if it is a stream that has not ended.
+         */
+        long remainingBytes()
+        {
+                if (currentResponse == null && !nextResponse())
+                {
+                        return 0;
+                }
+                return currentResponse.remainingBytes();
+        }
+        
+        /**
+         * Reduce the budget of the next write to what the bandwidth limits allow. Must be followed by 
+         * {@link #shaped(long, long)} once written.
+         * @return The bytes that may be written
+         */
+        long shapeBudget(long budget, long nowNanos)
+        {
+                if (bandwidth == null)
+                {
+                        return budget;
+                }
+                
+                HttpBandwidth.Bucket route = currentResponse == null ? null : currentResponse.bandwidth;
+                if (shaping == null)
+                {
+                        if (route == null && bandwidth.getConnectionRate() == 0 && bandwidth.getClientRate() == 0)
                         {
-                                this.rawHead.clear();
+                                return budget; // unlimited
                         }
                         
-                        this.headers.clear();
-                        this.keepAlive = false;
+                        InetAddress address = null;
+                        try
+                        {
+                                address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+                        }
+                        catch (IOException | NullPointerException ex)
+                        {
+                        }
+                        shaping = new HttpBandwidth.Shaping(address);
                 }
+                
+                return bandwidth.take(shaping, route, budget, nowNanos);
         }
         
+        /**
+         * Return what has not been written to the bandwidth buckets. If the buckets have run out while there is more
+         * to write, stop writing until they have refilled.
+         */
+        void shaped(long written, long nowNanos)
+        {
+                if (shaping == null)
+                {
+                        return;
+                }
+                
+                long wait = bandwidth.settle(shaping, written, nowNanos);
+                if (wait > 0 && key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0)
+                {
+                        shaping.parked = true;
+                        shaping.parkedUntil = nowNanos + wait;
+                        key.interestOps(readInterest());
+                }
+        }
         
         // channel is ready to write more
         public void writeable() throws IOException
         {
-                while (!responses.isEmpty() || currentResponse != null)
+                writeable(channel);
+        }
+        
+        /** 
+         * Write as much as the channel accepts.
+         * @param out The channel of this connection, or an HttpWriteBudget that limits how much is written to it
+         */
+        void writeable(WritableByteChannel out) throws IOException
+        {
+                nanoLastWritten = System.nanoTime();
+                
+                while (responses != null || currentResponse != null)
                 {
-                        if (currentResponse == null)
+                        if (currentResponse == null && !nextResponse())
                         {
-                                currentResponse = responses.removeFirst();
-                                currentResponse.prepare();
+                                break; // wait for the handler to reply
                         }
 
-                        if (currentResponse.write(channel))
+                        if (currentResponse.write(out))
                         {
                                 if (currentResponse.close)
                                 {
                                         log.log(Level.INFO, "Closing... {0}:{1}", new Object[]{currentResponse.close, this.keepAlive});
                                         setState(STATE.CLOSED);
                                         channel.close(); // TODO: does this immediately clear the outgoing buffer?
+                                        currentResponse = null;
+                                        return; // the key has been cancelled
                                 }
 
                                 // the response is done writing
                                 currentResponse = null;
                         }
+                        else if (currentResponse.isWaiting())
+                        {
+                                break; // wait for the producer to write more data
+                        }
                         else
                         {
-                                return; // the outgoing buffer is full
+                                return; // the outgoing buffer is full, or the budget has been spent
                         }
 
                 }
                 
                 // nothing more to write
-                key.interestOps(SelectionKey.OP_READ);
+                key.interestOps(readInterest());
         }
 
         public void closed()
@@ -2,66 +2,125 @@ package wshttpserver;
 
 import wshttpserver.HttpConnection.ConnectionStateChangeListener;
 import wshttpserver.HttpConnection.STATE;
-import java.io.File;
 import java.io.IOException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Serves plain http connections with a selector. Connections that are writable are not written to right away, they
+ * are collected and scheduled at the end of every iteration of the select loop: responses with at most 
+ * SMALL_RESPONSE_SIZE left are written first, shortest first, and are allowed to complete. Larger ones share the
+ * WRITE_BUDGET of the iteration in round robin order, so that a few large downloads do not delay the small ones for
+ * as long as it takes to fill their socket buffers. A large download that is on its own still gets the whole budget,
+ * and the next iteration follows right away because it is still writable.
  *
  * @author Joris
  */
-class HttpDownloadThread extends Thread implements ConnectionStateChangeListener
+class HttpDownloadThread extends Thread implements ConnectionStateChangeListener, Executor
 {
         private static final Logger log = Logger.getLogger("wshttpserver");
-        private volatile boolean running = false;
         private volatile boolean ready = false;
         private Selector selector;
-        private final File defaultRoute;
-        private final Map<String, File> routes = new HashMap<>();
+        private final HttpRoutes routes;
         private final UpgradeWebSocketHandler upgradeWebSocketHandler;
         private final ByteBuffer buf = ByteBuffer.allocateDirect(HttpServer.BUFFER_SIZE);
         private final ConcurrentLinkedQueue <SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger connectionCount = new AtomicInteger(); // including new channels that are not registered yet
+        private final AtomicBoolean wakeupPending = new AtomicBoolean(); // only wake up the selector once per select()
+        private final Runnable connectionRemovedListener;
+        private final HttpRateLimiter limiter; // null if clients are not limited
+        private final HttpLoadShedder shedder; // null if load is never shed
+        private HttpLoadShedder.Monitor monitor;
+        private final HttpMemoryAccountant accountant; // null if memory is not accounted
+        private HttpMemoryAccountant.Ledger ledger;
+        private final HttpBandwidth bandwidth; // null if bandwidth is never limited
+        private ServerSocketChannel serverChannel; // optional, this thread accepts its own connections
+        private SelectionKey acceptKey;
+        private HttpTimerWheel timers;
+        private final HttpRequestState.Pool requestPool = new HttpRequestState.Pool(HttpServer.REQUEST_POOL_SIZE);
+        private final ArrayList<HttpConnection> writable = new ArrayList<>(); // connections to write to in this iteration
+        private final ArrayList<HttpConnection> bulk = new ArrayList<>();
+        private final HttpWriteBudget writeBudget = new HttpWriteBudget();
+        private int bulkRotation; // the large response that writes first in the next iteration
         
-        private long lastTimeoutCheck = System.nanoTime();
+        private static final Comparator<HttpConnection> SHORTEST_REMAINING_FIRST = new Comparator<HttpConnection>()
+        {
+                @Override
+                public int compare(HttpConnection a, HttpConnection b)
+                {
+                        return Long.compare(a.writeRemaining, b.writeRemaining);
+                }
+        };
 
-        HttpDownloadThread(File httpdocs, UpgradeWebSocketHandler upgradeWebSocketHandler)
+        /**
+         * @param routes The routes to serve. They are shared with other threads and must not be modified once 
+         *               this thread has been started.
+         * @param connectionRemovedListener Optional, runs on this thread after a connection has been closed or 
+         *                                  upgraded
+         * @param limiter Optional, the connections that this thread accepts itself are admitted by it, the others
+         *                must have been admitted already. Requests are limited by it.
+         * @param shedder Optional, measures the load of this thread. While it sheds load, this thread does not 
+         *                accept connections itself and answers new requests with 503.
+         * @param accountant Optional, the connections of this thread report their buffers to it
+         * @param bandwidth Optional, the bandwidth limits of the responses
+         */
+        HttpDownloadThread(HttpRoutes routes, UpgradeWebSocketHandler upgradeWebSocketHandler, Runnable connectionRemovedListener, HttpRateLimiter limiter, HttpLoadShedder shedder, HttpMemoryAccountant accountant, HttpBandwidth bandwidth)
         {
-                this.defaultRoute = httpdocs;
+                this.routes = routes;
                 this.upgradeWebSocketHandler = upgradeWebSocketHandler;
+                this.connectionRemovedListener = connectionRemovedListener;
+                this.limiter = limiter;
+                this.shedder = shedder;
+                this.accountant = accountant;
+                this.bandwidth = bandwidth;
         }
         
-        /** Register a route (url path) to be served by the specified file or directory.
-         * @param path The path part of the URL that this route applies to. 
-         *             Must not begin or end with a slash
-         *             For example "assets" or "abc/def"
-         * @param file File or directory
+        /** Accept connections from the specified channel, in addition to the ones passed to addNewChannel().
+         * Must be called before this thread is started.
+         * @param serverChannel A non blocking server channel, which is not used by any other thread
          */
-        public void addRouteStatic(String path, File file) throws IOException, SecurityException
+        void setServerChannel(ServerSocketChannel serverChannel)
         {
-                if (running)
+                if (ready)
                 {
                         throw new IllegalStateException();
-                        // If adding routes while the server runs is desirable, 
-                        // this.routes should become thread safe.
                 }
                 
-                routes.put(path, file.getCanonicalFile());
+                this.serverChannel = serverChannel;
+        }
+        
+        /** @return The number of connections that this thread serves */
+        @ThreadSafe
+        int getConnectionCount()
+        {
+                return connectionCount.get();
         }
 
         @Override
         public void connectionStateChange(HttpConnection conn, STATE oldState, STATE newState)
         {
+                if (newState == HttpConnection.STATE.UPGRADE || 
+                    (newState == HttpConnection.STATE.CLOSED && oldState != HttpConnection.STATE.UPGRADE))
+                {
+                        connectionRemoved(conn.channel);
+                }
+                
                 if (newState == HttpConnection.STATE.CLOSED)
                 {
                         conn.key.attach(null);
@@ -81,10 +140,10 @@ class HttpDownloadThread extends Thread implements ConnectionStateChangeListener
                         conn.key.attach(null);
                         conn.key.cancel();
 
-                        if (conn.websocket && upgradeWebSocketHandler != null)
+                        if (conn.request.websocket && upgradeWebSocketHandler != null)
                         {
-                                ByteBuffer rawHead = conn.rawHead;
-                                conn.rawHead = null; // make sure nothing is able to interfere
+                                ByteBuffer rawHead = conn.request.rawHead;
+                                conn.request.rawHead = null; // make sure nothing is able to interfere
                                 rawHead.flip();
                                 upgradeWebSocketHandler.upgradeWebSocketHandler(conn.channel, rawHead);
                         }
@@ -124,60 +183,84 @@ class HttpDownloadThread extends Thread implements ConnectionStateChangeListener
         @Override
         public void run()
         {
-                running = true;
-                setName("HttpDownload-"+getId());
+                setName("HttpDownload-"+threadId());
                 try
                 {
                         selector = Selector.open();
+                        timers = new HttpTimerWheel(HttpServer.TIMER_TICK, HttpServer.TIMER_WHEEL_SIZE, System.nanoTime());
+                        if (serverChannel != null)
+                        {
+                                acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                        }
+                        if (shedder != null)
+                        {
+                                monitor = shedder.newMonitor();
+                        }
+                        if (accountant != null)
+                        {
+                                ledger = accountant.newLedger(getName());
+                        }
                         ready = true;
 
                         while (!this.isInterrupted())
                         {
                                 try
                                 {
-                                        selector.select(500);
+                                        // Wake up for the timers, such as connections that wait for their bandwidth limit
+                                        long timeout = monitor != null && monitor.isOverloaded() ? HttpServer.OVERLOAD_SELECT_TIMEOUT : 500;
+                                        long untilTimer = timers.untilNextTick(System.nanoTime(), timeout * 1_000_000l);
+                                        selector.select(Math.max(1, (untilTimer + 999_999) / 1_000_000));
                                 }
                                 catch (ClosedSelectorException ex)
                                 {
                                         break;
                                 }
                                 
+                                long busyStart = monitor == null ? 0 : System.nanoTime();
+                                int work = selector.selectedKeys().size();
+                                
+                                // Anything queued from now on needs a new wakeup
+                                wakeupPending.set(false);
+                                
+                                if (acceptKey != null && shedder != null)
                                 {
-                                        SocketChannel sChannel = newChannels.poll();
-                                        if (sChannel != null)
+                                        // Pending connections wait in the backlog while the server sheds load
+                                        int ops = shedder.isShedding() ? 0 : SelectionKey.OP_ACCEPT;
+                                        if (acceptKey.interestOps() != ops)
                                         {
-                                                sChannel.configureBlocking(false);
-                                                sChannel.socket().setTcpNoDelay(false);
-                                                SelectionKey key = sChannel.register(selector, SelectionKey.OP_READ);
-                                                key.attach(new HttpConnection(this, key, sChannel, defaultRoute, routes));
+                                                acceptKey.interestOps(ops);
                                         }
                                 }
                                 
-                                Iterator<SelectionKey> it;
-                                
-                                long now = System.nanoTime();
-                                
-                                if (now - lastTimeoutCheck > 1_000_000_000l)
                                 {
-                                        lastTimeoutCheck = now;
-                                        it = selector.keys().iterator();
+                                        SocketChannel sChannel;
+                                        while ((sChannel = newChannels.poll()) != null)
+                                        {
+                                                ++work;
+                                                register(sChannel);
+                                        }
+                                }
                                 
-                                        while (it.hasNext())
+                                {
+                                        Runnable task;
+                                        while ((task = tasks.poll()) != null)
                                         {
-                                                SelectionKey key = it.next();
-                                                HttpConnection conn = (HttpConnection) key.attachment();
-                                                if (now - conn.nanoLastReceived > HttpServer.HTTP_TIMEOUT * 1_000_000_000l)
+                                                ++work;
+                                                try
                                                 {
-                                                        log.log(Level.INFO, "Dropping connection {0} because of timeout", conn.channel.getRemoteAddress());
-                                                        key.attach(null);
-                                                        key.cancel();
-                                                        conn.channel.close();
-                                                        conn.closed();
+                                                        task.run();
+                                                }
+                                                catch (RuntimeException ex)
+                                                {
+                                                        log.log(Level.SEVERE, null, ex);
                                                 }
                                         }
                                 }
+                                
+                                // Drops the connections that timed out
+                                timers.advance(System.nanoTime());
 
-                                it = selector.selectedKeys().iterator();
+                                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
 
                                 while (it.hasNext())
                                 {
@@ -187,6 +270,15 @@ class HttpDownloadThread extends Thread implements ConnectionStateChangeListener
 
                                         it.remove();
                                         
+                                        if (key == acceptKey)
+                                        {
+                                                if (shedder == null || !shedder.isShedding())
+                                                {
+                                                        accept();
+                                                }
+                                                continue;
+                                        }
+                                        
                                         if (conn == null)
                                         {
                                                 // was just removed by a timeout
@@ -200,29 +292,41 @@ class HttpDownloadThread extends Thread implements ConnectionStateChangeListener
                                                 {
                                                         if (!readable(conn))
                                                         {
-                                                                key.attach(null);
-                                                                key.cancel();
-                                                                conn.channel.close();
-                                                                conn.closed();
+                                                                conn.closed(); // closes the channel
                                                                 continue;
                                                         }
                                                 }
 
                                                 if (key.isValid() && key.isWritable())
                                                 {
-                                                        conn.writeable();
+                                                        writable.add(conn);
+                                                        continue; // see writeScheduled()
+                                                }
+                                                
+                                                if (key.isValid())
+                                                {
+                                                        conn.updateTimeout();
+                                                        conn.updateMemory();
                                                 }
                                         }
                                         catch (IOException ex)
                                         {
                                                 log.log(Level.WARNING, null, ex);
-                                                
-                                                key.attach(null);
-                                                key.cancel();
-                                                conn.channel.close();
-                                                conn.closed();
+                                                conn.closed(); // closes the channel
                                         }
                                 }
+                                
+                                writeScheduled();
+                                
+                                if (monitor != null)
+                                {
+                                        monitor.iteration(System.nanoTime() - busyStart, work);
+                                }
+                                
+                                if (ledger != null)
+                                {
+                                        ledger.enforce(selector.keys(), System.nanoTime());
+                                }
                         }
                         
                         selector.close();
@@ -234,9 +338,151 @@ class HttpDownloadThread extends Thread implements ConnectionStateChangeListener
                 }
         }
         
+        /** Write to the connections that have become writable in this iteration, see the class description. */
+        private void writeScheduled()
+        {
+                if (writable.isEmpty())
+                {
+                        return;
+                }
+                
+                // Split off the large responses, keeping the small ones in place
+                int small = 0;
+                for (int a = 0; a < writable.size(); ++a)
+                {
+                        HttpConnection conn = writable.get(a);
+                        if (!conn.key.isValid())
+                        {
+                                continue;
+                        }
+                        
+                        conn.writeRemaining = conn.remainingBytes();
+                        if (conn.writeRemaining <= HttpServer.SMALL_RESPONSE_SIZE)
+                        {
+                                writable.set(small++, conn);
+                        }
+                        else
+                        {
+                                bulk.add(conn);
+                        }
+                }
+                writable.subList(small, writable.size()).clear();
+                writable.sort(SHORTEST_REMAINING_FIRST);
+                
+                long spent = 0;
+                for (HttpConnection conn : writable)
+                {
+                        spent += write(conn, HttpServer.SMALL_RESPONSE_SIZE);
+                }
+                
+                int count = bulk.size();
+                if (count > 0)
+                {
+                        long quantum = Math.max(HttpServer.MIN_WRITE_QUANTUM, (HttpServer.WRITE_BUDGET - spent) / count);
+                        int first = (bulkRotation++ & Integer.MAX_VALUE) % count;
+                        for (int a = 0; a < count; ++a)
+                        {
+                                write(bulk.get((first + a) % count), quantum);
+                        }
+                }
+                
+                writable.clear();
+                bulk.clear();
+        }
+        
+        /** @return The bytes that have been written */
+        private long write(HttpConnection conn, long budget)
+        {
+                try
+                {
+                        long now = System.nanoTime();
+                        writeBudget.reset(conn.channel, conn.shapeBudget(budget, now));
+                        conn.writeable(writeBudget);
+                        conn.shaped(writeBudget.getWritten(), now);
+                        
+                        if (conn.key.isValid())
+                        {
+                                conn.updateTimeout();
+                                conn.updateMemory();
+                        }
+                }
+                catch (IOException ex)
+                {
+                        log.log(Level.WARNING, null, ex);
+                        conn.closed(); // closes the channel
+                }
+                return writeBudget.getWritten();
+        }
+        
+        private void register(SocketChannel sChannel)
+        {
+                try
+                {
+                        sChannel.configureBlocking(false);
+                        sChannel.setOption(StandardSocketOptions.TCP_NODELAY, false); // socket() would allocate an adaptor per connection
+                        SelectionKey key = sChannel.register(selector, SelectionKey.OP_READ);
+                        key.attach(new HttpConnection(this, key, sChannel, routes, this, timers, requestPool, limiter, shedder, ledger, bandwidth));
+                }
+                catch (IOException ex)
+                {
+                        log.log(Level.WARNING, "Unable to register a new connection", ex);
+                        connectionRemoved(sChannel);
+                        try
+                        {
+                                sChannel.close();
+                        }
+                        catch (IOException ex2)
+                        {
+                                log.log(Level.SEVERE, null, ex2);
+                        }
+                }
+        }
+        
+        /** Must be called before the channel is closed */
+        private void connectionRemoved(SocketChannel sChannel)
+        {
+                if (limiter != null)
+                {
+                        limiter.connectionClosed(sChannel);
+                }
+                connectionCount.decrementAndGet();
+                if (connectionRemovedListener != null)
+                {
+                        connectionRemovedListener.run();
+                }
+        }
+        
+        private void accept()
+        {
+                try
+                {
+                        SocketChannel sChannel;
+                        while ((sChannel = serverChannel.accept()) != null)
+                        {
+                                if (limiter != null && !limiter.admit(sChannel))
+                                {
+                                        continue;
+                                }
+                                connectionCount.incrementAndGet();
+                                register(sChannel);
+                        }
+                }
+                catch (IOException ex)
+                {
+                        // For example too many open files. The connection remains in the backlog
+                        log.log(Level.SEVERE, "IOException in accept()", ex);
+                }
+        }
+        
         /** @return false if this connection should be removed */
         private boolean readable(HttpConnection conn) throws IOException
         {
+                // The body of an upload skips buf
+                if (conn.transferBody() > 0)
+                {
+                        return true;
+                }
+                
                 buf.clear();
 
                 // start reading at LINEBUFFER_SIZE so that the previous line can be prepended
@@ -272,6 +518,17 @@ class HttpDownloadThread extends Thread implements ConnectionStateChangeListener
         }
         
 
+        /**
+         * Run a task on this thread. Used to pass on the responses of dynamic routes.
+         */
+        @Override
+        @ThreadSafe
+        public void execute(Runnable task)
+        {
+                tasks.add(task);
+                wakeup();
+        }
+
         /**
          * Add a new socket channel to be handled by this thread.
          */
@@ -279,7 +536,19 @@ class HttpDownloadThread extends Thread implements ConnectionStateChangeListener
         @ThreadSafe
         void addNewChannel(SocketChannel sChannel) throws IOException
         {
+                connectionCount.incrementAndGet();
                 newChannels.add(sChannel);
+                wakeup();
+        }
+        
+        /** Interrupt select(), for example to resume accepting after the server stopped shedding load. */
+        @ThreadSafe
+        void wakeup()
+        {
+                if (!wakeupPending.compareAndSet(false, true))
+                {
+                        return; // the selector has already been woken up, and has not drained the queues yet
+                }
                 
                 try
                 {
@@ -288,7 +557,6 @@ class HttpDownloadThread extends Thread implements ConnectionStateChangeListener
                 catch (IllegalStateException | NullPointerException ex)
                 {
                         // Thread has not started yet, or it just stopped
-                        assert false;
                 }
         }
 }
@@ -0,0 +1,24 @@
+package wshttpserver;
+
+/**
+ * Handles the requests of a dynamic route. See {@link HttpServer#addRouteHandler(HttpUtil.METHOD, String, HttpHandler)}
+ * The reply may be sent from a callback of any thread. {@link HttpAsyncHandler} returns a future instead.
+ *
+ * @author Joris
+ */
+public interface HttpHandler
+{
+        /**
+         * Handle a request. This method is called from the executor of the route, never from the thread that 
+         * serves the connection. Every request must be answered exactly once using one of the methods of reply. 
+         * This may also happen after this method has returned, from any thread.
+         * 
+         * If this method throws a RuntimeException and no reply has been sent, "500 Internal Server Error" is sent.
+         *
+         * @param request The request, including the (complete) request body. The body of a blocking route is
+         *                streamed instead, see {@link HttpRequest#getBodyStream()}
+         * @param reply Used to send the response
+         */
+        @ThreadSafe
+        public void handle(HttpRequest request, HttpReply reply);
+}
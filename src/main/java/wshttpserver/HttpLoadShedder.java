@@ -0,0 +1,142 @@
+package wshttpserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides when the server is overloaded. Every reactor (HttpDownloadThread, HttpWebSocketServer) reports each
+ * iteration of its select loop to its own Monitor: how long it was busy, and how much work it found (selected keys,
+ * tasks and new channels). Both are smoothed, a reactor is overloaded once either exceeds its threshold and recovers
+ * once both are below half of it. The server sheds load as long as any reactor is overloaded: accepting pauses,
+ * new requests are answered with a pre-encoded "503 Service Unavailable" and websocket upgrades are rejected.
+ *
+ * The busy time of an iteration is the lag: an event that arrives during an iteration is only handled by the next
+ * one.
+ *
+ * @author Joris
+ */
+class HttpLoadShedder
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private final long maxLag; // ns
+        private final int maxQueueDepth;
+        private final byte[] response;
+        private final AtomicInteger overloadedReactors = new AtomicInteger();
+        private volatile Runnable recoveryListener;
+
+        /**
+         * @param maxLag The smoothed time (ns) that a reactor may spend per iteration of its select loop
+         * @param maxQueueDepth The smoothed number of events that a reactor may find per iteration
+         * @param retryAfter The Retry-After (seconds) of the 503 responses
+         */
+        HttpLoadShedder(long maxLag, int maxQueueDepth, int retryAfter)
+        {
+                if (maxLag < 1 || maxQueueDepth < 1 || retryAfter < 0)
+                {
+                        throw new IllegalArgumentException();
+                }
+
+                this.maxLag = maxLag;
+                this.maxQueueDepth = maxQueueDepth;
+
+                // Without a Date header, which a 5xx response may omit (RFC 7231, 7.1.1.2)
+                this.response = ("HTTP/1.1 503 Service Unavailable\r\n"
+                                 + "Connection: close\r\n"
+                                 + "Server: Aphelion\r\n"
+                                 + "Retry-After: " + retryAfter + "\r\n"
+                                 + "Content-Length: 0\r\n"
+                                 + "\r\n").getBytes(HttpUtil.UTF8);
+        }
+
+        /** @param listener Runs on the reactor thread that recovered last, once the server no longer sheds load */
+        void setRecoveryListener(Runnable listener)
+        {
+                this.recoveryListener = listener;
+        }
+
+        /** @return A monitor for a single reactor thread */
+        Monitor newMonitor()
+        {
+                return new Monitor();
+        }
+
+        /** @return true while any reactor is overloaded */
+        @ThreadSafe
+        boolean isShedding()
+        {
+                return overloadedReactors.get() > 0;
+        }
+
+        /** @return The response for requests that are shed. The array is shared and must not be modified. */
+        @ThreadSafe
+        byte[] getResponse()
+        {
+                return response;
+        }
+
+        /** The load of a single reactor. Not thread safe, except for isOverloaded(). */
+        class Monitor
+        {
+                private double lag; // ns, smoothed
+                private double queueDepth; // smoothed
+                private volatile boolean overloaded;
+
+                /**
+                 * Report an iteration of the select loop.
+                 * @param busy The time (ns) between the return of select() and the next call to it
+                 * @param work The number of events that the iteration handled
+                 */
+                void iteration(long busy, int work)
+                {
+                        // Exponentially weighted, a single slow iteration is not an overload
+                        lag += (busy - lag) / 8;
+                        queueDepth += (work - queueDepth) / 8;
+
+                        if (overloaded)
+                        {
+                                if (lag < maxLag / 2 && queueDepth < maxQueueDepth / 2.0)
+                                {
+                                        overloaded = false;
+                                        log.log(Level.INFO, "Reactor {0} recovered", Thread.currentThread().getName());
+                                        if (overloadedReactors.decrementAndGet() == 0)
+                                        {
+                                                Runnable listener = recoveryListener;
+                                                if (listener != null)
+                                                {
+                                                        listener.run();
+                                                }
+                                        }
+                                }
+                        }
+                        else if (lag > maxLag || queueDepth > maxQueueDepth)
+                        {
+                                overloaded = true;
+                                overloadedReactors.incrementAndGet();
+                                log.log(Level.WARNING, "Reactor {0} is overloaded ({1,number,#} us per iteration, {2,number,#.#} events), shedding load",
+                                        new Object[] { Thread.currentThread().getName(), lag / 1000, queueDepth });
+                        }
+                }
+
+                /** @return true if the reactor is overloaded. It should then select() with a short timeout, so that
+                 *          it keeps measuring itself while it is quiet.
+                 */
+                @ThreadSafe
+                boolean isOverloaded()
+                {
+                        return overloaded;
+                }
+
+                /** @return The smoothed lag in ns */
+                double getLag()
+                {
+                        return lag;
+                }
+
+                /** @return The smoothed number of events per iteration */
+                double getQueueDepth()
+                {
+                        return queueDepth;
+                }
+        }
+}
@@ -0,0 +1,220 @@
+package wshttpserver;
+
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the bytes that connections buffer: request heads and bodies, queued responses and the outgoing
+ * queues of websockets. Every reactor thread has its own Ledger, every connection is a Consumer that reports the
+ * difference whenever its buffers change. All of it adds up to a total for the server.
+ *
+ * Above the throttle limit, every reactor stops reading from its heaviest consumer, one at a time, so that it can
+ * not buffer any more. Above the close limit, the heaviest consumer is closed instead. Reading resumes once the
+ * total is below three quarters of the throttle limit.
+ *
+ * @author Joris
+ */
+class HttpMemoryAccountant
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private final long throttleLimit;
+        private final long closeLimit;
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong throttledCount = new AtomicLong();
+        private final AtomicLong closedCount = new AtomicLong();
+        private final List<Ledger> ledgers = new CopyOnWriteArrayList<>();
+
+        /**
+         * @param throttleLimit Bytes, Long.MAX_VALUE to never throttle
+         * @param closeLimit Bytes, Long.MAX_VALUE to never close
+         */
+        HttpMemoryAccountant(long throttleLimit, long closeLimit)
+        {
+                if (throttleLimit < 1 || closeLimit < throttleLimit)
+                {
+                        throw new IllegalArgumentException();
+                }
+
+                this.throttleLimit = throttleLimit;
+                this.closeLimit = closeLimit;
+        }
+
+        /** Something that buffers memory on behalf of a client. Only used by the thread that serves it. */
+        static interface Consumer
+        {
+                /** @return The bytes that have been reported to the ledger */
+                long getMemory();
+
+                /** Stop or resume reading from the client */
+                void throttleReads(boolean throttle);
+
+                boolean isReadThrottled();
+
+                /** Drop the client, releasing everything it buffers */
+                void closeForMemory();
+
+                boolean isClosed();
+        }
+
+        /** @param name The name of the thread that owns the ledger, for the metrics */
+        Ledger newLedger(String name)
+        {
+                Ledger ledger = new Ledger(name);
+                ledgers.add(ledger);
+                return ledger;
+        }
+
+        /** @return The bytes that all connections buffer */
+        @ThreadSafe
+        long getTotal()
+        {
+                return total.get();
+        }
+
+        /** @return The bytes that the connections of every thread buffer, by thread name */
+        @ThreadSafe
+        Map<String, Long> getTotalByThread()
+        {
+                Map<String, Long> totals = new LinkedHashMap<>();
+                for (Ledger ledger : ledgers)
+                {
+                        totals.put(ledger.name, ledger.getBytes());
+                }
+                return totals;
+        }
+
+        /** @return The number of times reading has been throttled since the server started */
+        @ThreadSafe
+        long getThrottledCount()
+        {
+                return throttledCount.get();
+        }
+
+        /** @return The number of connections that have been closed because of the close limit */
+        @ThreadSafe
+        long getClosedCount()
+        {
+                return closedCount.get();
+        }
+
+        /** The memory of the connections of a single thread */
+        class Ledger
+        {
+                private final String name;
+                private final AtomicLong bytes = new AtomicLong();
+                private final ArrayList<Consumer> throttled = new ArrayList<>(); // only used by the owner
+                private long nextCheck; // only used by the owner
+
+                private Ledger(String name)
+                {
+                        this.name = name;
+                }
+
+                /** @param delta Bytes that a consumer of this ledger started (positive) or stopped buffering */
+                @ThreadSafe
+                void add(long delta)
+                {
+                        if (delta != 0)
+                        {
+                                bytes.addAndGet(delta);
+                                total.addAndGet(delta);
+                        }
+                }
+
+                @ThreadSafe
+                long getBytes()
+                {
+                        return bytes.get();
+                }
+
+                /**
+                 * Throttle, close or resume consumers of the owner thread if needed. Called by the owner after every
+                 * iteration of its select loop, does the actual work at most every MEMORY_CHECK_INTERVAL.
+                 * @param keys The keys of the selector of the owner, their attachment may be a Consumer
+                 */
+                void enforce(Iterable<SelectionKey> keys, long nowNanos)
+                {
+                        long used = total.get();
+                        if (used <= throttleLimit && throttled.isEmpty())
+                        {
+                                return;
+                        }
+
+                        if (nowNanos - nextCheck < 0)
+                        {
+                                return;
+                        }
+                        nextCheck = nowNanos + HttpServer.MEMORY_CHECK_INTERVAL;
+
+                        Iterator<Consumer> it = throttled.iterator();
+                        while (it.hasNext())
+                        {
+                                if (it.next().isClosed())
+                                {
+                                        it.remove();
+                                }
+                        }
+
+                        if (used > closeLimit)
+                        {
+                                Consumer heaviest = heaviest(keys, true);
+                                if (heaviest != null)
+                                {
+                                        log.log(Level.WARNING, "Closing {0}, which buffers {1,number,#} bytes, {2,number,#} bytes are buffered in total",
+                                                new Object[] { heaviest, heaviest.getMemory(), used });
+                                        closedCount.incrementAndGet();
+                                        throttled.remove(heaviest);
+                                        heaviest.closeForMemory();
+                                }
+                        }
+                        else if (used > throttleLimit)
+                        {
+                                Consumer heaviest = heaviest(keys, false);
+                                if (heaviest != null)
+                                {
+                                        log.log(Level.INFO, "Throttling {0}, which buffers {1,number,#} bytes, {2,number,#} bytes are buffered in total",
+                                                new Object[] { heaviest, heaviest.getMemory(), used });
+                                        throttledCount.incrementAndGet();
+                                        throttled.add(heaviest);
+                                        heaviest.throttleReads(true);
+                                }
+                        }
+                        else if (used <= throttleLimit / 4 * 3)
+                        {
+                                for (Consumer consumer : throttled)
+                                {
+                                        consumer.throttleReads(false);
+                                }
+                                throttled.clear();
+                        }
+                }
+
+                private Consumer heaviest(Iterable<SelectionKey> keys, boolean includeThrottled)
+                {
+                        Consumer heaviest = null;
+                        for (SelectionKey key : keys)
+                        {
+                                Object attachment = key.attachment();
+                                if (attachment instanceof Consumer)
+                                {
+                                        Consumer consumer = (Consumer) attachment;
+                                        if (consumer.getMemory() > (heaviest == null ? 0 : heaviest.getMemory())
+                                            && (includeThrottled || !consumer.isReadThrottled())
+                                            && !consumer.isClosed())
+                                        {
+                                                heaviest = consumer;
+                                        }
+                                }
+                        }
+                        return heaviest;
+                }
+        }
+}
@@ -0,0 +1,29 @@
+package wshttpserver;
+
+/**
+ * The limits of the outgoing queue of every websocket of a server, see 
+ * {@link HttpServer#setWebSocketOutboundLimits(long, int, HttpServer.WebSocketOverflow)}, 
+ * {@link HttpServer#setWebSocketBlockTimeout(long)} and 
+ * {@link HttpServer#setWebSocketHighWater(long, HttpServer.WebSocketHighWaterListener)}.
+ *
+ * @author Joris
+ */
+final class HttpOutboundLimits
+{
+        final long maxBytes;
+        final int maxFrames;
+        final HttpServer.WebSocketOverflow overflow;
+        final long blockTimeout; // ns, how long a sender waits for room with BLOCK
+        final long highWater; // bytes
+        final HttpServer.WebSocketHighWaterListener listener; // null if nobody is told about the high-water mark
+
+        HttpOutboundLimits(long maxBytes, int maxFrames, HttpServer.WebSocketOverflow overflow, long blockTimeout, long highWater, HttpServer.WebSocketHighWaterListener listener)
+        {
+                this.maxBytes = maxBytes;
+                this.maxFrames = maxFrames;
+                this.overflow = overflow;
+                this.blockTimeout = blockTimeout;
+                this.highWater = highWater;
+                this.listener = listener;
+        }
+}
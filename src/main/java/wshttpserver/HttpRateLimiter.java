@@ -0,0 +1,380 @@
+package wshttpserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of concurrent connections and the request rate of every remote address.
+ *
+ * The rate is a token bucket, stored as the time at which the bucket would be full again (GCRA), so that an entry
+ * only needs a single long besides its key and connection count. Entries live in open addressed tables without any
+ * objects per entry, keyed by the 128 bit address (IPv4 addresses are IPv4-mapped). The tables are split into
+ * segments with their own lock, so that the accept thread and the download threads rarely meet. Entries without
+ * connections whose bucket is full are idle, they are evicted before a segment would grow.
+ *
+ * @author Joris
+ */
+class HttpRateLimiter
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final int SEGMENTS = 64; // power of 2
+        private static final int INITIAL_CAPACITY = 16; // per segment, power of 2
+        private final int maxConnections;
+        private final long interval; // ns per request, 0 if the rate is not limited
+        private final long tolerance; // ns. How far the bucket may be ahead of now: (burst - 1) * interval
+        private final Segment[] segments = new Segment[SEGMENTS];
+
+        /**
+         * @param maxConnections The maximum number of concurrent connections per address
+         * @param requestsPerSecond The sustained request rate per address, 0 for no limit
+         * @param burst The number of requests that may be made at once, at least 1
+         */
+        HttpRateLimiter(int maxConnections, double requestsPerSecond, int burst)
+        {
+                if (maxConnections < 1 || requestsPerSecond < 0 || burst < 1)
+                {
+                        throw new IllegalArgumentException();
+                }
+
+                this.maxConnections = maxConnections;
+                this.interval = requestsPerSecond == 0 ? 0 : Math.max(1, (long) (1e9 / requestsPerSecond));
+                this.tolerance = (burst - 1) * interval;
+
+                for (int a = 0; a < SEGMENTS; ++a)
+                {
+                        segments[a] = new Segment();
+                }
+        }
+
+        /**
+         * Admit a connection that has just been accepted, or close it right away. Must be followed by
+         * {@link #connectionClosed(SocketChannel)} once an admitted connection is no longer served.
+         * @return false if the connection has been closed
+         */
+        @ThreadSafe
+        boolean admit(SocketChannel sChannel)
+        {
+                try
+                {
+                        InetAddress address = ((InetSocketAddress) sChannel.getRemoteAddress()).getAddress();
+                        if (acquireConnection(address, System.nanoTime()))
+                        {
+                                return true;
+                        }
+
+                        log.log(Level.FINE, "Refusing a connection from {0}", address);
+                        sChannel.setOption(StandardSocketOptions.SO_LINGER, 0); // reset, no TIME_WAIT for us
+                        sChannel.close();
+                }
+                catch (IOException | NullPointerException ex)
+                {
+                        // not admitted
+                        try
+                        {
+                                sChannel.close();
+                        }
+                        catch (IOException ex2)
+                        {
+                        }
+                }
+                return false;
+        }
+
+        /** Release a connection that has been admitted. Must be called before the channel is closed. */
+        @ThreadSafe
+        void connectionClosed(SocketChannel sChannel)
+        {
+                try
+                {
+                        connectionClosed(((InetSocketAddress) sChannel.getRemoteAddress()).getAddress());
+                }
+                catch (IOException | NullPointerException ex)
+                {
+                        log.log(Level.WARNING, "Unable to release the connection of a closed channel", ex);
+                }
+        }
+
+        /**
+         * Take a request from the bucket of the address.
+         * @return 0 if the request is allowed, otherwise the number of nanoseconds after which it would be
+         */
+        @ThreadSafe
+        long acquireRequest(InetAddress address, long nowNanos)
+        {
+                if (interval == 0)
+                {
+                        return 0;
+                }
+
+                byte[] bytes = address.getAddress();
+                long hi = keyHi(bytes);
+                long lo = keyLo(bytes);
+                Segment segment = segment(hi, lo);
+                synchronized (segment)
+                {
+                        int slot = segment.findOrInsert(hi, lo, nowNanos);
+                        long tat = Math.max(segment.tats[slot], nowNanos);
+                        long wait = tat - tolerance - nowNanos;
+                        if (wait > 0)
+                        {
+                                return wait;
+                        }
+                        segment.tats[slot] = tat + interval;
+                        return 0;
+                }
+        }
+
+        /** @return false if the address has too many connections, or no requests left */
+        @ThreadSafe
+        boolean acquireConnection(InetAddress address, long nowNanos)
+        {
+                byte[] bytes = address.getAddress();
+                long hi = keyHi(bytes);
+                long lo = keyLo(bytes);
+                Segment segment = segment(hi, lo);
+                synchronized (segment)
+                {
+                        int slot = segment.findOrInsert(hi, lo, nowNanos);
+                        if (segment.connections[slot] >= maxConnections)
+                        {
+                                return false;
+                        }
+
+                        if (interval != 0 && segment.tats[slot] - tolerance - nowNanos > 0)
+                        {
+                                return false; // it would only receive 429
+                        }
+
+                        ++segment.connections[slot];
+                        return true;
+                }
+        }
+
+        @ThreadSafe
+        void connectionClosed(InetAddress address)
+        {
+                byte[] bytes = address.getAddress();
+                long hi = keyHi(bytes);
+                long lo = keyLo(bytes);
+                Segment segment = segment(hi, lo);
+                synchronized (segment)
+                {
+                        int slot = segment.find(hi, lo);
+                        if (slot >= 0 && segment.connections[slot] > 0)
+                        {
+                                --segment.connections[slot];
+                        }
+                }
+        }
+
+        /** @return The number of addresses that are tracked, including idle ones that have not been evicted yet */
+        @ThreadSafe
+        int size()
+        {
+                int size = 0;
+                for (Segment segment : segments)
+                {
+                        synchronized (segment)
+                        {
+                                size += segment.size;
+                        }
+                }
+                return size;
+        }
+
+        private Segment segment(long hi, long lo)
+        {
+                return segments[(int) (hash(hi, lo) >>> 58) & (SEGMENTS - 1)];
+        }
+
+        private static long hash(long hi, long lo)
+        {
+                long h = (hi * 0x9E3779B97F4A7C15L) ^ lo;
+                h *= 0xC2B2AE3D27D4EB4FL;
+                return h ^ (h >>> 29);
+        }
+
+        private static long keyHi(byte[] bytes)
+        {
+                return bytes.length == 4 ? 0 : readLong(bytes, 0);
+        }
+
+        private static long keyLo(byte[] bytes)
+        {
+                if (bytes.length == 4)
+                {
+                        // ::ffff:a.b.c.d
+                        return 0xFFFF_0000_0000L
+                               | (bytes[0] & 0xFFL) << 24 | (bytes[1] & 0xFFL) << 16 | (bytes[2] & 0xFFL) << 8 | (bytes[3] & 0xFFL);
+                }
+                return readLong(bytes, 8);
+        }
+
+        private static long readLong(byte[] bytes, int offset)
+        {
+                long value = 0;
+                for (int a = offset; a < offset + 8; ++a)
+                {
+                        value = value << 8 | (bytes[a] & 0xFFL);
+                }
+                return value;
+        }
+
+        /** An open addressed table with linear probing. An all zero key (::) marks a free slot. */
+        private class Segment
+        {
+                long[] keys = new long[INITIAL_CAPACITY * 2]; // hi, lo
+                long[] tats = new long[INITIAL_CAPACITY]; // when the bucket is full again
+                int[] connections = new int[INITIAL_CAPACITY];
+                int size;
+
+                int find(long hi, long lo)
+                {
+                        int mask = tats.length - 1;
+                        for (int slot = (int) hash(hi, lo) & mask; ; slot = (slot + 1) & mask)
+                        {
+                                long slotHi = keys[slot * 2];
+                                long slotLo = keys[slot * 2 + 1];
+                                if (slotHi == hi && slotLo == lo)
+                                {
+                                        return slot;
+                                }
+                                if (slotHi == 0 && slotLo == 0)
+                                {
+                                        return -1;
+                                }
+                        }
+                }
+
+                int findOrInsert(long hi, long lo, long nowNanos)
+                {
+                        int slot = find(hi, lo);
+                        if (slot >= 0)
+                        {
+                                return slot;
+                        }
+
+                        if ((size + 1) * 4 > tats.length * 3)
+                        {
+                                evictIdle(nowNanos);
+                                if ((size + 1) * 2 > tats.length)
+                                {
+                                        grow();
+                                }
+                        }
+
+                        int mask = tats.length - 1;
+                        slot = (int) hash(hi, lo) & mask;
+                        while (!isFree(slot))
+                        {
+                                slot = (slot + 1) & mask;
+                        }
+
+                        keys[slot * 2] = hi;
+                        keys[slot * 2 + 1] = lo;
+                        tats[slot] = nowNanos;
+                        connections[slot] = 0;
+                        ++size;
+                        return slot;
+                }
+
+                /** Remove the idle entries, without allocating anything. */
+                private void evictIdle(long nowNanos)
+                {
+                        int mask = tats.length - 1;
+                        
+                        // Start after a free slot, so that no cluster wraps around the start of the sweep
+                        int start = 0;
+                        while (!isFree(start))
+                        {
+                                ++start;
+                        }
+                        
+                        int slot = (start + 1) & mask;
+                        for (int visited = 1; visited < tats.length; )
+                        {
+                                if (!isFree(slot) && isIdle(connections[slot], tats[slot], nowNanos))
+                                {
+                                        // another entry may have moved into this slot
+                                        remove(slot);
+                                }
+                                else
+                                {
+                                        slot = (slot + 1) & mask;
+                                        ++visited;
+                                }
+                        }
+                }
+                
+                /** Backward shift deletion: move the entries that follow into the hole, if their home slot allows it */
+                private void remove(int slot)
+                {
+                        int mask = tats.length - 1;
+                        int hole = slot;
+                        for (int next = (hole + 1) & mask; !isFree(next); next = (next + 1) & mask)
+                        {
+                                int home = (int) hash(keys[next * 2], keys[next * 2 + 1]) & mask;
+                                if (((next - home) & mask) >= ((next - hole) & mask))
+                                {
+                                        keys[hole * 2] = keys[next * 2];
+                                        keys[hole * 2 + 1] = keys[next * 2 + 1];
+                                        tats[hole] = tats[next];
+                                        connections[hole] = connections[next];
+                                        hole = next;
+                                }
+                        }
+                        
+                        keys[hole * 2] = 0;
+                        keys[hole * 2 + 1] = 0;
+                        --size;
+                }
+                
+                private void grow()
+                {
+                        long[] oldKeys = keys;
+                        long[] oldTats = tats;
+                        int[] oldConnections = connections;
+                        int capacity = oldTats.length * 2;
+                        keys = new long[capacity * 2];
+                        tats = new long[capacity];
+                        connections = new int[capacity];
+
+                        int mask = capacity - 1;
+                        for (int oldSlot = 0; oldSlot < oldTats.length; ++oldSlot)
+                        {
+                                long hi = oldKeys[oldSlot * 2];
+                                long lo = oldKeys[oldSlot * 2 + 1];
+                                if (hi == 0 && lo == 0)
+                                {
+                                        continue;
+                                }
+
+                                int slot = (int) hash(hi, lo) & mask;
+                                while (!isFree(slot))
+                                {
+                                        slot = (slot + 1) & mask;
+                                }
+                                keys[slot * 2] = hi;
+                                keys[slot * 2 + 1] = lo;
+                                tats[slot] = oldTats[oldSlot];
+                                connections[slot] = oldConnections[oldSlot];
+                        }
+                }
+                
+                private boolean isFree(int slot)
+                {
+                        return keys[slot * 2] == 0 && keys[slot * 2 + 1] == 0;
+                }
+
+                private boolean isIdle(int connections, long tat, long nowNanos)
+                {
+                        // A new entry would be the same
+                        return connections == 0 && tat - nowNanos <= 0;
+                }
+        }
+}
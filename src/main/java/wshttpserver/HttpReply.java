@@ -0,0 +1,164 @@
+package wshttpserver;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Used by a {@link HttpHandler} to answer a request. Exactly one of the send() or stream() methods must be called,
+ * from any thread. Headers must be added before that, from a single thread.
+ *
+ * @author Joris
+ */
+public final class HttpReply
+{
+        private final HttpConnection conn;
+        private final HttpResponse response;
+        private final Executor reactor;
+        private final Executor executor;
+        private final boolean chunked;
+        private final AtomicBoolean replied = new AtomicBoolean();
+        private final StringBuilder headers = new StringBuilder();
+
+        /**
+         * @param reactor Executes tasks on the thread that serves the connection
+         * @param executor The executor of the route
+         * @param chunked Whether the client supports chunked transfer-coding (HTTP/1.1)
+         */
+        HttpReply(HttpConnection conn, HttpResponse response, Executor reactor, Executor executor, boolean chunked)
+        {
+                this.conn = conn;
+                this.response = response;
+                this.reactor = reactor;
+                this.executor = executor;
+                this.chunked = chunked;
+        }
+
+        /**
+         * Add a response header.
+         * The headers Connection, Content-Length, Content-Type, Date and Transfer-Encoding are set by the server.
+         *
+         * @param name
+         * @param value
+         * @return this
+         */
+        public HttpReply header(String name, String value)
+        {
+                if (replied.get())
+                {
+                        throw new IllegalStateException("The response has already been sent");
+                }
+
+                if (!HttpUtil.headerName.matcher(name).matches() || value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0)
+                {
+                        throw new IllegalArgumentException("Invalid header");
+                }
+
+                headers.append(name);
+                headers.append(": ");
+                headers.append(value);
+                headers.append("\r\n");
+                return this;
+        }
+
+        /** 
+         * Send a response with the status message as a text/plain body.
+         *
+         * @param status For example 404
+         * @param statusMessage For example "File Not Found"
+         */
+        @ThreadSafe
+        public void send(int status, String statusMessage)
+        {
+                send(status, statusMessage, "text/plain; charset=UTF-8", ByteBuffer.wrap(statusMessage.getBytes(HttpUtil.UTF8)));
+        }
+
+        /**
+         * Send a response with a body of a fixed length.
+         *
+         * @param status For example 200
+         * @param statusMessage For example "OK"
+         * @param contentType The value of the Content-Type header, or null
+         * @param body The remaining bytes of this buffer are sent. It must not be modified afterwards.
+         */
+        @ThreadSafe
+        public void send(int status, String statusMessage, String contentType, ByteBuffer body)
+        {
+                reply(status, statusMessage, contentType, body.slice(), null);
+        }
+
+        /**
+         * Send a response with a body that is streamed from a producer. The body is sent using the chunked 
+         * transfer-coding. HTTP/1.0 clients receive the body as is, followed by closing the connection.
+         *
+         * @param status For example 200
+         * @param statusMessage For example "OK"
+         * @param contentType The value of the Content-Type header, or null
+         * @param producer Called whenever the stream is able to accept more data
+         * @return The stream the producer writes to. It may also be written to directly.
+         */
+        @ThreadSafe
+        public HttpResponseStream stream(int status, String statusMessage, String contentType, HttpBodyProducer producer)
+        {
+                HttpResponseStream stream = new HttpResponseStream(conn, reactor, executor, producer, chunked);
+                if (!chunked)
+                {
+                        response.close = true;
+                }
+                reply(status, statusMessage, contentType, null, stream);
+                return stream;
+        }
+
+        /**
+         * Send a response with a body that is written to a blocking OutputStream. Like 
+         * {@link #stream(int, String, String, HttpBodyProducer)}, the response headers are sent right away and the
+         * body is streamed. Writes block while the client does not keep up, so this is meant for threads that may 
+         * block, such as the virtual threads of blocking routes. Closing the OutputStream ends the response.
+         *
+         * @param status For example 200
+         * @param statusMessage For example "OK"
+         * @param contentType The value of the Content-Type header, or null
+         * @return A stream that must only be used from a single thread at a time. Writes throw an IOException once 
+         * the connection has been closed.
+         */
+        @ThreadSafe
+        public OutputStream outputStream(int status, String statusMessage, String contentType)
+        {
+                HttpResponseOutputStream out = new HttpResponseOutputStream();
+                out.stream = stream(status, statusMessage, contentType, out);
+                return out;
+        }
+
+        /** @return true if a response has been sent */
+        @ThreadSafe
+        public boolean isReplied()
+        {
+                return replied.get();
+        }
+
+        private void reply(int status, String statusMessage, String contentType, ByteBuffer body, HttpResponseStream stream)
+        {
+                if (!replied.compareAndSet(false, true))
+                {
+                        throw new IllegalStateException("The response has already been sent");
+                }
+
+                response.status = status;
+                response.statusMessage = statusMessage;
+                response.contentType = contentType;
+                response.extraHeaders = headers.toString();
+                response.body = body;
+                response.stream = stream;
+
+                // The response is picked up by the thread that serves the connection
+                reactor.execute(new Runnable()
+                {
+                        @Override
+                        public void run()
+                        {
+                                conn.replied(response);
+                        }
+                });
+        }
+}
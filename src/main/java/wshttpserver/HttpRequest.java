@@ -0,0 +1,150 @@
+package wshttpserver;
+
+import wshttpserver.HttpUtil.METHOD;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A request that has been received on a dynamic route. Instances are immutable.
+ *
+ * @author Joris
+ */
+public final class HttpRequest
+{
+        private final METHOD method;
+        private final URI uri;
+        private final Map<String, String> headers;
+        private final String[] pathParamNames;
+        private final int[] pathParams; // start and end offsets in the raw path
+        private final ByteBuffer body;
+        private final InputStream bodyStream;
+        private final InetSocketAddress remoteAddress;
+
+        /**
+         * @param pathParamNames The parameter names of the route
+         * @param pathParams The start and end offsets of the parameters in the raw path of uri
+         * @param bodyStream The streamed request body of a blocking route, or null if the body has been received
+         *                   completely
+         */
+        HttpRequest(METHOD method, URI uri, Map<String, String> headers, String[] pathParamNames, int[] pathParams, ByteBuffer body, InputStream bodyStream, InetSocketAddress remoteAddress)
+        {
+                this.method = method;
+                this.uri = uri;
+                this.headers = Collections.unmodifiableMap(headers);
+                this.pathParamNames = pathParamNames;
+                this.pathParams = pathParams;
+                this.body = body.asReadOnlyBuffer();
+                this.bodyStream = bodyStream;
+                this.remoteAddress = remoteAddress;
+        }
+
+        @ThreadSafe
+        public METHOD getMethod()
+        {
+                return method;
+        }
+
+        /** @return The Request-URI as it was sent by the client */
+        @ThreadSafe
+        public URI getUri()
+        {
+                return uri;
+        }
+
+        /** @return The decoded path of the Request-URI */
+        @ThreadSafe
+        public String getPath()
+        {
+                return uri.getPath();
+        }
+
+        /** @return The decoded query of the Request-URI, or null */
+        @ThreadSafe
+        public String getQuery()
+        {
+                return uri.getQuery();
+        }
+
+        /**
+         * Get a parameter of the route pattern. For example for the route "users/{id}/files/*" and the path 
+         * "/users/12/files/a/b.txt", parameter "id" is "12" and parameter "*" is "a/b.txt". Parameter "*" is 
+         * available for every route, it is the part of the path below the route (empty if there is none).
+         * 
+         * @param name The name of the parameter, without braces
+         * @return The decoded value, or null if the route has no such parameter
+         */
+        @ThreadSafe
+        public String getPathParam(String name)
+        {
+                for (int a = 0; a < pathParamNames.length; ++a)
+                {
+                        if (pathParamNames[a].equals(name))
+                        {
+                                return HttpUtil.decodePercent(uri.getRawPath(), pathParams[a * 2], pathParams[a * 2 + 1]);
+                        }
+                }
+                return null;
+        }
+
+        /** 
+         * @param name The name of the header, case insensitive
+         * @return The value of the header, or null if it was not sent
+         */
+        @ThreadSafe
+        public String getHeader(String name)
+        {
+                return headers.get(name.toLowerCase());
+        }
+
+        /** @return All headers, with lower case names */
+        @ThreadSafe
+        public Map<String, String> getHeaders()
+        {
+                return headers;
+        }
+
+        /** @return The request body. Empty if no body was sent, or if the body is streamed (see getBodyStream()) */
+        @ThreadSafe
+        public ByteBuffer getBody()
+        {
+                return body.duplicate();
+        }
+
+        /** 
+         * The request body as a stream. For blocking routes the body is streamed from the connection while it is 
+         * being received: reads block until data arrives, and the client is slowed down if the handler does not
+         * keep up. For other routes this stream reads the complete body that getBody() returns.
+         * 
+         * @return A stream that must only be used from a single thread at a time
+         */
+        public InputStream getBodyStream()
+        {
+                if (bodyStream != null)
+                {
+                        return bodyStream;
+                }
+
+                ByteBuffer b = getBody();
+                byte[] bytes = new byte[b.remaining()];
+                b.get(bytes);
+                return new ByteArrayInputStream(bytes);
+        }
+
+        /** @return The streamed body of a blocking route, or null */
+        InputStream getStreamedBody()
+        {
+                return bodyStream;
+        }
+
+        /** @return The address of the client, or null if the connection has already been closed */
+        @ThreadSafe
+        public InetSocketAddress getRemoteAddress()
+        {
+                return remoteAddress;
+        }
+}
@@ -0,0 +1,217 @@
+package wshttpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking InputStream over the request body of a blocking dynamic route. See
+ * {@link HttpServer#addRouteBlockingHandler(HttpUtil.METHOD, String, HttpHandler)}
+ *
+ * The thread that serves the connection offers the body as it arrives. Once {@link HttpServer#STREAM_BUFFER_SIZE}
+ * bytes are queued, it stops reading from the socket until the handler has read half of it, so that a slow
+ * handler slows down the client instead of filling up the heap.
+ *
+ * @author Joris
+ */
+final class HttpRequestBodyStream extends InputStream
+{
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+        private final Executor reactor;
+        private final Runnable resumeTask;
+        private long queued;
+        private boolean ended; // the complete body has been offered
+        private boolean failed; // the connection was closed before the body was complete
+        private boolean closed; // closed by the handler, the rest of the body is discarded
+        private boolean paused; // the connection has stopped reading
+
+        HttpRequestBodyStream(final HttpConnection conn, Executor reactor)
+        {
+                this.reactor = reactor;
+                this.resumeTask = new Runnable()
+                {
+                        @Override
+                        public void run()
+                        {
+                                conn.resumeReading();
+                        }
+                };
+        }
+
+        /**
+         * Called from the thread that serves the connection. The remaining bytes of data are consumed.
+         * @return false if the connection should stop reading until it is resumed
+         */
+        boolean offer(ByteBuffer data)
+        {
+                lock.lock();
+                try
+                {
+                        if (closed)
+                        {
+                                data.position(data.limit());
+                                return true;
+                        }
+
+                        ByteBuffer chunk = ByteBuffer.allocate(data.remaining());
+                        chunk.put(data);
+                        chunk.flip();
+                        chunks.add(chunk);
+                        queued += chunk.remaining();
+                        available.signalAll();
+
+                        if (queued >= HttpServer.STREAM_BUFFER_SIZE)
+                        {
+                                paused = true;
+                                return false;
+                        }
+
+                        return true;
+                }
+                finally
+                {
+                        lock.unlock();
+                }
+        }
+
+        /** Called from the thread that serves the connection, once the body has been received completely */
+        void end()
+        {
+                lock.lock();
+                try
+                {
+                        ended = true;
+                        available.signalAll();
+                }
+                finally
+                {
+                        lock.unlock();
+                }
+        }
+
+        /** Called from the thread that serves the connection, if the body will never be complete */
+        void fail()
+        {
+                lock.lock();
+                try
+                {
+                        failed = true;
+                        available.signalAll();
+                }
+                finally
+                {
+                        lock.unlock();
+                }
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+                Objects.checkFromIndexSize(off, len, b.length);
+                if (len == 0)
+                {
+                        return 0;
+                }
+
+                lock.lock();
+                try
+                {
+                        while (chunks.isEmpty())
+                        {
+                                if (closed)
+                                {
+                                        throw new IOException("Stream closed");
+                                }
+
+                                if (ended)
+                                {
+                                        return -1;
+                                }
+
+                                if (failed)
+                                {
+                                        throw new IOException("The connection has been closed");
+                                }
+
+                                available.await();
+                        }
+
+                        ByteBuffer chunk = chunks.peek();
+                        int n = Math.min(len, chunk.remaining());
+                        chunk.get(b, off, n);
+                        if (!chunk.hasRemaining())
+                        {
+                                chunks.poll();
+                        }
+
+                        queued -= n;
+                        resumeIfDrained();
+                        return n;
+                }
+                catch (InterruptedException ex)
+                {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                }
+                finally
+                {
+                        lock.unlock();
+                }
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+                lock.lock();
+                try
+                {
+                        return (int) Math.min(queued, Integer.MAX_VALUE);
+                }
+                finally
+                {
+                        lock.unlock();
+                }
+        }
+
+        /** The rest of the body is discarded */
+        @Override
+        public void close()
+        {
+                lock.lock();
+                try
+                {
+                        closed = true;
+                        chunks.clear();
+                        queued = 0;
+                        resumeIfDrained();
+                }
+                finally
+                {
+                        lock.unlock();
+                }
+        }
+
+        private void resumeIfDrained()
+        {
+                if (paused && queued < HttpServer.STREAM_BUFFER_SIZE / 2)
+                {
+                        paused = false;
+                        reactor.execute(resumeTask);
+                }
+        }
+}
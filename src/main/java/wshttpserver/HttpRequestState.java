@@ -0,0 +1,158 @@
+package wshttpserver;
+
+import wshttpserver.HttpConnection.CHUNK_STATE;
+import wshttpserver.HttpUtil.METHOD;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * The parser state of the request that a connection is currently receiving. A connection only holds one while it
+ * is busy: an idle keep-alive connection returns it to the pool of its thread, together with its buffers, and takes
+ * one again once the next request arrives.
+ *
+ * @author Joris
+ */
+class HttpRequestState
+{
+        METHOD method;
+        URI requestUri;
+        int clientHttpMinor; // The minor http version of the request. Aka 123 in HTTP/1.123
+        boolean websocket = false;
+        ByteBuffer lineBuffer; // Used to combine a line that spans multiple reads, kept when pooled
+        ByteBuffer rawHead; // The head (request-line and headers) of a websocket upgrade, null until there is one
+        int rawHeadStart; // Position in the read buffer where the head starts, as long as it is inside the read buffer
+        boolean headSpansReads; // part of the head has been parsed from an earlier read, which is gone
+        boolean upgradeCandidate; // false if this request can never be upgraded
+        final HashMap<String, String> headers = new HashMap<>();
+        final StringBuilder line = new StringBuilder(); // scratch space for the line that is being parsed
+        boolean chunked; // Transfer-Encoding: chunked
+        CHUNK_STATE chunkState;
+        long bodyRemaining; // the remaining bytes of the body, or of the current chunk
+        long bodyReceived;
+        long bodyMaxSize;
+        HttpUpload upload; // null if the request body is discarded
+        HttpRouter.Route route; // the dynamic route of this request
+        HttpRoutes.Handler handler; // the handler of the route for the request method
+        int[] pathParams; // parameter offsets of the route, owned by the request once it has been dispatched
+        ByteBuffer requestBody; // the request body of a dynamic route
+        HttpRequestBodyStream bodyStream; // the request body of a blocking dynamic route
+
+        /** Forget the current request. The buffers are kept. */
+        void reset()
+        {
+                method = null;
+                requestUri = null;
+                clientHttpMinor = 0;
+                websocket = false;
+                upgradeCandidate = false;
+                headSpansReads = false;
+
+                if (lineBuffer != null)
+                {
+                        lineBuffer.limit(0);
+                }
+
+                if (rawHead != null)
+                {
+                        rawHead.clear();
+                }
+
+                headers.clear();
+                upload = null;
+                bodyStream = null;
+                route = null;
+                handler = null;
+                requestBody = null;
+                chunked = false;
+                chunkState = null;
+                bodyRemaining = 0;
+                bodyReceived = 0;
+                bodyMaxSize = 0;
+        }
+
+        /** @return The bytes that the buffers of this request take, for the memory accounting */
+        long bufferedBytes()
+        {
+                long bytes = 0;
+                if (lineBuffer != null)
+                {
+                        bytes += lineBuffer.capacity();
+                }
+                if (rawHead != null)
+                {
+                        bytes += rawHead.capacity();
+                }
+                if (requestBody != null)
+                {
+                        bytes += requestBody.capacity();
+                }
+                return bytes;
+        }
+
+        /** @return true if part of the next request has already been received */
+        boolean hasPartialLine()
+        {
+                return lineBuffer != null && lineBuffer.limit() > 0;
+        }
+
+        /**
+         * The request states and response queues of the idle connections of a single thread. Not thread safe.
+         */
+        static class Pool
+        {
+                private final int maxSize;
+                private final ArrayDeque<HttpRequestState> requests = new ArrayDeque<>();
+                private final ArrayDeque<ArrayDeque<HttpResponse>> responseQueues = new ArrayDeque<>();
+
+                /** @param maxSize The maximum number of free objects of each kind that are kept for reuse */
+                Pool(int maxSize)
+                {
+                        this.maxSize = maxSize;
+                }
+
+                HttpRequestState takeRequest()
+                {
+                        HttpRequestState request = requests.pollLast();
+                        return request == null ? new HttpRequestState() : request;
+                }
+
+                /** @param request A request that has been reset() */
+                void release(HttpRequestState request)
+                {
+                        if (requests.size() < maxSize)
+                        {
+                                requests.addLast(request);
+                        }
+                }
+
+                ArrayDeque<HttpResponse> takeResponseQueue()
+                {
+                        ArrayDeque<HttpResponse> queue = responseQueues.pollLast();
+                        return queue == null ? new ArrayDeque<HttpResponse>(4) : queue;
+                }
+
+                /** @param queue An empty queue */
+                void release(ArrayDeque<HttpResponse> queue)
+                {
+                        assert queue.isEmpty();
+                        if (responseQueues.size() < maxSize)
+                        {
+                                responseQueues.addLast(queue);
+                        }
+                }
+
+                /** @return The number of free request states, for tests */
+                int freeRequests()
+                {
+                        return requests.size();
+                }
+
+                /** @return The number of free response queues, for tests */
+                int freeResponseQueues()
+                {
+                        return responseQueues.size();
+                }
+        }
+}
@@ -7,7 +7,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.logging.Level;
@@ -25,16 +25,28 @@ class HttpResponse
         int status;
         String statusMessage;
         boolean sendStatusAsContent = true;
+        boolean interim = false; // 1xx response, only the status line is sent
+        byte[] encoded; // a complete response that has been encoded in advance, shared between responses
         boolean close;
         File file;
         ByteBuffer headers;
         RandomAccessFile raf;
+        long fileLength = 0;
         long fileBytesSent = 0;
         ByteBuffer fileBuffer;
         boolean range = false;
         long rangeStart = 0;
         long rangeEnd = 0;
         long rangeLength = 0;
+        HttpBandwidth.Bucket bandwidth; // null if the route of the response is unlimited
+        
+        // Responses of dynamic routes (HttpHandler):
+        boolean dynamic = false;
+        boolean pending = false; // The handler has not replied yet
+        String contentType;
+        String extraHeaders;
+        ByteBuffer body;
+        HttpResponseStream stream;
 
         HttpResponse(METHOD requestMethod, HashMap<String, String> requestHeaders, int status, String statusMessage, boolean close, File file)
         {
@@ -49,8 +61,26 @@ class HttpResponse
         public void prepare()
         {
                 assert this.headers == null;
-                long fileLength = 0;
-
+                
+                if (interim)
+                {
+                        // HTTP/1.1 100 Continue\r\n\r\n
+                        this.headers = ByteBuffer.wrap(("HTTP/1.1 " + status + " " + statusMessage + "\r\n\r\n").getBytes(HttpUtil.UTF8));
+                        return;
+                }
+                
+                if (encoded != null)
+                {
+                        this.headers = ByteBuffer.wrap(encoded);
+                        return;
+                }
+                
+                if (dynamic)
+                {
+                        prepareDynamic();
+                        return;
+                }
+                
                 StringBuilder headerString = new StringBuilder();
 
                 boolean sendFile = false;
@@ -251,11 +281,12 @@ class HttpResponse
                         headerString.append("Allow: GET, HEAD\r\n");
                 }
 
-                headerString.append("Server: Aphelion\r\n");
-                headerString.append("X-Frame-Options: SAMEORIGIN\r\n");
-                headerString.append("Date: ");
-                headerString.append(HttpDateUtils.formatDate(new Date()));
-                headerString.append("\r\n");
+                appendServerHeaders(headerString);
+                
+                if (extraHeaders != null)
+                {
+                        headerString.append(extraHeaders);
+                }
 
                 if (!sendFile)
                 {
@@ -319,12 +350,159 @@ class HttpResponse
                 this.headers = ByteBuffer.wrap(headerString.toString().getBytes(HttpUtil.UTF8));
         }
 
+        private void prepareDynamic()
+        {
+                StringBuilder headerString = new StringBuilder();
+                
+                // HTTP/1.1 200 OK\r\n
+                headerString.append("HTTP/1.1 ");
+                headerString.append(status);
+                headerString.append(" ");
+                headerString.append(statusMessage);
+                headerString.append("\r\n");
+
+                if (close)
+                {
+                        headerString.append("Connection: close\r\n");
+                }
+                
+                appendServerHeaders(headerString);
+                headerString.append(extraHeaders);
+                
+                if (contentType != null)
+                {
+                        headerString.append("Content-Type: ");
+                        headerString.append(contentType);
+                        headerString.append("\r\n");
+                }
+                
+                if (stream == null)
+                {
+                        headerString.append("Content-Length: ");
+                        headerString.append(body.remaining());
+                        headerString.append("\r\n");
+                }
+                else if (stream.chunked)
+                {
+                        headerString.append("Transfer-Encoding: chunked\r\n");
+                }
+                
+                headerString.append("\r\n"); // end of headers
+                this.headers = ByteBuffer.wrap(headerString.toString().getBytes(HttpUtil.UTF8));
+                
+                if (requestMethod == METHOD.HEAD)
+                {
+                        body = null;
+                        if (stream != null)
+                        {
+                                stream.cancel();
+                                stream = null;
+                        }
+                }
+                else if (stream != null)
+                {
+                        stream.start();
+                }
+        }
+        
+        private static void appendServerHeaders(StringBuilder headerString)
+        {
+                headerString.append("Server: Aphelion\r\n");
+                headerString.append("X-Frame-Options: SAMEORIGIN\r\n");
+                headerString.append("Date: ");
+                headerString.append(HttpDateUtils.formatDate(new Date()));
+                headerString.append("\r\n");
+        }
+        
+        /** @return The bytes that this response buffers, for the memory accounting */
+        long bufferedBytes()
+        {
+                long bytes = 0;
+                if (headers != null && encoded == null) // an encoded response is shared
+                {
+                        bytes += headers.capacity();
+                }
+                if (body != null)
+                {
+                        bytes += body.capacity();
+                }
+                if (fileBuffer != null)
+                {
+                        bytes += fileBuffer.capacity();
+                }
+                if (stream != null)
+                {
+                        bytes += stream.getQueuedBytes();
+                }
+                return bytes;
+        }
+        
+        /** @return The bytes that remain to be written, Long.MAX_VALUE if a stream has not ended yet. Only valid after prepare(). */
+        long remainingBytes()
+        {
+                long bytes = 0;
+                if (headers != null)
+                {
+                        bytes += headers.remaining();
+                }
+                if (body != null)
+                {
+                        bytes += body.remaining();
+                }
+                if (stream != null)
+                {
+                        long streamBytes = stream.getRemainingBytes();
+                        if (streamBytes == Long.MAX_VALUE)
+                        {
+                                return Long.MAX_VALUE;
+                        }
+                        bytes += streamBytes;
+                }
+                if (raf != null)
+                {
+                        bytes += (range ? rangeLength : fileLength) - fileBytesSent;
+                }
+                return bytes;
+        }
+        
+        /** 
+         * @return true if the response is waiting for more data from its producer. 
+         */
+        boolean isWaiting()
+        {
+                return stream != null && stream.isWaiting();
+        }
+        
+        /**
+         * The connection has been closed, release everything.
+         */
+        void cancel()
+        {
+                if (stream != null)
+                {
+                        stream.cancel();
+                }
+                
+                if (raf != null)
+                {
+                        try
+                        {
+                                raf.close();
+                        }
+                        catch (IOException ex)
+                        {
+                        }
+                }
+        }
+
         /**
          * Attempt to write some http resonse stuff on a socket channel.
          *
+         * @param channel The socket channel, or an HttpWriteBudget that wraps it. A write of 0 bytes means that
+         *        the channel does not accept more for now.
          * @return true if there is nothing more to write
          */
-        public boolean write(SocketChannel channel) throws IOException
+        public boolean write(WritableByteChannel channel) throws IOException
         {
                 if (headers != null)
                 {
@@ -345,6 +523,26 @@ class HttpResponse
                                 headers = null;
                         }
                 }
+                
+                if (body != null)
+                {
+                        if (channel.write(body) < 0)
+                        {
+                                throw new IOException("closed");
+                        }
+                        
+                        if (body.hasRemaining()) // unable to write further, try again later
+                        {
+                                return false;
+                        }
+                        
+                        body = null;
+                }
+                
+                if (stream != null)
+                {
+                        return stream.writeTo(channel);
+                }
 
                 if (raf != null)
                 {
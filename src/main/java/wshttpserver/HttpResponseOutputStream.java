@@ -0,0 +1,161 @@
+package wshttpserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking OutputStream over a {@link HttpResponseStream}. See
+ * {@link HttpReply#outputStream(int, String, String)}
+ *
+ * Writes block while the response stream is not writable, which is meant for (virtual) threads that are allowed
+ * to block. The selector thread never blocks on this stream. Small writes are buffered, flush() passes them on.
+ * A ReentrantLock is used instead of synchronized so that a waiting virtual thread does not pin its carrier.
+ *
+ * @author Joris
+ */
+final class HttpResponseOutputStream extends OutputStream implements HttpBodyProducer
+{
+        static final int BUFFER_SIZE = 8192;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition writable = lock.newCondition();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int count;
+        private boolean closed;
+        HttpResponseStream stream;
+
+        /** Called from the executor of the route when the stream accepts more data */
+        @Override
+        public void produce(HttpResponseStream stream)
+        {
+                wakeUp();
+        }
+
+        @ThreadSafe
+        void wakeUp()
+        {
+                lock.lock();
+                try
+                {
+                        writable.signalAll();
+                }
+                finally
+                {
+                        lock.unlock();
+                }
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+                ensureOpen();
+                if (count == buffer.length)
+                {
+                        flushBuffer();
+                }
+                buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+                Objects.checkFromIndexSize(off, len, b.length);
+                ensureOpen();
+
+                if (len >= buffer.length)
+                {
+                        // too large to buffer, the stream copies it anyway
+                        flushBuffer();
+                        send(ByteBuffer.wrap(b, off, len));
+                        return;
+                }
+
+                if (len > buffer.length - count)
+                {
+                        flushBuffer();
+                }
+
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+        }
+
+        /** Pass the buffered data on to the response. Blocks while the response stream is not writable. */
+        @Override
+        public void flush() throws IOException
+        {
+                ensureOpen();
+                flushBuffer();
+        }
+
+        /** Flush and end the response */
+        @Override
+        public void close() throws IOException
+        {
+                if (closed)
+                {
+                        return;
+                }
+
+                try
+                {
+                        flushBuffer();
+                }
+                finally
+                {
+                        closed = true;
+                        if (!stream.isCancelled())
+                        {
+                                stream.end();
+                        }
+                }
+        }
+
+        private void ensureOpen() throws IOException
+        {
+                if (closed)
+                {
+                        throw new IOException("Stream closed");
+                }
+        }
+
+        private void flushBuffer() throws IOException
+        {
+                if (count > 0)
+                {
+                        send(ByteBuffer.wrap(buffer, 0, count));
+                        count = 0;
+                }
+        }
+
+        private void send(ByteBuffer data) throws IOException
+        {
+                lock.lock();
+                try
+                {
+                        while (!stream.isWritable())
+                        {
+                                if (stream.isCancelled())
+                                {
+                                        throw new IOException("The connection has been closed");
+                                }
+
+                                writable.await();
+                        }
+                }
+                catch (InterruptedException ex)
+                {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                }
+                finally
+                {
+                        lock.unlock();
+                }
+
+                stream.write(data); // copies the data
+        }
+}
@@ -0,0 +1,283 @@
+package wshttpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The body of a streaming response. See {@link HttpReply#stream(int, String, String, HttpBodyProducer)}
+ * 
+ * Data that is written is queued until the socket is able to accept it. The producer is only asked for more data 
+ * while less than {@link HttpServer#STREAM_BUFFER_SIZE} bytes are queued, so that a slow client slows down the 
+ * producer instead of filling up the heap.
+ *
+ * @author Joris
+ */
+public final class HttpResponseStream
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final byte[] CRLF = { '\r', '\n' };
+        private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+        private final HttpConnection conn;
+        private final Executor reactor;
+        private final Executor executor;
+        private final HttpBodyProducer producer;
+        final boolean chunked;
+        private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean producing = new AtomicBoolean();
+        private volatile boolean ended = false;
+        private volatile boolean cancelled = false;
+        private volatile boolean missed = false; // more data was requested while the producer was running
+        
+        private final Runnable produceTask = new Runnable()
+        {
+                @Override
+                public void run()
+                {
+                        try
+                        {
+                                if (!cancelled && !ended)
+                                {
+                                        producer.produce(HttpResponseStream.this);
+                                }
+                        }
+                        catch (RuntimeException ex)
+                        {
+                                log.log(Level.SEVERE, "Exception in HttpBodyProducer", ex);
+                                cancel();
+                                reactor.execute(new Runnable()
+                                {
+                                        @Override
+                                        public void run()
+                                        {
+                                                // The response can not be completed
+                                                conn.closed();
+                                        }
+                                });
+                        }
+                        finally
+                        {
+                                producing.set(false);
+                                
+                                if (missed)
+                                {
+                                        // More data was requested while the producer was running (for example
+                                        // because the data it wrote has already been sent), which was ignored. 
+                                        // Check again.
+                                        missed = false;
+                                        reactor.execute(wakeTask);
+                                }
+                        }
+                }
+        };
+        
+        private final Runnable wakeTask = new Runnable()
+        {
+                @Override
+                public void run()
+                {
+                        conn.responseReady();
+                }
+        };
+
+        HttpResponseStream(HttpConnection conn, Executor reactor, Executor executor, HttpBodyProducer producer, boolean chunked)
+        {
+                this.conn = conn;
+                this.reactor = reactor;
+                this.executor = executor;
+                this.producer = producer;
+                this.chunked = chunked;
+        }
+
+        /**
+         * Queue data to be sent. The data is copied.
+         * 
+         * @param data The remaining bytes of this buffer are written.
+         * @return true if more data may be written right away, false if the caller should wait for the next call 
+         * to the producer. Data is never discarded unless the stream has been cancelled.
+         */
+        @ThreadSafe
+        public boolean write(ByteBuffer data)
+        {
+                if (ended)
+                {
+                        throw new IllegalStateException("The stream has ended");
+                }
+
+                if (cancelled)
+                {
+                        return false;
+                }
+
+                int length = data.remaining();
+                if (length == 0)
+                {
+                        return isWritable(); // an empty chunk would end the body
+                }
+
+                ByteBuffer chunk;
+                if (chunked)
+                {
+                        // chunk = chunk-size CRLF chunk-data CRLF
+                        byte[] size = Integer.toHexString(length).getBytes(HttpUtil.UTF8);
+                        chunk = ByteBuffer.allocate(size.length + length + CRLF.length * 2);
+                        chunk.put(size);
+                        chunk.put(CRLF);
+                        chunk.put(data);
+                        chunk.put(CRLF);
+                }
+                else
+                {
+                        chunk = ByteBuffer.allocate(length);
+                        chunk.put(data);
+                }
+                chunk.flip();
+
+                queuedBytes.addAndGet(chunk.remaining());
+                queue.add(chunk);
+                reactor.execute(wakeTask);
+
+                return isWritable();
+        }
+
+        /** 
+         * End the response. Nothing may be written afterwards.
+         */
+        @ThreadSafe
+        public void end()
+        {
+                if (ended)
+                {
+                        return;
+                }
+
+                if (chunked)
+                {
+                        // last-chunk CRLF
+                        queuedBytes.addAndGet(LAST_CHUNK.length);
+                        queue.add(ByteBuffer.wrap(LAST_CHUNK));
+                }
+
+                ended = true;
+                reactor.execute(wakeTask);
+        }
+
+        /** @return true if less than STREAM_BUFFER_SIZE bytes are waiting to be sent */
+        @ThreadSafe
+        public boolean isWritable()
+        {
+                return !cancelled && !ended && queuedBytes.get() < HttpServer.STREAM_BUFFER_SIZE;
+        }
+
+        /** @return true if the connection has been closed before the response was complete */
+        @ThreadSafe
+        public boolean isCancelled()
+        {
+                return cancelled;
+        }
+
+        void cancel()
+        {
+                cancelled = true;
+                queue.clear();
+                
+                if (producer instanceof HttpResponseOutputStream)
+                {
+                        // wake up a writer that is blocked on this stream
+                        ((HttpResponseOutputStream) producer).wakeUp();
+                }
+        }
+
+        /** Called from the thread that serves the connection, once the response headers are about to be sent */
+        void start()
+        {
+                requestData();
+        }
+
+        private void requestData()
+        {
+                if (!cancelled && !ended && queuedBytes.get() < HttpServer.STREAM_BUFFER_SIZE)
+                {
+                        // Set before trying, so that a producer that is about to finish always sees it
+                        missed = true;
+                        if (producing.compareAndSet(false, true))
+                        {
+                                missed = false;
+                                try
+                                {
+                                        executor.execute(produceTask);
+                                }
+                                catch (RejectedExecutionException ex)
+                                {
+                                        producing.set(false);
+                                        log.log(Level.SEVERE, "Unable to run HttpBodyProducer", ex);
+                                }
+                        }
+                }
+        }
+
+        /** @return The number of bytes that have been queued, but not written yet */
+        @ThreadSafe
+        long getQueuedBytes()
+        {
+                return queuedBytes.get();
+        }
+
+        /** @return The bytes that remain to be written, Long.MAX_VALUE if the stream has not ended yet */
+        @ThreadSafe
+        long getRemainingBytes()
+        {
+                return ended ? queuedBytes.get() : Long.MAX_VALUE;
+        }
+
+        /**
+         * Write queued data to the channel. Called from the thread that serves the connection.
+         * @return true if the stream has ended and everything has been written
+         */
+        boolean writeTo(WritableByteChannel channel) throws IOException
+        {
+                // Read "ended" before looking at the queue, end() adds the last chunk before setting it
+                boolean end = ended;
+
+                ByteBuffer buf;
+                while ((buf = queue.peek()) != null)
+                {
+                        int written = channel.write(buf);
+                        if (written < 0)
+                        {
+                                throw new IOException("closed");
+                        }
+                        queuedBytes.addAndGet(-written);
+
+                        if (buf.hasRemaining()) // unable to write further, try again later
+                        {
+                                requestData();
+                                return false;
+                        }
+
+                        queue.poll();
+                }
+
+                if (end)
+                {
+                        return true;
+                }
+
+                requestData();
+                return false;
+        }
+
+        /** @return true if everything has been written, but the stream has not ended yet */
+        boolean isWaiting()
+        {
+                return !ended && queue.isEmpty();
+        }
+}
@@ -0,0 +1,391 @@
+package wshttpserver;
+
+import wshttpserver.HttpUtil.METHOD;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds the dynamic route of a request path. Routes are added to a {@link Builder}, which compiles them into an
+ * immutable radix tree that may be used by any number of threads.
+ *
+ * A route pattern consists of segments separated by slashes, for example "api/users/{id}/files/*":
+ * + A static segment must be equal to the (still percent-encoded) segment of the request path
+ * + {name} matches a single, non-empty segment. Its value is available as a path parameter.
+ * + A trailing * matches the rest of the path. This is also how a route without it behaves: a route applies to all
+ *   paths below it, unless a more specific route matches. The rest of the path is available as parameter "*".
+ *
+ * A route that matches the complete path takes precedence over routes above the path. Otherwise static segments
+ * take precedence over parameters, and deeper routes over the routes above them. A route only matches if it has a
+ * handler for the request method (a GET handler also handles HEAD).
+ *
+ * Matching works on the raw request path without decoding or copying it: parameters are recorded as offsets,
+ * which are only decoded once the handler reads them.
+ *
+ * @author Joris
+ */
+final class HttpRouter
+{
+        static final String REST = "*";
+        private static final String[] NO_NAMES = new String[0];
+        private final Node root;
+        private final int paramSlots;
+
+        private HttpRouter(Node root, int paramSlots)
+        {
+                this.root = root;
+                this.paramSlots = paramSlots;
+        }
+
+        /** @return An array that is large enough to receive the parameter offsets of any route */
+        int[] newParams()
+        {
+                return new int[paramSlots];
+        }
+
+        /**
+         * @param method The request method, or null to match a route regardless of its methods
+         * @param rawPath The raw path of the Request-URI
+         * @param params Receives the start and end offsets (in rawPath) of every parameter of the route, in the
+         *               order of {@link Route#paramNames}. See {@link #newParams()}
+         * @return The route, or null if no route matches
+         */
+        @ThreadSafe
+        Route match(METHOD method, String rawPath, int[] params)
+        {
+                int start = 0;
+                while (start < rawPath.length() && rawPath.charAt(start) == '/')
+                {
+                        ++start;
+                }
+
+                Route route = match(root, method, rawPath, start, start, 0, params, true);
+                if (route == null)
+                {
+                        route = match(root, method, rawPath, start, start, 0, params, false);
+                }
+                return route;
+        }
+
+        /**
+         * @param pos The label of node has been matched up to this position
+         * @param count The number of parameters that have been matched so far
+         * @param exact If true, only routes that match the complete path are found. Otherwise the deepest route 
+         *              above the path is found
+         */
+        private static Route match(Node node, METHOD method, String path, int start, int pos, int count, int[] params, boolean exact)
+        {
+                int end = path.length();
+                if (pos == end)
+                {
+                        if (node.accepts(method))
+                        {
+                                params[count * 2] = end;
+                                params[count * 2 + 1] = end;
+                                return node.route;
+                        }
+                        return null;
+                }
+
+                Node child = node.child(path.charAt(pos));
+                if (child != null && path.regionMatches(pos, child.label, 0, child.label.length()))
+                {
+                        Route route = match(child, method, path, start, pos + child.label.length(), count, params, exact);
+                        if (route != null)
+                        {
+                                return route;
+                        }
+                }
+
+                if (node.param != null)
+                {
+                        int valueEnd = path.indexOf('/', pos);
+                        if (valueEnd < 0)
+                        {
+                                valueEnd = end;
+                        }
+
+                        if (valueEnd > pos)
+                        {
+                                Route route = match(node.param, method, path, start, valueEnd, count + 1, params, exact);
+                                if (route != null)
+                                {
+                                        params[count * 2] = pos;
+                                        params[count * 2 + 1] = valueEnd;
+                                        return route;
+                                }
+                        }
+                }
+
+                // The path continues below this route
+                if (!exact && node.accepts(method) && (pos == start || path.charAt(pos) == '/'))
+                {
+                        params[count * 2] = path.charAt(pos) == '/' ? pos + 1 : pos;
+                        params[count * 2 + 1] = end;
+                        return node.route;
+                }
+
+                return null;
+        }
+
+        /** The handlers of a route */
+        static final class Route
+        {
+                private final HttpRoutes.Handler[] handlers; // by METHOD ordinal
+                final String[] paramNames; // the last one is always REST
+
+                private Route(HttpRoutes.Handler[] handlers, String[] paramNames)
+                {
+                        this.handlers = handlers;
+                        this.paramNames = paramNames;
+                }
+
+                /** @return The handler for the method, or null */
+                HttpRoutes.Handler getHandler(METHOD method)
+                {
+                        HttpRoutes.Handler handler = handlers[method.ordinal()];
+                        if (handler == null && method == METHOD.HEAD)
+                        {
+                                handler = handlers[METHOD.GET.ordinal()];
+                        }
+                        return handler;
+                }
+        }
+
+        private static final class Node
+        {
+                final String label; // static part of the path, empty for the node that follows a parameter
+                final char[] indices; // sorted first characters of the labels of the children
+                final Node[] children;
+                final Node param; // matches a parameter, or null
+                final Route route; // null if no route ends here
+
+                Node(String label, char[] indices, Node[] children, Node param, Route route)
+                {
+                        this.label = label;
+                        this.indices = indices;
+                        this.children = children;
+                        this.param = param;
+                        this.route = route;
+                }
+
+                Node child(char c)
+                {
+                        int i = Arrays.binarySearch(indices, c);
+                        return i < 0 ? null : children[i];
+                }
+
+                boolean accepts(METHOD method)
+                {
+                        return route != null && (method == null || route.getHandler(method) != null);
+                }
+        }
+
+        /** Collects routes, not thread safe. */
+        static final class Builder
+        {
+                private final BuildNode root = new BuildNode("");
+
+                /**
+                 * @param method The request method
+                 * @param pattern The path pattern, see {@link HttpRouter}. Leading and trailing slashes are ignored.
+                 * @param handler The handler
+                 * @throws IllegalArgumentException If the pattern is invalid, or if it conflicts with another route
+                 */
+                void add(METHOD method, String pattern, HttpRoutes.Handler handler)
+                {
+                        int start = 0;
+                        int end = pattern.length();
+                        while (start < end && pattern.charAt(start) == '/')
+                        {
+                                ++start;
+                        }
+                        while (end > start && pattern.charAt(end - 1) == '/')
+                        {
+                                --end;
+                        }
+
+                        String[] segments = start == end ? NO_NAMES : pattern.substring(start, end).split("/", -1);
+
+                        BuildNode node = root;
+                        StringBuilder text = new StringBuilder(); // static text that has not been inserted yet
+                        for (int a = 0; a < segments.length; ++a)
+                        {
+                                String segment = segments[a];
+
+                                if (REST.equals(segment))
+                                {
+                                        if (a != segments.length - 1)
+                                        {
+                                                throw new IllegalArgumentException("* must be the last segment: " + pattern);
+                                        }
+                                        // Every route matches the rest of the path
+                                        if (text.length() > 0)
+                                        {
+                                                text.setLength(text.length() - 1); // slash
+                                        }
+                                        break;
+                                }
+
+                                if (segment.startsWith("{") && segment.endsWith("}") && segment.length() > 2)
+                                {
+                                        String name = segment.substring(1, segment.length() - 1);
+                                        if (REST.equals(name) || name.indexOf('{') >= 0 || name.indexOf('}') >= 0)
+                                        {
+                                                throw new IllegalArgumentException("Invalid parameter name: " + pattern);
+                                        }
+
+                                        node = insertStatic(node, text.toString());
+                                        text.setLength(0);
+
+                                        if (node.param == null)
+                                        {
+                                                node.param = new BuildNode("");
+                                                node.paramName = name;
+                                        }
+                                        else if (!node.paramName.equals(name))
+                                        {
+                                                throw new IllegalArgumentException("Parameter {" + name + "} conflicts with {" + node.paramName + "}: " + pattern);
+                                        }
+                                        node = node.param;
+                                }
+                                else if (segment.isEmpty() || segment.indexOf('{') >= 0 || segment.indexOf('}') >= 0 || segment.indexOf('*') >= 0)
+                                {
+                                        throw new IllegalArgumentException("Invalid segment \"" + segment + "\": " + pattern);
+                                }
+                                else
+                                {
+                                        text.append(encodeSegment(segment));
+                                }
+
+                                if (a != segments.length - 1)
+                                {
+                                        text.append('/');
+                                }
+                        }
+
+                        node = insertStatic(node, text.toString());
+
+                        if (node.handlers == null)
+                        {
+                                node.handlers = new EnumMap<>(METHOD.class);
+                        }
+                        node.handlers.put(method, handler);
+                }
+
+                /** @return The compiled routes. The builder may still be modified afterwards. */
+                HttpRouter compile()
+                {
+                        int[] maxParams = new int[1];
+                        Node compiled = compile(root, new ArrayList<String>(), maxParams);
+                        return new HttpRouter(compiled, (maxParams[0] + 1) * 2);
+                }
+
+                private static Node compile(BuildNode node, List<String> names, int[] maxParams)
+                {
+                        char[] indices = new char[node.children.size()];
+                        Node[] children = new Node[node.children.size()];
+                        int i = 0;
+                        for (Map.Entry<Character, BuildNode> entry : node.children.entrySet())
+                        {
+                                indices[i] = entry.getKey();
+                                children[i] = compile(entry.getValue(), names, maxParams);
+                                ++i;
+                        }
+
+                        Node param = null;
+                        if (node.param != null)
+                        {
+                                names.add(node.paramName);
+                                maxParams[0] = Math.max(maxParams[0], names.size());
+                                param = compile(node.param, names, maxParams);
+                                names.remove(names.size() - 1);
+                        }
+
+                        Route route = null;
+                        if (node.handlers != null)
+                        {
+                                HttpRoutes.Handler[] handlers = new HttpRoutes.Handler[METHOD.values().length];
+                                for (Map.Entry<METHOD, HttpRoutes.Handler> entry : node.handlers.entrySet())
+                                {
+                                        handlers[entry.getKey().ordinal()] = entry.getValue();
+                                }
+
+                                String[] paramNames = names.toArray(new String[names.size() + 1]);
+                                paramNames[names.size()] = REST;
+                                route = new Route(handlers, paramNames);
+                        }
+
+                        return new Node(node.label, indices, children, param, route);
+                }
+
+                /** @return The node at the end of text, which is created if needed */
+                private static BuildNode insertStatic(BuildNode node, String text)
+                {
+                        while (!text.isEmpty())
+                        {
+                                BuildNode child = node.children.get(text.charAt(0));
+                                if (child == null)
+                                {
+                                        child = new BuildNode(text);
+                                        node.children.put(text.charAt(0), child);
+                                        return child;
+                                }
+
+                                int common = 0;
+                                int max = Math.min(child.label.length(), text.length());
+                                while (common < max && child.label.charAt(common) == text.charAt(common))
+                                {
+                                        ++common;
+                                }
+
+                                if (common < child.label.length())
+                                {
+                                        // Split the child at the point where it differs
+                                        BuildNode split = new BuildNode(child.label.substring(0, common));
+                                        child.label = child.label.substring(common);
+                                        split.children.put(child.label.charAt(0), child);
+                                        node.children.put(text.charAt(0), split);
+                                        child = split;
+                                }
+
+                                node = child;
+                                text = text.substring(common);
+                        }
+
+                        return node;
+                }
+
+                /** @return The segment as it appears in a raw request path */
+                private static String encodeSegment(String segment)
+                {
+                        try
+                        {
+                                return new URI(null, null, "/" + segment, null).toASCIIString().substring(1);
+                        }
+                        catch (URISyntaxException ex)
+                        {
+                                throw new IllegalArgumentException("Invalid segment: " + segment, ex);
+                        }
+                }
+        }
+
+        private static final class BuildNode
+        {
+                String label;
+                final TreeMap<Character, BuildNode> children = new TreeMap<>();
+                BuildNode param;
+                String paramName;
+                EnumMap<METHOD, HttpRoutes.Handler> handlers;
+
+                BuildNode(String label)
+                {
+                        this.label = label;
+                }
+        }
+}
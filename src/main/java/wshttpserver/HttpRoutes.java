@@ -0,0 +1,307 @@
+package wshttpserver;
+
+import wshttpserver.HttpUtil.HttpException;
+import wshttpserver.HttpUtil.METHOD;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The routes of a HttpServer, a single instance that every HttpDownloadThread shares without a lock. Routes must not
+ * be modified after HttpServer.setup().
+ * 
+ * @author Joris
+ */
+class HttpRoutes
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        final File defaultRoute;
+        final Map<String, File> statics = new HashMap<>();
+        final Map<String, HttpUpload.Route> uploads = new HashMap<>();
+        private final HttpRouter.Builder handlers = new HttpRouter.Builder();
+        private volatile HttpRouter router; // null if it has to be compiled again
+
+        HttpRoutes(File defaultRoute)
+        {
+                this.defaultRoute = defaultRoute;
+        }
+        
+        File getStaticFile(String requestPath) throws NoSuchFileException, IOException
+        {
+                if (requestPath == null || requestPath.isEmpty())
+                {
+                        return defaultRoute;
+                }
+                
+                
+                int start = 0;
+                while (start < requestPath.length() && requestPath.charAt(start) == '/')
+                {
+                        ++start;
+                }
+                
+                int len = requestPath.length();
+                while (len >= start && requestPath.charAt(len-1) == '/')
+                {
+                        --len;
+                }
+                
+                if (start == len)
+                {
+                        return defaultRoute;
+                }
+                
+                
+                len = findRoute(statics, requestPath, start, len);
+                if (len >= start)
+                {
+                        File routeFile = statics.get(requestPath.substring(start, len));
+                        
+                        String remainingPath = requestPath.substring(len);
+                        
+                        File file = remainingPath.length() > 0 
+                                    ? new File(routeFile.getPath() + File.separator + remainingPath) 
+                                    : routeFile;
+                        
+                        file = file.getCanonicalFile();
+                        if (!file.getPath().startsWith(routeFile.getPath()))
+                        {
+                                log.log(Level.WARNING, "Attempt to access file outside of the route directory");
+                                throw new NoSuchFileException(file.getPath());
+                        }
+
+                        return file;
+                }
+                
+
+                if (defaultRoute == null)
+                {
+                        throw new NoSuchFileException("defaultRoute not set");
+                }
+
+                File file = new File(defaultRoute.getPath() + File.separator + requestPath);
+                file = file.getCanonicalFile();
+
+                if (!file.getPath().startsWith(defaultRoute.getPath()))
+                {
+                        log.log(Level.WARNING, "Attempt to access file outside of the route directory");
+                        throw new NoSuchFileException(file.getPath());
+                }
+                
+                return file;
+        }
+        
+        /**
+         * Find the longest route that is a prefix of the given path.
+         * @return The end index of the route within requestPath, or -1 if no route matches
+         */
+        static int findRoute(Map<String, ?> routes, String requestPath, int start, int len)
+        {
+                while (len >= start)
+                {
+                        // /a/b/c/d/e.txt
+                        // first try "/a/b/c/d/e.txt"
+                        // then try "/a/b/c/d"
+                        // then try "/a/b/c" etc
+
+                        if (routes.containsKey(requestPath.substring(start, len)))
+                        {
+                                return len;
+                        }
+
+                        len = requestPath.lastIndexOf('/', len-1);
+                }
+
+                return -1;
+        }
+
+        /**
+         * @param path For example "assets" or "abc/def"
+         * @param file File or directory
+         */
+        void addStatic(String path, File file) throws IOException, SecurityException
+        {
+                statics.put(path, file.getCanonicalFile());
+        }
+        
+        /**
+         * @param path For example "uploads"
+         * @param directory The directory that uploaded files are stored in
+         * @param maxSize The maximum size of an uploaded file in bytes
+         */
+        void addUpload(String path, File directory, long maxSize) throws IOException, SecurityException
+        {
+                directory = directory.getCanonicalFile();
+                if (!directory.isDirectory())
+                {
+                        throw new IllegalArgumentException("directory");
+                }
+                
+                uploads.put(path, new HttpUpload.Route(directory, maxSize));
+        }
+        
+        void addHandler(METHOD method, String path, HttpHandler handler, Executor executor)
+        {
+                addHandler(method, path, handler, executor, false);
+        }
+
+        /**
+         * @param path A route pattern, see {@link HttpRouter}
+         * @throws IllegalArgumentException If the pattern is invalid
+         */
+        void addAsyncHandler(METHOD method, String path, final HttpAsyncHandler handler, Executor executor)
+        {
+                addHandler(method, path, new HttpHandler()
+                {
+                        @Override
+                        public void handle(final HttpRequest request, final HttpReply reply)
+                        {
+                                handler.handle(request, reply).whenComplete(new BiConsumer<Object, Throwable>()
+                                {
+                                        @Override
+                                        public void accept(Object result, Throwable ex)
+                                        {
+                                                if (ex != null)
+                                                {
+                                                        log.log(Level.SEVERE, "Exception in HttpAsyncHandler", ex);
+                                                }
+                                                else if (!reply.isReplied())
+                                                {
+                                                        log.log(Level.SEVERE, "HttpAsyncHandler did not reply to {0}", request.getUri());
+                                                }
+
+                                                if (!reply.isReplied())
+                                                {
+                                                        reply.send(500, "Internal Server Error");
+                                                }
+                                        }
+                                });
+                        }
+                }, executor, false);
+        }
+
+        /**
+         * @param path A route pattern, see {@link HttpRouter}
+         * @throws IllegalArgumentException If the pattern is invalid
+         */
+        void addHandler(METHOD method, String path, HttpHandler handler, Executor executor, boolean blocking)
+        {
+                handlers.add(method, path, new Handler(handler, executor, blocking));
+                router = null;
+        }
+        
+        /** 
+         * Compile the handler routes. Called once all routes have been added, otherwise they are compiled the first 
+         * time they are used.
+         */
+        HttpRouter compile()
+        {
+                HttpRouter ret = handlers.compile();
+                router = ret;
+                return ret;
+        }
+        
+        /**
+         * @param rawPath The raw path of the Request-URI
+         * @param params Receives the parameters of the route, see {@link HttpRouter#match(METHOD, String, int[])}
+         * @return The route that matches the path and method, or null if no handler route matches
+         * @throws HttpException if a handler route matches the path, but not the method
+         */
+        HttpRouter.Route getHandler(METHOD method, String rawPath, int[] params) throws HttpException
+        {
+                if (rawPath == null)
+                {
+                        return null;
+                }
+                
+                HttpRouter r = router;
+                if (r == null)
+                {
+                        r = compile();
+                }
+                
+                HttpRouter.Route route = r.match(method, rawPath, params);
+                if (route == null && r.match(null, rawPath, params) != null)
+                {
+                        throw new HttpException(405, true, "Method Not Allowed");
+                }
+                
+                return route;
+        }
+        
+        /** @return An array for {@link #getHandler(METHOD, String, int[])} */
+        int[] newParams()
+        {
+                HttpRouter r = router;
+                if (r == null)
+                {
+                        r = compile();
+                }
+                return r.newParams();
+        }
+        
+        HttpUpload getUpload(String requestPath) throws HttpException
+        {
+                if (requestPath == null)
+                {
+                        throw new HttpException(405, true, "Method Not Allowed");
+                }
+
+                int start = 0;
+                while (start < requestPath.length() && requestPath.charAt(start) == '/')
+                {
+                        ++start;
+                }
+
+                int len = findRoute(uploads, requestPath, start, requestPath.length());
+                if (len < start)
+                {
+                        throw new HttpException(405, true, "Method Not Allowed");
+                }
+
+                HttpUpload.Route route = uploads.get(requestPath.substring(start, len));
+                File file;
+                try
+                {
+                        file = new File(route.directory.getPath() + File.separator + requestPath.substring(len));
+                        file = file.getCanonicalFile();
+                }
+                catch (IOException ex)
+                {
+                        throw new HttpException(400, true, "Invalid upload path", ex);
+                }
+
+                if (!file.equals(route.directory) && !file.getPath().startsWith(route.directory.getPath() + File.separator))
+                {
+                        log.log(Level.WARNING, "Attempt to upload a file outside of the route directory");
+                        throw new HttpException(403, true, "Forbidden");
+                }
+
+                if (file.isDirectory() || !file.getParentFile().isDirectory())
+                {
+                        throw new HttpException(409, true, "Conflict");
+                }
+
+                return new HttpUpload(route, file);
+        }
+        
+        static final class Handler
+        {
+                final HttpHandler handler;
+                final Executor executor;
+                final boolean blocking; // the request body is streamed to the handler while it runs
+
+                Handler(HttpHandler handler, Executor executor, boolean blocking)
+                {
+                        this.handler = handler;
+                        this.executor = executor;
+                        this.blocking = blocking;
+                }
+        }
+}
@@ -5,18 +5,28 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.java_websocket.WebSocket;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ClientHandshake;
 
 /**
@@ -24,19 +34,30 @@ import org.java_websocket.handshake.ClientHandshake;
  *
  * Supports:
  * + Sending static files (GET & HEAD)
+ * + Receiving uploaded files (PUT), with Content-Length or chunked request bodies
+ * + Dynamic routes (HttpHandler), with fixed length or streaming (chunked) responses
+ * + Blocking dynamic routes, that run on virtual threads with streamed request and response bodies
  * + Directory index files
  * + Resumeable downloads (range header)
  * + Last-Modified & If-Modified-Since
  * + WebSockets using the java_websocket lib
  *
- * Threading model: HttpServer only has a server socket that it runs accept() on. This can be used in the main loop. All
- * sockets are then passed on to the HttpDownloadThread thread, which uses a select loop to serve all downloads from a
- * singe thread. If an Upgrade: WebSocket header is present, the socket is then removed from HttpDownloadThread and
+ * Threading model: HttpServer has a server socket that the HttpAcceptThread runs accept() on, as soon as the selector
+ * reports new connections. Alternatively the accept thread can be disabled, loop() must then be called from the main 
+ * loop to accept new connections. All sockets are then passed on to one of the HttpDownloadThread threads (one per cpu core by default), which each use a
+ * select loop to serve their downloads. A connection stays on the same HttpDownloadThread for its lifetime. If an 
+ * Upgrade: WebSocket header is present, the socket is then removed from HttpDownloadThread and
  * added to one of the HttpWebSocketServer threads that all run their own select loop. The number of HttpWebSocketServer
  * threads that are spawned, depends on the number of cpu cores (including HyperThreading). select loop and parsing
  * happen on the same thread. This ensures the anti congestion features of TCP can do their thing properly.
+ * Optionally every HttpDownloadThread accepts its own connections on a server socket that is bound to the same port 
+ * using SO_REUSEPORT, in which case the kernel spreads the connections. loop() does nothing unless the accept thread
+ * has been disabled.
  *
- * HttpWebsocketListener callbacks will originate from one of the HttpWebSocketServer threads.
+ * HttpWebsocketListener callbacks will originate from one of the HttpWebSocketServer threads. HttpHandler callbacks
+ * originate from the executor of the route, so that they never block the HttpDownloadThread. Blocking routes run every
+ * request on its own virtual thread. Their InputStream and OutputStream block the virtual thread, never the
+ * HttpDownloadThread, which remains the only thread that touches the socket.
  *
  * @author Joris
  */
@@ -45,17 +66,74 @@ public class HttpServer implements UpgradeWebSocketHandler, HttpWebSocketServerL
         static final int LINEBUFFER_SIZE = 512; // Used to combine a line that spans multiple TCP segments
         static final int RCVBUFFER_SIZE = 16384;
         static final int BUFFER_SIZE = RCVBUFFER_SIZE + LINEBUFFER_SIZE;
-        static final int WEBSOCKET_PARSE_THREADS = 2;
-        static final long HTTP_TIMEOUT = 10;
+        static final long MAX_DISCARD_BODY_SIZE = 65536; // The maximum body size of requests that do not use the body
+        static final int BODY_TRANSFER_SIZE = 65536; // The maximum amount of bytes to transfer from a socket to a file at once
+        static final long MAX_HANDLER_BODY_SIZE = 1048576; // The maximum body size of requests to dynamic routes
+        static final long STREAM_BUFFER_SIZE = 65536; // Streaming responses ask for more data below this amount of queued bytes
+        static final int REQUEST_POOL_SIZE = 256; // Free request states that every download thread keeps for its busy connections
+        static final long HEAD_TIMEOUT = 10_000_000_000l; // ns. To receive the request line and headers of a request
+        static final long BODY_TIMEOUT = 10_000_000_000l; // ns. Between two reads of a request body
+        static final long KEEP_ALIVE_TIMEOUT = 10_000_000_000l; // ns. To start the next request on a keep-alive connection
+        static final long WRITE_TIMEOUT = 30_000_000_000l; // ns. Until the client accepts more of the response
+        static final long WEBSOCKET_PING_INTERVAL = 30_000_000_000l; // ns. A ping is sent after receiving nothing for this long
+        static final long WEBSOCKET_IDLE_TIMEOUT = 75_000_000_000l; // ns. A websocket is closed after receiving nothing for this long
+        static final long TIMER_TICK = 100_000_000l; // ns. The precision of the timeouts above
+        static final int TIMER_WHEEL_SIZE = 1024; // TIMER_TICK * TIMER_WHEEL_SIZE should exceed the timeouts above
+        static final long OVERLOAD_SELECT_TIMEOUT = 10; // ms. An overloaded thread keeps measuring its load this often
+        static final long MEMORY_CHECK_INTERVAL = 10_000_000l; // ns. How often a thread may throttle or close a connection over the memory budget
+        static final long SMALL_RESPONSE_SIZE = 65536; // Responses with less remaining are written completely, shortest first
+        static final long WRITE_BUDGET = 1048576; // The bytes that a download thread writes to large responses per iteration, shared among them
+        static final long MIN_WRITE_QUANTUM = 65536; // The least a large response may write per iteration, however many there are
+        static final long BANDWIDTH_BURST = 2 * TIMER_TICK; // ns. The bytes that a bandwidth limit allows at once, in time
+        static final long WEBSOCKET_LOAD_INTERVAL = 1_000_000_000l; // ns. How often a websocket thread measures its traffic and how busy it is
+        static final long WEBSOCKET_LOAD_BYTES = 65536; // Bytes per second of websocket traffic that weigh as much as a connection
+        static final double WEBSOCKET_MAX_UTILIZATION = 0.9; // A busier websocket thread counts as ten times as loaded, not more
+        static final int WEBSOCKET_DISPATCH_BATCH = 16; // The callbacks of one websocket that a worker runs before it serves others
+        static final int WEBSOCKET_WRITE_BATCH = 64; // The most frames of one websocket in a gathering write, see setWebSocketCoalescing()
         private static final Logger log = Logger.getLogger("wshttpserver");
         public volatile HttpWebSocketServerListener websocketListener;
         private boolean stop = false;
         File httpdocs;
         ServerSocketChannel ssChannel;
-        HttpDownloadThread downloadThread;
-        private List<HttpWebSocketServer> websocketServers;
-        volatile int upgradeWebSocketHandler_counter = 0;
-        private final Set<WebSocket> websockets = new HashSet<>();
+        private final HttpRoutes routes;
+        private int downloadThreadCount = Runtime.getRuntime().availableProcessors();
+        private DownloadBalancing downloadBalancing = DownloadBalancing.LEAST_CONNECTIONS;
+        private List<HttpDownloadThread> downloadThreads;
+        private final AtomicInteger downloadThreadCounter = new AtomicInteger();
+        private boolean reusePortAcceptors = false;
+        private int reusePortBacklog = 0;
+        private final List<ServerSocketChannel> reusePortChannels = new ArrayList<>();
+        private boolean acceptThreadEnabled = true;
+        private int maxConnections = Integer.MAX_VALUE;
+        private HttpAcceptThread acceptThread;
+        private HttpRateLimiter limiter; // null if clients are not limited
+        private HttpLoadShedder shedder; // null if load is never shed
+        private long memoryThrottleLimit = Long.MAX_VALUE;
+        private long memoryCloseLimit = Long.MAX_VALUE;
+        private volatile HttpMemoryAccountant accountant; // created by setup()
+        private final HttpBandwidth bandwidth = new HttpBandwidth();
+        private volatile boolean broadcastDirect = false;
+        private int websocketThreadCount = Runtime.getRuntime().availableProcessors();
+        private WebSocketBalancing websocketBalancing = WebSocketBalancing.LEAST_LOADED;
+        private double websocketRebalanceRatio = 1.5;
+        private int websocketMigrations = 16;
+        private WebSocketDispatch websocketDispatch = WebSocketDispatch.SELECTOR_THREAD;
+        private int websocketInboxSize = 256;
+        private long websocketInboundBudget = Long.MAX_VALUE;
+        private long websocketOutboundBytes = Long.MAX_VALUE;
+        private int websocketOutboundFrames = Integer.MAX_VALUE;
+        private WebSocketOverflow websocketOverflow = WebSocketOverflow.DROP_NEWEST;
+        private long websocketBlockTimeout = WRITE_TIMEOUT; // ns
+        private long websocketHighWater = Long.MAX_VALUE;
+        private WebSocketHighWaterListener websocketHighWaterListener;
+        private long websocketCoalescing = 0; // ns
+        private HttpOutboundLimits outboundLimits; // created by setup(), null if unlimited
+        private List<HttpWebSocketServer> websocketServers = new ArrayList<>(); // created by setup()
+        private final AtomicInteger websocketThreadCounter = new AtomicInteger();
+        private HttpTopics topics; // created by setup()
+        private HttpWebSocketRegistry websockets; // created by setup()
+        private final ExecutorService handlerExecutor;
+        private final ExecutorService blockingHandlerExecutor;
 
         public HttpServer(ServerSocketChannel ssChannel, File httpdocs_, HttpWebSocketServerListener websocketListener) throws IOException
         {
@@ -78,29 +156,637 @@ public class HttpServer implements UpgradeWebSocketHandler, HttpWebSocketServerL
                 }
 
 
-                downloadThread = new HttpDownloadThread(this.httpdocs == null ? null : new File(this.httpdocs.getPath()), this);
-                downloadThread.setDaemon(true);
+                routes = new HttpRoutes(this.httpdocs == null ? null : new File(this.httpdocs.getPath()));
                 
-                websocketServers = new ArrayList<>(WEBSOCKET_PARSE_THREADS);
-                for (int a = 0; a < WEBSOCKET_PARSE_THREADS; ++a)
+                handlerExecutor = Executors.newCachedThreadPool(new ThreadFactory()
                 {
-                        HttpWebSocketServer server = new HttpWebSocketServer(this);
-                        server.setDeamon(true);
-                        websocketServers.add(server);
+                        private final AtomicInteger counter = new AtomicInteger();
+                        
+                        @Override
+                        public Thread newThread(Runnable r)
+                        {
+                                Thread t = new Thread(r, "HttpHandler-" + counter.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                        }
+                });
+                
+                blockingHandlerExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("HttpHandler-virtual-", 1).factory());
+        }
+        
+        /** How accepted connections are assigned to the HttpDownloadThreads */
+        public static enum DownloadBalancing
+        {
+                /** The thread with the fewest connections. Suits connections that differ a lot, such as downloads. */
+                LEAST_CONNECTIONS,
+                /** Every thread in turn */
+                ROUND_ROBIN;
+        }
+        
+        /** How upgraded connections are assigned to the websocket threads */
+        public static enum WebSocketBalancing
+        {
+                /** The thread with the least load: its connections, plus its recent traffic (WEBSOCKET_LOAD_BYTES per 
+                 * second weigh as much as a connection), scaled up by how busy its select loop has been. */
+                LEAST_LOADED,
+                /** Every thread in turn */
+                ROUND_ROBIN;
+        }
+        
+        /** Set the number of HttpDownloadThreads, which serve plain http. Must be called before setup().
+         * @param count The number of threads. The default is the number of available processors.
+         */
+        public void setDownloadThreads(int count)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (count < 1)
+                {
+                        throw new IllegalArgumentException("count");
+                }
+                
+                downloadThreadCount = count;
+        }
+        
+        /** Where the callbacks of the HttpWebSocketServerListener run */
+        public static enum WebSocketDispatch
+        {
+                /** On the thread that serves the websocket. The least overhead, but a slow callback delays every 
+                 * other websocket of that thread. */
+                SELECTOR_THREAD,
+                /** On the pool of threads that also runs the route handlers */
+                THREAD_POOL,
+                /** On a virtual thread, for callbacks that block */
+                VIRTUAL_THREADS;
+        }
+        
+        /** What happens to a message for a websocket whose outgoing queue is full */
+        public static enum WebSocketOverflow
+        {
+                /** The sending thread waits until there is room, or the websocket closes. The wait is bounded by
+                 * {@link HttpServer#setWebSocketBlockTimeout(long)}: once it has passed, the message is dropped (and 
+                 * counted, see {@link ServerWebSocketImpl#getDroppedFrames()}) and the websocket is closed with 1013 
+                 * (try again later). A websocket thread does not wait, it queues the message anyway. Messages that 
+                 * share a frame (broadcasts and topics) and conflated messages never wait, they are dropped the same as
+                 * DROP_NEWEST: one full websocket would otherwise hold up the others of the same broadcast. */
+                BLOCK,
+                /** Drop the oldest messages that have not started to be written, to make room */
+                DROP_OLDEST,
+                /** Drop the new message */
+                DROP_NEWEST,
+                /** Drop the new message and whatever has not started to be written, and close the websocket with 
+                 * 1008 (policy violation) */
+                CLOSE_POLICY_VIOLATION,
+                /** The same as CLOSE_POLICY_VIOLATION, with 1013 (try again later) */
+                CLOSE_TRY_AGAIN_LATER;
+        }
+        
+        /** Told when the outgoing queue of a websocket crosses the high-water mark, see 
+         * {@link HttpServer#setWebSocketHighWater(long, WebSocketHighWaterListener)} */
+        public static interface WebSocketHighWaterListener
+        {
+                /** 
+                 * Called by the thread that queues or writes, while the websocket is locked: it should return quickly.
+                 * @param above true once the queue has reached the mark, false once it is down to half of it again
+                 * @param queuedBytes The bytes in the queue
+                 */
+                @ThreadSafe
+                public void wssHighWater(WebSocket ws, boolean above, long queuedBytes);
+        }
+        
+        /** Set how accepted connections are assigned to the HttpDownloadThreads. Must be called before setup().
+         * @param balancing The default is LEAST_CONNECTIONS
+         */
+        public void setDownloadBalancing(DownloadBalancing balancing)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                downloadBalancing = balancing;
+        }
+        
+        /** Set the number of threads that serve websockets. Must be called before setup().
+         * @param count The number of threads. The default is the number of available processors.
+         */
+        public void setWebSocketThreads(int count)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (count < 1)
+                {
+                        throw new IllegalArgumentException("count");
+                }
+                
+                websocketThreadCount = count;
+        }
+        
+        /** Set how upgraded connections are assigned to the websocket threads. Must be called before setup().
+         * @param balancing The default is LEAST_LOADED
+         */
+        public void setWebSocketBalancing(WebSocketBalancing balancing)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
                 }
+                
+                websocketBalancing = balancing;
         }
         
+        /** Move open websockets to another thread while their thread has a higher load, because websockets tend to 
+         * live long and their traffic changes. Once per WEBSOCKET_LOAD_INTERVAL, a thread whose load exceeds the load 
+         * of the least loaded thread by the ratio moves its busiest websockets there, while that evens out the loads. 
+         * A websocket keeps its state, queue and id, no message is lost or reordered. Must be called before setup().
+         * @param ratio The default is 1.5, 0 disables moving
+         * @param migrationsPerSecond The most websockets that a thread moves away per second, the default is 16
+         */
+        public void setWebSocketRebalancing(double ratio, int migrationsPerSecond)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (ratio != 0 && ratio < 1 || migrationsPerSecond < 0)
+                {
+                        throw new IllegalArgumentException();
+                }
+                
+                websocketRebalanceRatio = ratio;
+                websocketMigrations = (int) (migrationsPerSecond * (WEBSOCKET_LOAD_INTERVAL / 1e9));
+        }
+        
+        /** Set where the callbacks of the websocket listener run. Unless they run on the thread that serves the 
+         * websocket, every websocket has an inbox: its callbacks run one after the other in the order of the socket, 
+         * never two at the same time, while the callbacks of other websockets run in parallel. Once the inbox of a 
+         * websocket holds inboxSize callbacks, its socket is not read from until half of them have run. 
+         * wssConnect() always runs on the thread that serves the websocket. Must be called before setup().
+         * @param dispatch The default is SELECTOR_THREAD
+         * @param inboxSize The default is 256
+         */
+        public void setWebSocketDispatch(WebSocketDispatch dispatch, int inboxSize)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (dispatch == null || inboxSize < 2)
+                {
+                        throw new IllegalArgumentException();
+                }
+                
+                websocketDispatch = dispatch;
+                websocketInboxSize = inboxSize;
+        }
+        
+        /** Limit the bytes of the messages in the inbox of every websocket, see 
+         * {@link #setWebSocketDispatch(WebSocketDispatch, int)}: a websocket is not read from while its messages that 
+         * have not been handled yet add up to the budget, until half of it is left. A text message counts by its 
+         * characters. So a client that sends faster than the listener handles is slowed down by TCP flow control, 
+         * instead of growing the heap. Without an inbox every message is handled before the next read. To stop 
+         * reading for other reasons, see {@link ServerWebSocketImpl#suspendReads()}. Must be called before setup().
+         * @param bytes The default is unlimited
+         */
+        public void setWebSocketInboundBudget(long bytes)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (bytes < 1)
+                {
+                        throw new IllegalArgumentException("bytes");
+                }
+                
+                websocketInboundBudget = bytes;
+        }
+        
+        /** Limit the outgoing queue of every websocket, so that a client that does not keep up, such as a stalled mobile 
+         * client, does not fill the heap with the messages that it has not received yet. A message that does not fit 
+         * is handled according to the overflow policy. The limits apply to complete text and binary messages: control 
+         * frames and fragments are always queued, and so is a message for an empty queue. See 
+         * {@link ServerWebSocketImpl#getOutboundBytes()} for the depth of a queue. Must be called before setup().
+         * @param maxBytes The default is unlimited
+         * @param maxFrames The default is unlimited
+         * @param overflow The default is DROP_NEWEST
+         */
+        public void setWebSocketOutboundLimits(long maxBytes, int maxFrames, WebSocketOverflow overflow)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (maxBytes < 1 || maxFrames < 1 || overflow == null)
+                {
+                        throw new IllegalArgumentException();
+                }
+                
+                websocketOutboundBytes = maxBytes;
+                websocketOutboundFrames = maxFrames;
+                websocketOverflow = overflow;
+        }
+
+        /** Set how long a sender waits for room in the outgoing queue of a websocket, with the BLOCK overflow policy.
+         * A client that keeps its connection alive but does not read would otherwise hold up the sender forever. Once 
+         * the time has passed, the message is dropped and the websocket is closed with 1013 (try again later). Must be
+         * called before setup().
+         * @param millis The default is 30 seconds, the same as the time a plain http client may take to accept more 
+         *               of a response
+         */
+        public void setWebSocketBlockTimeout(long millis)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (millis < 1)
+                {
+                        throw new IllegalArgumentException();
+                }
+                
+                websocketBlockTimeout = millis * 1_000_000l;
+        }
+        
+        /** Be told when the outgoing queue of a websocket reaches the bytes, and when it is down to half again. Must be 
+         * called before setup().
+         * @param listener null to disable
+         */
+        public void setWebSocketHighWater(long bytes, WebSocketHighWaterListener listener)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (bytes < 1)
+                {
+                        throw new IllegalArgumentException("bytes");
+                }
+                
+                websocketHighWater = bytes;
+                websocketHighWaterListener = listener;
+        }
+        
+        /** Coalesce the outgoing frames of every websocket: the first frame that is queued on an idle websocket starts 
+         * the delay, and once it has passed everything that has been queued meanwhile is written with a single 
+         * gathering write of up to 64 frames. So a websocket that is sent many small messages costs far fewer writes 
+         * and TCP segments, at the cost of latency. The delay is kept by the websocket thread, which does not wait for
+         * less than a millisecond: a shorter delay gathers the frames that are queued during one iteration of the 
+         * thread. To send a message without the delay, see {@link ServerWebSocketImpl#flush()}. Must be called before 
+         * setup().
+         * @param maxDelayMicros 0 to write every frame as soon as possible, which is the default
+         */
+        public void setWebSocketCoalescing(long maxDelayMicros)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (maxDelayMicros < 0)
+                {
+                        throw new IllegalArgumentException("maxDelayMicros");
+                }
+                
+                websocketCoalescing = maxDelayMicros * 1000;
+        }
+        
+        /** Enable or disable the thread that accepts new connections. If it is disabled, loop() must be called to accept
+         * new connections. Must be called before setup().
+         * @param enabled The default is true
+         */
+        public void setAcceptThread(boolean enabled)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                acceptThreadEnabled = enabled;
+        }
+        
+        /** Set the maximum number of plain http connections. Further connections wait in the backlog of the server 
+         * socket until a connection has been closed. WebSocket connections do not count. This limit does not apply to
+         * SO_REUSEPORT acceptors. Must be called before setup().
+         * @param max The default is unlimited
+         */
+        public void setMaxConnections(int max)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (max < 1)
+                {
+                        throw new IllegalArgumentException("max");
+                }
+                
+                maxConnections = max;
+        }
+        
+        /** Limit what a single client (remote IP address) may do. Connections beyond the limit are closed as soon as 
+         * they have been accepted, before anything is allocated for them. Requests beyond the rate are answered with 
+         * "429 Too Many Requests" and a Retry-After header, after which the connection is closed. A client that has
+         * no requests left is not accepted either. WebSocket connections only count until they have been upgraded.
+         * Must be called before setup().
+         * @param maxConnections The maximum number of concurrent plain http connections per address
+         * @param requestsPerSecond The sustained request rate per address, or 0 for no limit
+         * @param burst The number of requests that may be made at once (the size of the token bucket)
+         */
+        public void setClientLimits(int maxConnections, double requestsPerSecond, int burst)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                limiter = new HttpRateLimiter(maxConnections, requestsPerSecond, burst);
+        }
+        
+        /** Shed load once any HttpDownloadThread or HttpWebSocketServer thread falls behind, so that the requests 
+         * that are admitted are still served in time. Every thread measures how long an iteration of its select loop
+         * takes and how many events it finds, both smoothed over several iterations. Once either exceeds its 
+         * threshold, no new connections are accepted (they wait in the backlog), new requests are answered with 
+         * "503 Service Unavailable" and a Retry-After header after which the connection is closed, and websocket
+         * upgrades are rejected. Requests that have already started are served. Normal service resumes once every
+         * thread is below half of both thresholds again. Must be called before setup().
+         * @param maxLagMillis The time an iteration of a select loop may take
+         * @param maxQueueDepth The number of events (ready sockets, tasks and new connections) an iteration may find
+         * @param retryAfterSeconds The Retry-After header of the 503 responses
+         */
+        public void setLoadShedding(long maxLagMillis, int maxQueueDepth, int retryAfterSeconds)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                shedder = new HttpLoadShedder(maxLagMillis * 1_000_000l, maxQueueDepth, retryAfterSeconds);
+        }
+        
+        /** @return true while the server sheds load, see {@link #setLoadShedding(long, int, int)} */
+        @ThreadSafe
+        public boolean isOverloaded()
+        {
+                return shedder != null && shedder.isShedding();
+        }
+        
+        /** Limit the memory that connections may buffer: request heads and bodies, responses that have not been 
+         * written yet and the outgoing queues of websockets. Once the total exceeds the throttle limit, the threads
+         * stop reading from their heaviest connections one by one, until the total is below three quarters of the
+         * limit again. Once it exceeds the close limit, the heaviest connections are closed instead. Memory is 
+         * always accounted, see {@link #getMemoryUsage()}. Must be called before setup().
+         * @param throttleBytes The default is unlimited
+         * @param closeBytes At least throttleBytes. The default is unlimited
+         */
+        public void setMemoryBudget(long throttleBytes, long closeBytes)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                if (throttleBytes < 1 || closeBytes < throttleBytes)
+                {
+                        throw new IllegalArgumentException();
+                }
+                
+                memoryThrottleLimit = throttleBytes;
+                memoryCloseLimit = closeBytes;
+        }
+        
+        /** @return The bytes that all connections currently buffer, see {@link #setMemoryBudget(long, long)} */
+        @ThreadSafe
+        public long getMemoryUsage()
+        {
+                HttpMemoryAccountant accountant = this.accountant;
+                return accountant == null ? 0 : accountant.getTotal();
+        }
+        
+        /** @return The bytes that the connections of every HttpDownloadThread and HttpWebSocketServer thread 
+         *          currently buffer, by thread name
+         */
+        @ThreadSafe
+        public Map<String, Long> getMemoryUsageByThread()
+        {
+                HttpMemoryAccountant accountant = this.accountant;
+                return accountant == null ? new HashMap<String, Long>() : accountant.getTotalByThread();
+        }
+        
+        /** @return The number of times that reading from a connection has been throttled because of the memory budget */
+        @ThreadSafe
+        public long getMemoryThrottledCount()
+        {
+                HttpMemoryAccountant accountant = this.accountant;
+                return accountant == null ? 0 : accountant.getThrottledCount();
+        }
+        
+        /** @return The number of connections that have been closed because of the memory budget */
+        @ThreadSafe
+        public long getMemoryClosedCount()
+        {
+                HttpMemoryAccountant accountant = this.accountant;
+                return accountant == null ? 0 : accountant.getClosedCount();
+        }
+        
+        /** Let every HttpDownloadThread accept its own connections, instead of accepting them in loop(). 
+         * The server channel is used by the first thread, the other threads bind a new server channel to the same
+         * address. The kernel (Linux 3.9+) spreads incoming connections among them, so the balancing setting does
+         * not apply. The server channel must have been opened with SO_REUSEPORT, see 
+         * {@link #openServerChannel(java.net.InetSocketAddress, boolean, int)}. Must be called before setup().
+         * @param enabled
+         * @param backlog The backlog of the additional server channels, or 0 for the default
+         */
+        public void setReusePortAcceptors(boolean enabled, int backlog)
+        {
+                if (downloadThreads != null)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                reusePortAcceptors = enabled;
+                reusePortBacklog = backlog;
+        }
+        
+        /** Limit the bandwidth of every response of a route together: static files and handler responses whose 
+         * path starts with the route. The most specific route applies. May be changed while the server runs, 
+         * responses that are being sent follow the new limit.
+         * @param path For example "mirror" or "abc/def", the same as for {@link #addRouteStatic(String, File)}
+         * @param bytesPerSecond 0 to remove the limit
+         */
+        @ThreadSafe
+        public void setRouteBandwidth(String path, long bytesPerSecond)
+        {
+                bandwidth.setRouteRate(path, bytesPerSecond);
+        }
+        
+        /** Limit the bandwidth of the responses of every single connection. May be changed while the server runs.
+         * @param bytesPerSecond 0 (the default) for unlimited
+         */
+        @ThreadSafe
+        public void setConnectionBandwidth(long bytesPerSecond)
+        {
+                bandwidth.setConnectionRate(bytesPerSecond);
+        }
+        
+        /** Limit the bandwidth of the responses of all connections of a remote address together. May be changed
+         * while the server runs.
+         * @param bytesPerSecond 0 (the default) for unlimited
+         */
+        @ThreadSafe
+        public void setClientBandwidth(long bytesPerSecond)
+        {
+                bandwidth.setClientRate(bytesPerSecond);
+        }
+        
+        /** Register a route (url path) to be served by the specified file or directory.
+         * @param path The path part of the URL that this route applies to. For example "assets" or "abc/def"
+         * @param file File or directory
+         */
         public void addRouteStatic(String path, File file) throws IOException, SecurityException
         {
-                downloadThread.addRouteStatic(path, file);
+                checkNotStarted();
+                routes.addStatic(path, file);
+        }
+        
+        /** Accept uploads (PUT) for the given path. Uploaded files are first written to a temporary file, which
+         * replaces the target file once the upload has completed.
+         * @param path The path part of the URL that this route applies to. For example "uploads" or "abc/def"
+         * @param directory The directory to store uploaded files in. Uploads to subdirectories that do not exist
+         *                  are rejected.
+         * @param maxSize The maximum size of an uploaded file in bytes
+         */
+        public void addRouteUpload(String path, File directory, long maxSize) throws IOException, SecurityException
+        {
+                checkNotStarted();
+                routes.addUpload(path, directory, maxSize);
+        }
+        
+        /** Handle requests for the given method and path using a handler. The handler runs on a thread pool that
+         * is owned by this server.
+         * @param method The request method. A GET handler also handles HEAD requests, unless there is a HEAD handler
+         * @param path The path part of the URL that this route applies to. For example "api" or "abc/def".
+         *             Also applies to any path below it, unless a more specific route exists. Segments may be
+         *             parameters, for example "api/users/{id}/files/*", see {@link HttpRequest#getPathParam(String)}.
+         *             Static segments take precedence over parameters.
+         * @param handler 
+         * @throws IllegalArgumentException If the path is not a valid route pattern
+         */
+        public void addRouteHandler(HttpUtil.METHOD method, String path, HttpHandler handler)
+        {
+                addRouteHandler(method, path, handler, handlerExecutor);
+        }
+        
+        /** Handle requests for the given method and path using a handler.
+         * @param method The request method. A GET handler also handles HEAD requests, unless there is a HEAD handler
+         * @param path The path part of the URL that this route applies to. For example "api" or "abc/def"
+         *             Also applies to any path below it, unless a more specific route exists. Segments may be
+         *             parameters, for example "api/users/{id}/files/*", see {@link HttpRequest#getPathParam(String)}.
+         * @param handler 
+         * @param executor Runs the handler and the body producers of its responses. It must not run tasks on the 
+         *                 calling thread.
+         * @throws IllegalArgumentException If the path is not a valid route pattern
+         */
+        public void addRouteHandler(HttpUtil.METHOD method, String path, HttpHandler handler, Executor executor)
+        {
+                checkNotStarted();
+                routes.addHandler(method, path, handler, executor, false);
+        }
+
+        /** Handle requests for the given method and path using a handler that returns a future, such as a
+         * CompletableFuture. The handler runs on a thread pool that is owned by this server. Once the future has
+         * completed without a reply having been sent, "500 Internal Server Error" is sent.
+         * @param method The request method. A GET handler also handles HEAD requests, unless there is a HEAD handler
+         * @param path The path part of the URL that this route applies to. For example "api" or "abc/def".
+         *             Also applies to any path below it, unless a more specific route exists. Segments may be
+         *             parameters, see {@link #addRouteHandler(HttpUtil.METHOD, String, HttpHandler)}.
+         * @param handler
+         * @throws IllegalArgumentException If the path is not a valid route pattern
+         */
+        public void addRouteAsyncHandler(HttpUtil.METHOD method, String path, HttpAsyncHandler handler)
+        {
+                addRouteAsyncHandler(method, path, handler, handlerExecutor);
+        }
+
+        /** Handle requests for the given method and path using a handler that returns a future, see
+         * {@link #addRouteAsyncHandler(HttpUtil.METHOD, String, HttpAsyncHandler)}.
+         * @param method The request method. A GET handler also handles HEAD requests, unless there is a HEAD handler
+         * @param path The path part of the URL that this route applies to. For example "api" or "abc/def".
+         * @param handler
+         * @param executor Runs the handler and the body producers of its responses. It must not run tasks on the
+         *                 calling thread.
+         * @throws IllegalArgumentException If the path is not a valid route pattern
+         */
+        public void addRouteAsyncHandler(HttpUtil.METHOD method, String path, HttpAsyncHandler handler, Executor executor)
+        {
+                checkNotStarted();
+                routes.addAsyncHandler(method, path, handler, executor);
+        }
+
+        /** Handle requests for the given method and path using a handler that may block, for example on JDBC 
+         * calls or file I/O. Every request runs on its own virtual thread, which is started as soon as the request 
+         * head has been received. The request body is streamed to the handler using 
+         * {@link HttpRequest#getBodyStream()}, a response body may be written using 
+         * {@link HttpReply#outputStream(int, String, String)}.
+         * 
+         * The handler must reply before it returns, otherwise "500 Internal Server Error" is sent. The part of the
+         * request body that it has not read is discarded.
+         * @param method The request method. A GET handler also handles HEAD requests, unless there is a HEAD handler
+         * @param path The path part of the URL that this route applies to. For example "api" or "abc/def".
+         *             Also applies to any path below it, unless a more specific route exists. Segments may be
+         *             parameters, see {@link #addRouteHandler(HttpUtil.METHOD, String, HttpHandler)}.
+         * @param handler 
+         */
+        public void addRouteBlockingHandler(HttpUtil.METHOD method, String path, HttpHandler handler)
+        {
+                checkNotStarted();
+                routes.addHandler(method, path, handler, blockingHandlerExecutor, true);
+        }
+        
+        private void checkNotStarted()
+        {
+                if (downloadThreads != null)
+                {
+                        // If adding routes while the server runs is desirable, 
+                        // the routes should become thread safe.
+                        throw new IllegalStateException();
+                }
         }
         
         public static ServerSocketChannel openServerChannel(InetSocketAddress listenAddr) throws IOException
+        {
+                return openServerChannel(listenAddr, false, 0);
+        }
+        
+        /** 
+         * @param listenAddr
+         * @param reusePort Set SO_REUSEPORT, which is needed for {@link #setReusePortAcceptors(boolean, int)}
+         * @param backlog The maximum number of pending connections, or 0 for the default
+         * @throws UnsupportedOperationException If reusePort is true and the platform does not support SO_REUSEPORT
+         */
+        public static ServerSocketChannel openServerChannel(InetSocketAddress listenAddr, boolean reusePort, int backlog) throws IOException
         {
                 ServerSocketChannel ssChannel = ServerSocketChannel.open();
                 ssChannel.configureBlocking(false);
-                ssChannel.socket().bind(listenAddr);
+                if (reusePort)
+                {
+                        ssChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
                 ssChannel.socket().setReceiveBufferSize(RCVBUFFER_SIZE);
+                ssChannel.socket().bind(listenAddr, backlog);
                 
                 log.log(Level.INFO, "Listening on {0}:{1,number,#}", new Object[] { ssChannel.socket().getInetAddress(), getListeningPort(ssChannel) });
                 return ssChannel;
@@ -108,12 +794,127 @@ public class HttpServer implements UpgradeWebSocketHandler, HttpWebSocketServerL
 
         public void setup() throws IOException
         {
-                if (stop)
+                if (stop || downloadThreads != null)
                 {
                         throw new IllegalStateException();
                 }
                 
-                downloadThread.startWaitReady();
+                // The routes are shared by all threads, they must not be modified anymore
+                routes.compile();
+                
+                if (acceptThreadEnabled && !reusePortAcceptors)
+                {
+                        acceptThread = new HttpAcceptThread(ssChannel, new HttpAcceptThread.ChannelHandler()
+                        {
+                                @Override
+                                public int getConnectionCount()
+                                {
+                                        return HttpServer.this.getConnectionCount();
+                                }
+
+                                @Override
+                                public boolean isOverloaded()
+                                {
+                                        return HttpServer.this.isOverloaded();
+                                }
+
+                                @Override
+                                public void newChannel(SocketChannel sChannel) throws IOException
+                                {
+                                        if (limiter == null || limiter.admit(sChannel))
+                                        {
+                                                nextDownloadThread().addNewChannel(sChannel);
+                                        }
+                                }
+                        }, maxConnections);
+                        acceptThread.setDaemon(true);
+                }
+                
+                Runnable connectionRemoved = acceptThread == null ? null : new Runnable()
+                {
+                        @Override
+                        public void run()
+                        {
+                                acceptThread.connectionRemoved();
+                        }
+                };
+                
+                List<HttpWebSocketServer> servers = new ArrayList<>(websocketThreadCount);
+                for (int a = 0; a < websocketThreadCount; ++a)
+                {
+                        HttpWebSocketServer server = new HttpWebSocketServer(this, a);
+                        server.setDeamon(true);
+                        server.setCoalescing(websocketCoalescing);
+                        servers.add(server);
+                }
+                websocketServers = servers;
+                if (websocketRebalanceRatio > 0 && websocketMigrations > 0 && servers.size() > 1)
+                {
+                        for (HttpWebSocketServer s : servers)
+                        {
+                                s.setRebalancing(servers, websocketRebalanceRatio, websocketMigrations);
+                        }
+                }
+                topics = new HttpTopics(websocketServers);
+                websockets = new HttpWebSocketRegistry(websocketServers.size());
+                if (websocketOutboundBytes != Long.MAX_VALUE || websocketOutboundFrames != Integer.MAX_VALUE || websocketHighWaterListener != null)
+                {
+                        outboundLimits = new HttpOutboundLimits(websocketOutboundBytes, websocketOutboundFrames, websocketOverflow, 
+                                                                websocketBlockTimeout, websocketHighWater, websocketHighWaterListener);
+                }
+                
+                accountant = new HttpMemoryAccountant(memoryThrottleLimit, memoryCloseLimit);
+                for (HttpWebSocketServer s : websocketServers)
+                {
+                        s.setMemoryAccountant(accountant);
+                }
+                
+                List<HttpDownloadThread> threads = new ArrayList<>(downloadThreadCount);
+                for (int a = 0; a < downloadThreadCount; ++a)
+                {
+                        HttpDownloadThread thread = new HttpDownloadThread(routes, this, connectionRemoved, limiter, shedder, accountant, bandwidth);
+                        thread.setDaemon(true);
+                        threads.add(thread);
+                }
+                downloadThreads = threads;
+                
+                if (shedder != null)
+                {
+                        for (HttpWebSocketServer s : websocketServers)
+                        {
+                                s.setLoadShedder(shedder);
+                        }
+                        
+                        shedder.setRecoveryListener(new Runnable()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        if (acceptThread != null)
+                                        {
+                                                acceptThread.overloadEnded();
+                                        }
+                                        for (HttpDownloadThread thread : downloadThreads)
+                                        {
+                                                thread.wakeup(); // SO_REUSEPORT acceptors
+                                        }
+                                }
+                        });
+                }
+                
+                if (reusePortAcceptors)
+                {
+                        setupReusePortAcceptors();
+                }
+                
+                for (HttpDownloadThread thread : downloadThreads)
+                {
+                        thread.startWaitReady();
+                }
+                if (acceptThread != null)
+                {
+                        acceptThread.startWaitReady();
+                }
                 for (HttpWebSocketServer s : websocketServers)
                 {
                         s.startWaitReady();
@@ -122,6 +923,29 @@ public class HttpServer implements UpgradeWebSocketHandler, HttpWebSocketServerL
                 log.log(Level.INFO, "Http server setup at {0}:{1,number,#}", new Object[] { ssChannel.socket().getInetAddress(), getListeningPort(ssChannel) });
         }
         
+        private void setupReusePortAcceptors() throws IOException
+        {
+                if (!ssChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT) ||
+                    !ssChannel.getOption(StandardSocketOptions.SO_REUSEPORT))
+                {
+                        throw new IllegalStateException("The server channel has not been opened with SO_REUSEPORT");
+                }
+                
+                ssChannel.configureBlocking(false);
+                downloadThreads.get(0).setServerChannel(ssChannel);
+                
+                for (int a = 1; a < downloadThreads.size(); ++a)
+                {
+                        ServerSocketChannel channel = ServerSocketChannel.open();
+                        reusePortChannels.add(channel);
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                        channel.socket().setReceiveBufferSize(ssChannel.socket().getReceiveBufferSize());
+                        channel.bind(ssChannel.getLocalAddress(), reusePortBacklog);
+                        downloadThreads.get(a).setServerChannel(channel);
+                }
+        }
+        
         public int getListeningPort()
         {
                 return getListeningPort(ssChannel);
@@ -149,7 +973,15 @@ public class HttpServer implements UpgradeWebSocketHandler, HttpWebSocketServerL
 
         public void stop()
         {
-                downloadThread.interrupt();
+                List<HttpDownloadThread> threads = downloadThreads == null ? new ArrayList<HttpDownloadThread>() : downloadThreads;
+                if (acceptThread != null)
+                {
+                        acceptThread.interrupt();
+                }
+                for (HttpDownloadThread thread : threads)
+                {
+                        thread.interrupt();
+                }
                 for (HttpWebSocketServer s : websocketServers)
                 {
                         s.thread.interrupt();
@@ -157,7 +989,14 @@ public class HttpServer implements UpgradeWebSocketHandler, HttpWebSocketServerL
 
                 try
                 {
-                        downloadThread.join();
+                        if (acceptThread != null)
+                        {
+                                acceptThread.join();
+                        }
+                        for (HttpDownloadThread thread : threads)
+                        {
+                                thread.join();
+                        }
                         for (HttpWebSocketServer s : websocketServers)
                         {
                                 s.thread.join();
@@ -167,25 +1006,50 @@ public class HttpServer implements UpgradeWebSocketHandler, HttpWebSocketServerL
                 {
                 }
                 
-                downloadThread = null;
+                for (ServerSocketChannel channel : reusePortChannels)
+                {
+                        try
+                        {
+                                channel.close();
+                        }
+                        catch (IOException ex)
+                        {
+                                log.log(Level.WARNING, null, ex);
+                        }
+                }
+                reusePortChannels.clear();
+                
+                handlerExecutor.shutdown();
+                blockingHandlerExecutor.shutdown();
                 stop = true;
                 log.log(Level.INFO, "HttpServer has stopped");
         }
 
         
+        /** Accept new connections without blocking. This is only needed if the accept thread has been disabled using
+         * setAcceptThread(false), otherwise this method returns immediately.
+         */
         public void loop()
         {
-                if (stop)
+                if (stop || downloadThreads == null)
                 {
                         throw new IllegalStateException();
                 }
                 
+                if (acceptThread != null || reusePortAcceptors)
+                {
+                        return; // connections are accepted by other threads
+                }
+                
                 try
                 {
                         SocketChannel sChannel;
-                        while ((sChannel = ssChannel.accept()) != null)
+                        while (getConnectionCount() < maxConnections && !isOverloaded() && (sChannel = ssChannel.accept()) != null)
                         {
-                                downloadThread.addNewChannel(sChannel);
+                                if (limiter == null || limiter.admit(sChannel))
+                                {
+                                        nextDownloadThread().addNewChannel(sChannel);
+                                }
                         }
                 }
                 catch (ClosedChannelException ex)
@@ -202,31 +1066,342 @@ public class HttpServer implements UpgradeWebSocketHandler, HttpWebSocketServerL
                 }
         }
 
+        /** @return The number of plain http connections, including the ones that are about to be registered */
+        private int getConnectionCount()
+        {
+                int count = 0;
+                for (HttpDownloadThread thread : downloadThreads)
+                {
+                        count += thread.getConnectionCount();
+                }
+                return count;
+        }
+        
+        /** @return The thread that should serve the next connection */
+        private HttpDownloadThread nextDownloadThread()
+        {
+                int count = downloadThreads.size();
+                int first = Math.floorMod(downloadThreadCounter.getAndIncrement(), count);
+                HttpDownloadThread ret = downloadThreads.get(first);
+                
+                if (downloadBalancing == DownloadBalancing.LEAST_CONNECTIONS)
+                {
+                        // Start at a different thread every time, so that ties are spread out
+                        for (int a = 1; a < count; ++a)
+                        {
+                                HttpDownloadThread thread = downloadThreads.get((first + a) % count);
+                                if (thread.getConnectionCount() < ret.getConnectionCount())
+                                {
+                                        ret = thread;
+                                }
+                        }
+                }
+                
+                return ret;
+        }
+
+        /** Allocate the frames of broadcast messages outside of the heap. Useful for large messages to many clients,
+         * the socket then writes them without copying them to a temporary direct buffer first.
+         * @param direct The default is false
+         */
+        @ThreadSafe
+        public void setBroadcastDirect(boolean direct)
+        {
+                broadcastDirect = direct;
+        }
+        
+        /** Send a text message to every open websocket. See {@link #broadcast(ByteBuffer, Collection)}
+         * @throws IllegalStateException Before setup()
+         */
+        @ThreadSafe
+        public void broadcast(String message)
+        {
+                broadcast(Framedata.Opcode.TEXT, ByteBuffer.wrap(message.getBytes(HttpUtil.UTF8)), null);
+        }
+        
+        /** Send a binary message to every open websocket. See {@link #broadcast(ByteBuffer, Collection)}
+         * @throws IllegalStateException Before setup()
+         */
+        @ThreadSafe
+        public void broadcast(ByteBuffer message)
+        {
+                broadcast(Framedata.Opcode.BINARY, message, null);
+        }
+        
+        /** Send a text message to the given websockets. See {@link #broadcast(ByteBuffer, Collection)} */
+        @ThreadSafe
+        public void broadcast(String message, Collection<? extends WebSocket> targets)
+        {
+                broadcast(Framedata.Opcode.TEXT, ByteBuffer.wrap(message.getBytes(HttpUtil.UTF8)), targets);
+        }
+        
+        /** Send a binary message to the given websockets. The message is framed once, every websocket queues a read 
+         * only view of the same frame, and every websocket thread is woken up once. Websockets that have closed are 
+         * skipped, and the outbound limits apply to every websocket, see 
+         * {@link #setWebSocketOutboundLimits(long, int, WebSocketOverflow)}. The message is sent after anything that has already been sent to a websocket, the order among 
+         * messages that are sent by different threads at the same time is not defined.
+         * @param message Is not modified, and may be reused once this method returns
+         * @param targets Websockets of this server
+         */
+        @ThreadSafe
+        public void broadcast(ByteBuffer message, Collection<? extends WebSocket> targets)
+        {
+                broadcast(Framedata.Opcode.BINARY, message, targets);
+        }
+        
+        private void broadcast(Framedata.Opcode opcode, ByteBuffer message, Collection<? extends WebSocket> targets)
+        {
+                ByteBuffer frame = HttpWebSocketServer.encodeFrame(opcode, message, broadcastDirect);
+                
+                // Queued right away, so that the order is kept even if a websocket moves to another thread. 
+                // Then one wakeup per thread.
+                Map<HttpWebSocketServer, List<ServerWebSocketImpl>> byServer = new HashMap<>();
+                for (WebSocket target : targets == null ? registry() : targets)
+                {
+                        ServerWebSocketImpl conn = ownWebSocket(target);
+                        if (!conn.queueShared(frame))
+                        {
+                                continue;
+                        }
+                        
+                        HttpWebSocketServer server = conn.server;
+                        List<ServerWebSocketImpl> list = byServer.get(server);
+                        if (list == null)
+                        {
+                                list = new ArrayList<>();
+                                byServer.put(server, list);
+                        }
+                        list.add(conn);
+                }
+                
+                for (Map.Entry<HttpWebSocketServer, List<ServerWebSocketImpl>> entry : byServer.entrySet())
+                {
+                        entry.getKey().requestWrite(entry.getValue());
+                }
+        }
+        
+        /** @return The subscriptions, once setup() has created them */
+        private HttpTopics topics()
+        {
+                HttpTopics ret = topics;
+                if (ret == null)
+                {
+                        throw new IllegalStateException();
+                }
+                return ret;
+        }
+        
+        /** @return The open websockets, once setup() has created them */
+        private HttpWebSocketRegistry registry()
+        {
+                HttpWebSocketRegistry ret = websockets;
+                if (ret == null)
+                {
+                        throw new IllegalStateException();
+                }
+                return ret;
+        }
+        
+        private static ServerWebSocketImpl ownWebSocket(WebSocket conn)
+        {
+                if (!(conn instanceof ServerWebSocketImpl) || ((ServerWebSocketImpl) conn).server == null)
+                {
+                        throw new IllegalArgumentException("Not a websocket of this server");
+                }
+                return (ServerWebSocketImpl) conn;
+        }
+        
+        /** Subscribe a websocket to a topic, see {@link #publish(String, ByteBuffer)}. The subscription ends once 
+         * the websocket closes. The topic methods throw IllegalStateException before setup().
+         * @return false if the websocket was already subscribed, or has closed
+         */
+        @ThreadSafe
+        public boolean subscribe(WebSocket conn, String topic)
+        {
+                return topics().subscribe(ownWebSocket(conn), topic);
+        }
+        
+        /** @return false if the websocket was not subscribed */
+        @ThreadSafe
+        public boolean unsubscribe(WebSocket conn, String topic)
+        {
+                return topics().unsubscribe(ownWebSocket(conn), topic);
+        }
+        
+        /** Send a text message to the subscribers of a topic. See {@link #publish(String, ByteBuffer)} */
+        @ThreadSafe
+        public int publish(String topic, String message)
+        {
+                if (topics().isEmpty(topic))
+                {
+                        return 0;
+                }
+                return topics().publish(topic, null, HttpWebSocketServer.encodeFrame(Framedata.Opcode.TEXT, ByteBuffer.wrap(message.getBytes(HttpUtil.UTF8)), broadcastDirect));
+        }
+        
+        /** Send a binary message to the subscribers of a topic. Publishing takes no lock, the message is framed once 
+         * and shared by the subscribers, the same as {@link #broadcast(ByteBuffer, Collection)}.
+         * @param message Is not modified, and may be reused once this method returns
+         * @return The number of subscribers that the message has been queued for
+         */
+        @ThreadSafe
+        public int publish(String topic, ByteBuffer message)
+        {
+                if (topics().isEmpty(topic))
+                {
+                        return 0;
+                }
+                return topics().publish(topic, null, HttpWebSocketServer.encodeFrame(Framedata.Opcode.BINARY, message, broadcastDirect));
+        }
+        
+        /** Send a text message to the subscribers of a topic, which replaces the message with the same key that a 
+         * subscriber has not started to receive yet. See {@link #publish(String, Object, ByteBuffer)} */
+        @ThreadSafe
+        public int publish(String topic, Object key, String message)
+        {
+                if (topics().isEmpty(topic))
+                {
+                        return 0;
+                }
+                return topics().publish(topic, key, HttpWebSocketServer.encodeFrame(Framedata.Opcode.TEXT, ByteBuffer.wrap(message.getBytes(HttpUtil.UTF8)), broadcastDirect));
+        }
+        
+        /** Send a binary message to the subscribers of a topic, which replaces the message with the same key that a 
+         * subscriber has not started to receive yet: a slow subscriber gets the latest message of every key, in the 
+         * place of the oldest one that it has not received. The frame is shared the same as 
+         * {@link #publish(String, ByteBuffer)}, replacing it copies nothing. See 
+         * {@link ServerWebSocketImpl#sendConflated(Object, ByteBuffer)}.
+         * @param key Compared using equals(), null for a message that does not replace any
+         * @param message Is not modified, and may be reused once this method returns
+         * @return The number of subscribers that the message has been queued for
+         */
+        @ThreadSafe
+        public int publish(String topic, Object key, ByteBuffer message)
+        {
+                if (topics().isEmpty(topic))
+                {
+                        return 0;
+                }
+                return topics().publish(topic, key, HttpWebSocketServer.encodeFrame(Framedata.Opcode.BINARY, message, broadcastDirect));
+        }
+        
+        @ThreadSafe
+        public int getSubscriberCount(String topic)
+        {
+                return topics().getSubscriberCount(topic);
+        }
+        
+        /** @return The number of topics that have subscribers */
+        @ThreadSafe
+        public int getTopicCount()
+        {
+                return topics().getTopicCount();
+        }
+        
         /**
-         * Returns a WebSocket[] of currently connected clients. use synchronized() on the list while doing anything
-         * with it
+         * Returns the currently connected clients. The set is a live view which may be iterated without a lock, it may
+         * or may not reflect the websockets that open or close while iterating. It can not be modified. Synchronizing
+         * on it is no longer needed, but harmless.
          *
          * @return The currently connected clients.
          */
         @ThreadSafe
         public Set<WebSocket> websockets()
         {
-                return websockets;
+                HttpWebSocketRegistry ret = websockets;
+                return ret == null ? Collections.<WebSocket>emptySet() : ret;
+        }
+        
+        /** @return The open websocket with the id, see {@link ServerWebSocketImpl#getId()}, or null
+         * @throws IllegalStateException Before setup()
+         */
+        @ThreadSafe
+        public WebSocket getWebSocket(long id)
+        {
+                return registry().get(id);
         }
 
         @Override
-        @ThreadSafe // The list is not modified after the constructor
+        @ThreadSafe // The list is not modified after setup()
         public void upgradeWebSocketHandler(SocketChannel sChannel, ByteBuffer prependData)
         {
-                HttpWebSocketServer s = websocketServers.get(upgradeWebSocketHandler_counter % websocketServers.size());
-                ++upgradeWebSocketHandler_counter;
-                s.addNewChannel(sChannel, prependData);
+                nextWebSocketServer().addNewChannel(sChannel, prependData);
+        }
+        
+        @ThreadSafe
+        private HttpWebSocketServer nextWebSocketServer()
+        {
+                if (websocketBalancing == WebSocketBalancing.LEAST_LOADED)
+                {
+                        HttpWebSocketServer ret = null;
+                        double least = Double.MAX_VALUE;
+                        for (HttpWebSocketServer s : websocketServers)
+                        {
+                                double load = s.getLoad();
+                                if (load < least)
+                                {
+                                        ret = s;
+                                        least = load;
+                                }
+                        }
+                        return ret;
+                }
+                
+                int index = (websocketThreadCounter.getAndIncrement() & Integer.MAX_VALUE) % websocketServers.size();
+                return websocketServers.get(index);
+        }
+        
+        /** @return The number of times that a websocket has moved to another thread, see {@link #setWebSocketRebalancing(double, int)} */
+        @ThreadSafe
+        public long getWebSocketMigrationCount()
+        {
+                long count = 0;
+                for (HttpWebSocketServer s : websocketServers)
+                {
+                        count += s.getMigrationCount();
+                }
+                return count;
+        }
+        
+        /** @return The plain http connections of every download thread, empty before setup() */
+        @ThreadSafe
+        public int[] getDownloadConnections()
+        {
+                List<HttpDownloadThread> threads = downloadThreads;
+                if (threads == null)
+                {
+                        return new int[0];
+                }
+                
+                int[] ret = new int[threads.size()];
+                for (int a = 0; a < ret.length; ++a)
+                {
+                        ret[a] = threads.get(a).getConnectionCount();
+                }
+                return ret;
+        }
+        
+        /** @return The load of every websocket thread, see {@link WebSocketBalancing#LEAST_LOADED} */
+        @ThreadSafe
+        public double[] getWebSocketLoad()
+        {
+                double[] ret = new double[websocketServers.size()];
+                for (int a = 0; a < ret.length; ++a)
+                {
+                        ret[a] = websocketServers.get(a).getLoad();
+                }
+                return ret;
         }
 
         @Override
         @ThreadSafe
         public boolean wssConnect(SelectionKey key)
         {
+                if (isOverloaded())
+                {
+                        return false;
+                }
+                
                 HttpWebSocketServerListener listener = this.websocketListener;
                 
                 if (listener == null)
@@ -239,71 +1414,139 @@ public class HttpServer implements UpgradeWebSocketHandler, HttpWebSocketServerL
 
         @Override
         @ThreadSafe
-        public void wssOpen(WebSocket conn, ClientHandshake handshake)
+        public void wssOpen(final WebSocket conn, final ClientHandshake handshake)
         {
-                HttpWebSocketServerListener listener = this.websocketListener;
-                synchronized(websockets)
+                final HttpWebSocketServerListener listener = this.websocketListener;
+                final ServerWebSocketImpl impl = (ServerWebSocketImpl) conn;
+                websockets.add(impl.server.index, impl);
+                impl.limits = outboundLimits;
+                
+                if (websocketDispatch != WebSocketDispatch.SELECTOR_THREAD)
                 {
-                        websockets.add(conn);
+                        Executor executor = websocketDispatch == WebSocketDispatch.VIRTUAL_THREADS ? blockingHandlerExecutor : handlerExecutor;
+                        impl.inbox = new HttpWebSocketInbox(executor, websocketInboxSize, websocketInboundBudget, new Runnable()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        impl.server.requestReadInterest(impl);
+                                }
+                        });
                 }
 
                 if (listener != null)
                 {
-                        listener.wssOpen(conn, handshake);
+                        dispatch(impl, 0, new Runnable()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        listener.wssOpen(conn, handshake);
+                                }
+                        });
                 }
         }
 
         @Override
         @ThreadSafe
-        public void wssClose(WebSocket conn, int code, String reason, boolean remote)
+        public void wssClose(final WebSocket conn, final int code, final String reason, final boolean remote)
         {
-                HttpWebSocketServerListener listener = this.websocketListener;
+                final HttpWebSocketServerListener listener = this.websocketListener;
                 try
                 {
                         if (listener != null)
                         {
-                                listener.wssClose(conn, code, reason, remote);
+                                dispatch(conn, 0, new Runnable()
+                                {
+                                        @Override
+                                        public void run()
+                                        {
+                                                listener.wssClose(conn, code, reason, remote);
+                                        }
+                                });
                         }
                 }
                 finally
                 {
-                        synchronized (websockets)
+                        if (conn instanceof ServerWebSocketImpl)
                         {
-                                websockets.remove(conn);
+                                websockets.remove((ServerWebSocketImpl) conn);
+                                topics.closed((ServerWebSocketImpl) conn);
                         }
                 }
         }
 
         @Override
         @ThreadSafe
-        public void wssMessage(WebSocket conn, String message)
+        public void wssMessage(final WebSocket conn, final String message)
         {
-                HttpWebSocketServerListener listener = this.websocketListener;
+                final HttpWebSocketServerListener listener = this.websocketListener;
                 if (listener != null)
                 {
-                        listener.wssMessage(conn, message);
+                        dispatch(conn, message.length(), new Runnable()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        listener.wssMessage(conn, message);
+                                }
+                        });
                 }
         }
 
+        /** @param message Belongs to the callback, the websocket does not reuse it */
         @Override
         @ThreadSafe
-        public void wssMessage(WebSocket conn, ByteBuffer message)
+        public void wssMessage(final WebSocket conn, final ByteBuffer message)
         {
-                HttpWebSocketServerListener listener = this.websocketListener;
+                final HttpWebSocketServerListener listener = this.websocketListener;
                 if (listener != null)
                 {
-                        listener.wssMessage(conn, message);
+                        dispatch(conn, message.remaining(), new Runnable()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        listener.wssMessage(conn, message);
+                                }
+                        });
                 }
         }
 
         @Override
         @ThreadSafe
-        public void wssError(WebSocket conn, Exception ex)
+        public void wssError(final WebSocket conn, final Exception ex)
         {
-                HttpWebSocketServerListener listener = this.websocketListener;
+                final HttpWebSocketServerListener listener = this.websocketListener;
                 if (listener != null)
                 {
-                        listener.wssError(conn, ex);
+                        dispatch(conn, 0, new Runnable()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        listener.wssError(conn, ex);
+                                }
+                        });
+                }
+        }
+        
+        /** 
+         * Run a listener callback right away, or add it to the inbox of the websocket, see 
+         * {@link #setWebSocketDispatch(WebSocketDispatch, int)}. Called by the thread that serves the websocket.
+         * @param conn May be null
+         * @param messageBytes Counts towards the inbound budget until the callback returns
+         */
+        private void dispatch(WebSocket conn, long messageBytes, Runnable callback)
+        {
+                HttpWebSocketInbox inbox = conn instanceof ServerWebSocketImpl ? ((ServerWebSocketImpl) conn).inbox : null;
+                if (inbox == null)
+                {
+                        callback.run();
+                }
+                else if (inbox.add(callback, messageBytes))
+                {
+                        ((ServerWebSocketImpl) conn).updateReadInterest();
                 }
         }
 }
@@ -0,0 +1,234 @@
+package wshttpserver;
+
+/**
+ * A hashed timing wheel, used by a selector thread for the timeouts of its connections. Scheduling, rescheduling and
+ * cancelling a timer take constant time, and advancing the wheel only visits the timers of the buckets that have
+ * passed (timers that are more than one revolution away stay in their bucket until their turn comes).
+ *
+ * Timers are linked into their bucket directly, so no memory is allocated once a timer exists. A connection that
+ * often moves its deadline forward does not need to reschedule its timer: it may let the timer expire and then
+ * schedule it again for the remaining time.
+ *
+ * Not thread safe, the wheel must only be used by the thread that owns it.
+ *
+ * @author Joris
+ */
+final class HttpTimerWheel
+{
+        private final long tickNanos;
+        private final int mask;
+        private final Timer[] buckets; // the head of a doubly linked list for every bucket
+        private final long startNanos;
+        private long currentTick; // every bucket up to and including this tick has been expired
+        private Timer expiring; // the head of the timers that advance() is about to expire
+        private int size;
+
+        /**
+         * @param tickNanos The precision of the timers
+         * @param wheelSize The number of buckets, rounded up to a power of 2. Timers within wheelSize * tickNanos are
+         *                  only visited when they expire
+         * @param nowNanos The current System.nanoTime()
+         */
+        HttpTimerWheel(long tickNanos, int wheelSize, long nowNanos)
+        {
+                if (tickNanos <= 0 || wheelSize <= 0 || wheelSize > 1 << 30)
+                {
+                        throw new IllegalArgumentException();
+                }
+
+                int buckets = Integer.highestOneBit(wheelSize);
+                if (buckets < wheelSize)
+                {
+                        buckets <<= 1;
+                }
+
+                this.tickNanos = tickNanos;
+                this.mask = buckets - 1;
+                this.buckets = new Timer[buckets];
+                this.startNanos = nowNanos;
+                this.currentTick = 0;
+        }
+
+        /** A timer that may be scheduled on a single wheel. */
+        static abstract class Timer
+        {
+                private Timer prev;
+                private Timer next;
+                private long tick;
+                private long deadline;
+                private boolean scheduled;
+                private boolean expiring;
+
+                /** Called by advance() once the deadline has passed. The timer is no longer scheduled at this point. */
+                abstract void expired(long nowNanos);
+
+                /** @return true if the timer is going to expire, unless it is cancelled */
+                boolean isScheduled()
+                {
+                        return scheduled || expiring;
+                }
+
+                /** @return The System.nanoTime() this timer has been scheduled for */
+                long getDeadline()
+                {
+                        return deadline;
+                }
+        }
+
+        /** @return The number of scheduled timers */
+        int size()
+        {
+                return size;
+        }
+
+        /**
+         * Schedule the timer, or move it if it has already been scheduled.
+         * @param timer The timer
+         * @param deadlineNanos The System.nanoTime() at which the timer expires. Deadlines in the past expire during
+         *                      the next advance()
+         */
+        void schedule(Timer timer, long deadlineNanos)
+        {
+                if (timer.scheduled || timer.expiring)
+                {
+                        unlink(timer);
+                }
+
+                // round up, so that a timer never expires early
+                long tick = Math.floorDiv(deadlineNanos - startNanos + tickNanos - 1, tickNanos);
+                if (tick <= currentTick)
+                {
+                        tick = currentTick + 1;
+                }
+
+                timer.tick = tick;
+                timer.deadline = deadlineNanos;
+                timer.scheduled = true;
+
+                int bucket = (int) tick & mask;
+                Timer head = buckets[bucket];
+                timer.prev = null;
+                timer.next = head;
+                if (head != null)
+                {
+                        head.prev = timer;
+                }
+                buckets[bucket] = timer;
+                ++size;
+        }
+
+        /** Remove the timer from the wheel, if it has been scheduled. */
+        void cancel(Timer timer)
+        {
+                if (timer.scheduled || timer.expiring)
+                {
+                        unlink(timer);
+                }
+        }
+
+        private void unlink(Timer timer)
+        {
+                if (timer.prev == null)
+                {
+                        if (timer.expiring)
+                        {
+                                expiring = timer.next;
+                        }
+                        else
+                        {
+                                buckets[(int) timer.tick & mask] = timer.next;
+                        }
+                }
+                else
+                {
+                        timer.prev.next = timer.next;
+                }
+
+                if (timer.next != null)
+                {
+                        timer.next.prev = timer.prev;
+                }
+
+                timer.prev = null;
+                timer.next = null;
+                timer.scheduled = false;
+                timer.expiring = false;
+                --size;
+        }
+
+        /**
+         * @param nowNanos The current System.nanoTime()
+         * @param maxNanos The longest wait that the owner is interested in
+         * @return How long (ns) the owner may wait before advance() has work to do, at most maxNanos. A bucket that 
+         *         only holds timers of a later revolution counts as well, which merely shortens the wait.
+         */
+        long untilNextTick(long nowNanos, long maxNanos)
+        {
+                long lastTick = Math.min(Math.floorDiv(nowNanos + maxNanos - startNanos, tickNanos), currentTick + buckets.length);
+                for (long tick = currentTick + 1; tick <= lastTick; ++tick)
+                {
+                        if (buckets[(int) tick & mask] != null)
+                        {
+                                return Math.max(0, startNanos + tick * tickNanos - nowNanos);
+                        }
+                }
+                return maxNanos;
+        }
+
+        /**
+         * Expire every timer whose deadline has passed. The callbacks may schedule and cancel any timer of this wheel.
+         * @param nowNanos The current System.nanoTime()
+         * @return The number of expired timers
+         */
+        int advance(long nowNanos)
+        {
+                long targetTick = Math.floorDiv(nowNanos - startNanos, tickNanos);
+                if (targetTick <= currentTick)
+                {
+                        return 0;
+                }
+
+                if (targetTick - currentTick > buckets.length)
+                {
+                        // Every bucket is visited once, at its most recent tick
+                        currentTick = targetTick - buckets.length;
+                }
+
+                int expired = 0;
+                while (currentTick < targetTick)
+                {
+                        ++currentTick;
+
+                        // Move the expired timers to a separate list first, so that the callbacks are free to
+                        // schedule and cancel any timer, including the ones that are about to expire.
+                        Timer timer = buckets[(int) currentTick & mask];
+                        while (timer != null)
+                        {
+                                Timer next = timer.next;
+                                if (timer.tick <= currentTick)
+                                {
+                                        unlink(timer);
+                                        timer.expiring = true;
+                                        timer.next = expiring;
+                                        if (expiring != null)
+                                        {
+                                                expiring.prev = timer;
+                                        }
+                                        expiring = timer;
+                                        ++size;
+                                }
+                                timer = next;
+                        }
+
+                        while (expiring != null)
+                        {
+                                timer = expiring;
+                                unlink(timer);
+                                ++expired;
+                                timer.expired(nowNanos);
+                        }
+                }
+
+                return expired;
+        }
+}
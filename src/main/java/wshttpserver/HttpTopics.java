@@ -0,0 +1,313 @@
+package wshttpserver;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Subscriptions of websockets to named topics. Every topic keeps the subscribers per websocket thread (the thread that
+ * served the websocket when it subscribed) in an immutable snapshot, so that publishing takes no lock: the frame is 
+ * queued on every subscriber, and every thread that has subscribers is woken up once (see 
+ * {@link HttpWebSocketServer#requestWrite(List)}, which passes on websockets that have moved to another thread).
+ * A snapshot is split into chunks of CHUNK_SIZE subscribers. Subscribing and unsubscribing copy at most two chunks 
+ * and the array of chunks, not every subscriber of the thread, so that a topic with a million subscribers can be 
+ * built and torn down quickly.
+ *
+ * A connection remembers its topics, they are all removed once it closes. Empty topics are removed.
+ * Lock order: the topics of a connection, then a topic.
+ *
+ * @author Joris
+ */
+class HttpTopics
+{
+        private static final int CHUNK_SHIFT = 10;
+        static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+        private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+        private static final Partition NONE = new Partition(new ServerWebSocketImpl[0][], 0);
+        private final List<HttpWebSocketServer> servers;
+        private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>();
+
+        HttpTopics(List<HttpWebSocketServer> servers)
+        {
+                this.servers = servers;
+        }
+
+        /** @return false if the connection was already subscribed, or has closed */
+        @ThreadSafe
+        boolean subscribe(ServerWebSocketImpl conn, String name)
+        {
+                if (name == null)
+                {
+                        throw new IllegalArgumentException();
+                }
+
+                synchronized (conn.topics)
+                {
+                        if (conn.topicsClosed || !conn.topics.add(name))
+                        {
+                                return false;
+                        }
+
+                        while (true)
+                        {
+                                Topic topic = topics.get(name);
+                                if (topic == null)
+                                {
+                                        Topic existing = topics.putIfAbsent(name, topic = new Topic(servers.size()));
+                                        if (existing != null)
+                                        {
+                                                topic = existing;
+                                        }
+                                }
+
+                                synchronized (topic)
+                                {
+                                        if (topic.removed)
+                                        {
+                                                continue; // it just became empty, try again with a new one
+                                        }
+                                        topic.add(conn);
+                                        return true;
+                                }
+                        }
+                }
+        }
+
+        /** @return false if the connection was not subscribed */
+        @ThreadSafe
+        boolean unsubscribe(ServerWebSocketImpl conn, String name)
+        {
+                synchronized (conn.topics)
+                {
+                        if (!conn.topics.remove(name))
+                        {
+                                return false;
+                        }
+                        remove(conn, name);
+                        return true;
+                }
+        }
+
+        /** Remove every subscription of a connection that has closed, and refuse new ones */
+        @ThreadSafe
+        void closed(ServerWebSocketImpl conn)
+        {
+                synchronized (conn.topics)
+                {
+                        conn.topicsClosed = true;
+                        for (String name : conn.topics)
+                        {
+                                remove(conn, name);
+                        }
+                        conn.topics.clear();
+                }
+        }
+
+        private void remove(ServerWebSocketImpl conn, String name)
+        {
+                Topic topic = topics.get(name);
+                if (topic == null)
+                {
+                        return;
+                }
+
+                synchronized (topic)
+                {
+                        topic.remove(conn);
+                        if (topic.size == 0)
+                        {
+                                topic.removed = true;
+                                topics.remove(name, topic);
+                        }
+                }
+        }
+
+        /**
+         * Queue a frame on every subscriber of a topic.
+         * @param key null, or the key that the frame replaces unsent frames of, see {@link ServerWebSocketImpl#queueConflated(Object, ByteBuffer)}
+         * @param frame See {@link HttpWebSocketServer#encodeFrame(org.java_websocket.framing.Framedata.Opcode, ByteBuffer, boolean)}
+         * @return The number of subscribers that are open
+         */
+        @ThreadSafe
+        int publish(String name, Object key, ByteBuffer frame)
+        {
+                Topic topic = topics.get(name);
+                if (topic == null)
+                {
+                        return 0;
+                }
+
+                int count = 0;
+                for (int a = 0; a < topic.subscribers.length(); ++a)
+                {
+                        Partition subscribers = topic.subscribers.get(a);
+                        if (subscribers.size > 0)
+                        {
+                                for (ServerWebSocketImpl[] chunk : subscribers.chunks)
+                                {
+                                        for (ServerWebSocketImpl conn : chunk)
+                                        {
+                                                if (key == null ? conn.queueShared(frame) : conn.queueConflated(key, frame))
+                                                {
+                                                        ++count;
+                                                }
+                                        }
+                                }
+                                servers.get(a).requestWrite(subscribers);
+                        }
+                }
+                return count;
+        }
+
+        /** @return true if nobody subscribes to the topic, without encoding a message */
+        @ThreadSafe
+        boolean isEmpty(String name)
+        {
+                Topic topic = topics.get(name);
+                return topic == null || topic.size == 0;
+        }
+
+        @ThreadSafe
+        int getSubscriberCount(String name)
+        {
+                Topic topic = topics.get(name);
+                return topic == null ? 0 : topic.size;
+        }
+
+        @ThreadSafe
+        int getTopicCount()
+        {
+                return topics.size();
+        }
+
+        /** @return The subscribers of a topic that subscribed on the given websocket thread, for tests */
+        List<ServerWebSocketImpl> getSubscribers(String name, int server)
+        {
+                Topic topic = topics.get(name);
+                return topic == null ? NONE : topic.subscribers.get(server);
+        }
+
+        /** The subscribers of a topic, modified while holding its lock, read without one */
+        private static final class Topic
+        {
+                final AtomicReferenceArray<Partition> subscribers; // by the index of the websocket thread
+                private final List<HashMap<ServerWebSocketImpl, Integer>> positions; // within subscribers, by the index of the websocket thread
+                volatile int size;
+                boolean removed; // no longer in the map, guarded by this
+
+                Topic(int servers)
+                {
+                        subscribers = new AtomicReferenceArray<>(servers);
+                        positions = new ArrayList<>(servers);
+                        for (int a = 0; a < servers; ++a)
+                        {
+                                subscribers.set(a, NONE);
+                                positions.add(new HashMap<ServerWebSocketImpl, Integer>());
+                        }
+                }
+
+                void add(ServerWebSocketImpl conn)
+                {
+                        int index = conn.server.index;
+                        Partition old = subscribers.get(index);
+                        int position = old.size;
+                        int c = position >>> CHUNK_SHIFT;
+
+                        ServerWebSocketImpl[][] chunks = Arrays.copyOf(old.chunks, c + 1);
+                        ServerWebSocketImpl[] chunk = c < old.chunks.length ? old.chunks[c] : new ServerWebSocketImpl[0];
+                        chunk = Arrays.copyOf(chunk, (position & CHUNK_MASK) + 1);
+                        chunk[position & CHUNK_MASK] = conn;
+                        chunks[c] = chunk;
+
+                        subscribers.set(index, new Partition(chunks, position + 1));
+                        positions.get(index).put(conn, position);
+                        ++size;
+                }
+
+                /** 
+                 * The last subscriber of the thread takes the place of the removed one. Looks at the current thread of
+                 * the connection first, it may have moved since it subscribed.
+                 */
+                void remove(ServerWebSocketImpl conn)
+                {
+                        int first = conn.server.index;
+                        for (int i = 0; i < subscribers.length(); ++i)
+                        {
+                                int index = (first + i) % subscribers.length();
+                                Integer position = positions.get(index).remove(conn);
+                                if (position == null)
+                                {
+                                        continue;
+                                }
+
+                                Partition old = subscribers.get(index);
+                                int last = old.size - 1;
+                                int lastChunk = last >>> CHUNK_SHIFT;
+                                ServerWebSocketImpl moved = old.get(last);
+
+                                ServerWebSocketImpl[][] chunks;
+                                if ((last & CHUNK_MASK) == 0)
+                                {
+                                        chunks = Arrays.copyOf(old.chunks, lastChunk);
+                                }
+                                else
+                                {
+                                        chunks = old.chunks.clone();
+                                        chunks[lastChunk] = Arrays.copyOf(old.chunks[lastChunk], last & CHUNK_MASK);
+                                }
+
+                                if (position != last)
+                                {
+                                        int c = position >>> CHUNK_SHIFT;
+                                        // the last chunk has just been copied
+                                        ServerWebSocketImpl[] chunk = c == lastChunk ? chunks[c] : chunks[c].clone();
+                                        chunk[position & CHUNK_MASK] = moved;
+                                        chunks[c] = chunk;
+                                        positions.get(index).put(moved, position);
+                                }
+
+                                subscribers.set(index, last == 0 ? NONE : new Partition(chunks, last));
+                                --size;
+                                return;
+                        }
+                }
+        }
+
+        /** 
+         * An immutable snapshot of the subscribers of a topic that a single websocket thread serves. Every chunk holds
+         * CHUNK_SIZE subscribers, except the last one which holds the rest.
+         */
+        private static final class Partition extends AbstractList<ServerWebSocketImpl> implements RandomAccess
+        {
+                final ServerWebSocketImpl[][] chunks;
+                final int size;
+
+                Partition(ServerWebSocketImpl[][] chunks, int size)
+                {
+                        this.chunks = chunks;
+                        this.size = size;
+                }
+
+                @Override
+                public ServerWebSocketImpl get(int index)
+                {
+                        if (index < 0 || index >= size)
+                        {
+                                throw new IndexOutOfBoundsException();
+                        }
+                        return chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+                }
+
+                @Override
+                public int size()
+                {
+                        return size;
+                }
+        }
+}
@@ -0,0 +1,114 @@
+package wshttpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The destination of a request body that is being uploaded (PUT) to an upload route.
+ * The body is written to a temporary file in the same directory as the target file. When the body has been read
+ * completely, the temporary file is atomically renamed to the target file.
+ *
+ * @author Joris
+ */
+class HttpUpload
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        final Route route;
+        final File target;
+        final boolean existed;
+        private File tempFile;
+        private RandomAccessFile raf;
+        private FileChannel fileChannel;
+        long written = 0;
+
+        HttpUpload(Route route, File target)
+        {
+                this.route = route;
+                this.target = target;
+                this.existed = target.exists();
+        }
+
+        void open() throws IOException
+        {
+                assert tempFile == null;
+                tempFile = File.createTempFile(".upload-", ".tmp", target.getParentFile());
+                raf = new RandomAccessFile(tempFile, "rw");
+                fileChannel = raf.getChannel();
+        }
+
+        /** Write the remaining bytes of buf to the file. */
+        void write(ByteBuffer buf) throws IOException
+        {
+                while (buf.hasRemaining())
+                {
+                        written += fileChannel.write(buf, written);
+                }
+        }
+
+        /**
+         * Transfer bytes directly from the (non blocking) socket channel to the file.
+         * @return The number of bytes transferred, 0 if nothing was available.
+         */
+        long transferFrom(SocketChannel channel, long count) throws IOException
+        {
+                long transferred = fileChannel.transferFrom(channel, written, count);
+                written += transferred;
+                return transferred;
+        }
+
+        /** Move the uploaded file to its final location. */
+        void commit() throws IOException
+        {
+                fileChannel.force(false);
+                raf.close();
+                Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                tempFile = null;
+        }
+
+        /** Discard the uploaded data. It is safe to call this method multiple times, or after commit(). */
+        void abort()
+        {
+                if (tempFile == null)
+                {
+                        return;
+                }
+
+                try
+                {
+                        if (raf != null)
+                        {
+                                raf.close();
+                        }
+                }
+                catch (IOException ex)
+                {
+                        log.log(Level.WARNING, null, ex);
+                }
+
+                if (!tempFile.delete())
+                {
+                        log.log(Level.WARNING, "Unable to delete temporary upload file {0}", tempFile);
+                }
+                tempFile = null;
+        }
+
+        static final class Route
+        {
+                final File directory;
+                final long maxSize;
+
+                Route(File directory, long maxSize)
+                {
+                        this.directory = directory;
+                        this.maxSize = maxSize;
+                }
+        }
+}
@@ -1,5 +1,6 @@
 package wshttpserver;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
@@ -88,6 +89,7 @@ public class HttpUtil
         // field-value    = *( TEXT | LWS )
         // TEXT           = <any OCTET except CTLs, but including LWS>
         public static Pattern headerLine = Pattern.compile("^([!#$%&'*+\\-.0-9A-Z^_`a-z|~]+):[ \t\r\n]*([\\x20-\\x7E\n\r\t]+)$");
+        public static Pattern headerName = Pattern.compile("^[!#$%&'*+\\-.0-9A-Z^_`a-z|~]+$");
         // Simple range header (only read the first range)
         public static Pattern simpleRange = Pattern.compile("^bytes[ \t\r\n]*=[ \t\r\n]*(\\d*)[ \t\r\n]*-[ \t\r\n]*(\\d*)?");
 
@@ -239,6 +241,7 @@ public class HttpUtil
         {
                 public int status;
                 public boolean fatal;
+                public int retryAfter; // seconds, sent as Retry-After if not 0
 
                 public HttpException(int status, boolean fatal, String message, Throwable cause)
                 {
@@ -286,6 +289,51 @@ public class HttpUtil
         }
         public final static Charset UTF8 = Charset.forName("UTF-8");
 
+        /**
+         * Decode the percent-encoded (UTF-8) characters of a part of a raw URI path. Invalid escapes are kept as is.
+         * Unlike URLDecoder, '+' is not decoded to a space.
+         */
+        @ThreadSafe
+        public static String decodePercent(String raw, int start, int end)
+        {
+                int percent = raw.indexOf('%', start);
+                if (percent < 0 || percent >= end)
+                {
+                        return raw.substring(start, end);
+                }
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+                for (int a = start; a < end; ++a)
+                {
+                        char c = raw.charAt(a);
+                        if (c == '%' && a + 2 < end)
+                        {
+                                int hi = Character.digit(raw.charAt(a + 1), 16);
+                                int lo = Character.digit(raw.charAt(a + 2), 16);
+                                if (hi >= 0 && lo >= 0)
+                                {
+                                        bytes.write(hi << 4 | lo);
+                                        a += 2;
+                                        continue;
+                                }
+                        }
+
+                        if (c < 0x80)
+                        {
+                                bytes.write(c);
+                        }
+                        else
+                        {
+                                int codePoint = raw.codePointAt(a);
+                                byte[] encoded = new String(Character.toChars(codePoint)).getBytes(UTF8);
+                                bytes.write(encoded, 0, encoded.length);
+                                a += Character.charCount(codePoint) - 1;
+                        }
+                }
+
+                return new String(bytes.toByteArray(), UTF8);
+        }
+
         @ThreadSafe
         public static File findDirectoryIndex(File dir)
         {
@@ -0,0 +1,174 @@
+package wshttpserver;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The listener callbacks of a single websocket, which run on an executor one after the other, in the order that they
+ * were added. At most one task of the inbox is submitted to the executor at a time, so a pool of threads serves many
+ * connections in parallel without ever running two callbacks of the same connection at once.
+ *
+ * The inbox is bounded by pausing the reads of the connection: once it holds the capacity, or messages of the byte
+ * budget, the thread that serves the connection stops reading from the socket until a worker has brought both down 
+ * to half. Everything that has already been read is still added, so the inbox may exceed the bounds by the messages 
+ * of one read. Meanwhile the TCP receive window fills up, which slows the client down.
+ *
+ * @author Joris
+ */
+class HttpWebSocketInbox implements Runnable
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private final Executor executor;
+        private final int capacity;
+        private final long budget; // bytes
+        private final Runnable resume; // called by a worker once a paused inbox has drained
+        private final ConcurrentLinkedQueue<Callback> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger(); // tasks that have not completed, including the running one
+        private final AtomicLong bytes = new AtomicLong(); // of the tasks that have not completed
+        private final AtomicBoolean paused = new AtomicBoolean();
+
+        /**
+         * @param capacity The most tasks
+         * @param budget The most bytes of messages
+         * @param resume Makes the connection read again, it is called on a worker thread
+         */
+        HttpWebSocketInbox(Executor executor, int capacity, long budget, Runnable resume)
+        {
+                this.executor = executor;
+                this.capacity = capacity;
+                this.budget = budget;
+                this.resume = resume;
+        }
+
+        /**
+         * Run the task after the ones that have been added before.
+         * @param messageBytes The size of the message that the task handles, 0 for other callbacks
+         * @return true if the inbox has just become full, the caller must stop reading from the connection until
+         *         resume is called
+         */
+        @ThreadSafe
+        boolean add(Runnable task, long messageBytes)
+        {
+                tasks.add(new Callback(task, messageBytes));
+                long queued = bytes.addAndGet(messageBytes);
+                int count = size.incrementAndGet();
+                if (count == 1)
+                {
+                        submit();
+                }
+
+                if (!isFull(count, queued) || !paused.compareAndSet(false, true))
+                {
+                        return false;
+                }
+
+                // A worker that drained the inbox before it saw the flag could not resume it
+                if (isDrained(size.get(), bytes.get()) && paused.compareAndSet(true, false))
+                {
+                        return false;
+                }
+                return true;
+        }
+        
+        private boolean isFull(int count, long queued)
+        {
+                return count >= capacity || queued >= budget;
+        }
+        
+        private boolean isDrained(int count, long queued)
+        {
+                return count <= capacity / 2 && queued <= budget / 2;
+        }
+
+        /** @return true while the connection should not be read from */
+        @ThreadSafe
+        boolean isPaused()
+        {
+                return paused.get();
+        }
+
+        /** @return The callbacks that have not completed yet */
+        @ThreadSafe
+        int size()
+        {
+                return size.get();
+        }
+
+        /** @return The bytes of the messages that have not been handled yet */
+        @ThreadSafe
+        long getBytes()
+        {
+                return bytes.get();
+        }
+
+        private void submit()
+        {
+                try
+                {
+                        executor.execute(this);
+                }
+                catch (RejectedExecutionException ex)
+                {
+                        // The server is stopping, the callbacks are dropped
+                        log.log(Level.WARNING, "Unable to dispatch websocket callbacks", ex);
+                        tasks.clear();
+                        size.set(0);
+                        bytes.set(0);
+                }
+        }
+
+        /** 
+         * Run the tasks until the inbox is empty, or submit the rest again after WEBSOCKET_DISPATCH_BATCH tasks so that
+         * a busy connection does not keep a worker to itself. Runs on the executor, never twice at the same time.
+         */
+        @Override
+        public void run()
+        {
+                int count;
+                int ran = 0;
+                do
+                {
+                        if (ran++ == HttpServer.WEBSOCKET_DISPATCH_BATCH)
+                        {
+                                submit();
+                                return;
+                        }
+
+                        Callback callback = tasks.poll();
+                        try
+                        {
+                                callback.task.run();
+                        }
+                        catch (RuntimeException ex)
+                        {
+                                log.log(Level.SEVERE, null, ex);
+                        }
+
+                        long queued = bytes.addAndGet(-callback.bytes);
+                        count = size.decrementAndGet();
+                        if (isDrained(count, queued) && paused.get() && paused.compareAndSet(true, false))
+                        {
+                                resume.run();
+                        }
+                }
+                while (count > 0);
+        }
+
+        private static final class Callback
+        {
+                final Runnable task;
+                final long bytes;
+
+                Callback(Runnable task, long bytes)
+                {
+                        this.task = task;
+                        this.bytes = bytes;
+                }
+        }
+}
@@ -0,0 +1,164 @@
+package wshttpserver;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.java_websocket.WebSocket;
+
+/**
+ * The open websockets of a server, by id. There is a shard per websocket thread, which only that thread adds to, so
+ * that the threads never contend with each other when connections open or close.
+ *
+ * The id of a connection is stable and unique within the server: a sequence number of its shard, times the number of
+ * shards, plus the index of the shard. So a lookup goes straight to the right shard. Iterating is weakly consistent
+ * and takes no lock, it may or may not see connections that open or close meanwhile.
+ *
+ * @author Joris
+ */
+class HttpWebSocketRegistry extends AbstractSet<WebSocket>
+{
+        private final Shard[] shards;
+
+        HttpWebSocketRegistry(int shardCount)
+        {
+                shards = new Shard[shardCount];
+                for (int a = 0; a < shardCount; ++a)
+                {
+                        shards[a] = new Shard();
+                }
+        }
+
+        /**
+         * Give the connection its id and register it.
+         * @param shard The index of the websocket thread that opened the connection
+         * @return The id
+         */
+        @ThreadSafe
+        long add(int shard, ServerWebSocketImpl conn)
+        {
+                long id = shards[shard].sequence.incrementAndGet() * shards.length + shard;
+                conn.id = id;
+                shards[shard].connections.put(id, conn);
+                return id;
+        }
+
+        @ThreadSafe
+        boolean remove(ServerWebSocketImpl conn)
+        {
+                long id = conn.id;
+                if (id == 0)
+                {
+                        return false; // never opened
+                }
+                return shards[(int) (id % shards.length)].connections.remove(id, conn);
+        }
+
+        /** @return The open connection with the id, or null */
+        @ThreadSafe
+        ServerWebSocketImpl get(long id)
+        {
+                if (id <= 0)
+                {
+                        return null;
+                }
+                return shards[(int) (id % shards.length)].connections.get(id);
+        }
+
+        @Override
+        @ThreadSafe
+        public boolean contains(Object o)
+        {
+                return o instanceof ServerWebSocketImpl && get(((ServerWebSocketImpl) o).id) == o;
+        }
+
+        @Override
+        @ThreadSafe
+        public int size()
+        {
+                int size = 0;
+                for (Shard shard : shards)
+                {
+                        size += shard.connections.size();
+                }
+                return size;
+        }
+
+        @Override
+        @ThreadSafe
+        public boolean isEmpty()
+        {
+                for (Shard shard : shards)
+                {
+                        if (!shard.connections.isEmpty())
+                        {
+                                return false;
+                        }
+                }
+                return true;
+        }
+
+        /** Weakly consistent, shard after shard. Removing is not supported. */
+        @Override
+        @ThreadSafe
+        public Iterator<WebSocket> iterator()
+        {
+                return new Iterator<WebSocket>()
+                {
+                        private int shard = 0;
+                        private Iterator<ServerWebSocketImpl> it = shards.length == 0 ? null : shards[0].connections.values().iterator();
+
+                        @Override
+                        public boolean hasNext()
+                        {
+                                while (it != null && !it.hasNext())
+                                {
+                                        ++shard;
+                                        it = shard < shards.length ? shards[shard].connections.values().iterator() : null;
+                                }
+                                return it != null;
+                        }
+
+                        @Override
+                        public WebSocket next()
+                        {
+                                if (!hasNext())
+                                {
+                                        throw new NoSuchElementException();
+                                }
+                                return it.next();
+                        }
+
+                        @Override
+                        public void remove()
+                        {
+                                throw new UnsupportedOperationException();
+                        }
+                };
+        }
+
+        @Override
+        public boolean add(WebSocket e)
+        {
+                throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+                throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear()
+        {
+                throw new UnsupportedOperationException();
+        }
+
+        private static final class Shard
+        {
+                final AtomicLong sequence = new AtomicLong(); // only incremented by its thread, atomic to be safe
+                final ConcurrentHashMap<Long, ServerWebSocketImpl> connections = new ConcurrentHashMap<>();
+        }
+}
@@ -4,20 +4,30 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
 import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.java_websocket.*;
 import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.handshake.Handshakedata;
 
@@ -25,20 +35,43 @@ import org.java_websocket.handshake.Handshakedata;
  *
  * @author Joris
  */
-class HttpWebSocketServer extends WebSocketAdapter implements Runnable
+class HttpWebSocketServer extends WebSocketAdapter implements Runnable, Executor
 {
         private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final ThreadLocal<Boolean> WEBSOCKET_THREAD = new ThreadLocal<>();
         public Thread thread = new Thread(this);
         private volatile boolean ready = false;
         private Selector selector;
         private final ConcurrentLinkedQueue<NewChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
         private final HttpWebSocketServerListener listener;
         private final Set<WebSocket> connections = new HashSet<>();
         private ByteBuffer buffer;
+        private HttpTimerWheel timers;
+        private HttpLoadShedder shedder; // null if load is never shed
+        private HttpLoadShedder.Monitor monitor;
+        private HttpMemoryAccountant accountant; // null if memory is not accounted
+        private HttpMemoryAccountant.Ledger ledger;
+        final int index; // in the list of websocket threads of the HttpServer
+        private final AtomicInteger connectionCount = new AtomicInteger(); // including new channels that are not registered yet
+        private long loadStart; // System.nanoTime() at the start of the current measurement
+        private long loadBusy; // ns spent outside of select() since loadStart
+        private long loadBytes; // read and written since loadStart
+        private volatile double bytesPerSecond; // of the last measurement
+        private volatile double utilization; // the part of the time that the last measurement spent outside of select()
+        private List<HttpWebSocketServer> peers; // null if connections are not rebalanced
+        private double rebalanceRatio;
+        private int maxMigrations; // per measurement
+        private boolean rebalanceHold; // skip one measurement after moving connections, until the loads have been measured again
+        private final AtomicLong migrations = new AtomicLong();
+        private long coalesceDelay; // ns, 0 if every write is asked for right away
+        private final ConcurrentLinkedQueue<ServerWebSocketImpl> delayed = new ConcurrentLinkedQueue<>(); // by deadline, because the delay is the same for all
+        private ByteBuffer[] batch; // for gathering writes
 
-        HttpWebSocketServer(HttpWebSocketServerListener listener)
+        HttpWebSocketServer(HttpWebSocketServerListener listener, int index)
         {
                 this.listener = listener;
+                this.index = index;
                 if (this.listener == null)
                 {
                         throw new IllegalArgumentException();
@@ -70,11 +103,264 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                 thread.interrupt();
         }
         
+        /** @return true if the current thread serves websockets, so it must never wait for one */
+        static boolean isWebSocketThread()
+        {
+                return WEBSOCKET_THREAD.get() != null;
+        }
+        
+        /** Report the load of this thread to the shedder. Must be called before this thread is started. */
+        void setLoadShedder(HttpLoadShedder shedder)
+        {
+                if (ready)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                this.shedder = shedder;
+        }
+        
+        /**
+         * Move connections to the least loaded thread once this thread has a higher load by the ratio, see 
+         * {@link #getLoad()}. Must be called before this thread is started.
+         * @param peers Every websocket thread of the server, including this one
+         * @param maxMigrations The most connections that are moved per WEBSOCKET_LOAD_INTERVAL
+         */
+        void setRebalancing(List<HttpWebSocketServer> peers, double ratio, int maxMigrations)
+        {
+                if (ready)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                this.peers = peers;
+                this.rebalanceRatio = ratio;
+                this.maxMigrations = maxMigrations;
+        }
+        
+        /**
+         * Delay writing what is queued on a websocket, so that the frames that are queued meanwhile go out with a 
+         * single gathering write. Must be called before this thread is started.
+         * @param delay ns, 0 to write right away
+         */
+        void setCoalescing(long delay)
+        {
+                if (ready)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                this.coalesceDelay = delay;
+        }
+        
+        /** Report the outgoing queues of the websockets to the accountant. Must be called before this thread is started. */
+        void setMemoryAccountant(HttpMemoryAccountant accountant)
+        {
+                if (ready)
+                {
+                        throw new IllegalStateException();
+                }
+                
+                this.accountant = accountant;
+        }
+        
         public void setDeamon(boolean on)
         {
                 thread.setDaemon(on);
         }
 
+        /** @return The connections that this thread serves, including new ones that it has not registered yet */
+        @ThreadSafe
+        int getConnectionCount()
+        {
+                return connectionCount.get();
+        }
+        
+        /** @return The bytes per second that this thread has recently read and written */
+        @ThreadSafe
+        double getBytesPerSecond()
+        {
+                return bytesPerSecond;
+        }
+        
+        /** @return The part of the time (0 to 1) that this thread has recently spent outside of select() */
+        @ThreadSafe
+        double getUtilization()
+        {
+                return utilization;
+        }
+        
+        /**
+         * @return The connections, plus WEBSOCKET_LOAD_BYTES per second of traffic per connection, divided by the time 
+         *         that the thread has been idle. A new connection goes to the thread with the least load.
+         */
+        @ThreadSafe
+        double getLoad()
+        {
+                int connections = connectionCount.get();
+                if (connections == 0)
+                {
+                        return 0; // the measurement may be old, an idle selector only wakes up for timers
+                }
+                
+                double idle = 1 - Math.min(utilization, HttpServer.WEBSOCKET_MAX_UTILIZATION);
+                return (connections + bytesPerSecond / HttpServer.WEBSOCKET_LOAD_BYTES) / idle;
+        }
+        
+        /** Called at the end of every iteration of the select loop */
+        private void measureLoad(long busyStart, long nowNanos)
+        {
+                loadBusy += nowNanos - busyStart;
+                long elapsed = nowNanos - loadStart;
+                if (elapsed >= HttpServer.WEBSOCKET_LOAD_INTERVAL)
+                {
+                        bytesPerSecond = loadBytes * 1e9 / elapsed;
+                        utilization = Math.min(1, (double) loadBusy / elapsed);
+                        loadStart = nowNanos;
+                        loadBusy = 0;
+                        loadBytes = 0;
+                        
+                        if (peers != null)
+                        {
+                                rebalance(elapsed);
+                                for (WebSocket conn : connections)
+                                {
+                                        ((ServerWebSocketImpl) conn).loadBytes = 0;
+                                }
+                        }
+                }
+        }
+        
+        /** @return The number of connections that this thread has moved to other threads */
+        @ThreadSafe
+        long getMigrationCount()
+        {
+                return migrations.get();
+        }
+        
+        /** 
+         * Move connections to the least loaded thread if this one has more load by the rebalance ratio. The busiest 
+         * connections go first, as long as every move makes the difference between the two smaller, so that a 
+         * connection never moves back and forth while the traffic stays the same.
+         * @param elapsed The ns of the measurement
+         */
+        private void rebalance(long elapsed)
+        {
+                if (rebalanceHold)
+                {
+                        rebalanceHold = false;
+                        return;
+                }
+                
+                HttpWebSocketServer target = null;
+                double least = Double.MAX_VALUE;
+                for (HttpWebSocketServer peer : peers)
+                {
+                        double load = peer.getLoad();
+                        if (peer != this && load < least)
+                        {
+                                target = peer;
+                                least = load;
+                        }
+                }
+                
+                double load = getLoad();
+                // Moving a single quiet connection back and forth would not help
+                if (target == null || load <= least * rebalanceRatio || load - least < 2)
+                {
+                        return;
+                }
+                
+                ArrayList<ServerWebSocketImpl> candidates = new ArrayList<>(connections.size());
+                for (WebSocket ws : connections)
+                {
+                        ServerWebSocketImpl conn = (ServerWebSocketImpl) ws;
+                        // Throttled connections are in the ledger of this thread
+                        if (conn.isOpen() && !conn.isFlushAndClose() && !conn.readThrottled && conn.key.isValid())
+                        {
+                                candidates.add(conn);
+                        }
+                }
+                Collections.sort(candidates, BUSIEST_FIRST);
+                
+                double scale = 1 / (1 - Math.min(utilization, HttpServer.WEBSOCKET_MAX_UTILIZATION));
+                double difference = load - least;
+                int moved = 0;
+                for (ServerWebSocketImpl conn : candidates)
+                {
+                        if (moved >= maxMigrations)
+                        {
+                                break;
+                        }
+                        
+                        double weight = (1 + conn.loadBytes * 1e9 / elapsed / HttpServer.WEBSOCKET_LOAD_BYTES) * scale;
+                        if (weight < difference)
+                        {
+                                migrate(conn, target);
+                                difference -= 2 * weight;
+                                ++moved;
+                        }
+                }
+                
+                if (moved > 0)
+                {
+                        rebalanceHold = true;
+                        migrations.addAndGet(moved);
+                        log.log(Level.INFO, "Moved {0} websockets from {1} to {2}", new Object[] { moved, thread.getName(), target.thread.getName() });
+                }
+        }
+        
+        private static final Comparator<ServerWebSocketImpl> BUSIEST_FIRST = new Comparator<ServerWebSocketImpl>()
+        {
+                @Override
+                public int compare(ServerWebSocketImpl a, ServerWebSocketImpl b)
+                {
+                        return Long.compare(b.loadBytes, a.loadBytes);
+                }
+        };
+        
+        /** 
+         * Hand a connection over to another thread. It stops being served here right away, and the other thread picks 
+         * it up with its state, its partially read frames and its queue as they are. Nothing is read or written in 
+         * between. Messages that other threads queue meanwhile are written once the other thread has registered it.
+         */
+        private void migrate(final ServerWebSocketImpl conn, final HttpWebSocketServer to)
+        {
+                connections.remove(conn);
+                timers.cancel(conn.timeout);
+                conn.key.cancel();
+                connectionCount.decrementAndGet();
+                to.connectionCount.incrementAndGet();
+                conn.server = to;
+                to.execute(new Runnable()
+                {
+                        @Override
+                        public void run()
+                        {
+                                to.adopt(conn);
+                        }
+                });
+        }
+        
+        /** Start serving a connection that another thread has handed over, see migrate() */
+        private void adopt(ServerWebSocketImpl conn)
+        {
+                connections.add(conn);
+                conn.moveLedger(ledger);
+                conn.loadBytes = 0;
+                try
+                {
+                        int ops = conn.readInterest() | (conn.outQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+                        conn.key = ((SocketChannel) conn.channel).register(selector, ops, conn);
+                }
+                catch (ClosedChannelException ex)
+                {
+                        conn.eot();
+                        return;
+                }
+                startTimeout(conn);
+        }
+
         public Set<WebSocket> connections()
         {
                 return this.connections;
@@ -95,7 +381,9 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                 
 
                 
-                WebSocketImpl conn = new ServerWebSocketImpl(this);
+                final ServerWebSocketImpl conn = new ServerWebSocketImpl(this);
+                conn.ledger = ledger;
+                conn.server = this;
                 
                 newChannel.sChannel.socket().setTcpNoDelay(true);
                 conn.key = newChannel.sChannel.register(selector, SelectionKey.OP_READ, conn);
@@ -103,10 +391,18 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                 if (!onConnect(conn.key))
                 {
                         conn.key.cancel();
+                        newChannel.sChannel.close();
+                        if (conn.release())
+                        {
+                                connectionCount.decrementAndGet();
+                        }
                 }
                 else
                 {
                         conn.channel = newChannel.sChannel;
+                        
+                        conn.nanoLastReceived = System.nanoTime();
+                        startTimeout(conn);
 
                         ByteBuffer prependData = newChannel.prependData;
                         newChannel.prependData = null;
@@ -117,8 +413,69 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                 return true;
         }
 
-        private boolean readable(SelectionKey key, WebSocketImpl conn) throws InterruptedException, IOException
+        private void startTimeout(final ServerWebSocketImpl conn)
         {
+                conn.timeout = new HttpTimerWheel.Timer()
+                {
+                        @Override
+                        void expired(long nowNanos)
+                        {
+                                timeoutExpired(conn, nowNanos);
+                        }
+                };
+                timers.schedule(conn.timeout, conn.nanoLastReceived + HttpServer.WEBSOCKET_PING_INTERVAL);
+        }
+
+        /** 
+         * Ping connections that have been quiet for a while, and close the ones that do not respond.
+         * Receiving data only updates nanoLastReceived, the new deadline is picked up here.
+         */
+        private void timeoutExpired(ServerWebSocketImpl conn, long nowNanos)
+        {
+                if (conn.isClosed())
+                {
+                        return;
+                }
+                
+                if (conn.isReadPaused())
+                {
+                        // Nothing is read, so a pong would not be noticed either
+                        conn.nanoLastReceived = nowNanos;
+                        timers.schedule(conn.timeout, nowNanos + HttpServer.WEBSOCKET_PING_INTERVAL);
+                        return;
+                }
+                
+                long idle = nowNanos - conn.nanoLastReceived;
+                if (idle >= HttpServer.WEBSOCKET_IDLE_TIMEOUT)
+                {
+                        log.log(Level.INFO, "Closing websocket {0} because of timeout", conn.getRemoteSocketAddress());
+                        conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Timeout");
+                        return;
+                }
+                
+                if (idle >= HttpServer.WEBSOCKET_PING_INTERVAL)
+                {
+                        if (conn.isOpen())
+                        {
+                                FramedataImpl1 ping = new FramedataImpl1(Framedata.Opcode.PING);
+                                ping.setFin(true);
+                                conn.sendFrame(ping);
+                        }
+                        timers.schedule(conn.timeout, conn.nanoLastReceived + HttpServer.WEBSOCKET_IDLE_TIMEOUT);
+                }
+                else
+                {
+                        timers.schedule(conn.timeout, conn.nanoLastReceived + HttpServer.WEBSOCKET_PING_INTERVAL);
+                }
+        }
+
+        private boolean readable(SelectionKey key, ServerWebSocketImpl conn) throws InterruptedException, IOException
+        {
+                if (conn.isReadPaused())
+                {
+                        return true; // the key may still be selected from before
+                }
+                
                 buffer.clear();
                 int read = conn.channel.read(buffer);
                 buffer.flip();
@@ -135,6 +492,10 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                         return true;  // true = done reading
                 }
                 
+                conn.nanoLastReceived = System.nanoTime();
+                loadBytes += read;
+                conn.loadBytes += read;
+                
                 // Something has been read (up to WebSocket.RCVBUF)
                 // Perhaps there is more in the TCP receive buffer, 
                 // but other connections will get a chance first
@@ -144,26 +505,167 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                 return false; // false = keep this connection in the selector list
         }
 
-        private boolean writable(SelectionKey key, WebSocketImpl conn) throws IOException
+        /** The same as SocketChannelIOHelper.batch(), but written buffers are released from the memory accounting, and 
+         * a conflated slot is written as the latest message of its key. While coalescing, the frames are written 
+         * WEBSOCKET_WRITE_BATCH at a time with a gathering write. */
+        private boolean writable(SelectionKey key, ServerWebSocketImpl conn) throws IOException
         {
-                if (SocketChannelIOHelper.batch(conn, (ByteChannel) conn.channel))
+                if (coalesceDelay > 0)
                 {
-                        if (key.isValid())
+                        int count;
+                        while ((count = conn.gather(batch)) > 0)
                         {
-                                key.interestOps(SelectionKey.OP_READ);
+                                long written = ((SocketChannel) conn.channel).write(batch, 0, count);
+                                loadBytes += written;
+                                conn.loadBytes += written;
+                                for (int a = 0; a < count; ++a)
+                                {
+                                        ByteBuffer buffer = batch[a];
+                                        batch[a] = null;
+                                        if (buffer.hasRemaining())
+                                        {
+                                                Arrays.fill(batch, a, count, null);
+                                                return false; // false = there is more to write, but give other connections a chance to write something
+                                        }
+                                        conn.written(buffer);
+                                }
                         }
-                        return true; // true = done writing
                 }
+                else
+                {
+                        ByteBuffer head;
+                        while ((head = conn.outQueue.peek()) != null)
+                        {
+                                ByteBuffer buffer = conn.toWrite(head); // written as it is, or the latest message of a conflated slot
+                                int written = conn.channel.write(buffer);
+                                loadBytes += written;
+                                conn.loadBytes += written;
+                                if (buffer.hasRemaining())
+                                {
+                                        return false; // false = there is more to write, but give other connections a chance to write something
+                                }
 
-                return false; // false = there is more to write, but give other connections a chance to write something
+                                conn.written(buffer);
+                        }
+                }
+                
+                if (conn.outQueue.isEmpty() && conn.isFlushAndClose())
+                {
+                        synchronized (conn)
+                        {
+                                conn.closeConnection();
+                        }
+                }
+                
+                if (key.isValid())
+                {
+                        key.interestOps(conn.readInterest());
+                        if (!conn.outQueue.isEmpty())
+                        {
+                                // Queued by another thread after the loop, which may have asked for OP_WRITE before it was cleared
+                                key.interestOps(conn.readInterest() | SelectionKey.OP_WRITE);
+                        }
+                }
+                return true; // true = done writing
+        }
+        
+        /** 
+         * Write what has been queued on a websocket once the coalescing delay has passed, see {@link #flushDelayed(long)}. 
+         * The first frame starts the delay, the frames that follow before it has passed do not wake this thread up.
+         */
+        @ThreadSafe
+        private void delay(ServerWebSocketImpl conn)
+        {
+                if (!conn.flushScheduled.compareAndSet(false, true))
+                {
+                        return;
+                }
+                conn.flushDeadline = System.nanoTime() + coalesceDelay;
+                addDelayed(conn);
+        }
+        
+        @ThreadSafe
+        private void addDelayed(ServerWebSocketImpl conn)
+        {
+                delayed.add(conn);
+                if (Thread.currentThread() != thread)
+                {
+                        try
+                        {
+                                selector.wakeup();
+                        }
+                        catch (IllegalStateException | NullPointerException ex)
+                        {
+                                // Thread has not started yet, or it just stopped
+                        }
+                }
+        }
+        
+        /** 
+         * Write to the websockets whose coalescing delay ends within a millisecond, because select() does not wait 
+         * any shorter. Called at the end of every iteration, so a delay below a millisecond gathers the frames that 
+         * are queued during one iteration.
+         */
+        private void flushDelayed(long nowNanos)
+        {
+                ServerWebSocketImpl conn;
+                while ((conn = delayed.peek()) != null)
+                {
+                        if (conn.flushDeadline - nowNanos >= 1_000_000)
+                        {
+                                return;
+                        }
+                        
+                        delayed.poll();
+                        if (conn.server != this)
+                        {
+                                conn.server.addDelayed(conn); // it has moved, with its deadline
+                                continue;
+                        }
+                        conn.flushScheduled.set(false); // before writing, what is queued from now on starts a new delay
+                        
+                        SelectionKey key = conn.key;
+                        if (!connections.contains(conn) || !key.isValid() || conn.outQueue.isEmpty())
+                        {
+                                continue;
+                        }
+                        try
+                        {
+                                if (!writable(key, conn))
+                                {
+                                        key.interestOps(conn.readInterest() | SelectionKey.OP_WRITE);
+                                }
+                        }
+                        catch (CancelledKeyException ex)
+                        {
+                        }
+                        catch (IOException ex)
+                        {
+                                log.log(Level.SEVERE, "IOException while writing", ex);
+                                key.cancel();
+                                handleIOException(conn, ex);
+                        }
+                }
         }
         
         @Override
         public void run()
         {
-                thread.setName("WebSocketServer-" + thread.getId());
+                thread.setName("WebSocketServer-" + thread.threadId());
+                WEBSOCKET_THREAD.set(Boolean.TRUE);
 
                 buffer = ByteBuffer.allocate(WebSocketImpl.RCVBUF);
+                batch = new ByteBuffer[HttpServer.WEBSOCKET_WRITE_BATCH];
+                timers = new HttpTimerWheel(HttpServer.TIMER_TICK, HttpServer.TIMER_WHEEL_SIZE, System.nanoTime());
+                loadStart = System.nanoTime();
+                if (shedder != null)
+                {
+                        monitor = shedder.newMonitor();
+                }
+                if (accountant != null)
+                {
+                        ledger = accountant.newLedger(thread.getName());
+                }
 
                 try
                 {
@@ -184,13 +686,50 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                                 SelectionKey key = null;
 
                                 Iterator<SelectionKey> it;
+                                long busyStart;
+                                int work;
                                 try
                                 {
-                                        selector.select();
+                                        if (monitor != null && monitor.isOverloaded())
+                                        {
+                                                selector.select(HttpServer.OVERLOAD_SELECT_TIMEOUT);
+                                        }
+                                        else
+                                        {
+                                                // Only wake up for the timers and delayed writes if there are any
+                                                long timeout = timers.size() == 0 ? 0 : HttpServer.TIMER_TICK / 1_000_000;
+                                                ServerWebSocketImpl next = delayed.peek();
+                                                if (next != null)
+                                                {
+                                                        long until = Math.max(1, (next.flushDeadline - System.nanoTime()) / 1_000_000);
+                                                        timeout = timeout == 0 ? until : Math.min(timeout, until);
+                                                }
+                                                selector.select(timeout);
+                                        }
+                                        
+                                        busyStart = System.nanoTime();
+                                        work = selector.selectedKeys().size();
 
                                         while (registerNewChannel())
                                         {
+                                                ++work;
+                                        }
+                                        
+                                        Runnable task;
+                                        while ((task = tasks.poll()) != null)
+                                        {
+                                                ++work;
+                                                try
+                                                {
+                                                        task.run();
+                                                }
+                                                catch (RuntimeException ex)
+                                                {
+                                                        log.log(Level.SEVERE, null, ex);
+                                                }
                                         }
+                                        
+                                        timers.advance(System.nanoTime());
 
                                         it = selector.selectedKeys().iterator();
 
@@ -220,7 +759,7 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                                                 if (key.isReadable())
                                                 {
                                                         conn = (WebSocketImpl) key.attachment();
-                                                        if (readable(key, conn))
+                                                        if (readable(key, (ServerWebSocketImpl) conn))
                                                         {
                                                                 it.remove();
                                                         }
@@ -230,7 +769,7 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                                                 if (key.isValid() && key.isWritable())
                                                 {
                                                         conn = (WebSocketImpl) key.attachment();
-                                                        if (writable(key, conn))
+                                                        if (writable(key, (ServerWebSocketImpl) conn))
                                                         {
                                                                 try
                                                                 {
@@ -264,6 +803,23 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                                         }
                                         
                                 }
+                                
+                                if (coalesceDelay > 0)
+                                {
+                                        flushDelayed(System.nanoTime());
+                                }
+                                
+                                long now = System.nanoTime();
+                                if (monitor != null)
+                                {
+                                        monitor.iteration(now - busyStart, work);
+                                }
+                                measureLoad(busyStart, now);
+                                
+                                if (ledger != null)
+                                {
+                                        ledger.enforce(selector.keys(), now);
+                                }
                         }
 
 
@@ -315,6 +871,7 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
 
                 if (this.connections.add(conn))
                 {
+                        ((ServerWebSocketImpl) conn).chargeQueued(); // the handshake response
                         onOpen(conn, (ClientHandshake) handshake);
                 }
 
@@ -322,6 +879,12 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
 
         @Override
         public final void onWebsocketClose(WebSocket conn, int code, String reason, boolean remote)
+        {
+                // The connection may have moved to another thread since it was created
+                ((ServerWebSocketImpl) conn).server.closed((ServerWebSocketImpl) conn, code, reason, remote);
+        }
+        
+        private void closed(ServerWebSocketImpl conn, int code, String reason, boolean remote)
         {
                 try
                 {
@@ -331,6 +894,11 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                 {
                 }
 
+                if (conn.release())
+                {
+                        connectionCount.decrementAndGet();
+                }
+                
                 if (this.connections.remove(conn))
                 {
                         onClose(conn, code, reason, remote);
@@ -350,11 +918,36 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
         @Override
         public final void onWriteDemand(WebSocket w)
         {
-                WebSocketImpl conn = (WebSocketImpl) w;
-                conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                ServerWebSocketImpl conn = (ServerWebSocketImpl) w;
+                HttpWebSocketServer server = conn.server;
+                if (server.coalesceDelay > 0)
+                {
+                        server.delay(conn);
+                }
+                else
+                {
+                        flush(conn);
+                }
+        }
+        
+        /** Ask for OP_WRITE right away, without the coalescing delay */
+        @ThreadSafe
+        static void flush(ServerWebSocketImpl conn)
+        {
                 try
                 {
-                        selector.wakeup();
+                        conn.key.interestOps(conn.readInterest() | SelectionKey.OP_WRITE);
+                }
+                catch (CancelledKeyException ex)
+                {
+                        // The connection is moving to another thread (or has closed), which picks up the queue
+                        conn.server.requestWrite(Collections.singletonList(conn));
+                        return;
+                }
+                
+                try
+                {
+                        conn.server.selector.wakeup();
                 }
                 catch (IllegalStateException ex)
                 {
@@ -391,9 +984,119 @@ class HttpWebSocketServer extends WebSocketAdapter implements Runnable
                 listener.wssError(conn, ex);
         }
 
+        /** Run the task on this thread */
+        @Override
+        @ThreadSafe
+        public void execute(Runnable task)
+        {
+                tasks.add(task);
+                try
+                {
+                        selector.wakeup();
+                }
+                catch (IllegalStateException | NullPointerException ex)
+                {
+                        // Thread has not started yet, or it just stopped
+                }
+        }
+        
+        /**
+         * Make connections write what has been queued on them, with a single wakeup of this thread. Connections that 
+         * have moved to another thread in the meantime are passed on to it.
+         * @param conns Connections that were served by this thread
+         */
+        @ThreadSafe
+        void requestWrite(final List<ServerWebSocketImpl> conns)
+        {
+                execute(new Runnable()
+                {
+                        @Override
+                        public void run()
+                        {
+                                for (ServerWebSocketImpl conn : conns)
+                                {
+                                        HttpWebSocketServer server = conn.server;
+                                        if (server != HttpWebSocketServer.this)
+                                        {
+                                                server.requestWrite(Collections.singletonList(conn));
+                                        }
+                                        else if (connections.contains(conn) && conn.key.isValid() && !conn.outQueue.isEmpty())
+                                        {
+                                                if (coalesceDelay > 0)
+                                                {
+                                                        delay(conn);
+                                                }
+                                                else
+                                                {
+                                                        conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+                                                }
+                                        }
+                                }
+                        }
+                });
+        }
+        
+        /**
+         * Apply a change of {@link ServerWebSocketImpl#isReadPaused()} from another thread, such as an inbox that has 
+         * drained. A connection that has moved to another thread in the meantime is passed on to it.
+         */
+        @ThreadSafe
+        void requestReadInterest(final ServerWebSocketImpl conn)
+        {
+                execute(new Runnable()
+                {
+                        @Override
+                        public void run()
+                        {
+                                HttpWebSocketServer server = conn.server;
+                                if (server != HttpWebSocketServer.this)
+                                {
+                                        server.requestReadInterest(conn);
+                                }
+                                else if (connections.contains(conn))
+                                {
+                                        conn.updateReadInterest();
+                                }
+                        }
+                });
+        }
+        
+        /**
+         * Encode a complete, unfragmented frame the way a server sends it (RFC 6455 5.2, without a mask).
+         * @param payload Is not modified
+         * @param direct Allocate the frame outside of the heap
+         * @return A read only buffer
+         */
+        static ByteBuffer encodeFrame(Framedata.Opcode opcode, ByteBuffer payload, boolean direct)
+        {
+                int length = payload.remaining();
+                int header = length <= 125 ? 2 : length <= 65535 ? 4 : 10;
+                ByteBuffer frame = direct ? ByteBuffer.allocateDirect(header + length) : ByteBuffer.allocate(header + length);
+                
+                frame.put((byte) (0x80 | (opcode == Framedata.Opcode.TEXT ? 0x1 : 0x2))); // FIN
+                if (length <= 125)
+                {
+                        frame.put((byte) length);
+                }
+                else if (length <= 65535)
+                {
+                        frame.put((byte) 126);
+                        frame.putShort((short) length);
+                }
+                else
+                {
+                        frame.put((byte) 127);
+                        frame.putLong(length);
+                }
+                frame.put(payload.duplicate());
+                frame.flip();
+                return frame.asReadOnlyBuffer();
+        }
+        
         @ThreadSafe
         void addNewChannel(SocketChannel sChannel, ByteBuffer prependData)
         {
+                connectionCount.incrementAndGet();
                 newChannels.add(new NewChannel(sChannel, prependData));
                 try
                 {
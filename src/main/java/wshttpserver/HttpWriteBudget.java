@@ -0,0 +1,77 @@
+package wshttpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Wraps the channel of a connection while the reactor writes to it, and stops accepting bytes once the budget of the
+ * connection for this iteration of the select loop has been spent. A write of 0 bytes looks the same as a full
+ * socket buffer to the response, so it keeps its position and the connection keeps waiting for OP_WRITE, which the
+ * next iteration of the select loop picks up right away. Only used by the thread that owns it, one per reactor.
+ *
+ * @author Joris
+ */
+class HttpWriteBudget implements WritableByteChannel
+{
+        private SocketChannel channel;
+        private long budget;
+        private long written;
+
+        /** Start writing to a connection */
+        void reset(SocketChannel channel, long budget)
+        {
+                this.channel = channel;
+                this.budget = budget;
+                this.written = 0;
+        }
+
+        /** @return The bytes that have been written since reset() */
+        long getWritten()
+        {
+                return written;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException
+        {
+                long left = budget - written;
+                if (left <= 0)
+                {
+                        return 0;
+                }
+
+                int limit = src.limit();
+                if (src.remaining() > left)
+                {
+                        src.limit(src.position() + (int) left);
+                }
+
+                try
+                {
+                        int bytes = channel.write(src);
+                        if (bytes > 0)
+                        {
+                                written += bytes;
+                        }
+                        return bytes;
+                }
+                finally
+                {
+                        src.limit(limit);
+                }
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+                return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+                channel.close();
+        }
+}
@@ -1,21 +1,628 @@
 package wshttpserver;
 
 
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.java_websocket.WebSocketImpl;
 import org.java_websocket.WebSocketListener;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
 
 /**
  *
  * @author Joris
  */
-public class ServerWebSocketImpl extends WebSocketImpl
+public class ServerWebSocketImpl extends WebSocketImpl implements HttpMemoryAccountant.Consumer
 {
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        static final int TRY_AGAIN_LATER = 1013; // close code (RFC 6455 registry), CloseFrame does not have it
+        long nanoLastReceived; // only used by the thread that serves this connection
+        HttpTimerWheel.Timer timeout; // for pings and the idle timeout
+        HttpMemoryAccountant.Ledger ledger; // null if memory is not accounted, guarded by this
+        volatile HttpWebSocketServer server; // the thread that serves this connection, which may change
+        long loadBytes; // read and written since the last load measurement, only used by the thread that serves this connection
+        volatile long id; // 0 until opened, see HttpWebSocketRegistry
+        final Set<String> topics = new HashSet<>(); // see HttpTopics
+        boolean topicsClosed; // guarded by topics
+        volatile boolean readThrottled; // reading has been suspended because of the memory budget
+        volatile boolean readSuspended; // by the application, see suspendReads()
+        volatile HttpWebSocketInbox inbox; // null if the callbacks run on the thread that serves this connection
+        volatile HttpOutboundLimits limits; // null if the outQueue is unlimited
+        private volatile long outBytes; // the bytes in outQueue, guarded by this
+        private volatile long dropped; // frames, guarded by this
+        private int waiting; // senders that wait for room in the outQueue, guarded by this
+        private boolean aboveHighWater; // guarded by this
+        private HashMap<Object, Conflated> conflated; // unsent conflated messages by key, guarded by this
+        private IdentityHashMap<ByteBuffer, Conflated> slots; // the same messages by their slot in the outQueue, guarded by this
+        private boolean released; // guarded by this
+        private int claimed; // frames at the head of the outQueue in the current gathering write, guarded by this
+        final AtomicBoolean flushScheduled = new AtomicBoolean(); // a coalesced write is due, see HttpServer.setWebSocketCoalescing()
+        volatile long flushDeadline; // ns
+        
         public ServerWebSocketImpl(WebSocketListener listener)
         {
                 // Draft_17 corresponds to Sec-WebSocket-Version: 13 which is RFC 6455
                 super(listener, Arrays.asList(new Draft[]{new Draft_17()}));
         }
+
+        /** @return A number that identifies this websocket within its HttpServer, assigned once it has opened, 
+         *          see {@link HttpServer#getWebSocket(long)} */
+        @ThreadSafe
+        public long getId()
+        {
+                return id;
+        }
+
+        /** @return The bytes that are queued to be written, see {@link HttpServer#setWebSocketOutboundLimits(long, int, HttpServer.WebSocketOverflow)} */
+        @ThreadSafe
+        public long getOutboundBytes()
+        {
+                return outBytes;
+        }
+
+        /** @return The frames that are queued to be written */
+        @ThreadSafe
+        public int getOutboundFrames()
+        {
+                return outQueue.size();
+        }
+
+        /** @return The messages that have not been sent because the outgoing queue was full */
+        @ThreadSafe
+        public long getDroppedFrames()
+        {
+                return dropped;
+        }
+
+        /** Queues the frame, unless it is a message that does not fit within the outbound limits */
+        @Override
+        @ThreadSafe
+        public void sendFrame(Framedata framedata)
+        {
+                // The frame that Draft_17 encodes for a server: unmasked, with a 1, 3 or 9 byte length
+                int payload = framedata.getPayloadData().remaining();
+                long size = payload + (payload <= 125 ? 2 : payload <= 65535 ? 4 : 10);
+                Framedata.Opcode opcode = framedata.getOpcode();
+                boolean message = framedata.isFin() && (opcode == Framedata.Opcode.TEXT || opcode == Framedata.Opcode.BINARY);
+                if (!admit(size, message, true))
+                {
+                        return;
+                }
+                try
+                {
+                        super.sendFrame(framedata);
+                }
+                catch (RuntimeException ex)
+                {
+                        charge(-size);
+                        throw ex;
+                }
+        }
+
+        /**
+         * Make room for a frame in the outQueue according to the limits, and account for it.
+         * @param message A complete text or binary message, which may be dropped. Control frames and fragments are 
+         *        always queued.
+         * @param mayWait false if the overflow policy BLOCK drops the message instead, because the caller queues it
+         *        on many connections before any of them is written to
+         * @return false if the frame must not be queued
+         */
+        @ThreadSafe
+        private boolean admit(long size, boolean message, boolean mayWait)
+        {
+                HttpOutboundLimits limits = this.limits;
+                synchronized (this)
+                {
+                        if (limits == null || !message || !isOverLimit(limits, size) || makeRoom(limits, size, mayWait))
+                        {
+                                charge(size);
+                                return true;
+                        }
+                        ++dropped;
+                        // BLOCK only refuses a sender that may wait once it has waited too long
+                        boolean timedOut = limits.overflow == HttpServer.WebSocketOverflow.BLOCK && mayWait;
+                        if (limits.overflow != HttpServer.WebSocketOverflow.CLOSE_POLICY_VIOLATION 
+                            && limits.overflow != HttpServer.WebSocketOverflow.CLOSE_TRY_AGAIN_LATER
+                            && !timedOut
+                            || !isOpen())
+                        {
+                                return false;
+                        }
+                        // What has not been written will not be missed, let the close frame through sooner
+                        dropOldest(0, 0);
+                }
+
+                // Outside of the lock, closing calls sendFrame() and the listener
+                close(limits.overflow == HttpServer.WebSocketOverflow.CLOSE_POLICY_VIOLATION ? CloseFrame.POLICY_VALIDATION : TRY_AGAIN_LATER,
+                      "Outbound queue full");
+                return false;
+        }
+
+        /** A frame is always queued if nothing else is */
+        private boolean isOverLimit(HttpOutboundLimits limits, long size)
+        {
+                return !outQueue.isEmpty() && (outBytes + size > limits.maxBytes || outQueue.size() >= limits.maxFrames);
+        }
+
+        /** @return true if the frame may be queued now, false if it must be dropped or the BLOCK wait timed out */
+        private boolean makeRoom(HttpOutboundLimits limits, long size, boolean mayWait)
+        {
+                switch (limits.overflow)
+                {
+                        case BLOCK:
+                                if (!mayWait)
+                                {
+                                        return false;
+                                }
+                                
+                                // A websocket thread must not wait for itself, nor for another one that may wait for it
+                                if (HttpWebSocketServer.isWebSocketThread())
+                                {
+                                        return true;
+                                }
+
+                                long deadline = System.nanoTime() + limits.blockTimeout;
+                                ++waiting;
+                                try
+                                {
+                                        while (isOverLimit(limits, size) && isOpen() && !released)
+                                        {
+                                                long remaining = deadline - System.nanoTime();
+                                                if (remaining <= 0)
+                                                {
+                                                        return false; // the client does not read, see admit()
+                                                }
+                                                wait(remaining / 1_000_000 + 1);
+                                        }
+                                }
+                                catch (InterruptedException ex)
+                                {
+                                        Thread.currentThread().interrupt();
+                                }
+                                finally
+                                {
+                                        --waiting;
+                                }
+                                return true;
+                        case DROP_OLDEST:
+                                dropOldest(limits.maxBytes - size, limits.maxFrames - 1);
+                                return !isOverLimit(limits, size);
+                        default:
+                                return false;
+                }
+        }
+
+        /**
+         * Remove complete text and binary frames from the outQueue, oldest first, while it holds more than the bytes or
+         * frames. The first frame is kept, because it may have been written partially: the thread that serves this 
+         * connection only moves on to the next frame in {@link #written(ByteBuffer)}, which holds the same lock. So are
+         * the frames of a gathering write, see {@link #gather(ByteBuffer[])}.
+         */
+        private void dropOldest(long maxBytes, int maxFrames)
+        {
+                Iterator<ByteBuffer> it = outQueue.iterator();
+                for (int a = Math.max(1, claimed); a > 0 && it.hasNext(); --a)
+                {
+                        it.next();
+                }
+                while (it.hasNext() && (outBytes > maxBytes || outQueue.size() > maxFrames))
+                {
+                        ByteBuffer frame = it.next();
+                        byte first = frame.limit() > 0 ? frame.get(0) : 0;
+                        if (first == (byte) 0x81 || first == (byte) 0x82) // FIN and TEXT or BINARY
+                        {
+                                it.remove();
+                                charge(-frame.capacity());
+                                ++dropped;
+                        }
+                }
+        }
+
+        /** 
+         * The first frame of the outQueue has been written completely, remove it.
+         * @param frame The frame, or the conflated message of its slot
+         */
+        synchronized void written(ByteBuffer frame)
+        {
+                if (claimed > 0)
+                {
+                        --claimed;
+                }
+                ByteBuffer head = outQueue.poll(); // null if closeConnection() has cleared the queue meanwhile
+                if (head != frame && slots != null)
+                {
+                        slots.remove(head);
+                }
+                charge(-frame.capacity());
+                if (waiting > 0)
+                {
+                        notifyAll();
+                }
+        }
+
+        /**
+         * Account for bytes that have been added to (positive) or removed from the outQueue.
+         */
+        @ThreadSafe
+        synchronized void charge(long bytes)
+        {
+                if (released)
+                {
+                        return;
+                }
+
+                outBytes += bytes;
+                if (ledger != null)
+                {
+                        ledger.add(bytes);
+                }
+
+                HttpOutboundLimits limits = this.limits;
+                if (limits != null && limits.listener != null && (aboveHighWater ? outBytes <= limits.highWater / 2 : outBytes >= limits.highWater))
+                {
+                        aboveHighWater = !aboveHighWater;
+                        try
+                        {
+                                limits.listener.wssHighWater(this, aboveHighWater, outBytes);
+                        }
+                        catch (RuntimeException ex)
+                        {
+                                log.log(Level.SEVERE, null, ex);
+                        }
+                }
+        }
+
+        /** The connection has closed, whatever is still queued is dropped.
+         * @return false if it had already been released
+         */
+        @ThreadSafe
+        synchronized boolean release()
+        {
+                if (released)
+                {
+                        return false;
+                }
+                if (ledger != null)
+                {
+                        ledger.add(-outBytes);
+                }
+                outBytes = 0;
+                released = true;
+                notifyAll(); // senders that wait for room
+                return true;
+        }
+
+        /** 
+         * Queue a frame that is shared with other connections, without asking for OP_WRITE. The caller must follow up 
+         * with {@link HttpWebSocketServer#requestWrite(java.util.List)}, once for many connections. Never waits for 
+         * room, see {@link HttpServer.WebSocketOverflow#BLOCK}.
+         * @param frame A complete text or binary message
+         * @return false if the connection is not open, or the frame does not fit within the outbound limits
+         */
+        @ThreadSafe
+        boolean queueShared(ByteBuffer frame)
+        {
+                if (!isOpen() || !admit(frame.capacity(), true, false))
+                {
+                        return false;
+                }
+                
+                outQueue.add(frame.duplicate());
+                return true;
+        }
+        
+        /**
+         * Send a text message that replaces the previous message with the same key, if that one has not started to be
+         * written yet: it takes the place in the queue of the message that it replaces. So a client that does not keep 
+         * up with many updates of the same keys gets the latest value of every key, and the queue never holds more 
+         * messages per key than one that is being written and one that is not. Messages with different keys, and 
+         * messages that are sent without a key, keep their order. Never waits for room in the queue, see 
+         * {@link HttpServer.WebSocketOverflow#BLOCK}.
+         * @param key Compared using equals()
+         */
+        @ThreadSafe
+        public void sendConflated(Object key, String message)
+        {
+                sendConflated(key, Framedata.Opcode.TEXT, ByteBuffer.wrap(message.getBytes(HttpUtil.UTF8)));
+        }
+
+        /** Send a binary message that replaces the previous message with the same key, see {@link #sendConflated(Object, String)}
+         * @param message Is not modified, and may be reused once this method returns
+         */
+        @ThreadSafe
+        public void sendConflated(Object key, ByteBuffer message)
+        {
+                sendConflated(key, Framedata.Opcode.BINARY, message);
+        }
+
+        private void sendConflated(Object key, Framedata.Opcode opcode, ByteBuffer message)
+        {
+                if (!isOpen())
+                {
+                        throw new WebsocketNotConnectedException();
+                }
+                if (queueConflated(key, HttpWebSocketServer.encodeFrame(opcode, message, false)))
+                {
+                        server.onWriteDemand(this);
+                }
+        }
+
+        /**
+         * Queue a frame in the slot of its key, or in a new slot at the end of the outQueue, see 
+         * {@link #sendConflated(Object, String)}. The frame may be shared with other connections. If this returns true, 
+         * the caller must ask for OP_WRITE, see {@link #queueShared(ByteBuffer)}.
+         * @param frame A complete text or binary message
+         * @return false if the connection is not open, or the frame does not fit within the outbound limits
+         */
+        @ThreadSafe
+        boolean queueConflated(Object key, ByteBuffer frame)
+        {
+                if (key == null)
+                {
+                        throw new IllegalArgumentException("key");
+                }
+
+                synchronized (this)
+                {
+                        if (!isOpen())
+                        {
+                                return false;
+                        }
+                        if (replaceConflated(key, frame))
+                        {
+                                return true;
+                        }
+                }
+
+                // A new slot, which counts towards the limits
+                if (!admit(frame.capacity(), true, false))
+                {
+                        return false;
+                }
+
+                synchronized (this)
+                {
+                        if (replaceConflated(key, frame))
+                        {
+                                charge(-frame.capacity()); // another thread added the slot meanwhile
+                                return true;
+                        }
+
+                        if (conflated == null)
+                        {
+                                conflated = new HashMap<>();
+                                slots = new IdentityHashMap<>();
+                        }
+                        Conflated message = new Conflated(key, frame.duplicate());
+                        conflated.put(key, message);
+                        slots.put(message.slot, message);
+                        outQueue.add(message.slot);
+                        return true;
+                }
+        }
+
+        /** @return false if the key does not have a slot that has not started to be written */
+        private boolean replaceConflated(Object key, ByteBuffer frame)
+        {
+                Conflated message = conflated == null ? null : conflated.get(key);
+                if (message == null)
+                {
+                        return false;
+                }
+                charge(frame.capacity() - message.frame.capacity());
+                message.frame = frame.duplicate();
+                return true;
+        }
+
+        /**
+         * @param head The first buffer of the outQueue
+         * @return The buffer to write: the head, or the conflated message if the head is its slot. Once it has been 
+         *         returned, it is not replaced anymore, the next message with the key gets a new slot.
+         */
+        ByteBuffer toWrite(ByteBuffer head)
+        {
+                if (head.capacity() > 0)
+                {
+                        return head; // only slots are empty
+                }
+                
+                synchronized (this)
+                {
+                        return takeConflated(head);
+                }
+        }
+        
+        /**
+         * Fill the batch with the buffers to write from the head of the outQueue, see {@link #toWrite(ByteBuffer)}. 
+         * They stay queued until they are {@link #written(ByteBuffer)}, one by one.
+         * @return The number of buffers
+         */
+        synchronized int gather(ByteBuffer[] batch)
+        {
+                int count = 0;
+                for (ByteBuffer head : outQueue)
+                {
+                        if (count == batch.length)
+                        {
+                                break;
+                        }
+                        batch[count++] = head.capacity() > 0 ? head : takeConflated(head);
+                }
+                claimed = count;
+                return count;
+        }
+        
+        private ByteBuffer takeConflated(ByteBuffer head)
+        {
+                Conflated message = slots.get(head);
+                if (!message.writing)
+                {
+                        message.writing = true;
+                        conflated.remove(message.key);
+                }
+                return message.frame;
+        }
+
+        /**
+         * Write what has been queued as soon as possible, without waiting for the coalescing delay, see 
+         * {@link HttpServer#setWebSocketCoalescing(long)}. For a message that must not wait, send it and then flush.
+         */
+        @ThreadSafe
+        public void flush()
+        {
+                if (!outQueue.isEmpty())
+                {
+                        HttpWebSocketServer.flush(this);
+                }
+        }
+
+        /** Account the queue of this connection to the ledger of the thread that it has moved to */
+        @ThreadSafe
+        synchronized void moveLedger(HttpMemoryAccountant.Ledger to)
+        {
+                if (!released && ledger != null)
+                {
+                        ledger.add(-outBytes);
+                }
+                ledger = to;
+                if (!released && ledger != null)
+                {
+                        ledger.add(outBytes);
+                }
+        }
+
+        /** Account for the buffers that are already in the outQueue, such as the handshake response. */
+        void chargeQueued()
+        {
+                long bytes = 0;
+                for (ByteBuffer buffer : outQueue)
+                {
+                        bytes += buffer.capacity();
+                }
+                charge(bytes);
+        }
+
+        /** A message that may still be replaced. It waits in the outQueue as an empty buffer of its own. */
+        private static final class Conflated
+        {
+                final Object key;
+                final ByteBuffer slot = ByteBuffer.allocate(0);
+                ByteBuffer frame;
+                boolean writing; // guarded by the connection
+
+                Conflated(Object key, ByteBuffer frame)
+                {
+                        this.key = key;
+                        this.frame = frame;
+                }
+        }
+
+        @Override
+        public long getMemory()
+        {
+                return outBytes;
+        }
+
+        /**
+         * Stop reading from this websocket, for example while the application can not keep up with its messages. 
+         * Nothing more is decoded or passed to the listener, except what has already been read, and the client is 
+         * slowed down by TCP flow control once the socket buffers are full. Writing goes on. The websocket is not closed 
+         * for being idle meanwhile.
+         */
+        @ThreadSafe
+        public void suspendReads()
+        {
+                readSuspended = true;
+                applyReadInterest();
+        }
+
+        /** Read from this websocket again, see {@link #suspendReads()} */
+        @ThreadSafe
+        public void resumeReads()
+        {
+                readSuspended = false;
+                applyReadInterest();
+        }
+
+        /** @return true between {@link #suspendReads()} and {@link #resumeReads()} */
+        @ThreadSafe
+        public boolean isReadSuspended()
+        {
+                return readSuspended;
+        }
+        
+        /** Apply a change of {@link #isReadPaused()} right away on the thread that serves this connection, or let that thread do it */
+        private void applyReadInterest()
+        {
+                HttpWebSocketServer server = this.server;
+                if (server != null && Thread.currentThread() == server.thread)
+                {
+                        updateReadInterest();
+                }
+                else if (server != null)
+                {
+                        server.requestReadInterest(this);
+                }
+        }
+
+        /** @return true if the thread that serves this connection should not read from it */
+        @ThreadSafe
+        boolean isReadPaused()
+        {
+                HttpWebSocketInbox inbox = this.inbox;
+                return readThrottled || readSuspended || inbox != null && inbox.isPaused();
+        }
+
+        /** @return OP_READ, or 0 while reading is paused */
+        @ThreadSafe
+        int readInterest()
+        {
+                return isReadPaused() ? 0 : SelectionKey.OP_READ;
+        }
+
+        /** Apply a change of {@link #isReadPaused()} to the key, on the thread that serves this connection */
+        void updateReadInterest()
+        {
+                if (key != null && key.isValid())
+                {
+                        key.interestOps((key.interestOps() & ~SelectionKey.OP_READ) | readInterest());
+                }
+        }
+
+        @Override
+        public void throttleReads(boolean throttle)
+        {
+                readThrottled = throttle;
+                updateReadInterest();
+        }
+
+        @Override
+        public boolean isReadThrottled()
+        {
+                return readThrottled;
+        }
+
+        @Override
+        public void closeForMemory()
+        {
+                closeConnection(CloseFrame.ABNORMAL_CLOSE, "Memory budget exceeded");
+        }
+
+        @Override
+        public String toString()
+        {
+                return "WebSocket " + getRemoteSocketAddress();
+        }
 }
@@ -0,0 +1,226 @@
+package wshttpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+
+/**
+ * Measures connections per second when every connection performs a single request, comparing HttpServer.loop() 
+ * called every millisecond, the accept thread, and SO_REUSEPORT acceptors in the download threads. 
+ * This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.AcceptStormBenchmark
+ *     [concurrency [seconds [threads]]]
+ *
+ * The clients run in a separate JVM. Every client connects, requests a small file, and resets the connection
+ * (SO_LINGER 0) so that no ephemeral ports are left in TIME_WAIT.
+ *
+ * @author Joris
+ */
+public class AcceptStormBenchmark
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final int BACKLOG = 4096;
+
+        private static enum Mode
+        {
+                LOOP, ACCEPT_THREAD, REUSE_PORT;
+        }
+
+        public static void main(String[] args) throws Exception
+        {
+                if (args.length > 0 && "client".equals(args[0]))
+                {
+                        client(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                        return;
+                }
+
+                int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+                int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+                int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+                log.setLevel(Level.SEVERE); // every connection ends with a reset
+
+                File httpdocs = Files.createTempDirectory("bench").toFile();
+                File file = new File(httpdocs, "index.html");
+                Files.write(file.toPath(), new byte[128]);
+                file.deleteOnExit();
+                httpdocs.deleteOnExit();
+
+                System.out.printf("%d concurrent clients, %d s, %d download threads, %d available processors%n",
+                                  concurrency, seconds, threads, Runtime.getRuntime().availableProcessors());
+
+                for (Mode mode : Mode.values())
+                {
+                        ServerSocketChannel ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), mode == Mode.REUSE_PORT, BACKLOG);
+
+                        final HttpServer server = new HttpServer(ssChannel, httpdocs, new NoWebSockets());
+                        server.setDownloadThreads(threads);
+                        server.setAcceptThread(mode != Mode.LOOP);
+                        server.setReusePortAcceptors(mode == Mode.REUSE_PORT, BACKLOG);
+                        server.setup();
+
+                        Thread acceptor = null;
+                        if (mode == Mode.LOOP)
+                        {
+                                acceptor = new Thread(new Runnable()
+                                {
+                                        @Override
+                                        public void run()
+                                        {
+                                                while (!Thread.interrupted())
+                                                {
+                                                        server.loop();
+                                                        try
+                                                        {
+                                                                Thread.sleep(1);
+                                                        }
+                                                        catch (InterruptedException ex)
+                                                        {
+                                                                return;
+                                                        }
+                                                }
+                                        }
+                                });
+                                acceptor.setDaemon(true);
+                                acceptor.start();
+                        }
+
+                        System.out.printf("%-13s: ", mode);
+                        runClients(server.getListeningPort(), concurrency, seconds);
+
+                        if (acceptor != null)
+                        {
+                                acceptor.interrupt();
+                        }
+                        server.stop();
+                        ssChannel.close();
+                }
+        }
+
+        private static void runClients(int port, int concurrency, int seconds) throws IOException, InterruptedException
+        {
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                     AcceptStormBenchmark.class.getName(), "client",
+                                                     Integer.toString(port), Integer.toString(concurrency), Integer.toString(seconds))
+                        .inheritIO()
+                        .start();
+                process.waitFor();
+        }
+
+        private static void client(int port, int concurrency, int seconds) throws Exception
+        {
+                final InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+                final AtomicLong connections = new AtomicLong();
+                final AtomicInteger failures = new AtomicInteger();
+                final long deadline = System.nanoTime() + seconds * 1000000000L;
+
+                try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor())
+                {
+                        for (int a = 0; a < concurrency; ++a)
+                        {
+                                clients.execute(new Runnable()
+                                {
+                                        @Override
+                                        public void run()
+                                        {
+                                                ByteBuffer buf = ByteBuffer.allocate(1024);
+                                                long count = 0;
+                                                while (System.nanoTime() - deadline < 0)
+                                                {
+                                                        try (SocketChannel channel = SocketChannel.open())
+                                                        {
+                                                                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                                                                channel.connect(address);
+                                                                request(channel, buf);
+                                                                ++count;
+                                                        }
+                                                        catch (IOException ex)
+                                                        {
+                                                                failures.incrementAndGet();
+                                                        }
+                                                }
+                                                connections.addAndGet(count);
+                                        }
+                                });
+                        }
+                }
+
+                System.out.printf("%8.0f connections/s, %d failed%n", connections.get() / (double) seconds, failures.get());
+        }
+
+        /** Send a GET request and read the complete response */
+        private static void request(SocketChannel channel, ByteBuffer buf) throws IOException
+        {
+                channel.write(ByteBuffer.wrap("GET /index.html HTTP/1.1\r\nConnection: keep-alive\r\n\r\n".getBytes(HttpUtil.UTF8)));
+
+                buf.clear();
+                while (true)
+                {
+                        if (channel.read(buf) < 0)
+                        {
+                                throw new IOException("closed");
+                        }
+
+                        String response = new String(buf.array(), 0, buf.position(), HttpUtil.UTF8);
+                        int headEnd = response.indexOf("\r\n\r\n");
+                        if (headEnd >= 0 && buf.position() >= headEnd + 4 + 128)
+                        {
+                                if (!response.startsWith("HTTP/1.1 200 "))
+                                {
+                                        throw new IOException(response);
+                                }
+                                return;
+                        }
+                }
+        }
+
+        private static class NoWebSockets implements HttpWebSocketServerListener
+        {
+                @Override
+                public boolean wssConnect(SelectionKey key)
+                {
+                        return false;
+                }
+
+                @Override
+                public void wssOpen(WebSocket conn, ClientHandshake handshake)
+                {
+                }
+
+                @Override
+                public void wssClose(WebSocket conn, int code, String reason, boolean remote)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, String message)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, ByteBuffer message)
+                {
+                }
+
+                @Override
+                public void wssError(WebSocket conn, Exception ex)
+                {
+                }
+        }
+}
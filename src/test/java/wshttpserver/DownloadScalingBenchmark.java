@@ -0,0 +1,233 @@
+package wshttpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+
+/**
+ * Measures requests per second for a small static file, with a varying number of download threads (reactors).
+ * This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.DownloadScalingBenchmark
+ *     [connections [seconds [threads...]]]
+ *
+ * The clients run in a separate JVM and use keep-alive connections that send their next request as soon as the
+ * previous response has been received.
+ *
+ * @author Joris
+ */
+public class DownloadScalingBenchmark
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+
+        public static void main(String[] args) throws Exception
+        {
+                if (args.length > 0 && "client".equals(args[0]))
+                {
+                        client(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                        return;
+                }
+
+                int connections = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+                int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+                int[] threadCounts = { 1, 2, 4, 8 };
+                if (args.length > 2)
+                {
+                        threadCounts = new int[args.length - 2];
+                        for (int a = 2; a < args.length; ++a)
+                        {
+                                threadCounts[a - 2] = Integer.parseInt(args[a]);
+                        }
+                }
+
+                log.setLevel(Level.WARNING);
+
+                File httpdocs = Files.createTempDirectory("bench").toFile();
+                File file = new File(httpdocs, "index.html");
+                Files.write(file.toPath(), new byte[1024]);
+                file.deleteOnExit();
+                httpdocs.deleteOnExit();
+
+                System.out.printf("%d connections, %d s, %d available processors%n",
+                                  connections, seconds, Runtime.getRuntime().availableProcessors());
+
+                for (int threads : threadCounts)
+                {
+                        for (HttpServer.DownloadBalancing balancing : HttpServer.DownloadBalancing.values())
+                        {
+                                ServerSocketChannel ssChannel = ServerSocketChannel.open();
+                                ssChannel.configureBlocking(false);
+                                ssChannel.bind(new InetSocketAddress("127.0.0.1", 0), connections);
+
+                                final HttpServer server = new HttpServer(ssChannel, httpdocs, new NoWebSockets());
+                                server.setDownloadThreads(threads);
+                                server.setDownloadBalancing(balancing);
+                                server.setup();
+
+                                System.out.printf("%d threads, %-17s: ", threads, balancing);
+                                runClients(server.getListeningPort(), connections, seconds);
+
+                                server.stop();
+                                ssChannel.close();
+                        }
+                }
+        }
+
+        private static void runClients(int port, int connections, int seconds) throws IOException, InterruptedException
+        {
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                     DownloadScalingBenchmark.class.getName(), "client",
+                                                     Integer.toString(port), Integer.toString(connections), Integer.toString(seconds))
+                        .inheritIO()
+                        .start();
+                process.waitFor();
+        }
+
+        private static void client(int port, int connections, int seconds) throws Exception
+        {
+                final InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+                final CountDownLatch connected = new CountDownLatch(connections);
+                final CountDownLatch start = new CountDownLatch(1);
+                final AtomicLong requests = new AtomicLong();
+                final AtomicInteger failures = new AtomicInteger();
+                final long[] deadline = new long[1];
+
+                try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor())
+                {
+                        for (int a = 0; a < connections; ++a)
+                        {
+                                clients.execute(new Runnable()
+                                {
+                                        @Override
+                                        public void run()
+                                        {
+                                                boolean open = false;
+                                                try (SocketChannel channel = SocketChannel.open(address))
+                                                {
+                                                        open = true;
+                                                        connected.countDown();
+                                                        start.await();
+
+                                                        ByteBuffer buf = ByteBuffer.allocate(4096);
+                                                        long count = 0;
+                                                        while (System.nanoTime() - deadline[0] < 0)
+                                                        {
+                                                                request(channel, buf);
+                                                                ++count;
+                                                        }
+                                                        requests.addAndGet(count);
+                                                }
+                                                catch (IOException | InterruptedException ex)
+                                                {
+                                                        failures.incrementAndGet();
+                                                        if (!open)
+                                                        {
+                                                                connected.countDown();
+                                                        }
+                                                }
+                                        }
+                                });
+                        }
+
+                        connected.await();
+                        deadline[0] = System.nanoTime() + seconds * 1000000000L;
+                        start.countDown(); // publishes the deadline
+                }
+
+                System.out.printf("%8.0f requests/s, %d failed%n", requests.get() / (double) seconds, failures.get());
+        }
+
+        /** Send a GET request and read the complete response */
+        private static void request(SocketChannel channel, ByteBuffer buf) throws IOException
+        {
+                channel.write(ByteBuffer.wrap("GET /index.html HTTP/1.1\r\nConnection: keep-alive\r\n\r\n".getBytes(HttpUtil.UTF8)));
+
+                buf.clear();
+                int headEnd = -1;
+                long length = -1;
+                while (true)
+                {
+                        if (channel.read(buf) < 0)
+                        {
+                                throw new IOException("closed");
+                        }
+
+                        if (headEnd < 0)
+                        {
+                                String response = new String(buf.array(), 0, buf.position(), HttpUtil.UTF8);
+                                headEnd = response.indexOf("\r\n\r\n");
+                                if (headEnd < 0)
+                                {
+                                        continue;
+                                }
+
+                                if (!response.startsWith("HTTP/1.1 200 "))
+                                {
+                                        throw new IOException(response);
+                                }
+
+                                int i = response.toLowerCase().indexOf("content-length:");
+                                if (i < 0 || i > headEnd)
+                                {
+                                        throw new IOException("No Content-Length: " + response);
+                                }
+                                length = Long.parseLong(response.substring(i + 15, response.indexOf("\r\n", i)).trim());
+                                headEnd += 4;
+                        }
+
+                        if (buf.position() >= headEnd + length)
+                        {
+                                return;
+                        }
+                }
+        }
+
+        private static class NoWebSockets implements HttpWebSocketServerListener
+        {
+                @Override
+                public boolean wssConnect(SelectionKey key)
+                {
+                        return false;
+                }
+
+                @Override
+                public void wssOpen(WebSocket conn, ClientHandshake handshake)
+                {
+                }
+
+                @Override
+                public void wssClose(WebSocket conn, int code, String reason, boolean remote)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, String message)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, ByteBuffer message)
+                {
+                }
+
+                @Override
+                public void wssError(WebSocket conn, Exception ex)
+                {
+                }
+        }
+}
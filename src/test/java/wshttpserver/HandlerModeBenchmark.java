@@ -0,0 +1,222 @@
+package wshttpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+
+/**
+ * Compares a platform thread pool with blocking (virtual thread) routes, using slow handlers that block.
+ * This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.HandlerModeBenchmark 
+ *     [connections [handlerMillis [poolThreads]]]
+ *
+ * The clients run in a separate JVM, so that both sides have their own file descriptor limit. Every client uses its
+ * own connection. All connections are opened first, then all requests are sent at once.
+ *
+ * @author Joris
+ */
+public class HandlerModeBenchmark
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+
+        public static void main(String[] args) throws Exception
+        {
+                if (args.length > 0 && "client".equals(args[0]))
+                {
+                        client(Integer.parseInt(args[1]), args[2], Integer.parseInt(args[3]));
+                        return;
+                }
+
+                int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+                final long handlerMillis = args.length > 1 ? Long.parseLong(args[1]) : 100;
+                int poolThreads = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+                log.setLevel(Level.WARNING);
+
+                ServerSocketChannel ssChannel = ServerSocketChannel.open();
+                ssChannel.configureBlocking(false);
+                ssChannel.bind(new InetSocketAddress("127.0.0.1", 0), connections);
+
+                final HttpServer server = new HttpServer(ssChannel, Files.createTempDirectory("bench").toFile(), new NoWebSockets());
+
+                HttpHandler slow = new HttpHandler()
+                {
+                        @Override
+                        public void handle(HttpRequest request, HttpReply reply)
+                        {
+                                try
+                                {
+                                        Thread.sleep(handlerMillis); // for example a JDBC call
+                                }
+                                catch (InterruptedException ex)
+                                {
+                                        Thread.currentThread().interrupt();
+                                }
+                                reply.send(200, "OK");
+                        }
+                };
+
+                ExecutorService pool = Executors.newFixedThreadPool(poolThreads);
+                server.addRouteHandler(HttpUtil.METHOD.GET, "pool", slow, pool);
+                server.addRouteBlockingHandler(HttpUtil.METHOD.GET, "virtual", slow);
+                server.setup();
+
+                System.out.printf("%d connections, handlers block for %d ms%n", connections, handlerMillis);
+                System.out.printf("platform pool (%d threads): ", poolThreads);
+                runClients(server.getListeningPort(), "/pool", connections);
+                System.out.print("virtual threads: ");
+                runClients(server.getListeningPort(), "/virtual", connections);
+
+                server.stop();
+                pool.shutdown();
+        }
+
+        private static void runClients(int port, String path, int connections) throws IOException, InterruptedException
+        {
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                     HandlerModeBenchmark.class.getName(),
+                                                     "client", Integer.toString(port), path, Integer.toString(connections))
+                        .inheritIO()
+                        .start();
+                process.waitFor();
+        }
+
+        private static void client(int port, final String path, int connections) throws Exception
+        {
+                final InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+                final CountDownLatch connected = new CountDownLatch(connections);
+                final CountDownLatch start = new CountDownLatch(1);
+                final CountDownLatch done = new CountDownLatch(connections);
+                final long[] latencies = new long[connections];
+                final AtomicInteger failures = new AtomicInteger();
+
+                try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor())
+                {
+                        for (int a = 0; a < connections; ++a)
+                        {
+                                final int index = a;
+                                clients.execute(new Runnable()
+                                {
+                                        @Override
+                                        public void run()
+                                        {
+                                                boolean open = false;
+                                                try (SocketChannel channel = SocketChannel.open(address))
+                                                {
+                                                        open = true;
+                                                        connected.countDown();
+                                                        start.await();
+
+                                                        long begin = System.nanoTime();
+                                                        request(channel, path);
+                                                        latencies[index] = System.nanoTime() - begin;
+                                                }
+                                                catch (IOException | InterruptedException ex)
+                                                {
+                                                        failures.incrementAndGet();
+                                                        if (!open)
+                                                        {
+                                                                connected.countDown();
+                                                        }
+                                                        latencies[index] = Long.MAX_VALUE;
+                                                }
+                                                finally
+                                                {
+                                                        done.countDown();
+                                                }
+                                        }
+                                });
+                        }
+
+                        connected.await();
+                        long begin = System.nanoTime();
+                        start.countDown();
+                        done.await();
+                        long elapsed = System.nanoTime() - begin;
+
+                        Arrays.sort(latencies);
+                        System.out.printf("total %d ms, p50 %d ms, p99 %d ms, %.0f requests/s, %d failed%n",
+                                          TimeUnit.NANOSECONDS.toMillis(elapsed),
+                                          TimeUnit.NANOSECONDS.toMillis(latencies[connections / 2]),
+                                          TimeUnit.NANOSECONDS.toMillis(latencies[connections * 99 / 100]),
+                                          connections / (elapsed / 1e9),
+                                          failures.get());
+                }
+        }
+
+        /** Send a GET request and read the response, which must end with the body "OK" */
+        private static void request(SocketChannel channel, String path) throws IOException
+        {
+                channel.write(ByteBuffer.wrap(("GET " + path + " HTTP/1.1\r\nConnection: keep-alive\r\n\r\n").getBytes(HttpUtil.UTF8)));
+
+                ByteBuffer buf = ByteBuffer.allocate(1024);
+                while (true)
+                {
+                        if (channel.read(buf) < 0)
+                        {
+                                throw new IOException("closed");
+                        }
+
+                        String response = new String(buf.array(), 0, buf.position(), HttpUtil.UTF8);
+                        if (response.endsWith("\r\n\r\nOK"))
+                        {
+                                if (!response.startsWith("HTTP/1.1 200 "))
+                                {
+                                        throw new IOException(response);
+                                }
+                                return;
+                        }
+                }
+        }
+
+        private static class NoWebSockets implements HttpWebSocketServerListener
+        {
+                @Override
+                public boolean wssConnect(SelectionKey key)
+                {
+                        return false;
+                }
+
+                @Override
+                public void wssOpen(WebSocket conn, ClientHandshake handshake)
+                {
+                }
+
+                @Override
+                public void wssClose(WebSocket conn, int code, String reason, boolean remote)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, String message)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, ByteBuffer message)
+                {
+                }
+
+                @Override
+                public void wssError(WebSocket conn, Exception ex)
+                {
+                }
+        }
+}
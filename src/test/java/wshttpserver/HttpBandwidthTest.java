@@ -0,0 +1,101 @@
+package wshttpserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Joris
+ */
+public class HttpBandwidthTest
+{
+        private static final long SECOND = 1_000_000_000l;
+
+        @Test
+        public void testBucket()
+        {
+                // 200ms worth of bytes at once
+                HttpBandwidth.Bucket bucket = new HttpBandwidth.Bucket(10_000);
+                long now = 1000 * SECOND;
+                assertEquals(2000, bucket.take(5000, now));
+                assertEquals(0, bucket.take(5000, now));
+                assertEquals(SECOND / 10 + 1, bucket.untilRefilled(now));
+
+                bucket.refund(500);
+                assertEquals(500, bucket.take(5000, now));
+
+                now += SECOND / 10;
+                assertEquals(0, bucket.untilRefilled(now));
+                assertEquals(1000, bucket.take(5000, now));
+
+                // Never more than the burst
+                now += 10 * SECOND;
+                assertEquals(2000, bucket.take(5000, now));
+
+                // Unlimited
+                bucket.setRate(0);
+                assertEquals(5000, bucket.take(5000, now));
+                assertEquals(0, bucket.untilRefilled(now));
+        }
+
+        @Test
+        public void testRoutes()
+        {
+                HttpBandwidth bandwidth = new HttpBandwidth();
+                assertNull(bandwidth.getRouteBucket("/mirror/a.iso"));
+
+                bandwidth.setRouteRate("mirror", 1000);
+                bandwidth.setRouteRate("mirror/fast", 2000);
+                HttpBandwidth.Bucket mirror = bandwidth.getRouteBucket("/mirror/a.iso");
+                assertNotNull(mirror);
+                assertSame(mirror, bandwidth.getRouteBucket("/mirror"));
+                assertNotSame(mirror, bandwidth.getRouteBucket("/mirror/fast/b.iso"));
+                assertNull(bandwidth.getRouteBucket("/mirrors/a.iso"));
+                assertNull(bandwidth.getRouteBucket("/index.html"));
+
+                // Changing the rate keeps the bucket, removing it makes responses that use it unlimited
+                bandwidth.setRouteRate("mirror", 500);
+                assertSame(mirror, bandwidth.getRouteBucket("/mirror/a.iso"));
+                bandwidth.setRouteRate("mirror", 0);
+                assertNull(bandwidth.getRouteBucket("/mirror/a.iso"));
+                assertEquals(Long.MAX_VALUE, mirror.take(Long.MAX_VALUE, 0));
+        }
+
+        @Test
+        public void testShaping() throws UnknownHostException
+        {
+                HttpBandwidth bandwidth = new HttpBandwidth();
+                InetAddress address = InetAddress.getByName("10.0.0.1");
+                HttpBandwidth.Shaping a = new HttpBandwidth.Shaping(address);
+                HttpBandwidth.Shaping b = new HttpBandwidth.Shaping(address);
+                long now = 1000 * SECOND;
+
+                // Unlimited
+                assertEquals(100_000, bandwidth.take(a, null, 100_000, now));
+                assertEquals(0, bandwidth.settle(a, 100_000, now));
+
+                // Both connections of the address share 2000 bytes per 200ms
+                bandwidth.setClientRate(10_000);
+                bandwidth.setConnectionRate(50_000);
+                assertEquals(2000, bandwidth.take(a, null, 100_000, now));
+                assertEquals(0, bandwidth.settle(a, 1500, now)); // the socket was full
+                assertEquals(500, bandwidth.take(b, null, 100_000, now));
+                assertTrue(bandwidth.settle(b, 500, now) > 0);
+                assertEquals(1, bandwidth.clientCount());
+
+                // The tightest limit applies, the others give back what they allowed beyond it
+                bandwidth.setClientRate(0);
+                HttpBandwidth.Bucket route = new HttpBandwidth.Bucket(1000);
+                assertEquals(200, bandwidth.take(a, route, 100_000, now));
+                bandwidth.settle(a, 200, now);
+                assertEquals(10_000 - 1500 - 200, bandwidth.take(a, null, 100_000, now));
+                bandwidth.settle(a, 0, now);
+
+                bandwidth.release(a);
+                assertEquals(1, bandwidth.clientCount());
+                bandwidth.release(b);
+                assertEquals(0, bandwidth.clientCount());
+        }
+}
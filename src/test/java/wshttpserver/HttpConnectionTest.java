@@ -0,0 +1,754 @@
+package wshttpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.exceptions.InvalidHandshakeException;
+import org.java_websocket.handshake.ClientHandshake;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Joris
+ */
+public class HttpConnectionTest
+{
+        private static final String UPGRADE_HEAD = 
+                "GET /chat HTTP/1.1\r\n"
+                + "Host: server.example.com\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + "\r\n";
+        
+        @Rule
+        public TemporaryFolder uploadDir = new TemporaryFolder();
+        
+        private final HttpRoutes routes = new HttpRoutes(null);
+        private final Executor direct = new Executor()
+        {
+                @Override
+                public void execute(Runnable command)
+                {
+                        command.run();
+                }
+        };
+        private final LinkedBlockingQueue<Runnable> reactorTasks = new LinkedBlockingQueue<>();
+        private final Executor queued = new Executor()
+        {
+                @Override
+                public void execute(Runnable command)
+                {
+                        reactorTasks.add(command);
+                }
+        };
+        private ExecutorService virtual;
+        private Executor reactor = direct;
+        private Selector selector;
+        private ServerSocketChannel ssChannel;
+        private SocketChannel client;
+        private SocketChannel server;
+        private HttpConnection.STATE lastState;
+        private HttpConnection conn;
+        private HttpTimerWheel timers;
+        private final HttpRequestState.Pool pool = new HttpRequestState.Pool(HttpServer.REQUEST_POOL_SIZE);
+        private HttpLoadShedder shedder;
+        private HttpMemoryAccountant.Ledger ledger;
+        private HttpBandwidth bandwidth;
+
+        @Before
+        public void setUp() throws IOException
+        {
+                selector = Selector.open();
+                virtual = Executors.newVirtualThreadPerTaskExecutor();
+                ssChannel = ServerSocketChannel.open();
+                ssChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+                client = SocketChannel.open(new InetSocketAddress("127.0.0.1", ssChannel.socket().getLocalPort()));
+                server = ssChannel.accept();
+                server.configureBlocking(false);
+                SelectionKey key = server.register(selector, SelectionKey.OP_READ);
+                timers = new HttpTimerWheel(HttpServer.TIMER_TICK, HttpServer.TIMER_WHEEL_SIZE, System.nanoTime());
+                
+                conn = new HttpConnection(new HttpConnection.ConnectionStateChangeListener()
+                {
+                        @Override
+                        public void connectionStateChange(HttpConnection conn, HttpConnection.STATE oldState, HttpConnection.STATE newState)
+                        {
+                                lastState = newState;
+                        }
+                }, key, server, routes, reactor, timers, pool, null, shedder, ledger, bandwidth);
+        }
+        
+        @After
+        public void tearDown() throws IOException
+        {
+                client.close();
+                server.close();
+                ssChannel.close();
+                selector.close();
+                virtual.shutdownNow();
+        }
+        
+        /** Pass the given bytes to the connection the same way HttpDownloadThread does. */
+        private void read(String data) throws IOException
+        {
+                ByteBuffer buf = ByteBuffer.allocate(HttpServer.BUFFER_SIZE);
+                buf.position(HttpServer.LINEBUFFER_SIZE);
+                buf.put(data.getBytes(HttpUtil.UTF8));
+                buf.limit(buf.position());
+                buf.position(HttpServer.LINEBUFFER_SIZE);
+                conn.read(buf);
+        }
+        
+        private String rawHead()
+        {
+                ByteBuffer rawHead = conn.request.rawHead.duplicate();
+                rawHead.flip();
+                byte[] bytes = new byte[rawHead.remaining()];
+                rawHead.get(bytes);
+                return new String(bytes, HttpUtil.UTF8);
+        }
+        
+        @Test
+        public void testPlainRequestDoesNotCopyHead() throws IOException
+        {
+                read("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n");
+                assertNull(conn.request);
+                
+                read("HEAD /index.html HTTP/1.1\r\nHost: local");
+                assertNull(conn.request.rawHead);
+                read("host\r\nConnection: keep-alive\r\n\r\n");
+                assertNull(conn.request);
+                
+                // An HTTP/1.1 GET could be an upgrade, it is not copied either
+                read("GET /index.html HTTP/1.1\r\nHost: local");
+                assertNull(conn.request.rawHead);
+                read("host\r\nUser-Agent: test\r\nConn");
+                assertNull(conn.request.rawHead);
+                read("ection: keep-alive\r\n\r\n");
+                assertNull(conn.request);
+                assertEquals(HttpConnection.STATE.WAIT_FOR_REQUEST_LINE, lastState);
+        }
+
+        @Test
+        public void testUpgradeHeadInSingleRead() throws IOException
+        {
+                read(UPGRADE_HEAD);
+                assertEquals(HttpConnection.STATE.UPGRADE, lastState);
+                assertEquals(UPGRADE_HEAD, rawHead());
+        }
+
+        @Test
+        public void testUpgradeHeadSpanningReads() throws IOException, InvalidHandshakeException
+        {
+                for (int split = 1; split < UPGRADE_HEAD.length(); split += 7)
+                {
+                        setUpConnection();
+                        read(UPGRADE_HEAD.substring(0, split));
+                        assertNull(conn.request.rawHead);
+                        read(UPGRADE_HEAD.substring(split));
+                        assertEquals(HttpConnection.STATE.UPGRADE, lastState);
+                        
+                        // Rebuilt from the parsed head, it is the same handshake to Java-WebSocket
+                        String head = rawHead();
+                        assertTrue(head, head.startsWith("GET /chat HTTP/1.1\r\n"));
+                        assertTrue(head, head.endsWith("\r\n\r\n"));
+                        Draft_17 draft = new Draft_17();
+                        ClientHandshake handshake = (ClientHandshake) draft.translateHandshake(ByteBuffer.wrap(head.getBytes(HttpUtil.UTF8)));
+                        assertEquals(Draft.HandshakeState.MATCHED, draft.acceptHandshakeAsServer(handshake));
+                        assertEquals("/chat", handshake.getResourceDescriptor());
+                        assertEquals("server.example.com", handshake.getFieldValue("Host"));
+                        assertEquals("dGhlIHNhbXBsZSBub25jZQ==", handshake.getFieldValue("Sec-WebSocket-Key"));
+                }
+        }
+        
+        private String uploaded(String name) throws IOException
+        {
+                return new String(Files.readAllBytes(new File(uploadDir.getRoot(), name).toPath()), HttpUtil.UTF8);
+        }
+        
+        @Test
+        public void testUploadContentLength() throws IOException
+        {
+                routes.uploads.put("up", new HttpUpload.Route(uploadDir.getRoot().getCanonicalFile(), 100));
+                
+                read("PUT /up/a.txt HTTP/1.1\r\nContent-Length: 11\r\nConnection: keep-alive\r\n\r\nhello");
+                assertEquals(HttpConnection.STATE.READING_BODY, lastState);
+                assertFalse(new File(uploadDir.getRoot(), "a.txt").exists());
+                
+                // the rest of the body is transferred from the socket to the file
+                client.write(ByteBuffer.wrap(" world".getBytes(HttpUtil.UTF8)));
+                long transferred = 0;
+                while (transferred < 6)
+                {
+                        transferred += conn.transferBody();
+                }
+                
+                assertEquals(HttpConnection.STATE.WAIT_FOR_REQUEST_LINE, lastState);
+                assertEquals("hello world", uploaded("a.txt"));
+                assertEquals(1, uploadDir.getRoot().list().length);
+        }
+        
+        @Test
+        public void testUploadChunked() throws IOException
+        {
+                routes.uploads.put("up", new HttpUpload.Route(uploadDir.getRoot().getCanonicalFile(), 100));
+                
+                String request = "PUT /up/b.txt HTTP/1.1\r\nTransfer-Encoding: chunked\r\nExpect: 100-continue\r\n"
+                        + "Connection: keep-alive\r\n\r\n"
+                        + "5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\nX-Trailer: 1\r\n\r\n";
+                
+                for (int split = 1; split < request.length(); split += 5)
+                {
+                        setUpConnection();
+                        read(request.substring(0, split));
+                        read(request.substring(split));
+                        assertEquals(HttpConnection.STATE.WAIT_FOR_REQUEST_LINE, lastState);
+                        assertEquals("hello world", uploaded("b.txt"));
+                }
+        }
+        
+        @Test
+        public void testUploadTooLarge() throws IOException
+        {
+                routes.uploads.put("up", new HttpUpload.Route(uploadDir.getRoot().getCanonicalFile(), 8));
+                
+                read("PUT /up/c.txt HTTP/1.1\r\nContent-Length: 11\r\n\r\nhello world");
+                assertEquals(HttpConnection.STATE.BAD_REQUEST, lastState);
+                
+                setUpConnection();
+                read("PUT /up/c.txt HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nb\r\nhello world\r\n0\r\n\r\n");
+                assertEquals(HttpConnection.STATE.BAD_REQUEST, lastState);
+                
+                // the temporary file has been removed
+                assertEquals(0, uploadDir.getRoot().list().length);
+        }
+        
+        @Test
+        public void testAmbiguousBodyFraming() throws IOException
+        {
+                routes.uploads.put("up", new HttpUpload.Route(uploadDir.getRoot().getCanonicalFile(), 100));
+
+                read("PUT /up/e.txt HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n5\r\nhello\r\n0\r\n\r\n");
+                assertEquals(HttpConnection.STATE.BAD_REQUEST, lastState);
+
+                setUpConnection();
+                read("PUT /up/e.txt HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello");
+                assertEquals(HttpConnection.STATE.BAD_REQUEST, lastState);
+
+                setUpConnection();
+                read("PUT /up/e.txt HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\nhello");
+                assertEquals(HttpConnection.STATE.BAD_REQUEST, lastState);
+
+                setUpConnection();
+                read("PUT /up/e.txt HTTP/1.1\r\nContent-Length: +5\r\n\r\nhello");
+                assertEquals(HttpConnection.STATE.BAD_REQUEST, lastState);
+
+                setUpConnection();
+                read("PUT /up/e.txt HTTP/1.1\r\nContent-Length: 5, 5\r\n\r\nhello");
+                assertEquals(HttpConnection.STATE.BAD_REQUEST, lastState);
+
+                assertFalse(new File(uploadDir.getRoot(), "e.txt").exists());
+        }
+
+        @Test
+        public void testUploadOutsideRoute() throws IOException
+        {
+                routes.uploads.put("up", new HttpUpload.Route(uploadDir.newFolder("up").getCanonicalFile(), 100));
+                
+                read("PUT /up/../d.txt HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello");
+                assertEquals(HttpConnection.STATE.BAD_REQUEST, lastState);
+                assertFalse(new File(uploadDir.getRoot(), "d.txt").exists());
+        }
+        
+        /** Let the connection write its responses, and return what the client received. */
+        private String written() throws IOException
+        {
+                // as if the selector reported the channel as writable a number of times
+                for (int a = 0; a < 10 && lastState != HttpConnection.STATE.CLOSED; ++a)
+                {
+                        conn.writeable();
+                }
+                
+                ByteBuffer buf = ByteBuffer.allocate(4096);
+                client.configureBlocking(false);
+                while (client.read(buf) > 0)
+                {
+                }
+                client.configureBlocking(true);
+                
+                buf.flip();
+                byte[] bytes = new byte[buf.remaining()];
+                buf.get(bytes);
+                return new String(bytes, HttpUtil.UTF8);
+        }
+        
+        @Test
+        public void testHandler() throws IOException
+        {
+                routes.addHandler(HttpUtil.METHOD.POST, "api/echo", new HttpHandler()
+                {
+                        @Override
+                        public void handle(HttpRequest request, HttpReply reply)
+                        {
+                                assertEquals("/api/echo/x", request.getPath());
+                                assertEquals("a=1", request.getQuery());
+                                reply.header("X-Test", "1").send(200, "OK", "text/plain", request.getBody());
+                        }
+                }, direct);
+                
+                read("POST /api/echo/x?a=1 HTTP/1.1\r\nConnection: keep-alive\r\nContent-Length: 5\r\n\r\nhello");
+                String response = written();
+                assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+                assertTrue(response.contains("\r\nX-Test: 1\r\n"));
+                assertTrue(response.contains("\r\nContent-Length: 5\r\n"));
+                assertTrue(response.endsWith("\r\n\r\nhello"));
+                
+                read("GET /api/echo HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+                assertTrue(written().startsWith("HTTP/1.1 405 "));
+        }
+        
+        @Test
+        public void testAsyncHandler() throws IOException
+        {
+                final CompletableFuture<Void> failed = new CompletableFuture<>();
+                routes.addAsyncHandler(HttpUtil.METHOD.GET, "api/async", new HttpAsyncHandler()
+                {
+                        @Override
+                        public CompletionStage<?> handle(final HttpRequest request, final HttpReply reply)
+                        {
+                                if ("fail".equals(request.getQuery()))
+                                {
+                                        return failed;
+                                }
+                                
+                                return CompletableFuture.completedFuture(request.getPath()).thenAccept(new Consumer<String>()
+                                {
+                                        @Override
+                                        public void accept(String path)
+                                        {
+                                                if (!"noreply".equals(request.getQuery()))
+                                                {
+                                                        reply.send(200, path);
+                                                }
+                                        }
+                                });
+                        }
+                }, direct);
+                
+                read("GET /api/async/x HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+                String response = written();
+                assertTrue(response.startsWith("HTTP/1.1 200 /api/async/x\r\n"));
+                assertTrue(response.endsWith("\r\n\r\n/api/async/x"));
+                
+                read("GET /api/async?noreply HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+                assertTrue(written().startsWith("HTTP/1.1 500 "));
+                
+                read("GET /api/async?fail HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+                failed.completeExceptionally(new RuntimeException("test"));
+                assertTrue(written().startsWith("HTTP/1.1 500 "));
+        }
+        
+        @Test
+        public void testWriteBudget() throws IOException
+        {
+                routes.addHandler(HttpUtil.METHOD.GET, "large", new HttpHandler()
+                {
+                        @Override
+                        public void handle(HttpRequest request, HttpReply reply)
+                        {
+                                reply.send(200, "OK", "text/plain", ByteBuffer.wrap(new byte[1000]));
+                        }
+                }, direct);
+                
+                read("GET /large HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+                long remaining = conn.remainingBytes();
+                assertTrue(remaining > 1000);
+                
+                // Stops once the budget has been spent, and continues where it left off
+                HttpWriteBudget budget = new HttpWriteBudget();
+                budget.reset(server, 100);
+                conn.writeable(budget);
+                assertEquals(100, budget.getWritten());
+                assertEquals(remaining - 100, conn.remainingBytes());
+                assertTrue((conn.key.interestOps() & SelectionKey.OP_WRITE) != 0);
+                
+                budget.reset(server, Long.MAX_VALUE);
+                conn.writeable(budget);
+                assertEquals(remaining - 100, budget.getWritten());
+                assertEquals(0, conn.remainingBytes());
+                assertEquals(0, conn.key.interestOps() & SelectionKey.OP_WRITE);
+                
+                String response = written();
+                assertEquals(remaining, response.length());
+                assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        }
+        
+        @Test
+        public void testBandwidth() throws IOException
+        {
+                bandwidth = new HttpBandwidth();
+                bandwidth.setConnectionRate(10_000); // 2000 bytes at once
+                setUpConnection();
+                routes.addHandler(HttpUtil.METHOD.GET, "large", new HttpHandler()
+                {
+                        @Override
+                        public void handle(HttpRequest request, HttpReply reply)
+                        {
+                                reply.send(200, "OK", "text/plain", ByteBuffer.wrap(new byte[5000]));
+                        }
+                }, direct);
+                
+                read("GET /large HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+                long remaining = conn.remainingBytes();
+                long now = System.nanoTime();
+                HttpWriteBudget budget = new HttpWriteBudget();
+                budget.reset(server, conn.shapeBudget(Long.MAX_VALUE, now));
+                conn.writeable(budget);
+                conn.shaped(budget.getWritten(), now);
+                conn.updateTimeout();
+                assertEquals(2000, budget.getWritten());
+                
+                // Parked until the bucket is half full again
+                assertEquals(0, conn.key.interestOps() & SelectionKey.OP_WRITE);
+                timers.advance(now + HttpServer.TIMER_TICK / 2);
+                assertEquals(0, conn.key.interestOps() & SelectionKey.OP_WRITE);
+                timers.advance(now + HttpServer.BANDWIDTH_BURST);
+                assertTrue((conn.key.interestOps() & SelectionKey.OP_WRITE) != 0);
+                assertNotEquals(HttpConnection.STATE.CLOSED, lastState);
+                
+                now += HttpServer.BANDWIDTH_BURST;
+                budget.reset(server, conn.shapeBudget(Long.MAX_VALUE, now));
+                conn.writeable(budget);
+                conn.shaped(budget.getWritten(), now);
+                assertEquals(2000, budget.getWritten());
+                assertEquals(remaining - 4000, conn.remainingBytes());
+                
+                // Unlimited at runtime
+                bandwidth.setConnectionRate(0);
+                budget.reset(server, conn.shapeBudget(Long.MAX_VALUE, now));
+                conn.writeable(budget);
+                conn.shaped(budget.getWritten(), now);
+                assertEquals(remaining - 4000, budget.getWritten());
+                assertEquals(0, conn.key.interestOps() & SelectionKey.OP_WRITE);
+        }
+        
+        @Test
+        public void testHandlerStream() throws IOException
+        {
+                routes.addHandler(HttpUtil.METHOD.GET, "stream", new HttpHandler()
+                {
+                        @Override
+                        public void handle(HttpRequest request, HttpReply reply)
+                        {
+                                reply.stream(200, "OK", "text/plain", new HttpBodyProducer()
+                                {
+                                        int produced = 0;
+                                        
+                                        @Override
+                                        public void produce(HttpResponseStream stream)
+                                        {
+                                                if (++produced <= 3)
+                                                {
+                                                        stream.write(ByteBuffer.wrap(("part" + produced).getBytes(HttpUtil.UTF8)));
+                                                }
+                                                else
+                                                {
+                                                        stream.end();
+                                                }
+                                        }
+                                });
+                        }
+                }, direct);
+                
+                read("GET /stream HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+                String response = written();
+                assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+                assertTrue(response.contains("\r\nTransfer-Encoding: chunked\r\n"));
+                assertTrue(response.endsWith("\r\n\r\n5\r\npart1\r\n5\r\npart2\r\n5\r\npart3\r\n0\r\n\r\n"));
+        }
+        
+        /** Run the tasks that other threads pass to the connection, until the client has received a response ending with suffix */
+        private String reactorUntil(String suffix) throws IOException, InterruptedException
+        {
+                StringBuilder response = new StringBuilder();
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (!response.toString().endsWith(suffix))
+                {
+                        assertTrue("Timeout, received: " + response, System.nanoTime() < deadline);
+                        
+                        Runnable task = reactorTasks.poll(10, TimeUnit.MILLISECONDS);
+                        if (task != null)
+                        {
+                                task.run();
+                        }
+                        response.append(written());
+                }
+                return response.toString();
+        }
+        
+        @Test
+        public void testBlockingHandler() throws IOException, InterruptedException
+        {
+                reactor = queued;
+                setUpConnection();
+                
+                routes.addHandler(HttpUtil.METHOD.POST, "upper", new HttpHandler()
+                {
+                        @Override
+                        public void handle(HttpRequest request, HttpReply reply)
+                        {
+                                assertTrue(Thread.currentThread().isVirtual());
+                                try (InputStream in = request.getBodyStream();
+                                     OutputStream out = reply.outputStream(200, "OK", "text/plain"))
+                                {
+                                        byte[] b = new byte[3];
+                                        int n;
+                                        while ((n = in.read(b)) >= 0)
+                                        {
+                                                out.write(new String(b, 0, n, HttpUtil.UTF8).toUpperCase().getBytes(HttpUtil.UTF8));
+                                        }
+                                }
+                                catch (IOException ex)
+                                {
+                                        throw new RuntimeException(ex);
+                                }
+                        }
+                }, virtual, true);
+                
+                // The handler is started before the body arrives
+                read("POST /upper HTTP/1.1\r\nConnection: keep-alive\r\nContent-Length: 11\r\n\r\nhello");
+                read(" world");
+                String response = reactorUntil("0\r\n\r\n");
+                assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+                assertTrue(response.endsWith("\r\n\r\nb\r\nHELLO WORLD\r\n0\r\n\r\n"));
+                assertEquals(HttpConnection.STATE.WAIT_FOR_REQUEST_LINE, lastState);
+        }
+        
+        @Test
+        public void testBlockingHandlerSuspendsReading() throws IOException, InterruptedException
+        {
+                reactor = queued;
+                setUpConnection();
+                
+                final CountDownLatch release = new CountDownLatch(1);
+                routes.addHandler(HttpUtil.METHOD.PUT, "count", new HttpHandler()
+                {
+                        @Override
+                        public void handle(HttpRequest request, HttpReply reply)
+                        {
+                                long count = 0;
+                                try (InputStream in = request.getBodyStream())
+                                {
+                                        release.await();
+                                        byte[] b = new byte[1000];
+                                        int n;
+                                        while ((n = in.read(b)) >= 0)
+                                        {
+                                                count += n;
+                                        }
+                                }
+                                catch (IOException | InterruptedException ex)
+                                {
+                                        throw new RuntimeException(ex);
+                                }
+                                reply.send(200, "Read " + count);
+                        }
+                }, virtual, true);
+                
+                int size = (int) HttpServer.STREAM_BUFFER_SIZE * 2;
+                read("PUT /count HTTP/1.1\r\nConnection: keep-alive\r\nContent-Length: " + size + "\r\n\r\n");
+                char[] part = new char[HttpServer.RCVBUFFER_SIZE];
+                Arrays.fill(part, 'x');
+                
+                int sent = 0;
+                while ((conn.key.interestOps() & SelectionKey.OP_READ) != 0)
+                {
+                        read(new String(part));
+                        sent += part.length;
+                }
+                
+                // The handler is not reading, the connection stopped reading as soon as the buffer filled up
+                assertEquals(HttpServer.STREAM_BUFFER_SIZE, sent);
+                
+                release.countDown();
+                while ((conn.key.interestOps() & SelectionKey.OP_READ) == 0)
+                {
+                        reactorTasks.take().run();
+                }
+                
+                while (sent < size)
+                {
+                        read(new String(part));
+                        sent += part.length;
+                }
+                
+                assertTrue(reactorUntil("Read " + size).startsWith("HTTP/1.1 200 "));
+        }
+        
+        @Test
+        public void testKeepAliveAfterSplitRequest() throws IOException
+        {
+                read("GET /a HTTP/1.1\r\nHost: localhost\r\nConn");
+                read("ection: keep-alive\r\n\r\n");
+                assertEquals(HttpConnection.STATE.WAIT_FOR_REQUEST_LINE, lastState);
+                
+                read("GET /b HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n");
+                assertEquals(HttpConnection.STATE.WAIT_FOR_REQUEST_LINE, lastState);
+        }
+        
+        @Test
+        public void testIdleConnectionReleasesRequestState() throws IOException
+        {
+                HttpMemoryAccountant accountant = new HttpMemoryAccountant(1, 1);
+                ledger = accountant.newLedger("test");
+                setUpConnection();
+                
+                read("GET /a HTTP/1.1\r\nHost: localhost\r\nConn");
+                HttpRequestState request = conn.request;
+                assertNotNull(request);
+                
+                read("ection: keep-alive\r\n\r\n");
+                assertNull(conn.request);
+                assertEquals(1, pool.freeRequests());
+                
+                // The 404 response is still queued
+                assertTrue(conn.isScheduled());
+                conn.writeable();
+                assertEquals(HttpConnection.STATE.WAIT_FOR_REQUEST_LINE, lastState);
+                
+                // The idle connection holds no request state, response queue or buffers
+                assertNull(conn.request);
+                assertEquals(1, pool.freeRequests());
+                assertEquals(1, pool.freeResponseQueues());
+                assertEquals(0, conn.getMemory());
+                assertEquals(0, ledger.getBytes());
+                
+                // The next request reuses the pooled state, including its line buffer
+                read("GET /b HTTP/1.1\r\nHost: loc");
+                assertSame(request, conn.request);
+                assertEquals(0, pool.freeRequests());
+                read("alhost\r\nConnection: keep-alive\r\n\r\n");
+                assertNull(conn.request);
+                assertEquals(HttpConnection.STATE.WAIT_FOR_REQUEST_LINE, lastState);
+        }
+        
+        @Test
+        public void testShedLoad() throws IOException
+        {
+                shedder = new HttpLoadShedder(1_000_000, 100, 5);
+                setUpConnection();
+                
+                // This request started before the overload, it is served
+                read("GET /a HTTP/1.1\r\nHost: loc");
+                HttpLoadShedder.Monitor monitor = shedder.newMonitor();
+                while (!shedder.isShedding())
+                {
+                        monitor.iteration(10_000_000, 0);
+                }
+                
+                read("alhost\r\nConnection: keep-alive\r\n\r\nGET /b HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertEquals(HttpConnection.STATE.BAD_REQUEST, lastState);
+                assertNull(conn.request);
+                
+                String written = written();
+                assertTrue(written.startsWith("HTTP/1.1 404 "));
+                assertTrue(written.endsWith("File Not Found"
+                                            + "HTTP/1.1 503 Service Unavailable\r\n"
+                                            + "Connection: close\r\n"
+                                            + "Server: Aphelion\r\n"
+                                            + "Retry-After: 5\r\n"
+                                            + "Content-Length: 0\r\n"
+                                            + "\r\n"));
+                assertEquals(HttpConnection.STATE.CLOSED, lastState);
+        }
+        
+        @Test
+        public void testMemoryAccounting() throws IOException
+        {
+                HttpMemoryAccountant accountant = new HttpMemoryAccountant(1, 1);
+                ledger = accountant.newLedger("test");
+                setUpConnection();
+                
+                read("GET /a HTTP/1.1\r\nHost: loc");
+                conn.updateMemory();
+                assertTrue(conn.getMemory() > 0);
+                assertEquals(conn.getMemory(), ledger.getBytes());
+                assertEquals(conn.getMemory(), accountant.getTotal());
+                
+                conn.throttleReads(true);
+                assertEquals(0, conn.key.interestOps() & SelectionKey.OP_READ);
+                conn.throttleReads(false);
+                assertEquals(SelectionKey.OP_READ, conn.key.interestOps() & SelectionKey.OP_READ);
+                
+                // Closing releases everything
+                conn.closeForMemory();
+                assertTrue(conn.isClosed());
+                assertEquals(0, conn.getMemory());
+                assertEquals(0, accountant.getTotal());
+        }
+        
+        @Test
+        public void testTimeouts() throws IOException
+        {
+                long start = System.nanoTime();
+                
+                // The request head is incomplete
+                read("GET /a HTTP/1.1\r\n");
+                timers.advance(start + HttpServer.HEAD_TIMEOUT / 2);
+                assertEquals(HttpConnection.STATE.READING_HEADERS, lastState);
+                timers.advance(System.nanoTime() + HttpServer.HEAD_TIMEOUT + HttpServer.TIMER_TICK);
+                assertEquals(HttpConnection.STATE.CLOSED, lastState);
+                
+                // The client does not read the response (404)
+                setUpConnection();
+                start = System.nanoTime();
+                read("GET /a HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+                timers.advance(start + HttpServer.WRITE_TIMEOUT - HttpServer.TIMER_TICK);
+                assertEquals(HttpConnection.STATE.WAIT_FOR_REQUEST_LINE, lastState);
+                timers.advance(System.nanoTime() + HttpServer.WRITE_TIMEOUT + HttpServer.TIMER_TICK);
+                assertEquals(HttpConnection.STATE.CLOSED, lastState);
+                
+                // Idle keep-alive connection
+                setUpConnection();
+                read("GET /a HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+                conn.writeable();
+                start = System.nanoTime();
+                timers.advance(start + HttpServer.KEEP_ALIVE_TIMEOUT - HttpServer.TIMER_TICK * 2);
+                assertEquals(HttpConnection.STATE.WAIT_FOR_REQUEST_LINE, lastState);
+                timers.advance(System.nanoTime() + HttpServer.KEEP_ALIVE_TIMEOUT + HttpServer.TIMER_TICK);
+                assertEquals(HttpConnection.STATE.CLOSED, lastState);
+        }
+        
+        private void setUpConnection() throws IOException
+        {
+                tearDown();
+                setUp();
+        }
+}
@@ -0,0 +1,89 @@
+package wshttpserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Joris
+ */
+public class HttpLoadShedderTest
+{
+        private static final long MS = 1_000_000;
+
+        @Test
+        public void testLagHysteresis()
+        {
+                HttpLoadShedder shedder = new HttpLoadShedder(MS, 100, 1);
+                final AtomicInteger recovered = new AtomicInteger();
+                shedder.setRecoveryListener(new Runnable()
+                {
+                        @Override
+                        public void run()
+                        {
+                                recovered.incrementAndGet();
+                        }
+                });
+                HttpLoadShedder.Monitor monitor = shedder.newMonitor();
+
+                // A single slow iteration is not an overload
+                monitor.iteration(4 * MS, 1);
+                assertFalse(shedder.isShedding());
+
+                for (int a = 0; a < 10; ++a)
+                {
+                        monitor.iteration(4 * MS, 1);
+                }
+                assertTrue(shedder.isShedding());
+                assertTrue(monitor.isOverloaded());
+
+                // Below the threshold, but not below half of it
+                for (int a = 0; a < 100; ++a)
+                {
+                        monitor.iteration(MS * 3 / 4, 1);
+                }
+                assertTrue(shedder.isShedding());
+                assertEquals(0, recovered.get());
+
+                for (int a = 0; a < 10; ++a)
+                {
+                        monitor.iteration(0, 1);
+                }
+                assertFalse(shedder.isShedding());
+                assertFalse(monitor.isOverloaded());
+                assertEquals(1, recovered.get());
+        }
+
+        @Test
+        public void testQueueDepth()
+        {
+                HttpLoadShedder shedder = new HttpLoadShedder(MS, 10, 1);
+                HttpLoadShedder.Monitor a = shedder.newMonitor();
+                HttpLoadShedder.Monitor b = shedder.newMonitor();
+
+                for (int i = 0; i < 20; ++i)
+                {
+                        a.iteration(0, 50);
+                        b.iteration(0, 50);
+                }
+                assertTrue(a.isOverloaded());
+                assertTrue(b.isOverloaded());
+
+                // The server sheds load as long as any thread is overloaded
+                for (int i = 0; i < 20; ++i)
+                {
+                        a.iteration(0, 0);
+                        b.iteration(0, 8);
+                }
+                assertFalse(a.isOverloaded());
+                assertTrue(b.isOverloaded());
+                assertTrue(shedder.isShedding());
+
+                for (int i = 0; i < 20; ++i)
+                {
+                        b.iteration(0, 1);
+                }
+                assertFalse(shedder.isShedding());
+        }
+}
@@ -0,0 +1,165 @@
+package wshttpserver;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Joris
+ */
+public class HttpMemoryAccountantTest
+{
+        private Selector selector;
+        private final List<Pipe> pipes = new ArrayList<>();
+        private long now = 1_000_000_000l;
+
+        private static class FakeConsumer implements HttpMemoryAccountant.Consumer
+        {
+                final HttpMemoryAccountant.Ledger ledger;
+                long memory;
+                boolean throttled;
+                boolean closed;
+
+                FakeConsumer(HttpMemoryAccountant.Ledger ledger)
+                {
+                        this.ledger = ledger;
+                }
+
+                void setMemory(long bytes)
+                {
+                        ledger.add(bytes - memory);
+                        memory = bytes;
+                }
+
+                @Override
+                public long getMemory()
+                {
+                        return memory;
+                }
+
+                @Override
+                public void throttleReads(boolean throttle)
+                {
+                        throttled = throttle;
+                }
+
+                @Override
+                public boolean isReadThrottled()
+                {
+                        return throttled;
+                }
+
+                @Override
+                public void closeForMemory()
+                {
+                        setMemory(0);
+                        closed = true;
+                }
+
+                @Override
+                public boolean isClosed()
+                {
+                        return closed;
+                }
+        }
+
+        @Before
+        public void setUp() throws IOException
+        {
+                selector = Selector.open();
+        }
+
+        @After
+        public void tearDown() throws IOException
+        {
+                selector.close();
+                for (Pipe pipe : pipes)
+                {
+                        pipe.source().close();
+                        pipe.sink().close();
+                }
+        }
+
+        private FakeConsumer register(HttpMemoryAccountant.Ledger ledger) throws IOException
+        {
+                Pipe pipe = Pipe.open();
+                pipes.add(pipe);
+                pipe.source().configureBlocking(false);
+                FakeConsumer consumer = new FakeConsumer(ledger);
+                pipe.source().register(selector, SelectionKey.OP_READ, consumer);
+                return consumer;
+        }
+
+        private void enforce(HttpMemoryAccountant.Ledger ledger)
+        {
+                now += HttpServer.MEMORY_CHECK_INTERVAL;
+                ledger.enforce(selector.keys(), now);
+        }
+
+        @Test
+        public void testThrottleAndResume() throws IOException
+        {
+                HttpMemoryAccountant accountant = new HttpMemoryAccountant(1000, 10_000);
+                HttpMemoryAccountant.Ledger ledger = accountant.newLedger("a");
+                HttpMemoryAccountant.Ledger other = accountant.newLedger("b");
+                FakeConsumer small = register(ledger);
+                FakeConsumer large = register(ledger);
+                small.setMemory(400);
+                large.setMemory(500);
+                other.add(200);
+                assertEquals(1100, accountant.getTotal());
+                assertEquals(900, (long) accountant.getTotalByThread().get("a"));
+                assertEquals(200, (long) accountant.getTotalByThread().get("b"));
+
+                // The heaviest one first, one per check
+                enforce(ledger);
+                assertTrue(large.throttled);
+                assertFalse(small.throttled);
+                ledger.enforce(selector.keys(), now); // too soon
+                assertFalse(small.throttled);
+                enforce(ledger);
+                assertTrue(small.throttled);
+                assertEquals(2, accountant.getThrottledCount());
+
+                // Resumes below three quarters of the limit, not right below it
+                small.setMemory(300);
+                enforce(ledger);
+                assertTrue(small.throttled);
+                large.setMemory(200);
+                enforce(ledger);
+                assertFalse(small.throttled);
+                assertFalse(large.throttled);
+                assertEquals(0, accountant.getClosedCount());
+        }
+
+        @Test
+        public void testClose() throws IOException
+        {
+                HttpMemoryAccountant accountant = new HttpMemoryAccountant(1000, 2000);
+                HttpMemoryAccountant.Ledger ledger = accountant.newLedger("a");
+                FakeConsumer small = register(ledger);
+                FakeConsumer large = register(ledger);
+                small.setMemory(900);
+                large.setMemory(1200);
+
+                // Throttled consumers are closed as well
+                large.throttled = true;
+                enforce(ledger);
+                assertTrue(large.closed);
+                assertFalse(small.closed);
+                assertEquals(1, accountant.getClosedCount());
+                assertEquals(900, accountant.getTotal());
+
+                enforce(ledger);
+                assertFalse(small.closed);
+                assertFalse(small.throttled);
+        }
+}
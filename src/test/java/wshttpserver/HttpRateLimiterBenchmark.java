@@ -0,0 +1,101 @@
+package wshttpserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of the client limits per accepted connection (acquireConnection and connectionClosed) and per
+ * request (acquireRequest), for a number of distinct client addresses. This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes wshttpserver.HttpRateLimiterBenchmark [threads]
+ *
+ * @author Joris
+ */
+public class HttpRateLimiterBenchmark
+{
+        private static final int OPERATIONS = 10_000_000;
+        private static volatile long sink;
+
+        public static void main(String[] args) throws Exception
+        {
+                int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+                for (int clients : new int[] { 100, 10_000, 1_000_000 })
+                {
+                        InetAddress[] addresses = new InetAddress[clients];
+                        for (int a = 0; a < clients; ++a)
+                        {
+                                addresses[a] = address(a);
+                        }
+
+                        HttpRateLimiter limiter = new HttpRateLimiter(64, 1e6, 100);
+                        for (int iteration = 0; iteration < 3; ++iteration)
+                        {
+                                double accept = run(limiter, addresses, 1, true);
+                                double request = run(limiter, addresses, 1, false);
+                                double acceptThreads = run(limiter, addresses, threads, true);
+                                if (iteration == 2)
+                                {
+                                        System.out.printf("%8d clients: %5.1f ns per accept, %5.1f ns per request, %5.1f ns per accept with %d threads (%d tracked)%n",
+                                                          clients, accept, request, acceptThreads, threads, limiter.size());
+                                }
+                        }
+                }
+        }
+
+        private static InetAddress address(int a) throws UnknownHostException
+        {
+                return InetAddress.getByAddress(new byte[] { 10, (byte) (a >> 16), (byte) (a >> 8), (byte) a });
+        }
+
+        /** @return ns per operation */
+        private static double run(final HttpRateLimiter limiter, final InetAddress[] addresses, int threads, final boolean accept) throws InterruptedException
+        {
+                final CountDownLatch done = new CountDownLatch(threads);
+                final AtomicLong result = new AtomicLong();
+                final int operations = OPERATIONS / threads;
+                long begin = System.nanoTime();
+                for (int t = 0; t < threads; ++t)
+                {
+                        final int offset = t * 7919;
+                        Thread thread = new Thread(new Runnable()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        long sum = 0;
+                                        long now = 0;
+                                        for (int a = 0; a < operations; ++a)
+                                        {
+                                                InetAddress address = addresses[(a + offset) % addresses.length];
+                                                if ((a & 63) == 0)
+                                                {
+                                                        // The server reads the clock anyway, it is not part of the cost
+                                                        now = System.nanoTime();
+                                                }
+                                                if (accept)
+                                                {
+                                                        if (limiter.acquireConnection(address, now))
+                                                        {
+                                                                limiter.connectionClosed(address);
+                                                                ++sum;
+                                                        }
+                                                }
+                                                else
+                                                {
+                                                        sum += limiter.acquireRequest(address, now);
+                                                }
+                                        }
+                                        result.addAndGet(sum);
+                                        done.countDown();
+                                }
+                        });
+                        thread.start();
+                }
+                done.await();
+                sink = result.get();
+                return (System.nanoTime() - begin) / (double) (operations * threads);
+        }
+}
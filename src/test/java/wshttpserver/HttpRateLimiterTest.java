@@ -0,0 +1,98 @@
+package wshttpserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Joris
+ */
+public class HttpRateLimiterTest
+{
+        private static final long SECOND = 1_000_000_000l;
+
+        private static InetAddress address(String address) throws UnknownHostException
+        {
+                return InetAddress.getByName(address);
+        }
+
+        @Test
+        public void testConnections() throws UnknownHostException
+        {
+                HttpRateLimiter limiter = new HttpRateLimiter(2, 0, 1);
+                InetAddress a = address("10.0.0.1");
+                InetAddress b = address("::ffff:10.0.0.2"); // the same as 10.0.0.2
+                InetAddress c = address("2001:db8::1");
+
+                assertTrue(limiter.acquireConnection(a, 0));
+                assertTrue(limiter.acquireConnection(a, 0));
+                assertFalse(limiter.acquireConnection(a, 0));
+                assertTrue(limiter.acquireConnection(b, 0));
+                assertTrue(limiter.acquireConnection(address("10.0.0.2"), 0));
+                assertFalse(limiter.acquireConnection(b, 0));
+                assertTrue(limiter.acquireConnection(c, 0));
+
+                limiter.connectionClosed(a);
+                assertTrue(limiter.acquireConnection(a, 0));
+                assertEquals(0, limiter.acquireRequest(a, 0)); // no rate limit
+        }
+
+        @Test
+        public void testRequestRate() throws UnknownHostException
+        {
+                HttpRateLimiter limiter = new HttpRateLimiter(Integer.MAX_VALUE, 10, 5);
+                InetAddress a = address("10.0.0.1");
+
+                long now = 1000 * SECOND;
+                for (int i = 0; i < 5; ++i)
+                {
+                        assertEquals(0, limiter.acquireRequest(a, now));
+                }
+                assertEquals(SECOND / 10, limiter.acquireRequest(a, now));
+                assertFalse(limiter.acquireConnection(a, now)); // it would only receive 429
+                assertEquals(0, limiter.acquireRequest(address("10.0.0.2"), now));
+
+                now += SECOND / 10;
+                assertEquals(0, limiter.acquireRequest(a, now));
+                assertTrue(limiter.acquireRequest(a, now) > 0);
+
+                // The bucket refills completely, not beyond its size
+                now += 10 * SECOND;
+                for (int i = 0; i < 5; ++i)
+                {
+                        assertEquals(0, limiter.acquireRequest(a, now));
+                }
+                assertTrue(limiter.acquireRequest(a, now) > 0);
+        }
+
+        @Test
+        public void testEviction() throws UnknownHostException
+        {
+                HttpRateLimiter limiter = new HttpRateLimiter(1, 1, 1);
+                InetAddress connected = address("192.168.0.1");
+                assertTrue(limiter.acquireConnection(connected, 0));
+
+                long now = 0;
+                for (int i = 0; i < 100_000; ++i)
+                {
+                        now += SECOND / 10_000;
+                        InetAddress a = InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i });
+                        assertEquals(0, limiter.acquireRequest(a, now));
+                }
+
+                // Only the addresses whose bucket has not been refilled yet (the last second) are left
+                assertTrue(limiter.size() < 30_000);
+                for (int i = 100_000 - 5000; i < 100_000; ++i)
+                {
+                        InetAddress a = InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i });
+                        assertTrue(limiter.acquireRequest(a, now) > 0);
+                }
+                now += 2 * SECOND;
+                assertEquals(0, limiter.acquireRequest(address("10.255.255.255"), now));
+                assertFalse(limiter.acquireConnection(connected, now)); // still tracked
+                limiter.connectionClosed(connected);
+                assertTrue(limiter.acquireConnection(connected, now));
+        }
+}
@@ -0,0 +1,110 @@
+package wshttpserver;
+
+import wshttpserver.HttpUtil.METHOD;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Measures route lookups with a REST-like route set of 50 and of 1000 routes, compared with matching a list of
+ * regular expressions one by one. This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes wshttpserver.HttpRouterBenchmark
+ *
+ * @author Joris
+ */
+public class HttpRouterBenchmark
+{
+        private static final String[] PATTERNS = {
+                "api/v1/%s",
+                "api/v1/%s/{id}",
+                "api/v1/%s/{id}/history",
+                "api/v1/%s/{id}/items/{item}",
+                "static/%s/*",
+        };
+        private static final int LOOKUPS = 1 << 16;
+        private static volatile Object sink;
+
+        public static void main(String[] args)
+        {
+                run(50);
+                run(1000);
+        }
+
+        private static void run(int routes)
+        {
+                Random random = new Random(routes);
+                HttpRouter.Builder builder = new HttpRouter.Builder();
+                List<Pattern> regexes = new ArrayList<>();
+                HttpRoutes.Handler handler = new HttpRoutes.Handler(null, null, false);
+
+                int resources = routes / PATTERNS.length;
+                for (int a = 0; a < resources; ++a)
+                {
+                        for (String pattern : PATTERNS)
+                        {
+                                String route = String.format(pattern, "resource" + a);
+                                builder.add(METHOD.GET, route, handler);
+                                regexes.add(Pattern.compile("^/" + route.replace("/*", "(/.*)?").replaceAll("\\{\\w+\\}", "[^/]+") + "$"));
+                        }
+                }
+
+                // Requests for random routes, 1 in 10 does not match
+                String[] paths = new String[LOOKUPS];
+                for (int a = 0; a < LOOKUPS; ++a)
+                {
+                        String resource = "resource" + random.nextInt(a % 10 == 0 ? resources * 2 : resources);
+                        String id = Integer.toString(random.nextInt(100000));
+                        switch (random.nextInt(PATTERNS.length))
+                        {
+                                case 0: paths[a] = "/api/v1/" + resource; break;
+                                case 1: paths[a] = "/api/v1/" + resource + "/" + id; break;
+                                case 2: paths[a] = "/api/v1/" + resource + "/" + id + "/history"; break;
+                                case 3: paths[a] = "/api/v1/" + resource + "/" + id + "/items/" + random.nextInt(100); break;
+                                default: paths[a] = "/static/" + resource + "/css/site.css"; break;
+                        }
+                }
+
+                HttpRouter router = builder.compile();
+                int[] params = router.newParams();
+
+                long best = Long.MAX_VALUE;
+                for (int iteration = 0; iteration < 50; ++iteration)
+                {
+                        long start = System.nanoTime();
+                        int found = 0;
+                        for (String path : paths)
+                        {
+                                if (router.match(METHOD.GET, path, params) != null)
+                                {
+                                        ++found;
+                                }
+                        }
+                        best = Math.min(best, System.nanoTime() - start);
+                        sink = found;
+                }
+                System.out.printf("%4d routes, radix tree:   %6.0f ns/lookup%n", routes, best / (double) LOOKUPS);
+
+                best = Long.MAX_VALUE;
+                for (int iteration = 0; iteration < 5; ++iteration)
+                {
+                        long start = System.nanoTime();
+                        int found = 0;
+                        for (String path : paths)
+                        {
+                                for (Pattern regex : regexes)
+                                {
+                                        if (regex.matcher(path).matches())
+                                        {
+                                                ++found;
+                                                break;
+                                        }
+                                }
+                        }
+                        best = Math.min(best, System.nanoTime() - start);
+                        sink = found;
+                }
+                System.out.printf("%4d routes, regex list:   %6.0f ns/lookup%n", routes, best / (double) LOOKUPS);
+        }
+}
@@ -0,0 +1,149 @@
+package wshttpserver;
+
+import wshttpserver.HttpUtil.METHOD;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Joris
+ */
+public class HttpRouterTest
+{
+        private final HttpRouter.Builder builder = new HttpRouter.Builder();
+        private HttpRouter router;
+        private int[] params;
+
+        private HttpRoutes.Handler add(METHOD method, String pattern)
+        {
+                HttpRoutes.Handler handler = new HttpRoutes.Handler(null, null, false);
+                builder.add(method, pattern, handler);
+                return handler;
+        }
+
+        private HttpRoutes.Handler match(METHOD method, String rawPath)
+        {
+                if (router == null)
+                {
+                        router = builder.compile();
+                        params = router.newParams();
+                }
+
+                HttpRouter.Route route = router.match(method, rawPath, params);
+                return route == null ? null : route.getHandler(method);
+        }
+
+        private String param(METHOD method, String rawPath, String name)
+        {
+                HttpRouter.Route route = router.match(method, rawPath, params);
+                for (int a = 0; a < route.paramNames.length; ++a)
+                {
+                        if (route.paramNames[a].equals(name))
+                        {
+                                return HttpUtil.decodePercent(rawPath, params[a * 2], params[a * 2 + 1]);
+                        }
+                }
+                return null;
+        }
+
+        @Test
+        public void testStaticPrefix()
+        {
+                HttpRoutes.Handler api = add(METHOD.GET, "api");
+                HttpRoutes.Handler echo = add(METHOD.GET, "/api/echo/");
+                HttpRoutes.Handler echoes = add(METHOD.GET, "api/echoes");
+
+                assertSame(api, match(METHOD.GET, "/api"));
+                assertSame(api, match(METHOD.GET, "/api/other/path"));
+                assertSame(echo, match(METHOD.GET, "//api/echo"));
+                assertSame(echo, match(METHOD.GET, "/api/echo/x/y"));
+                assertSame(echoes, match(METHOD.GET, "/api/echoes"));
+                assertSame(api, match(METHOD.GET, "/api/echox"));
+                assertNull(match(METHOD.GET, "/apix"));
+                assertNull(match(METHOD.GET, "/"));
+                assertEquals("x/y", param(METHOD.GET, "/api/echo/x/y", HttpRouter.REST));
+                assertEquals("", param(METHOD.GET, "/api/echo", HttpRouter.REST));
+        }
+
+        @Test
+        public void testParameters()
+        {
+                HttpRoutes.Handler user = add(METHOD.GET, "api/users/{id}");
+                HttpRoutes.Handler files = add(METHOD.GET, "api/users/{id}/files/*");
+                HttpRoutes.Handler file = add(METHOD.GET, "api/users/{id}/files/{name}/info");
+
+                assertSame(user, match(METHOD.GET, "/api/users/12"));
+                assertSame(files, match(METHOD.GET, "/api/users/12/files"));
+                assertSame(files, match(METHOD.GET, "/api/users/12/files/a/b.txt"));
+                assertSame(file, match(METHOD.GET, "/api/users/12/files/a%20b/info"));
+                assertNull(match(METHOD.GET, "/api/users"));
+                assertNull(match(METHOD.GET, "/api/users/"));
+
+                assertEquals("12", param(METHOD.GET, "/api/users/12/files/a/b.txt", "id"));
+                assertEquals("a/b.txt", param(METHOD.GET, "/api/users/12/files/a/b.txt", HttpRouter.REST));
+                assertEquals("a b", param(METHOD.GET, "/api/users/12/files/a%20b/info", "name"));
+                assertEquals("€", param(METHOD.GET, "/api/users/%E2%82%AC", "id"));
+                assertNull(param(METHOD.GET, "/api/users/12", "name"));
+        }
+
+        @Test
+        public void testStaticPrecedence()
+        {
+                HttpRoutes.Handler param = add(METHOD.GET, "users/{id}");
+                HttpRoutes.Handler me = add(METHOD.GET, "users/me");
+                HttpRoutes.Handler edit = add(METHOD.GET, "users/{id}/edit");
+
+                assertSame(me, match(METHOD.GET, "/users/me"));
+                assertSame(param, match(METHOD.GET, "/users/mel"));
+                assertSame(param, match(METHOD.GET, "/users/m"));
+                // the static route does not continue, so the parameter route is tried
+                assertSame(edit, match(METHOD.GET, "/users/me/edit"));
+        }
+
+        @Test
+        public void testMethods()
+        {
+                HttpRoutes.Handler get = add(METHOD.GET, "items/{id}");
+                HttpRoutes.Handler put = add(METHOD.PUT, "items/new");
+
+                assertSame(get, match(METHOD.GET, "/items/new"));
+                assertSame(get, match(METHOD.HEAD, "/items/new"));
+                assertSame(put, match(METHOD.PUT, "/items/new"));
+                assertNull(match(METHOD.POST, "/items/new"));
+                assertNotNull(router.match(null, "/items/new", params));
+        }
+
+        @Test
+        public void testEncodedStaticSegment()
+        {
+                HttpRoutes.Handler space = add(METHOD.GET, "a b/€");
+                assertSame(space, match(METHOD.GET, "/a%20b/%E2%82%AC"));
+        }
+
+        @Test
+        public void testInvalidPatterns()
+        {
+                String[] invalid = { "a/*/b", "a//b", "a/{}/b", "a/{*}", "a/x{id}", "a/{id}x" };
+                for (String pattern : invalid)
+                {
+                        try
+                        {
+                                add(METHOD.GET, pattern);
+                                fail(pattern);
+                        }
+                        catch (IllegalArgumentException ex)
+                        {
+                        }
+                }
+
+                add(METHOD.GET, "a/{id}");
+                try
+                {
+                        add(METHOD.GET, "a/{name}/b");
+                        fail();
+                }
+                catch (IllegalArgumentException ex)
+                {
+                }
+        }
+}
@@ -0,0 +1,1049 @@
+package wshttpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.ClientHandshake;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Joris
+ */
+public class HttpServerTest
+{
+        private File httpdocs;
+        private ServerSocketChannel ssChannel;
+        private HttpServer server;
+        private final Recorder recorder = new Recorder();
+
+        @Before
+        public void setUp() throws IOException
+        {
+                httpdocs = Files.createTempDirectory("httpdocs").toFile();
+                Files.write(new File(httpdocs, "index.txt").toPath(), "hello".getBytes(HttpUtil.UTF8));
+                ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), false, 16);
+                server = new HttpServer(ssChannel, httpdocs, new NoWebSockets());
+                server.setDownloadThreads(2);
+        }
+
+        @After
+        public void tearDown() throws IOException
+        {
+                server.stop();
+                ssChannel.close();
+                new File(httpdocs, "index.txt").delete();
+                httpdocs.delete();
+        }
+
+        private Socket connect() throws IOException
+        {
+                Socket socket = new Socket("127.0.0.1", server.getListeningPort());
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write("GET /index.txt HTTP/1.1\r\nConnection: keep-alive\r\n\r\n".getBytes(HttpUtil.UTF8));
+                return socket;
+        }
+
+        private static String readResponse(Socket socket) throws IOException
+        {
+                InputStream in = socket.getInputStream();
+                StringBuilder response = new StringBuilder();
+                while (!response.toString().endsWith("\r\n\r\nhello"))
+                {
+                        int c = in.read();
+                        if (c < 0)
+                        {
+                                throw new IOException("closed");
+                        }
+                        response.append((char) c);
+                }
+                return response.toString();
+        }
+
+        @Test
+        public void testAcceptThread() throws IOException
+        {
+                server.setup();
+
+                // no loop() calls
+                try (Socket socket = connect())
+                {
+                        assertTrue(readResponse(socket).startsWith("HTTP/1.1 200 "));
+                }
+        }
+
+        @Test
+        public void testMaxConnections() throws IOException, InterruptedException
+        {
+                server.setMaxConnections(1);
+                server.setup();
+
+                Socket first = connect(); // closed halfway
+                try (Socket second = connect())
+                {
+                        assertTrue(readResponse(first).startsWith("HTTP/1.1 200 "));
+
+                        // The second connection waits in the backlog
+                        second.setSoTimeout(300);
+                        try
+                        {
+                                second.getInputStream().read();
+                                fail();
+                        }
+                        catch (SocketTimeoutException ex)
+                        {
+                        }
+
+                        first.close();
+                        second.setSoTimeout(5000);
+                        assertTrue(readResponse(second).startsWith("HTTP/1.1 200 "));
+                }
+                finally
+                {
+                        first.close();
+                }
+        }
+
+        @Test
+        public void testReusePortAcceptors() throws IOException
+        {
+                Assume.assumeTrue(System.getProperty("os.name").startsWith("Linux"));
+                ssChannel.close();
+                ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), true, 16);
+                server = new HttpServer(ssChannel, httpdocs, new NoWebSockets());
+                server.setDownloadThreads(4);
+                server.setReusePortAcceptors(true, 16);
+                server.setAcceptThread(false); // and no loop() calls, the download threads accept
+                server.setup();
+
+                // The kernel spreads the connections among the server channels of the threads
+                Socket[] sockets = new Socket[32];
+                try
+                {
+                        for (int a = 0; a < sockets.length; ++a)
+                        {
+                                sockets[a] = connect();
+                                assertTrue(readResponse(sockets[a]).startsWith("HTTP/1.1 200 "));
+                        }
+
+                        int total = 0;
+                        int serving = 0;
+                        for (int count : server.getDownloadConnections())
+                        {
+                                total += count;
+                                serving += count > 0 ? 1 : 0;
+                        }
+                        assertEquals(sockets.length, total);
+                        assertTrue(serving > 1);
+                }
+                finally
+                {
+                        for (Socket socket : sockets)
+                        {
+                                if (socket != null)
+                                {
+                                        socket.close();
+                                }
+                        }
+                }
+        }
+
+        @Test
+        public void testLoop() throws IOException, InterruptedException
+        {
+                server.setAcceptThread(false);
+                server.setup();
+
+                try (Socket socket = connect())
+                {
+                        Thread.sleep(50);
+                        server.loop();
+                        assertTrue(readResponse(socket).startsWith("HTTP/1.1 200 "));
+                }
+        }
+
+        @Test
+        public void testClientConnectionLimit() throws IOException
+        {
+                server.setClientLimits(1, 0, 1);
+                server.setup();
+
+                try (Socket first = connect(); Socket second = new Socket("127.0.0.1", server.getListeningPort()))
+                {
+                        assertTrue(readResponse(first).startsWith("HTTP/1.1 200 "));
+                        second.setSoTimeout(5000);
+                        try
+                        {
+                                assertEquals(-1, second.getInputStream().read());
+                        }
+                        catch (SocketException ex)
+                        {
+                                // reset
+                        }
+                }
+        }
+
+        @Test
+        public void testClientRequestRate() throws IOException
+        {
+                server.setClientLimits(10, 0.001, 2);
+                server.setup();
+
+                // A refused request is expected traffic, it is not logged as an error
+                final List<LogRecord> severe = Collections.synchronizedList(new ArrayList<LogRecord>());
+                Handler handler = new Handler()
+                {
+                        @Override
+                        public void publish(LogRecord record)
+                        {
+                                if (record.getLevel().intValue() >= Level.SEVERE.intValue())
+                                {
+                                        severe.add(record);
+                                }
+                        }
+
+                        @Override
+                        public void flush()
+                        {
+                        }
+
+                        @Override
+                        public void close()
+                        {
+                        }
+                };
+                Logger log = Logger.getLogger("wshttpserver");
+                log.addHandler(handler);
+
+                try (Socket socket = connect())
+                {
+                        assertTrue(readResponse(socket).startsWith("HTTP/1.1 200 "));
+                        socket.getOutputStream().write("GET /index.txt HTTP/1.1\r\nConnection: keep-alive\r\n\r\n".getBytes(HttpUtil.UTF8));
+                        assertTrue(readResponse(socket).startsWith("HTTP/1.1 200 "));
+                        
+                        socket.getOutputStream().write("GET /index.txt HTTP/1.1\r\nConnection: keep-alive\r\n\r\n".getBytes(HttpUtil.UTF8));
+                        String response = new String(socket.getInputStream().readAllBytes(), HttpUtil.UTF8);
+                        assertTrue(response, response.startsWith("HTTP/1.1 429 "));
+                        assertTrue(response, response.contains("\r\nRetry-After: 1000\r\n"));
+                        assertTrue(severe.isEmpty());
+                }
+                finally
+                {
+                        log.removeHandler(handler);
+                }
+        }
+
+        /** Create a server that accepts websockets and records what they receive */
+        private void createWebSocketServer(int threads) throws Exception
+        {
+                server = new HttpServer(ssChannel, httpdocs, recorder);
+                server.setWebSocketThreads(threads);
+        }
+        
+        /** Open websockets using plain sockets */
+        private WebSocket[] openWebSockets(Socket[] sockets) throws Exception
+        {
+                WebSocket[] websockets = new WebSocket[sockets.length];
+                for (int a = 0; a < sockets.length; ++a)
+                {
+                        sockets[a] = new Socket("127.0.0.1", server.getListeningPort());
+                        sockets[a].setSoTimeout(5000);
+                        sockets[a].getOutputStream().write((
+                                "GET /chat HTTP/1.1\r\n"
+                                + "Host: localhost\r\n"
+                                + "Upgrade: websocket\r\n"
+                                + "Connection: Upgrade\r\n"
+                                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                                + "Sec-WebSocket-Version: 13\r\n"
+                                + "\r\n").getBytes(HttpUtil.UTF8));
+                        
+                        StringBuilder head = new StringBuilder();
+                        while (!head.toString().endsWith("\r\n\r\n"))
+                        {
+                                head.append((char) sockets[a].getInputStream().read());
+                        }
+                        assertTrue(head.toString(), head.toString().startsWith("HTTP/1.1 101 "));
+                        websockets[a] = recorder.opened.poll(5, TimeUnit.SECONDS);
+                        assertNotNull(websockets[a]);
+                }
+                return websockets;
+        }
+        
+        @Test
+        public void testWebSocketsBeforeSetup() throws Exception
+        {
+                createWebSocketServer(1);
+                try
+                {
+                        server.broadcast("a");
+                        fail();
+                }
+                catch (IllegalStateException ex)
+                {
+                }
+                try
+                {
+                        server.publish("news", "a");
+                        fail();
+                }
+                catch (IllegalStateException ex)
+                {
+                }
+                try
+                {
+                        server.getWebSocket(1);
+                        fail();
+                }
+                catch (IllegalStateException ex)
+                {
+                }
+        }
+        
+        @Test
+        public void testBroadcast() throws Exception
+        {
+                Socket[] sockets = new Socket[3];
+                createWebSocketServer(2);
+                server.setup();
+                WebSocket[] websockets = openWebSockets(sockets);
+                
+                ServerWebSocketImpl first = (ServerWebSocketImpl) websockets[0];
+                assertSame(first, server.getWebSocket(first.getId()));
+                assertEquals(3, server.websockets().size());
+                
+                server.broadcast("hi");
+                for (Socket socket : sockets)
+                {
+                        assertArrayEquals(new byte[] { (byte) 0x81, 2, 'h', 'i' }, read(socket, 4));
+                }
+                
+                // Only the targets, with a 16 bit length
+                server.setBroadcastDirect(true);
+                ByteBuffer message = ByteBuffer.wrap(new byte[200]);
+                server.broadcast(message, Arrays.asList(websockets[0], websockets[2]));
+                assertEquals(200, message.remaining());
+                for (int a : new int[] { 0, 2 })
+                {
+                        assertArrayEquals(new byte[] { (byte) 0x82, 126, 0, (byte) 200 }, read(sockets[a], 4));
+                        assertArrayEquals(new byte[200], read(sockets[a], 200));
+                }
+                
+                server.broadcast("!", Arrays.asList(websockets[1]));
+                assertArrayEquals(new byte[] { (byte) 0x81, 1, '!' }, read(sockets[1], 3));
+                
+                for (Socket socket : sockets)
+                {
+                        socket.close();
+                }
+                
+                // 64 bit length
+                ByteBuffer frame = HttpWebSocketServer.encodeFrame(Framedata.Opcode.BINARY, ByteBuffer.allocate(70000), false);
+                assertTrue(frame.isReadOnly());
+                assertEquals(10 + 70000, frame.remaining());
+                assertEquals(127, frame.get(1));
+                assertEquals(70000, frame.getLong(2));
+        }
+        
+        @Test
+        public void testWebSocketBalancing() throws Exception
+        {
+                Socket[] sockets = new Socket[6];
+                createWebSocketServer(3);
+                server.setup();
+                WebSocket[] websockets = openWebSockets(sockets);
+                
+                // Quiet connections, so the least loaded thread is the one with the fewest connections
+                int[] perThread = new int[3];
+                for (WebSocket conn : websockets)
+                {
+                        ++perThread[(int) (((ServerWebSocketImpl) conn).getId() % 3)];
+                }
+                assertArrayEquals(new int[] { 2, 2, 2 }, perThread);
+                assertEquals(3, server.getWebSocketLoad().length);
+                assertTrue(server.getWebSocketLoad()[0] >= 2);
+                
+                for (Socket socket : sockets)
+                {
+                        socket.close();
+                }
+                long deadline = System.nanoTime() + 5_000_000_000l;
+                while (server.getWebSocketLoad()[0] > 0 && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                assertEquals(0, server.getWebSocketLoad()[0], 0);
+                
+                try
+                {
+                        server.setWebSocketThreads(1);
+                        fail();
+                }
+                catch (IllegalStateException ex)
+                {
+                }
+        }
+        
+        @Test
+        public void testWebSocketRebalancing() throws Exception
+        {
+                createWebSocketServer(2);
+                server.setWebSocketBalancing(HttpServer.WebSocketBalancing.ROUND_ROBIN);
+                server.setWebSocketRebalancing(1.5, 16);
+                server.setup();
+                Socket[] sockets = new Socket[8];
+                WebSocket[] websockets = openWebSockets(sockets);
+                
+                // Close the websockets of the second thread, so that the first one has all of them
+                List<Socket> clients = new ArrayList<>();
+                List<ServerWebSocketImpl> conns = new ArrayList<>();
+                for (int a = 0; a < sockets.length; ++a)
+                {
+                        ServerWebSocketImpl conn = (ServerWebSocketImpl) websockets[a];
+                        if (conn.server.index == 0)
+                        {
+                                clients.add(sockets[a]);
+                                conns.add(conn);
+                        }
+                        else
+                        {
+                                sockets[a].close();
+                        }
+                }
+                assertEquals(4, conns.size());
+                long deadline = System.nanoTime() + 5_000_000_000l;
+                while (server.getWebSocketLoad()[1] > 0 && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                assertEquals(0, server.getWebSocketLoad()[1], 0);
+                
+                // Messages in both directions while two of them move
+                int messages = 0;
+                int extra = 100;
+                deadline = System.nanoTime() + 10_000_000_000l;
+                while (extra > 0 && System.nanoTime() < deadline)
+                {
+                        String message = Integer.toString(messages++);
+                        if (messages % 2 == 0)
+                        {
+                                server.broadcast(message, conns);
+                        }
+                        else
+                        {
+                                for (ServerWebSocketImpl conn : conns)
+                                {
+                                        conn.send(message);
+                                }
+                        }
+                        for (Socket client : clients)
+                        {
+                                client.getOutputStream().write(maskedTextFrame(message));
+                        }
+                        
+                        if (server.getWebSocketMigrationCount() > 0)
+                        {
+                                --extra;
+                        }
+                        Thread.sleep(1);
+                }
+                
+                assertEquals(2, server.getWebSocketMigrationCount());
+                int onFirst = 0;
+                for (ServerWebSocketImpl conn : conns)
+                {
+                        onFirst += conn.server.index == 0 ? 1 : 0;
+                }
+                assertEquals(2, onFirst);
+                
+                for (int a = 0; a < conns.size(); ++a)
+                {
+                        Socket client = clients.get(a);
+                        for (int m = 0; m < messages; ++m)
+                        {
+                                String message = Integer.toString(m);
+                                assertArrayEquals(read(client, 2), new byte[] { (byte) 0x81, (byte) message.length() });
+                                assertEquals(message, new String(read(client, message.length()), HttpUtil.UTF8));
+                        }
+                        
+                        List<String> received = recorder.messages(conns.get(a));
+                        deadline = System.nanoTime() + 5_000_000_000l;
+                        while (received.size() < messages && System.nanoTime() < deadline)
+                        {
+                                Thread.sleep(10);
+                        }
+                        synchronized (received)
+                        {
+                                assertEquals(messages, received.size());
+                                for (int m = 0; m < messages; ++m)
+                                {
+                                        assertEquals(Integer.toString(m), received.get(m));
+                                }
+                        }
+                        client.close();
+                }
+        }
+        
+        @Test
+        public void testWebSocketDispatch() throws Exception
+        {
+                createWebSocketServer(1);
+                server.setWebSocketDispatch(HttpServer.WebSocketDispatch.THREAD_POOL, 4);
+                server.setup();
+                Socket[] sockets = new Socket[2];
+                WebSocket[] websockets = openWebSockets(sockets);
+                ServerWebSocketImpl slow = (ServerWebSocketImpl) websockets[0];
+                recorder.gate = new CountDownLatch(1);
+                
+                // A slow callback holds up the later messages of its own websocket, and fills its inbox
+                ByteArrayOutputStream frames = new ByteArrayOutputStream();
+                frames.write(maskedTextFrame("wait"));
+                for (int a = 0; a < 10; ++a)
+                {
+                        frames.write(maskedTextFrame(Integer.toString(a)));
+                }
+                sockets[0].getOutputStream().write(frames.toByteArray());
+                long deadline = System.nanoTime() + 5_000_000_000l;
+                while (!slow.isReadPaused() && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                assertTrue(slow.isReadPaused());
+                assertTrue(slow.inbox.size() >= 4);
+                
+                // But not the other websockets of the same thread
+                sockets[1].getOutputStream().write(maskedTextFrame("other"));
+                List<String> other = recorder.messages(websockets[1]);
+                deadline = System.nanoTime() + 5_000_000_000l;
+                while (other.isEmpty() && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                assertEquals(Arrays.asList("other"), other);
+                assertTrue(recorder.messages(slow).isEmpty());
+                
+                // Everything arrives in order once the callback returns, and reading resumes
+                recorder.gate.countDown();
+                sockets[0].getOutputStream().write(maskedTextFrame("10"));
+                List<String> received = recorder.messages(slow);
+                deadline = System.nanoTime() + 5_000_000_000l;
+                while (received.size() < 12 && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                synchronized (received)
+                {
+                        assertEquals(12, received.size());
+                        assertEquals("wait", received.get(0));
+                        for (int a = 0; a <= 10; ++a)
+                        {
+                                assertEquals(Integer.toString(a), received.get(a + 1));
+                        }
+                }
+                assertFalse(slow.isReadPaused());
+                
+                sockets[0].close();
+                sockets[1].close();
+        }
+        
+        @Test
+        public void testSuspendReads() throws Exception
+        {
+                createWebSocketServer(1);
+                server.setup();
+                Socket[] sockets = new Socket[1];
+                ServerWebSocketImpl conn = (ServerWebSocketImpl) openWebSockets(sockets)[0];
+                List<String> received = recorder.messages(conn);
+                
+                conn.suspendReads();
+                assertTrue(conn.isReadSuspended());
+                sockets[0].getOutputStream().write(maskedTextFrame("a"));
+                conn.send("b"); // writing goes on
+                assertArrayEquals(new byte[] { (byte) 0x81, 1, 'b' }, read(sockets[0], 3));
+                Thread.sleep(200);
+                assertTrue(received.isEmpty());
+                
+                conn.resumeReads();
+                long deadline = System.nanoTime() + 5_000_000_000l;
+                while (received.isEmpty() && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                assertEquals(Arrays.asList("a"), received);
+                sockets[0].close();
+        }
+        
+        @Test
+        public void testWebSocketInboundBudget() throws Exception
+        {
+                createWebSocketServer(1);
+                server.setWebSocketDispatch(HttpServer.WebSocketDispatch.VIRTUAL_THREADS, 1000);
+                server.setWebSocketInboundBudget(100);
+                server.setup();
+                Socket[] sockets = new Socket[1];
+                ServerWebSocketImpl conn = (ServerWebSocketImpl) openWebSockets(sockets)[0];
+                recorder.gate = new CountDownLatch(1);
+                
+                char[] chars = new char[60];
+                Arrays.fill(chars, 'x');
+                String message = new String(chars);
+                sockets[0].getOutputStream().write(maskedTextFrame("wait"));
+                for (int a = 0; a < 3; ++a)
+                {
+                        sockets[0].getOutputStream().write(maskedTextFrame(message));
+                }
+                long deadline = System.nanoTime() + 5_000_000_000l;
+                while (!conn.isReadPaused() && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                assertTrue(conn.isReadPaused());
+                assertFalse(conn.isReadSuspended());
+                assertTrue(conn.inbox.getBytes() >= 100);
+                
+                recorder.gate.countDown();
+                List<String> received = recorder.messages(conn);
+                deadline = System.nanoTime() + 5_000_000_000l;
+                while ((received.size() < 4 || conn.isReadPaused()) && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                assertEquals(4, received.size());
+                assertFalse(conn.isReadPaused());
+                assertEquals(0, conn.inbox.getBytes());
+                sockets[0].close();
+        }
+        
+        @Test
+        public void testOutboundDropOldest() throws Exception
+        {
+                final List<Boolean> highWater = Collections.synchronizedList(new ArrayList<Boolean>());
+                createWebSocketServer(1);
+                server.setWebSocketOutboundLimits(1_000_000, 1000, HttpServer.WebSocketOverflow.DROP_OLDEST);
+                server.setWebSocketHighWater(500_000, new HttpServer.WebSocketHighWaterListener()
+                {
+                        @Override
+                        public void wssHighWater(WebSocket ws, boolean above, long queuedBytes)
+                        {
+                                highWater.add(above);
+                        }
+                });
+                server.setup();
+                Socket[] sockets = new Socket[1];
+                ServerWebSocketImpl conn = (ServerWebSocketImpl) openWebSockets(sockets)[0];
+                
+                // The client does not read, far more than the socket buffers hold
+                int messages = 400;
+                for (int a = 0; a < messages; ++a)
+                {
+                        conn.send(ByteBuffer.allocate(60_000).putInt(0, a));
+                }
+                assertTrue(conn.getOutboundBytes() <= 1_000_000);
+                assertTrue(conn.getOutboundFrames() <= 1_000_000 / 60_004);
+                assertTrue(conn.getDroppedFrames() > 0);
+                // It may have dipped below half while the socket buffers filled up
+                synchronized (highWater)
+                {
+                        assertEquals(1, highWater.size() % 2);
+                        for (int a = 0; a < highWater.size(); ++a)
+                        {
+                                assertEquals(a % 2 == 0, highWater.get(a));
+                        }
+                }
+                
+                // The newest messages are kept, in order
+                int previous = -1;
+                int received = 0;
+                while (previous < messages - 1)
+                {
+                        assertArrayEquals(new byte[] { (byte) 0x82, 126, (byte) (60_000 >> 8), (byte) 60_000 }, read(sockets[0], 4));
+                        int index = ByteBuffer.wrap(read(sockets[0], 60_000)).getInt();
+                        assertTrue(index > previous);
+                        previous = index;
+                        ++received;
+                }
+                assertEquals(messages, received + conn.getDroppedFrames());
+                
+                // The websocket thread removes the last frame from the queue after the client may have read it
+                long deadline = System.nanoTime() + 5_000_000_000l;
+                while ((conn.getOutboundBytes() > 0 || highWater.size() % 2 != 0) && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                assertEquals(0, conn.getOutboundBytes());
+                assertEquals(0, highWater.size() % 2);
+                sockets[0].close();
+        }
+        
+        @Test
+        public void testOutboundBlock() throws Exception
+        {
+                createWebSocketServer(1);
+                server.setWebSocketOutboundLimits(Long.MAX_VALUE, 8, HttpServer.WebSocketOverflow.BLOCK);
+                server.setWebSocketBlockTimeout(2000);
+                server.setup();
+                Socket[] sockets = new Socket[1];
+                final ServerWebSocketImpl conn = (ServerWebSocketImpl) openWebSockets(sockets)[0];
+                
+                final int messages = 200;
+                Thread sender = new Thread()
+                {
+                        @Override
+                        public void run()
+                        {
+                                for (int a = 0; a < messages; ++a)
+                                {
+                                        conn.send(ByteBuffer.allocate(60_000).putInt(0, a));
+                                }
+                        }
+                };
+                sender.start();
+                sender.join(1000);
+                assertTrue(sender.isAlive());
+                assertTrue(conn.getOutboundFrames() <= 8);
+                
+                // A broadcast does not wait for the full queue, it drops the message
+                server.broadcast("b", Collections.singletonList(conn));
+                assertEquals(1, conn.getDroppedFrames());
+                
+                for (int a = 0; a < messages; ++a)
+                {
+                        read(sockets[0], 4);
+                        assertEquals(a, ByteBuffer.wrap(read(sockets[0], 60_000)).getInt());
+                }
+                sender.join(5000);
+                assertFalse(sender.isAlive());
+                assertEquals(1, conn.getDroppedFrames());
+                
+                // A client that stops reading does not hold up the sender forever: the message is dropped and the 
+                // websocket is closed with 1013
+                Thread stalled = new Thread()
+                {
+                        @Override
+                        public void run()
+                        {
+                                try
+                                {
+                                        while (conn.isOpen())
+                                        {
+                                                conn.send(ByteBuffer.allocate(60_000));
+                                        }
+                                }
+                                catch (WebsocketNotConnectedException ex)
+                                {
+                                        // closed meanwhile
+                                }
+                        }
+                };
+                stalled.start();
+                stalled.join(20_000);
+                assertFalse(stalled.isAlive());
+                assertTrue(conn.getDroppedFrames() >= 2);
+                
+                while (true)
+                {
+                        byte[] head = read(sockets[0], 2);
+                        if (head[0] == (byte) 0x88) // FIN and CLOSE
+                        {
+                                byte[] payload = read(sockets[0], head[1] & 0x7F);
+                                assertEquals(ServerWebSocketImpl.TRY_AGAIN_LATER, ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF));
+                                break;
+                        }
+                        assertEquals((byte) 0x82, head[0]); // FIN and BINARY
+                        read(sockets[0], 2 + 60_000);
+                }
+                sockets[0].close();
+        }
+        
+        @Test
+        public void testConflation() throws Exception
+        {
+                createWebSocketServer(1);
+                server.setup();
+                Socket[] sockets = new Socket[2];
+                WebSocket[] websockets = openWebSockets(sockets);
+                ServerWebSocketImpl conn = (ServerWebSocketImpl) websockets[0];
+                
+                // The client does not read, far more updates of 10 keys than the socket buffers hold
+                int keys = 10;
+                int rounds = 100;
+                for (int round = 0; round < rounds; ++round)
+                {
+                        for (int key = 0; key < keys; ++key)
+                        {
+                                conn.sendConflated(key, ByteBuffer.allocate(60_000).putInt(0, key).putInt(4, round));
+                        }
+                }
+                assertTrue(conn.getOutboundFrames() <= keys + 1); // and the one that is being written
+                assertTrue(conn.getOutboundBytes() <= (keys + 1) * 60_004);
+                conn.send("end");
+                
+                // Every key arrives in order, up to its latest value
+                int[] latest = new int[keys];
+                Arrays.fill(latest, -1);
+                int received = 0;
+                while (true)
+                {
+                        byte[] header = read(sockets[0], 2);
+                        if (header[0] == (byte) 0x81)
+                        {
+                                assertEquals("end", new String(read(sockets[0], header[1]), HttpUtil.UTF8));
+                                break;
+                        }
+                        read(sockets[0], 2);
+                        ByteBuffer message = ByteBuffer.wrap(read(sockets[0], 60_000));
+                        int key = message.getInt(0);
+                        assertTrue(message.getInt(4) > latest[key]);
+                        latest[key] = message.getInt(4);
+                        ++received;
+                }
+                for (int key = 0; key < keys; ++key)
+                {
+                        assertEquals(rounds - 1, latest[key]);
+                }
+                assertTrue(received < keys * rounds);
+                
+                // The websocket thread removes the last frame from the queue after the client may have read it
+                long deadline = System.nanoTime() + 5_000_000_000l;
+                while (conn.getOutboundBytes() > 0 && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                assertEquals(0, conn.getOutboundBytes());
+                
+                // The same for topics, behind a backlog: a replaced message keeps its place
+                server.subscribe(websockets[1], "quotes");
+                for (int a = 0; a < 200; ++a)
+                {
+                        websockets[1].send(ByteBuffer.allocate(60_000));
+                }
+                assertEquals(1, server.publish("quotes", "a", "a1"));
+                server.publish("quotes", "b", "b1");
+                server.publish("quotes", "a", "a2");
+                server.publish("quotes", "c");
+                for (int a = 0; a < 200; ++a)
+                {
+                        read(sockets[1], 4 + 60_000);
+                }
+                StringBuilder quotes = new StringBuilder();
+                while (quotes.length() < "a2b1c".length())
+                {
+                        byte[] header = read(sockets[1], 2);
+                        quotes.append(new String(read(sockets[1], header[1]), HttpUtil.UTF8));
+                }
+                assertEquals("a2b1c", quotes.toString());
+                
+                sockets[0].close();
+                sockets[1].close();
+        }
+        
+        @Test
+        public void testCoalescing() throws Exception
+        {
+                createWebSocketServer(1);
+                server.setWebSocketCoalescing(500_000);
+                server.setup();
+                Socket[] sockets = new Socket[1];
+                ServerWebSocketImpl conn = (ServerWebSocketImpl) openWebSockets(sockets)[0];
+                InputStream in = sockets[0].getInputStream();
+                Thread.sleep(600); // until the delay that the handshake started has passed
+
+                // Nothing is written until the delay has passed, then everything at once
+                int messages = 100;
+                for (int a = 0; a < messages; ++a)
+                {
+                        conn.send("m" + (a % 10));
+                }
+                Thread.sleep(100);
+                assertEquals(0, in.available());
+                for (int a = 0; a < messages; ++a)
+                {
+                        assertArrayEquals(new byte[] { (byte) 0x81, 2, 'm', (byte) ('0' + a % 10) }, read(sockets[0], 4));
+                }
+
+                // Unless it is flushed
+                conn.send("now");
+                conn.flush();
+                sockets[0].setSoTimeout(250);
+                assertArrayEquals(new byte[] { (byte) 0x81, 3, 'n', 'o', 'w' }, read(sockets[0], 5));
+                sockets[0].close();
+        }
+
+        /** A client frame, with a mask of 0 */
+        private static byte[] maskedTextFrame(String message)
+        {
+                byte[] payload = message.getBytes(HttpUtil.UTF8);
+                byte[] frame = new byte[6 + payload.length];
+                frame[0] = (byte) 0x81;
+                frame[1] = (byte) (0x80 | payload.length);
+                System.arraycopy(payload, 0, frame, 6, payload.length);
+                return frame;
+        }
+        
+        @Test
+        public void testPublish() throws Exception
+        {
+                Socket[] sockets = new Socket[3];
+                createWebSocketServer(2);
+                server.setup();
+                WebSocket[] websockets = openWebSockets(sockets);
+                
+                assertTrue(server.subscribe(websockets[0], "news"));
+                assertFalse(server.subscribe(websockets[0], "news"));
+                assertTrue(server.subscribe(websockets[1], "news"));
+                assertTrue(server.subscribe(websockets[1], "sport"));
+                assertEquals(2, server.getSubscriberCount("news"));
+                assertEquals(2, server.getTopicCount());
+                
+                assertEquals(2, server.publish("news", "a"));
+                assertEquals(0, server.publish("weather", "b"));
+                assertEquals(1, server.publish("sport", ByteBuffer.wrap(new byte[] { 7 })));
+                assertArrayEquals(new byte[] { (byte) 0x81, 1, 'a' }, read(sockets[0], 3));
+                assertArrayEquals(new byte[] { (byte) 0x81, 1, 'a', (byte) 0x82, 1, 7 }, read(sockets[1], 6));
+                
+                assertTrue(server.unsubscribe(websockets[0], "news"));
+                assertFalse(server.unsubscribe(websockets[2], "news"));
+                assertEquals(1, server.publish("news", "c"));
+                assertArrayEquals(new byte[] { (byte) 0x81, 1, 'c' }, read(sockets[1], 3));
+                
+                // Closing ends every subscription, and removes empty topics
+                sockets[1].close();
+                long deadline = System.nanoTime() + 5_000_000_000l;
+                while (server.getTopicCount() > 0 && System.nanoTime() < deadline)
+                {
+                        Thread.sleep(10);
+                }
+                assertEquals(0, server.getTopicCount());
+                assertFalse(server.subscribe(websockets[1], "news"));
+                
+                sockets[0].close();
+                sockets[2].close();
+        }
+        
+        private static byte[] read(Socket socket, int length) throws IOException
+        {
+                byte[] bytes = new byte[length];
+                int offset = 0;
+                while (offset < length)
+                {
+                        int read = socket.getInputStream().read(bytes, offset, length - offset);
+                        if (read < 0)
+                        {
+                                throw new IOException("closed");
+                        }
+                        offset += read;
+                }
+                return bytes;
+        }
+
+        private static class Recorder extends NoWebSockets
+        {
+                final LinkedBlockingQueue<WebSocket> opened = new LinkedBlockingQueue<>();
+                volatile CountDownLatch gate; // messages that start with "wait" wait for it
+                private final ConcurrentHashMap<WebSocket, List<String>> messages = new ConcurrentHashMap<>();
+                
+                List<String> messages(WebSocket conn)
+                {
+                        List<String> list = messages.get(conn);
+                        if (list == null)
+                        {
+                                List<String> existing = messages.putIfAbsent(conn, list = Collections.synchronizedList(new ArrayList<String>()));
+                                if (existing != null)
+                                {
+                                        list = existing;
+                                }
+                        }
+                        return list;
+                }
+                
+                @Override
+                public boolean wssConnect(SelectionKey key)
+                {
+                        return true;
+                }
+
+                @Override
+                public void wssOpen(WebSocket conn, ClientHandshake handshake)
+                {
+                        opened.add(conn);
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, String message)
+                {
+                        if (message.startsWith("wait"))
+                        {
+                                try
+                                {
+                                        gate.await();
+                                }
+                                catch (InterruptedException ex)
+                                {
+                                        Thread.currentThread().interrupt();
+                                }
+                        }
+                        messages(conn).add(message);
+                }
+        }
+        
+        static class NoWebSockets implements HttpWebSocketServerListener
+        {
+                @Override
+                public boolean wssConnect(SelectionKey key)
+                {
+                        return false;
+                }
+
+                @Override
+                public void wssOpen(WebSocket conn, ClientHandshake handshake)
+                {
+                }
+
+                @Override
+                public void wssClose(WebSocket conn, int code, String reason, boolean remote)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, String message)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, ByteBuffer message)
+                {
+                }
+
+                @Override
+                public void wssError(WebSocket conn, Exception ex)
+                {
+                }
+        }
+}
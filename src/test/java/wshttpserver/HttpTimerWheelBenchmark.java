@@ -0,0 +1,140 @@
+package wshttpserver;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the per second cost of connection timeouts: a sweep over every connection (as HttpDownloadThread used
+ * to do with selector.keys() once per second), versus the timing wheel where every connection renews its timeout
+ * once per timeout period. This is not a unit test, run it manually:
+ *
+ * java -Xmx4g -cp target/classes:target/test-classes wshttpserver.HttpTimerWheelBenchmark
+ *
+ * @author Joris
+ */
+public class HttpTimerWheelBenchmark
+{
+        private static final long SECOND = 1_000_000_000l;
+        private static final long TIMEOUT = 10 * SECOND;
+        private static volatile Object sink;
+
+        public static void main(String[] args)
+        {
+                for (int timers : new int[] { 10_000, 100_000, 1_000_000 })
+                {
+                        run(timers);
+                }
+        }
+
+        private static class Conn
+        {
+                long nanoLastReceived;
+        }
+
+        private static class RenewingTimer extends HttpTimerWheel.Timer
+        {
+                HttpTimerWheel wheel;
+                long expired;
+
+                @Override
+                void expired(long nowNanos)
+                {
+                        // An active connection: its deadline moved, schedule it again
+                        ++expired;
+                        wheel.schedule(this, nowNanos + TIMEOUT);
+                }
+        }
+
+        private static void run(int count)
+        {
+                Random random = new Random(count);
+
+                // The old sweep, over a hash set (like selector.keys())
+                Set<Conn> conns = new HashSet<>();
+                long start = 0;
+                for (int a = 0; a < count; ++a)
+                {
+                        Conn conn = new Conn();
+                        conn.nanoLastReceived = start - random.nextInt((int) (TIMEOUT / 1000)) * 1000l;
+                        conns.add(conn);
+                }
+
+                long best = Long.MAX_VALUE;
+                for (int iteration = 0; iteration < 20; ++iteration)
+                {
+                        long begin = System.nanoTime();
+                        int found = 0;
+                        for (Conn conn : conns)
+                        {
+                                if (start - conn.nanoLastReceived > TIMEOUT)
+                                {
+                                        ++found;
+                                }
+                        }
+                        best = Math.min(best, System.nanoTime() - begin);
+                        sink = found;
+                }
+                System.out.printf("%8d timers, sweep once per second:      %8.3f ms/s (in a single pause)%n", count, best / 1e6);
+                conns = null;
+
+                // The timing wheel, advanced every tick for 10 simulated seconds
+                best = Long.MAX_VALUE;
+                double scheduleNanos = Double.MAX_VALUE;
+                long maxPause = Long.MAX_VALUE;
+                long idle = Long.MAX_VALUE;
+                for (int iteration = 0; iteration < 5; ++iteration)
+                {
+                        HttpTimerWheel wheel = new HttpTimerWheel(HttpServer.TIMER_TICK, HttpServer.TIMER_WHEEL_SIZE, start);
+                        RenewingTimer[] timers = new RenewingTimer[count];
+                        for (int a = 0; a < count; ++a)
+                        {
+                                timers[a] = new RenewingTimer();
+                                timers[a].wheel = wheel;
+                        }
+
+                        long begin = System.nanoTime();
+                        for (int a = 0; a < count; ++a)
+                        {
+                                wheel.schedule(timers[a], start + random.nextInt((int) (TIMEOUT / 1000)) * 1000l);
+                        }
+                        for (int a = 0; a < count; ++a)
+                        {
+                                wheel.cancel(timers[a]);
+                        }
+                        for (int a = 0; a < count; ++a)
+                        {
+                                wheel.schedule(timers[a], start + random.nextInt((int) (TIMEOUT / 1000)) * 1000l);
+                        }
+                        scheduleNanos = Math.min(scheduleNanos, (System.nanoTime() - begin) / (3.0 * count));
+
+                        begin = System.nanoTime();
+                        int expired = 0;
+                        long pause = 0;
+                        for (long now = start; now <= start + TIMEOUT; now += HttpServer.TIMER_TICK)
+                        {
+                                long tickBegin = System.nanoTime();
+                                expired += wheel.advance(now);
+                                pause = Math.max(pause, System.nanoTime() - tickBegin);
+                        }
+                        best = Math.min(best, (System.nanoTime() - begin) / (TIMEOUT / SECOND));
+                        maxPause = Math.min(maxPause, pause);
+                        sink = expired;
+
+                        // Idle connections whose deadlines are further away than a second are not visited
+                        for (int a = 0; a < count; ++a)
+                        {
+                                wheel.schedule(timers[a], start + 2 * TIMEOUT + random.nextInt((int) (TIMEOUT / 1000)) * 1000l);
+                        }
+                        begin = System.nanoTime();
+                        for (long now = start + TIMEOUT; now <= start + TIMEOUT + SECOND; now += HttpServer.TIMER_TICK)
+                        {
+                                wheel.advance(now);
+                        }
+                        idle = Math.min(idle, System.nanoTime() - begin);
+                }
+                System.out.printf("%8d timers, timing wheel, all renewed:   %8.3f ms/s, longest advance() %.3f ms, schedule/cancel %.0f ns%n",
+                                  count, best / 1e6, maxPause / 1e6, scheduleNanos);
+                System.out.printf("%8d timers, timing wheel, none due:      %8.3f ms/s%n", count, idle / 1e6);
+        }
+}
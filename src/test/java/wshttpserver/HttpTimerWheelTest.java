@@ -0,0 +1,140 @@
+package wshttpserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Joris
+ */
+public class HttpTimerWheelTest
+{
+        private static final long TICK = 100;
+        private final HttpTimerWheel wheel = new HttpTimerWheel(TICK, 8, 0);
+        private final List<String> expired = new ArrayList<>();
+
+        private HttpTimerWheel.Timer timer(final String name)
+        {
+                return new HttpTimerWheel.Timer()
+                {
+                        @Override
+                        void expired(long nowNanos)
+                        {
+                                expired.add(name);
+                        }
+                };
+        }
+
+        @Test
+        public void testExpire()
+        {
+                HttpTimerWheel.Timer a = timer("a");
+                HttpTimerWheel.Timer b = timer("b");
+                wheel.schedule(a, 150);
+                wheel.schedule(b, 300);
+                assertEquals(2, wheel.size());
+
+                assertEquals(0, wheel.advance(199)); // never early
+                assertEquals(1, wheel.advance(200));
+                assertEquals("[a]", expired.toString());
+                assertFalse(a.isScheduled());
+                assertTrue(b.isScheduled());
+
+                assertEquals(0, wheel.advance(299));
+                assertEquals(1, wheel.advance(300));
+                assertEquals("[a, b]", expired.toString());
+                assertEquals(0, wheel.size());
+        }
+
+        @Test
+        public void testUntilNextTick()
+        {
+                assertEquals(500, wheel.untilNextTick(0, 500));
+                
+                wheel.schedule(timer("a"), 250); // expires at the tick of 300
+                assertEquals(300, wheel.untilNextTick(0, 500));
+                assertEquals(50, wheel.untilNextTick(250, 500));
+                assertEquals(200, wheel.untilNextTick(0, 200));
+                assertEquals(0, wheel.untilNextTick(350, 500)); // overdue
+                
+                wheel.advance(300);
+                assertEquals(500, wheel.untilNextTick(300, 500));
+        }
+
+        @Test
+        public void testCancelAndReschedule()
+        {
+                HttpTimerWheel.Timer a = timer("a");
+                HttpTimerWheel.Timer b = timer("b");
+                HttpTimerWheel.Timer c = timer("c");
+                wheel.schedule(a, 100);
+                wheel.schedule(b, 100);
+                wheel.schedule(c, 100);
+                wheel.cancel(b);
+                wheel.schedule(c, 500);
+                wheel.cancel(b); // not scheduled
+
+                wheel.advance(100);
+                assertEquals("[a]", expired.toString());
+                wheel.advance(500);
+                assertEquals("[a, c]", expired.toString());
+                assertEquals(0, wheel.size());
+        }
+
+        @Test
+        public void testMultipleRevolutions()
+        {
+                // The wheel has 8 buckets of 100
+                HttpTimerWheel.Timer a = timer("a");
+                HttpTimerWheel.Timer b = timer("b");
+                wheel.schedule(a, 1000);
+                wheel.schedule(b, 5000);
+
+                for (long now = 0; now < 1000; now += TICK)
+                {
+                        wheel.advance(now);
+                }
+                assertTrue(expired.isEmpty());
+                wheel.advance(1000);
+                assertEquals("[a]", expired.toString());
+
+                // A late advance() visits every bucket once
+                wheel.advance(4900);
+                assertEquals("[a]", expired.toString());
+                wheel.advance(100000);
+                assertEquals("[a, b]", expired.toString());
+        }
+
+        @Test
+        public void testCallbacks()
+        {
+                // Two timers of the same tick, the first one to expire cancels the other
+                final HttpTimerWheel.Timer[] timers = new HttpTimerWheel.Timer[2];
+                for (int i = 0; i < 2; ++i)
+                {
+                        final int other = 1 - i;
+                        timers[i] = new HttpTimerWheel.Timer()
+                        {
+                                @Override
+                                void expired(long nowNanos)
+                                {
+                                        expired.add("x");
+                                        wheel.cancel(timers[other]);
+                                        wheel.schedule(this, nowNanos + 200);
+                                }
+                        };
+                        wheel.schedule(timers[i], 100);
+                }
+
+                wheel.advance(100);
+                assertEquals("[x]", expired.toString());
+                assertTrue(timers[0].isScheduled() != timers[1].isScheduled());
+                assertEquals(1, wheel.size());
+
+                wheel.advance(300);
+                assertEquals("[x, x]", expired.toString());
+                assertEquals(1, wheel.size());
+        }
+}
@@ -0,0 +1,85 @@
+package wshttpserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Joris
+ */
+public class HttpTopicsTest
+{
+        private final List<HttpWebSocketServer> servers = Arrays.asList(
+                new HttpWebSocketServer(new HttpServerTest.NoWebSockets(), 0),
+                new HttpWebSocketServer(new HttpServerTest.NoWebSockets(), 1));
+
+        private ServerWebSocketImpl connection(int server)
+        {
+                ServerWebSocketImpl conn = new ServerWebSocketImpl(servers.get(server));
+                conn.server = servers.get(server);
+                return conn;
+        }
+
+        @Test
+        public void testSubscribeAcrossChunks()
+        {
+                HttpTopics topics = new HttpTopics(servers);
+                List<ServerWebSocketImpl> subscribed = new ArrayList<>();
+                for (int a = 0; a < HttpTopics.CHUNK_SIZE * 2 + 3; ++a)
+                {
+                        ServerWebSocketImpl conn = connection(0);
+                        assertTrue(topics.subscribe(conn, "news"));
+                        subscribed.add(conn);
+                }
+                assertFalse(topics.subscribe(subscribed.get(5), "news"));
+                ServerWebSocketImpl other = connection(1);
+                assertTrue(topics.subscribe(other, "news"));
+
+                assertEquals(subscribed, topics.getSubscribers("news", 0));
+                assertEquals(Collections.singletonList(other), topics.getSubscribers("news", 1));
+                assertEquals(subscribed.size() + 1, topics.getSubscriberCount("news"));
+
+                // In random order, so that every chunk gets holes that the last subscriber fills
+                Collections.shuffle(subscribed);
+                for (ServerWebSocketImpl conn : new ArrayList<>(subscribed))
+                {
+                        assertTrue(topics.unsubscribe(conn, "news"));
+                        assertFalse(topics.unsubscribe(conn, "news"));
+                        subscribed.remove(conn);
+                        if (subscribed.size() % 97 == 0 || subscribed.size() < 3)
+                        {
+                                List<ServerWebSocketImpl> left = topics.getSubscribers("news", 0);
+                                assertEquals(subscribed.size(), left.size());
+                                assertEquals(new HashSet<>(subscribed), new HashSet<>(left));
+                        }
+                }
+                assertTrue(topics.getSubscribers("news", 0).isEmpty());
+                assertEquals(1, topics.getSubscriberCount("news"));
+
+                topics.closed(other);
+                assertTrue(topics.isEmpty("news"));
+                assertEquals(0, topics.getTopicCount());
+                assertFalse(topics.subscribe(other, "news"));
+        }
+
+        @Test
+        public void testMovedConnection()
+        {
+                HttpTopics topics = new HttpTopics(servers);
+                ServerWebSocketImpl conn = connection(0);
+                ServerWebSocketImpl stays = connection(0);
+                assertTrue(topics.subscribe(conn, "news"));
+                assertTrue(topics.subscribe(stays, "news"));
+
+                // It stays in the snapshot of the thread it subscribed on, until it unsubscribes
+                conn.server = servers.get(1);
+                assertEquals(Arrays.asList(conn, stays), topics.getSubscribers("news", 0));
+                assertTrue(topics.unsubscribe(conn, "news"));
+                assertEquals(Collections.singletonList(stays), topics.getSubscribers("news", 0));
+        }
+}
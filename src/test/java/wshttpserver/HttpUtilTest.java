@@ -144,4 +144,15 @@ public class HttpUtilTest
                 dest.setLength(0);
                 assertFalse(HttpUtil.readLine(dest, buf, true));
         }
+
+        @Test
+        public void testDecodePercent()
+        {
+                assertEquals("abc", HttpUtil.decodePercent("/abc/", 1, 4));
+                assertEquals("a b+c", HttpUtil.decodePercent("a%20b+c", 0, 7));
+                assertEquals("\u20AC", HttpUtil.decodePercent("%E2%82%AC", 0, 9));
+                assertEquals("%2", HttpUtil.decodePercent("%2", 0, 2));
+                assertEquals("%zz", HttpUtil.decodePercent("%zz", 0, 3));
+                assertEquals("%", HttpUtil.decodePercent("%20", 0, 1));
+        }
 }
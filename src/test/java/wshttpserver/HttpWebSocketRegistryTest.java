@@ -0,0 +1,89 @@
+package wshttpserver;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import org.java_websocket.WebSocket;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Joris
+ */
+public class HttpWebSocketRegistryTest
+{
+        private final HttpWebSocketServer server = new HttpWebSocketServer(new HttpServerTest.NoWebSockets(), 0);
+
+        @Test
+        public void testIds()
+        {
+                HttpWebSocketRegistry registry = new HttpWebSocketRegistry(3);
+                ServerWebSocketImpl a = new ServerWebSocketImpl(server);
+                ServerWebSocketImpl b = new ServerWebSocketImpl(server);
+                ServerWebSocketImpl c = new ServerWebSocketImpl(server);
+                assertTrue(registry.isEmpty());
+                assertFalse(registry.remove(a)); // never opened
+
+                // Unique, and the shard follows from the id
+                long idA = registry.add(0, a);
+                long idB = registry.add(2, b);
+                long idC = registry.add(2, c);
+                assertEquals(idA, a.getId());
+                assertEquals(0, idA % 3);
+                assertEquals(2, idB % 3);
+                assertEquals(2, idC % 3);
+                assertTrue(idA > 0 && idB > 0 && idB != idC);
+
+                assertSame(a, registry.get(idA));
+                assertSame(c, registry.get(idC));
+                assertNull(registry.get(0));
+                assertNull(registry.get(idC + 3));
+                assertEquals(3, registry.size());
+                assertTrue(registry.contains(b));
+                assertFalse(registry.contains(new ServerWebSocketImpl(server)));
+
+                Set<WebSocket> all = new HashSet<>(registry);
+                assertEquals(3, all.size());
+                assertTrue(all.contains(a) && all.contains(b) && all.contains(c));
+
+                assertTrue(registry.remove(b));
+                assertFalse(registry.remove(b));
+                assertNull(registry.get(idB));
+                assertEquals(2, registry.size());
+                assertEquals(idB, b.getId()); // stable
+        }
+
+        @Test
+        public void testIterateWhileModified()
+        {
+                HttpWebSocketRegistry registry = new HttpWebSocketRegistry(2);
+                ServerWebSocketImpl[] conns = new ServerWebSocketImpl[100];
+                for (int a = 0; a < conns.length; ++a)
+                {
+                        conns[a] = new ServerWebSocketImpl(server);
+                        registry.add(a % 2, conns[a]);
+                }
+
+                int count = 0;
+                Iterator<WebSocket> it = registry.iterator();
+                while (it.hasNext())
+                {
+                        assertNotNull(it.next());
+                        ++count;
+                        // Weakly consistent: no ConcurrentModificationException
+                        registry.remove(conns[count % conns.length]);
+                        registry.add(count % 2, new ServerWebSocketImpl(server));
+                }
+                assertTrue(count >= 50);
+
+                try
+                {
+                        registry.iterator().remove();
+                        fail();
+                }
+                catch (UnsupportedOperationException ex)
+                {
+                }
+        }
+}
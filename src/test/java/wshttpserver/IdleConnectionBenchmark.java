@@ -0,0 +1,231 @@
+package wshttpserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+
+/**
+ * Measures the heap that an idle keep-alive connection costs. Every client performs a single request and then keeps
+ * its connection open. The result is the whole heap per connection, including the JDK socket channel and its
+ * selection key. It is compared with a plain selector that only registers the accepted channels, so that the
+ * difference is what HttpServer adds on top of those. The socket buffers of the kernel are not on the heap and are
+ * not included.
+ * This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.IdleConnectionBenchmark [connections]
+ *
+ * The clients run in a separate JVM, so that only the server side is measured.
+ *
+ * @author Joris
+ */
+public class IdleConnectionBenchmark
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final String REQUEST = "GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n";
+
+        public static void main(String[] args) throws Exception
+        {
+                if (args.length > 0 && "client".equals(args[0]))
+                {
+                        client(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Boolean.parseBoolean(args[3]));
+                        return;
+                }
+
+                int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+
+                log.setLevel(Level.WARNING);
+
+                File httpdocs = Files.createTempDirectory("bench").toFile();
+                File file = new File(httpdocs, "index.html");
+                Files.write(file.toPath(), new byte[128]);
+                file.deleteOnExit();
+                httpdocs.deleteOnExit();
+
+                // Only the selection keys of the accepted channels
+                double baseline;
+                {
+                        final ServerSocketChannel ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), false, connections);
+                        ssChannel.configureBlocking(true);
+                        final Selector selector = Selector.open();
+                        final List<SocketChannel> accepted = new ArrayList<>();
+                        Thread acceptor = new Thread(new Runnable()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        try
+                                        {
+                                                SocketChannel sChannel;
+                                                while ((sChannel = ssChannel.accept()) != null)
+                                                {
+                                                        sChannel.configureBlocking(false);
+                                                        sChannel.register(selector, SelectionKey.OP_READ);
+                                                        accepted.add(sChannel);
+                                                }
+                                        }
+                                        catch (IOException ex)
+                                        {
+                                                // closed
+                                        }
+                                }
+                        });
+                        acceptor.start();
+
+                        long before = usedHeap();
+                        Process clients = startClients(ssChannel.socket().getLocalPort(), connections, false);
+                        while (accepted.size() < connections)
+                        {
+                                Thread.sleep(10);
+                        }
+                        baseline = (usedHeap() - before) / (double) connections;
+                        System.out.printf("%6d idle connections, plain selector:  %6.0f bytes per connection%n", connections, baseline);
+
+                        clients.destroy();
+                        clients.waitFor();
+                        ssChannel.close();
+                        acceptor.join();
+                        for (SocketChannel sChannel : accepted)
+                        {
+                                sChannel.close();
+                        }
+                        selector.close();
+                }
+
+                {
+                        ServerSocketChannel ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), false, connections);
+                        HttpServer server = new HttpServer(ssChannel, httpdocs, new NoWebSockets());
+                        server.setDownloadThreads(1);
+                        server.setup();
+
+                        // Warm up, so that the pools and the classes that a request needs are not counted
+                        startClients(server.getListeningPort(), 100, true).destroy();
+                        Thread.sleep(500);
+
+                        long before = usedHeap();
+                        Process clients = startClients(server.getListeningPort(), connections, true);
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(clients.getInputStream(), HttpUtil.UTF8));
+                        String line = reader.readLine(); // every response has been received
+                        double perConnection = (usedHeap() - before) / (double) connections;
+                        System.out.printf("%6d idle connections, HttpServer:      %6.0f bytes per connection (%s), %.0f bytes more than the plain selector%n",
+                                          connections, perConnection, line, perConnection - baseline);
+
+                        clients.destroy();
+                        clients.waitFor();
+                        server.stop();
+                        ssChannel.close();
+                }
+        }
+
+        private static long usedHeap() throws InterruptedException
+        {
+                for (int a = 0; a < 3; ++a)
+                {
+                        System.gc();
+                        Thread.sleep(100);
+                }
+                return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+
+        private static Process startClients(int port, int connections, boolean readResponses) throws IOException
+        {
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                          IdleConnectionBenchmark.class.getName(), "client",
+                                          Integer.toString(port), Integer.toString(connections), Boolean.toString(readResponses))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+        }
+
+        private static void client(int port, int connections, boolean readResponses) throws Exception
+        {
+                InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+                List<SocketChannel> channels = new ArrayList<>();
+                ByteBuffer buf = ByteBuffer.allocate(1024);
+                int responses = 0;
+
+                for (int a = 0; a < connections; ++a)
+                {
+                        SocketChannel channel = SocketChannel.open(address);
+                        channels.add(channel);
+                        channel.write(ByteBuffer.wrap(REQUEST.getBytes(HttpUtil.UTF8)));
+
+                        if (readResponses)
+                        {
+                                buf.clear();
+                                while (true)
+                                {
+                                        if (channel.read(buf) < 0)
+                                        {
+                                                throw new IOException("closed");
+                                        }
+
+                                        String response = new String(buf.array(), 0, buf.position(), HttpUtil.UTF8);
+                                        int headEnd = response.indexOf("\r\n\r\n");
+                                        if (headEnd >= 0 && buf.position() >= headEnd + 4 + 128)
+                                        {
+                                                if (response.startsWith("HTTP/1.1 200 "))
+                                                {
+                                                        ++responses;
+                                                }
+                                                break;
+                                        }
+                                }
+                        }
+                }
+
+                System.out.println(responses + " responses");
+                System.out.flush();
+
+                // Keep the connections open until the server kills this process
+                Thread.sleep(Long.MAX_VALUE);
+        }
+
+        private static class NoWebSockets implements HttpWebSocketServerListener
+        {
+                @Override
+                public boolean wssConnect(SelectionKey key)
+                {
+                        return false;
+                }
+
+                @Override
+                public void wssOpen(WebSocket conn, ClientHandshake handshake)
+                {
+                }
+
+                @Override
+                public void wssClose(WebSocket conn, int code, String reason, boolean remote)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, String message)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, ByteBuffer message)
+                {
+                }
+
+                @Override
+                public void wssError(WebSocket conn, Exception ex)
+                {
+                }
+        }
+}
@@ -0,0 +1,334 @@
+package wshttpserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives the server past its capacity with an open loop: requests are sent at a fixed rate, no matter how fast the
+ * server answers them. Runs once without load shedding and once with it, and reports the latency of the requests
+ * that were answered with 200 (from writing the request until the last byte of the response), the number of 503
+ * responses, the requests that were lost because their connection closed, and the requests that were not sent
+ * because none of the client connections became free within a second. This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.LoadSheddingBenchmark [requests per second] [seconds]
+ *
+ * The client runs in a separate JVM. Every response is a static file, which the download thread reads and writes
+ * itself, so that the download thread is the bottleneck.
+ *
+ * @author Joris
+ */
+public class LoadSheddingBenchmark
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final int FILE_SIZE = 65536;
+        private static final int CONNECTIONS = 256; // each has at most one request outstanding
+        private static final long CLIENT_TIMEOUT = 1_000_000_000l; // ns. A request is given up if no connection is free in time
+        private static final byte[] REQUEST = "GET /file.bin HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n".getBytes(HttpUtil.UTF8);
+
+        public static void main(String[] args) throws Exception
+        {
+                if (args.length > 0 && "client".equals(args[0]))
+                {
+                        client(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                        return;
+                }
+
+                int rate = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+                int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+                log.setLevel(Level.WARNING);
+
+                File httpdocs = Files.createTempDirectory("bench").toFile();
+                File file = new File(httpdocs, "file.bin");
+                Files.write(file.toPath(), new byte[FILE_SIZE]);
+                file.deleteOnExit();
+                httpdocs.deleteOnExit();
+
+                for (boolean shedding : new boolean[] { false, true })
+                {
+                        ServerSocketChannel ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), false, 1024);
+                        HttpServer server = new HttpServer(ssChannel, httpdocs, null);
+                        server.setDownloadThreads(1);
+                        if (shedding)
+                        {
+                                server.setLoadShedding(10, 256, 1);
+                        }
+                        server.setup();
+
+                        Process client = startClient(server.getListeningPort(), rate, seconds);
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), HttpUtil.UTF8));
+                        String line;
+                        while ((line = reader.readLine()) != null)
+                        {
+                                System.out.printf("%d requests/s, %-11s %s%n", rate, shedding ? "shedding:" : "no shedding:", line);
+                        }
+                        client.waitFor();
+
+                        server.stop();
+                        ssChannel.close();
+                }
+        }
+
+        private static Process startClient(int port, int rate, int seconds) throws IOException
+        {
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                          LoadSheddingBenchmark.class.getName(), "client",
+                                          Integer.toString(port), Integer.toString(rate), Integer.toString(seconds))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+        }
+
+        private static void client(int port, int rate, int seconds) throws IOException
+        {
+                InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+                Selector selector = Selector.open();
+                for (int a = 0; a < CONNECTIONS; ++a)
+                {
+                        new Connection(selector, address);
+                }
+
+                ArrayDeque<Connection> idle = new ArrayDeque<>();
+                ArrayDeque<Long> backlog = new ArrayDeque<>(); // when the requests that have not been sent were due
+                long[] latencies = new long[rate * seconds];
+                int ok = 0;
+                int unavailable = 0;
+                int lost = 0;
+                long notSent = 0;
+                int outstanding = 0;
+                ByteBuffer buf = ByteBuffer.allocate(FILE_SIZE + 1024);
+
+                long start = System.nanoTime();
+                long drainEnd = start + (seconds + 5) * 1_000_000_000l;
+                long total = (long) rate * seconds;
+                long scheduled = 0;
+
+                while (true)
+                {
+                        long now = System.nanoTime();
+                        if (now - drainEnd > 0 || (scheduled == total && backlog.isEmpty() && outstanding == 0))
+                        {
+                                break;
+                        }
+
+                        // Open loop: requests are due at a fixed rate, whether or not the previous ones were answered
+                        for (long due = Math.min(total, (now - start) * rate / 1_000_000_000l); scheduled < due; ++scheduled)
+                        {
+                                backlog.addLast(start + scheduled * 1_000_000_000l / rate);
+                        }
+
+                        while (!backlog.isEmpty() && now - backlog.getFirst() > CLIENT_TIMEOUT)
+                        {
+                                // No connection became available in time
+                                backlog.removeFirst();
+                                ++notSent;
+                        }
+
+                        while (!backlog.isEmpty() && !idle.isEmpty())
+                        {
+                                backlog.removeFirst();
+                                Connection conn = idle.removeFirst();
+                                try
+                                {
+                                        conn.send();
+                                        ++outstanding;
+                                }
+                                catch (IOException ex)
+                                {
+                                        ++notSent;
+                                        conn.reconnect();
+                                }
+                        }
+
+                        selector.select(1);
+                        now = System.nanoTime();
+                        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                        while (it.hasNext())
+                        {
+                                SelectionKey key = it.next();
+                                it.remove();
+                                Connection conn = (Connection) key.attachment();
+                                if (key.isConnectable())
+                                {
+                                        try
+                                        {
+                                                conn.channel.finishConnect();
+                                                key.interestOps(SelectionKey.OP_READ);
+                                                idle.addLast(conn);
+                                        }
+                                        catch (IOException ex)
+                                        {
+                                                conn.reconnect();
+                                        }
+                                        continue;
+                                }
+
+                                buf.clear();
+                                int read;
+                                try
+                                {
+                                        read = conn.channel.read(buf);
+                                }
+                                catch (IOException ex)
+                                {
+                                        read = -1;
+                                }
+
+                                if (read < 0)
+                                {
+                                        if (conn.outstanding)
+                                        {
+                                                ++lost;
+                                                --outstanding;
+                                        }
+                                        idle.remove(conn);
+                                        conn.reconnect();
+                                        continue;
+                                }
+
+                                buf.flip();
+                                int status = conn.parse(buf);
+                                if (status == 0)
+                                {
+                                        continue;
+                                }
+
+                                --outstanding;
+                                if (status == 200)
+                                {
+                                        latencies[ok++] = now - conn.sentAt;
+                                }
+                                else if (status == 503)
+                                {
+                                        ++unavailable;
+                                }
+
+                                if (conn.close)
+                                {
+                                        conn.reconnect();
+                                }
+                                else
+                                {
+                                        idle.addLast(conn);
+                                }
+                        }
+                }
+
+                notSent += backlog.size() + (total - scheduled);
+                lost += outstanding;
+
+                Arrays.sort(latencies, 0, ok);
+                System.out.printf("%6d x 200 (%4d/s), latency ms: p50 %6.1f  p99 %6.1f  p99.9 %6.1f  max %6.1f;  %6d x 503, %6d lost, %6d not sent%n",
+                                  ok, ok / seconds, percentile(latencies, ok, 0.5), percentile(latencies, ok, 0.99),
+                                  percentile(latencies, ok, 0.999), ok == 0 ? 0 : latencies[ok - 1] / 1e6, unavailable, lost, notSent);
+                System.out.flush();
+        }
+
+        private static double percentile(long[] sorted, int count, double p)
+        {
+                return count == 0 ? 0 : sorted[Math.min(count - 1, (int) (count * p))] / 1e6;
+        }
+
+        /** A client connection that sends one request at a time */
+        private static class Connection
+        {
+                final Selector selector;
+                final InetSocketAddress address;
+                SocketChannel channel;
+                SelectionKey key;
+                boolean outstanding; // a request has been sent, its response has not been received completely
+                long sentAt;
+                int status; // of the response that is being received, 0 while its head is incomplete
+                boolean close; // the response has "Connection: close"
+                long bodyRemaining;
+                final StringBuilder head = new StringBuilder();
+
+                Connection(Selector selector, InetSocketAddress address) throws IOException
+                {
+                        this.selector = selector;
+                        this.address = address;
+                        connect();
+                }
+
+                private void connect() throws IOException
+                {
+                        channel = SocketChannel.open();
+                        channel.configureBlocking(false);
+                        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                        channel.connect(address);
+                }
+
+                void send() throws IOException
+                {
+                        ByteBuffer request = ByteBuffer.wrap(REQUEST);
+                        while (request.hasRemaining())
+                        {
+                                channel.write(request); // the request is small, the send buffer does not fill up
+                        }
+                        outstanding = true;
+                        sentAt = System.nanoTime();
+                }
+
+                void reconnect() throws IOException
+                {
+                        outstanding = false;
+                        status = 0;
+                        close = false;
+                        head.setLength(0);
+                        key.cancel();
+                        channel.close();
+                        connect();
+                }
+
+                /** @return The status of the response, once it has been received completely, otherwise 0 */
+                int parse(ByteBuffer buf)
+                {
+                        while (buf.hasRemaining())
+                        {
+                                if (status == 0)
+                                {
+                                        head.append((char) buf.get());
+                                        int length = head.length();
+                                        if (length < 4 || head.charAt(length - 1) != '\n' || head.charAt(length - 2) != '\r'
+                                            || head.charAt(length - 3) != '\n' || head.charAt(length - 4) != '\r')
+                                        {
+                                                continue;
+                                        }
+
+                                        status = Integer.parseInt(head.substring(9, 12));
+                                        close = head.indexOf("Connection: close\r\n") >= 0;
+                                        int contentLength = head.indexOf("Content-Length: ");
+                                        bodyRemaining = Long.parseLong(head.substring(contentLength + 16, head.indexOf("\r\n", contentLength)));
+                                        head.setLength(0);
+                                }
+
+                                int skip = (int) Math.min(bodyRemaining, buf.remaining());
+                                buf.position(buf.position() + skip);
+                                bodyRemaining -= skip;
+                                if (bodyRemaining == 0)
+                                {
+                                        int done = status;
+                                        status = 0;
+                                        outstanding = false;
+                                        return done;
+                                }
+                        }
+
+                        return 0;
+                }
+        }
+}
@@ -0,0 +1,141 @@
+package wshttpserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures subscribing and unsubscribing at scale. Several threads (standing in for the websocket threads, or for a
+ * reconnect storm) subscribe their share of the connections at the same time, first all to a single topic and then
+ * spread over many topics. A publish to every topic is timed in between, and the connections then close, which
+ * removes their subscriptions. The connections are never opened, so publishing measures only the iteration over the
+ * subscribers. This is not a unit test, run it manually with a large enough heap:
+ *
+ * java -Xmx4g -cp target/classes:target/test-classes:[dependencies] wshttpserver.TopicSubscriptionBenchmark [connections] [threads] [topics]
+ *
+ * @author Joris
+ */
+public class TopicSubscriptionBenchmark
+{
+        private static final int ROUNDS = 3; // the first one is a warmup
+
+        public static void main(String[] args) throws Exception
+        {
+                int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+                int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+                int topicCount = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+                List<HttpWebSocketServer> servers = new ArrayList<>();
+                for (int a = 0; a < threads; ++a)
+                {
+                        servers.add(new HttpWebSocketServer(new HttpServerTest.NoWebSockets(), a));
+                }
+
+                // Every thread subscribes the connections that it serves
+                ServerWebSocketImpl[][] conns = new ServerWebSocketImpl[threads][connections / threads];
+                for (int a = 0; a < threads; ++a)
+                {
+                        for (int b = 0; b < conns[a].length; ++b)
+                        {
+                                conns[a][b] = new ServerWebSocketImpl(servers.get(a));
+                                conns[a][b].server = servers.get(a);
+                        }
+                }
+
+                for (int round = 0; round < ROUNDS; ++round)
+                {
+                        run(servers, conns, 1, round > 0);
+                        run(servers, conns, topicCount, round > 0);
+                }
+        }
+
+        private static void run(List<HttpWebSocketServer> servers, final ServerWebSocketImpl[][] conns, final int topicCount, boolean report) throws Exception
+        {
+                final HttpTopics topics = new HttpTopics(servers);
+                final String[] names = new String[topicCount];
+                for (int a = 0; a < topicCount; ++a)
+                {
+                        names[a] = "topic" + a;
+                }
+                for (ServerWebSocketImpl[] mine : conns)
+                {
+                        for (ServerWebSocketImpl conn : mine)
+                        {
+                                synchronized (conn.topics)
+                                {
+                                        conn.topics.clear();
+                                        conn.topicsClosed = false;
+                                }
+                        }
+                }
+
+                long start = System.nanoTime();
+                inParallel(conns, new Task()
+                {
+                        @Override
+                        public void run(int index, ServerWebSocketImpl conn)
+                        {
+                                topics.subscribe(conn, names[index % topicCount]);
+                        }
+                });
+                double subscribe = (System.nanoTime() - start) / 1e9;
+
+                ByteBuffer frame = HttpWebSocketServer.encodeFrame(org.java_websocket.framing.Framedata.Opcode.TEXT, ByteBuffer.allocate(16), false);
+                start = System.nanoTime();
+                for (String name : names)
+                {
+                        topics.publish(name, null, frame);
+                }
+                double publish = (System.nanoTime() - start) / 1e9;
+
+                start = System.nanoTime();
+                inParallel(conns, new Task()
+                {
+                        @Override
+                        public void run(int index, ServerWebSocketImpl conn)
+                        {
+                                topics.closed(conn);
+                        }
+                });
+                double close = (System.nanoTime() - start) / 1e9;
+
+                if (report)
+                {
+                        int total = conns.length * conns[0].length;
+                        System.out.printf("%d subscriptions to %6d topics, %d threads: subscribe %6.2f M/s, publish to all %7.1f ms, close %6.2f M/s%n",
+                                          total, topicCount, conns.length, total / subscribe / 1e6, publish * 1e3, total / close / 1e6);
+                }
+        }
+
+        private interface Task
+        {
+                void run(int index, ServerWebSocketImpl conn);
+        }
+
+        private static void inParallel(final ServerWebSocketImpl[][] conns, final Task task) throws InterruptedException
+        {
+                Thread[] threads = new Thread[conns.length];
+                for (int a = 0; a < conns.length; ++a)
+                {
+                        final ServerWebSocketImpl[] mine = conns[a];
+                        final int offset = a;
+                        threads[a] = new Thread()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        for (int b = 0; b < mine.length; ++b)
+                                        {
+                                                // interleaved, so that the threads contend for the same topics
+                                                task.run(b * conns.length + offset, mine[b]);
+                                        }
+                                }
+                        };
+                        threads[a].start();
+                }
+                for (Thread thread : threads)
+                {
+                        thread.join();
+                }
+        }
+}
@@ -0,0 +1,197 @@
+package wshttpserver;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.java_websocket.WebSocket;
+
+/**
+ * Sends 1 KB text messages to every connected websocket, either with a send() per connection or with broadcast(),
+ * and reports how long the sending thread was busy, how much it allocated and how long it took until the clients had
+ * received every message. This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.WebSocketBroadcastBenchmark [send|broadcast] [clients] [messages]
+ *
+ * The clients run in a separate JVM, on a single selector. Every process needs a file descriptor per client.
+ *
+ * @author Joris
+ */
+public class WebSocketBroadcastBenchmark
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final int MESSAGE_SIZE = 1024;
+        private static final int FRAME_SIZE = MESSAGE_SIZE + 4;
+        private static final int ROUNDS = 6; // the first one is a warmup
+
+        public static void main(String[] args) throws Exception
+        {
+                if (args.length > 0 && "client".equals(args[0]))
+                {
+                        client(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+                        return;
+                }
+
+                boolean broadcast = args.length == 0 || "broadcast".equals(args[0]);
+                int clients = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+                int messages = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+                log.setLevel(Level.WARNING);
+
+                File httpdocs = Files.createTempDirectory("bench").toFile();
+                httpdocs.deleteOnExit();
+                ServerSocketChannel ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), false, 1024);
+                HttpServer server = new HttpServer(ssChannel, httpdocs, null);
+                server.setup();
+
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                Process client = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                    WebSocketBroadcastBenchmark.class.getName(), "client",
+                                                    Integer.toString(server.getListeningPort()), Integer.toString(clients))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), HttpUtil.UTF8));
+                PrintStream writer = new PrintStream(client.getOutputStream(), true, "UTF-8");
+                if (!"ready".equals(reader.readLine()))
+                {
+                        throw new EOFException();
+                }
+                while (server.websockets().size() < clients)
+                {
+                        Thread.sleep(10);
+                }
+
+                char[] chars = new char[MESSAGE_SIZE];
+                Arrays.fill(chars, 'x');
+                String message = new String(chars);
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+                long id = Thread.currentThread().threadId();
+
+                for (int round = 0; round < ROUNDS; ++round)
+                {
+                        writer.println((long) messages * clients * FRAME_SIZE);
+                        long allocated = threads.getThreadAllocatedBytes(id);
+                        long cpu = threads.getCurrentThreadCpuTime();
+                        long start = System.nanoTime();
+                        for (int a = 0; a < messages; ++a)
+                        {
+                                if (broadcast)
+                                {
+                                        server.broadcast(message);
+                                }
+                                else
+                                {
+                                        Set<WebSocket> websockets = server.websockets();
+                                        List<WebSocket> copy;
+                                        synchronized (websockets)
+                                        {
+                                                copy = new ArrayList<>(websockets);
+                                        }
+                                        for (WebSocket conn : copy)
+                                        {
+                                                conn.send(message);
+                                        }
+                                }
+                        }
+                        long sent = System.nanoTime() - start;
+                        cpu = threads.getCurrentThreadCpuTime() - cpu;
+                        allocated = threads.getThreadAllocatedBytes(id) - allocated;
+                        long delivered = Long.parseLong(reader.readLine());
+
+                        if (round > 0)
+                        {
+                                System.out.printf("%s, %d clients, %d messages: sender busy %7.1f ms (cpu %7.1f ms), "
+                                                  + "allocated %7.1f MB, all received after %7.1f ms, %6.0f messages/s%n",
+                                                  broadcast ? "broadcast" : "send", clients, messages, sent / 1e6, cpu / 1e6,
+                                                  allocated / 1e6, delivered / 1e6, (double) messages * clients / (delivered / 1e9));
+                        }
+                }
+
+                writer.close();
+                client.waitFor();
+                server.stop();
+                ssChannel.close();
+        }
+
+        /** Open the websockets, then read until the expected amount of bytes has arrived for every line on stdin */
+        private static void client(int port, int clients) throws Exception
+        {
+                Selector selector = Selector.open();
+                byte[] upgrade = ("GET / HTTP/1.1\r\n"
+                                  + "Host: localhost\r\n"
+                                  + "Upgrade: websocket\r\n"
+                                  + "Connection: Upgrade\r\n"
+                                  + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                                  + "Sec-WebSocket-Version: 13\r\n"
+                                  + "\r\n").getBytes(HttpUtil.UTF8);
+                ByteBuffer one = ByteBuffer.allocate(1);
+                for (int a = 0; a < clients; ++a)
+                {
+                        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                        channel.write(ByteBuffer.wrap(upgrade));
+
+                        // Read the handshake response byte by byte, so that nothing after it is consumed
+                        StringBuilder head = new StringBuilder();
+                        while (head.length() < 4 || head.lastIndexOf("\r\n\r\n") != head.length() - 4)
+                        {
+                                one.clear();
+                                if (channel.read(one) < 0)
+                                {
+                                        throw new EOFException();
+                                }
+                                head.append((char) one.get(0));
+                        }
+                        channel.configureBlocking(false);
+                        channel.register(selector, SelectionKey.OP_READ);
+                }
+                System.out.println("ready");
+                System.out.flush();
+
+                BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, HttpUtil.UTF8));
+                ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+                String line;
+                while ((line = stdin.readLine()) != null)
+                {
+                        long expected = Long.parseLong(line);
+                        long received = 0;
+                        long start = System.nanoTime();
+                        while (received < expected)
+                        {
+                                selector.select();
+                                for (SelectionKey key : selector.selectedKeys())
+                                {
+                                        int read;
+                                        do
+                                        {
+                                                buf.clear();
+                                                read = ((SocketChannel) key.channel()).read(buf);
+                                                if (read < 0)
+                                                {
+                                                        throw new EOFException();
+                                                }
+                                                received += read;
+                                        }
+                                        while (read == buf.capacity());
+                                }
+                                selector.selectedKeys().clear();
+                        }
+                        System.out.println(System.nanoTime() - start);
+                        System.out.flush();
+                }
+        }
+}
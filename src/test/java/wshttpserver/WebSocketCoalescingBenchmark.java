@@ -0,0 +1,262 @@
+package wshttpserver;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+
+/**
+ * Measures what it costs to send many small websocket messages, with and without coalescing. A thread sends 100 byte
+ * messages at a fixed rate, round robin to every connection, served by a single websocket thread. Reports the
+ * messages that the clients received, the TCP segments that were sent (of the whole system, from /proc/net/snmp, so
+ * run it on an otherwise idle machine) and the CPU time of the server process. This is not a unit test, run it
+ * manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.WebSocketCoalescingBenchmark [connections] [seconds] [delay µs] [rates...]
+ *
+ * The clients run in a separate JVM, with a thread per connection that reads until the server closes it.
+ *
+ * @author Joris
+ */
+public class WebSocketCoalescingBenchmark
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final int MESSAGE_SIZE = 100;
+        private static final int WARMUP = 2; // seconds
+
+        public static void main(String[] args) throws Exception
+        {
+                if (args.length > 0 && "client".equals(args[0]))
+                {
+                        client(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                        return;
+                }
+
+                int connections = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+                int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+                long delay = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+                int[] rates = new int[Math.max(1, args.length - 3)];
+                rates[0] = 100_000;
+                for (int a = 3; a < args.length; ++a)
+                {
+                        rates[a - 3] = Integer.parseInt(args[a]);
+                }
+
+                log.setLevel(Level.WARNING);
+
+                for (int rate : rates)
+                {
+                        run(0, connections, seconds, rate);
+                        run(delay, connections, seconds, rate);
+                }
+        }
+
+        private static void run(long delay, int connections, int seconds, final int rate) throws Exception
+        {
+                File httpdocs = Files.createTempDirectory("bench").toFile();
+                httpdocs.deleteOnExit();
+                ServerSocketChannel ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), false, 1024);
+                final Opened opened = new Opened();
+                HttpServer server = new HttpServer(ssChannel, httpdocs, opened);
+                server.setWebSocketThreads(1);
+                server.setWebSocketCoalescing(delay);
+                server.setup();
+
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                Process client = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                    WebSocketCoalescingBenchmark.class.getName(), "client",
+                                                    Integer.toString(server.getListeningPort()), Integer.toString(connections),
+                                                    Integer.toString(seconds))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), HttpUtil.UTF8));
+                reader.readLine(); // connected
+
+                // Every millisecond, the messages that are due
+                final ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+                Thread sender = new Thread()
+                {
+                        @Override
+                        public void run()
+                        {
+                                long start = System.nanoTime();
+                                long count = 0;
+                                int next = 0;
+                                while (!isInterrupted())
+                                {
+                                        long due = (System.nanoTime() - start) * rate / 1_000_000_000l;
+                                        for (; count < due; ++count)
+                                        {
+                                                opened.connections.get(next).send(message.duplicate());
+                                                next = (next + 1) % opened.connections.size();
+                                        }
+                                        try
+                                        {
+                                                Thread.sleep(1);
+                                        }
+                                        catch (InterruptedException ex)
+                                        {
+                                                break;
+                                        }
+                                }
+                        }
+                };
+                sender.start();
+
+                Thread.sleep(WARMUP * 1000);
+                long segments = outSegments();
+                long cpu = processCpuTime();
+                long start = System.nanoTime();
+                Thread.sleep(seconds * 1000);
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                segments = outSegments() - segments;
+                cpu = processCpuTime() - cpu;
+                sender.interrupt();
+                sender.join();
+                for (WebSocket conn : opened.connections)
+                {
+                        ((WebSocketImpl) conn).closeConnection(CloseFrame.NORMAL, "done"); // the clients read until then
+                }
+
+                String line = reader.readLine(); // received per second
+                System.out.printf("%6d msg/s, coalescing %5d us: received %8.0f msg/s, %7.0f TCP segments/s, server CPU %5.1f%%%n",
+                                  rate, delay, Double.parseDouble(line), segments / elapsed, cpu / 1e7 / elapsed);
+                client.waitFor();
+                server.stop();
+                ssChannel.close();
+        }
+
+        /** @return The TCP segments that have been sent, by the whole system */
+        private static long outSegments() throws IOException
+        {
+                List<String> lines = Files.readAllLines(Paths.get("/proc/net/snmp"));
+                for (int a = 0; a + 1 < lines.size(); ++a)
+                {
+                        if (lines.get(a).startsWith("Tcp:") && lines.get(a + 1).startsWith("Tcp:"))
+                        {
+                                List<String> names = Arrays.asList(lines.get(a).split(" +"));
+                                return Long.parseLong(lines.get(a + 1).split(" +")[names.indexOf("OutSegs")]);
+                        }
+                }
+                throw new IOException("No TCP statistics");
+        }
+
+        /** @return ns */
+        private static long processCpuTime()
+        {
+                return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+        }
+
+        private static class Opened extends HttpServerTest.NoWebSockets
+        {
+                final List<WebSocket> connections = new CopyOnWriteArrayList<>();
+
+                @Override
+                public boolean wssConnect(SelectionKey key)
+                {
+                        return true;
+                }
+
+                @Override
+                public void wssOpen(WebSocket conn, ClientHandshake handshake)
+                {
+                        connections.add(conn);
+                }
+        }
+
+        private static void client(final int port, int connections, int seconds) throws Exception
+        {
+                final AtomicLong received = new AtomicLong(); // bytes between measureStart and measureEnd
+
+                final Socket[] sockets = new Socket[connections];
+                for (int a = 0; a < connections; ++a)
+                {
+                        Socket socket = sockets[a] = new Socket("127.0.0.1", port);
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = socket.getInputStream();
+                        out.write(("GET / HTTP/1.1\r\n"
+                                   + "Host: localhost\r\n"
+                                   + "Upgrade: websocket\r\n"
+                                   + "Connection: Upgrade\r\n"
+                                   + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                                   + "Sec-WebSocket-Version: 13\r\n"
+                                   + "\r\n").getBytes(HttpUtil.UTF8));
+                        StringBuilder head = new StringBuilder();
+                        while (head.length() < 4 || head.lastIndexOf("\r\n\r\n") != head.length() - 4)
+                        {
+                                int b = in.read();
+                                if (b < 0)
+                                {
+                                        throw new EOFException();
+                                }
+                                head.append((char) b);
+                        }
+                }
+                Thread.sleep(100); // until the server has seen every connection open
+                System.out.println("connected");
+                System.out.flush();
+                final long measureStart = System.nanoTime() + WARMUP * 1_000_000_000l;
+                final long measureEnd = measureStart + seconds * 1_000_000_000l;
+
+                Thread[] threads = new Thread[connections];
+                for (int a = 0; a < connections; ++a)
+                {
+                        final Socket socket = sockets[a];
+                        threads[a] = new Thread()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        byte[] buffer = new byte[65536];
+                                        try
+                                        {
+                                                InputStream in = socket.getInputStream();
+                                                int read;
+                                                while ((read = in.read(buffer)) >= 0)
+                                                {
+                                                        long now = System.nanoTime();
+                                                        if (now >= measureStart && now < measureEnd)
+                                                        {
+                                                                received.addAndGet(read);
+                                                        }
+                                                }
+                                        }
+                                        catch (IOException ex)
+                                        {
+                                                // reset by the server that stops
+                                        }
+                                }
+                        };
+                        threads[a].start();
+                }
+                for (Thread thread : threads)
+                {
+                        thread.join();
+                }
+
+                System.out.println(received.get() / (MESSAGE_SIZE + 2.0) / seconds);
+                System.out.flush();
+        }
+}
@@ -0,0 +1,242 @@
+package wshttpserver;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+
+/**
+ * Measures the round trip latency of websocket messages while the handler occasionally takes 50 ms, for every
+ * dispatch mode on a single websocket thread. Every client connection sends a message, waits for the echo and sends
+ * the next one after a pause; one in SLOW_ONE_IN messages makes the handler sleep. Reports the latency percentiles of
+ * the other messages. This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.WebSocketDispatchBenchmark [connections] [seconds]
+ *
+ * The clients run in a separate JVM, with a thread per connection.
+ *
+ * @author Joris
+ */
+public class WebSocketDispatchBenchmark
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final long SLOW_HANDLER = 50; // ms
+        private static final int SLOW_ONE_IN = 100;
+        private static final long PAUSE = 10; // ms between an echo and the next message of a connection
+        private static final int WARMUP = 2; // seconds
+
+        public static void main(String[] args) throws Exception
+        {
+                if (args.length > 0 && "client".equals(args[0]))
+                {
+                        client(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                        return;
+                }
+
+                int connections = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+                int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+                log.setLevel(Level.WARNING);
+
+                for (HttpServer.WebSocketDispatch dispatch : HttpServer.WebSocketDispatch.values())
+                {
+                        run(dispatch, connections, seconds);
+                }
+        }
+
+        private static void run(HttpServer.WebSocketDispatch dispatch, int connections, int seconds) throws Exception
+        {
+                File httpdocs = Files.createTempDirectory("bench").toFile();
+                httpdocs.deleteOnExit();
+                ServerSocketChannel ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), false, 1024);
+                HttpServer server = new HttpServer(ssChannel, httpdocs, new Echo());
+                server.setWebSocketThreads(1);
+                server.setWebSocketDispatch(dispatch, 256);
+                server.setup();
+
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                Process client = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                    WebSocketDispatchBenchmark.class.getName(), "client",
+                                                    Integer.toString(server.getListeningPort()), Integer.toString(connections), Integer.toString(seconds))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), HttpUtil.UTF8));
+                String line = reader.readLine();
+
+                System.out.printf("%-15s %d connections: %s%n", dispatch, connections, line);
+                client.waitFor();
+                server.stop();
+                ssChannel.close();
+        }
+
+        private static class Echo extends HttpServerTest.NoWebSockets
+        {
+                @Override
+                public boolean wssConnect(SelectionKey key)
+                {
+                        return true;
+                }
+
+                @Override
+                public void wssOpen(WebSocket conn, ClientHandshake handshake)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, String message)
+                {
+                        if (message.startsWith("slow"))
+                        {
+                                try
+                                {
+                                        Thread.sleep(SLOW_HANDLER);
+                                }
+                                catch (InterruptedException ex)
+                                {
+                                        Thread.currentThread().interrupt();
+                                }
+                        }
+                        conn.send(message);
+                }
+        }
+
+        /** A client frame, with a mask of 0 */
+        private static byte[] frame(String message)
+        {
+                byte[] payload = message.getBytes(HttpUtil.UTF8);
+                byte[] frame = new byte[6 + payload.length];
+                frame[0] = (byte) 0x81;
+                frame[1] = (byte) (0x80 | payload.length);
+                System.arraycopy(payload, 0, frame, 6, payload.length);
+                return frame;
+        }
+
+        private static void client(final int port, int connections, int seconds) throws Exception
+        {
+                final long measureStart = System.nanoTime() + WARMUP * 1_000_000_000l;
+                final long end = measureStart + seconds * 1_000_000_000l;
+                final byte[] fast = frame("fast");
+                final byte[] slow = frame("slow");
+                final long[][] latencies = new long[connections][];
+                final int[] counts = new int[connections];
+
+                Thread[] threads = new Thread[connections];
+                for (int a = 0; a < connections; ++a)
+                {
+                        final int index = a;
+                        threads[a] = new Thread()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        long[] latency = new long[1024];
+                                        int count = 0;
+                                        byte[] echo = new byte[2 + 4];
+                                        try (Socket socket = new Socket("127.0.0.1", port))
+                                        {
+                                                socket.setTcpNoDelay(true);
+                                                OutputStream out = socket.getOutputStream();
+                                                InputStream in = socket.getInputStream();
+                                                out.write(("GET / HTTP/1.1\r\n"
+                                                           + "Host: localhost\r\n"
+                                                           + "Upgrade: websocket\r\n"
+                                                           + "Connection: Upgrade\r\n"
+                                                           + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                                                           + "Sec-WebSocket-Version: 13\r\n"
+                                                           + "\r\n").getBytes(HttpUtil.UTF8));
+                                                StringBuilder head = new StringBuilder();
+                                                while (head.length() < 4 || head.lastIndexOf("\r\n\r\n") != head.length() - 4)
+                                                {
+                                                        int b = in.read();
+                                                        if (b < 0)
+                                                        {
+                                                                throw new EOFException();
+                                                        }
+                                                        head.append((char) b);
+                                                }
+
+                                                long now;
+                                                while ((now = System.nanoTime()) < end)
+                                                {
+                                                        boolean isSlow = ThreadLocalRandom.current().nextInt(SLOW_ONE_IN) == 0;
+                                                        out.write(isSlow ? slow : fast);
+                                                        int offset = 0;
+                                                        while (offset < echo.length)
+                                                        {
+                                                                int read = in.read(echo, offset, echo.length - offset);
+                                                                if (read < 0)
+                                                                {
+                                                                        throw new EOFException();
+                                                                }
+                                                                offset += read;
+                                                        }
+                                                        if (!isSlow && now >= measureStart)
+                                                        {
+                                                                if (count == latency.length)
+                                                                {
+                                                                        latency = Arrays.copyOf(latency, count * 2);
+                                                                }
+                                                                latency[count++] = System.nanoTime() - now;
+                                                        }
+                                                        Thread.sleep(PAUSE);
+                                                }
+                                        }
+                                        catch (IOException | InterruptedException ex)
+                                        {
+                                                ex.printStackTrace();
+                                        }
+                                        latencies[index] = latency;
+                                        counts[index] = count;
+                                }
+                        };
+                        threads[a].start();
+                }
+                for (Thread thread : threads)
+                {
+                        thread.join();
+                }
+
+                int total = 0;
+                for (int count : counts)
+                {
+                        total += count;
+                }
+                long[] all = new long[total];
+                int offset = 0;
+                for (int a = 0; a < connections; ++a)
+                {
+                        System.arraycopy(latencies[a], 0, all, offset, counts[a]);
+                        offset += counts[a];
+                }
+                Arrays.sort(all);
+
+                System.out.printf("%7.0f messages/s, latency of the other messages p50 %6.2f ms, p99 %6.2f ms, p99.9 %6.2f ms, max %6.2f ms%n",
+                                  total * (double) SLOW_ONE_IN / (SLOW_ONE_IN - 1) / seconds,
+                                  percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), percentile(all, 1));
+                System.out.flush();
+        }
+
+        private static double percentile(long[] sorted, double p)
+        {
+                if (sorted.length == 0)
+                {
+                        return 0;
+                }
+                int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+                return sorted[Math.max(0, index)] / 1e6;
+        }
+}
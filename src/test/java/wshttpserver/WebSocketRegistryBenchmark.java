@@ -0,0 +1,137 @@
+package wshttpserver;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.java_websocket.WebSocket;
+
+/**
+ * Several threads (standing in for the websocket threads) open and close connections as fast as they can, while
+ * another thread iterates all connections over and over. Compares the synchronized HashSet that HttpServer used to
+ * keep with HttpWebSocketRegistry. This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.WebSocketRegistryBenchmark [threads] [open connections per thread] [seconds]
+ *
+ * @author Joris
+ */
+public class WebSocketRegistryBenchmark
+{
+        private static final int ROUNDS = 3; // the first one is a warmup
+
+        public static void main(String[] args) throws Exception
+        {
+                int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+                int open = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+                int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+                for (int round = 0; round < ROUNDS; ++round)
+                {
+                        run(false, threads, open, seconds, round > 0);
+                        run(true, threads, open, seconds, round > 0);
+                }
+        }
+
+        private static void run(final boolean sharded, int threads, final int open, int seconds, boolean report) throws Exception
+        {
+                final Set<WebSocket> synchronizedSet = new HashSet<>();
+                final HttpWebSocketRegistry registry = new HttpWebSocketRegistry(threads);
+                final AtomicLong changes = new AtomicLong();
+                final AtomicLong iterated = new AtomicLong();
+                final long end = System.nanoTime() + seconds * 1_000_000_000l;
+                final HttpWebSocketServer server = new HttpWebSocketServer(new HttpServerTest.NoWebSockets(), 0);
+
+                Thread[] reactors = new Thread[threads];
+                for (int a = 0; a < threads; ++a)
+                {
+                        final int shard = a;
+                        reactors[a] = new Thread()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        // Reuse the connection objects, only the registry is measured
+                                        ArrayDeque<ServerWebSocketImpl> mine = new ArrayDeque<>(open);
+                                        for (int b = 0; b < open; ++b)
+                                        {
+                                                mine.add(new ServerWebSocketImpl(server));
+                                        }
+                                        long count = 0;
+                                        while ((count & 0xFF) != 0 || System.nanoTime() < end)
+                                        {
+                                                ServerWebSocketImpl conn = mine.poll();
+                                                if (sharded)
+                                                {
+                                                        registry.remove(conn);
+                                                        registry.add(shard, conn);
+                                                }
+                                                else
+                                                {
+                                                        synchronized (synchronizedSet)
+                                                        {
+                                                                synchronizedSet.remove(conn);
+                                                        }
+                                                        synchronized (synchronizedSet)
+                                                        {
+                                                                synchronizedSet.add(conn);
+                                                        }
+                                                }
+                                                mine.add(conn);
+                                                count += 2;
+                                        }
+                                        changes.addAndGet(count);
+                                }
+                        };
+                }
+
+                Thread iterator = new Thread()
+                {
+                        @Override
+                        public void run()
+                        {
+                                long count = 0;
+                                while (System.nanoTime() < end)
+                                {
+                                        if (sharded)
+                                        {
+                                                for (WebSocket conn : registry)
+                                                {
+                                                        ++count;
+                                                }
+                                        }
+                                        else
+                                        {
+                                                synchronized (synchronizedSet)
+                                                {
+                                                        for (WebSocket conn : synchronizedSet)
+                                                        {
+                                                                ++count;
+                                                        }
+                                                }
+                                        }
+                                }
+                                iterated.set(count);
+                        }
+                };
+
+                long start = System.nanoTime();
+                for (Thread thread : reactors)
+                {
+                        thread.start();
+                }
+                iterator.start();
+                for (Thread thread : reactors)
+                {
+                        thread.join();
+                }
+                iterator.join();
+                double elapsed = (System.nanoTime() - start) / 1e9;
+
+                if (report)
+                {
+                        System.out.printf("%-22s %d threads, %d open each: %8.2f M opens+closes/s, iterated %8.2f M connections/s%n",
+                                          sharded ? "HttpWebSocketRegistry" : "synchronized HashSet", threads, open,
+                                          changes.get() / elapsed / 1e6, iterated.get() / elapsed / 1e6);
+                }
+        }
+}
@@ -0,0 +1,236 @@
+package wshttpserver;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+
+/**
+ * Measures the websocket message throughput for a growing number of websocket threads. Every client connection
+ * sends bursts of small text messages, which the server echoes. Reports the echoed messages per second and how the
+ * connections were spread over the threads. This is not a unit test, run it manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.WebSocketScalingBenchmark [connections] [seconds] [thread counts...]
+ *
+ * The clients run in a separate JVM, with a thread per 1/8th of the connections.
+ *
+ * @author Joris
+ */
+public class WebSocketScalingBenchmark
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final int MESSAGE_SIZE = 64;
+        private static final int BURST = 16; // messages per connection that are sent before reading the echoes
+        private static final int CLIENT_THREADS = 8;
+        private static final int WARMUP = 2; // seconds
+
+        public static void main(String[] args) throws Exception
+        {
+                if (args.length > 0 && "client".equals(args[0]))
+                {
+                        client(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                        return;
+                }
+
+                int connections = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+                int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+                int[] threadCounts = new int[] { 1, 2, 4, Runtime.getRuntime().availableProcessors() };
+                if (args.length > 2)
+                {
+                        threadCounts = new int[args.length - 2];
+                        for (int a = 2; a < args.length; ++a)
+                        {
+                                threadCounts[a - 2] = Integer.parseInt(args[a]);
+                        }
+                }
+
+                log.setLevel(Level.WARNING);
+
+                for (int threads : threadCounts)
+                {
+                        run(threads, connections, seconds);
+                }
+        }
+
+        private static void run(int threads, int connections, int seconds) throws Exception
+        {
+                File httpdocs = Files.createTempDirectory("bench").toFile();
+                httpdocs.deleteOnExit();
+                ServerSocketChannel ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), false, 1024);
+                HttpServer server = new HttpServer(ssChannel, httpdocs, new Echo());
+                server.setWebSocketThreads(threads);
+                server.setup();
+
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                Process client = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                    WebSocketScalingBenchmark.class.getName(), "client",
+                                                    Integer.toString(server.getListeningPort()), Integer.toString(connections), Integer.toString(seconds))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), HttpUtil.UTF8));
+                String line = reader.readLine();
+
+                int[] perThread = new int[threads];
+                for (WebSocket conn : server.websockets())
+                {
+                        ++perThread[(int) (((ServerWebSocketImpl) conn).getId() % threads)];
+                }
+                StringBuilder spread = new StringBuilder();
+                for (int count : perThread)
+                {
+                        spread.append(spread.length() == 0 ? "" : "/").append(count);
+                }
+
+                System.out.printf("%2d websocket threads, %d connections (%s): %s%n", threads, connections, spread, line);
+                client.getOutputStream().close();
+                client.waitFor();
+                server.stop();
+                ssChannel.close();
+        }
+
+        private static class Echo extends HttpServerTest.NoWebSockets
+        {
+                @Override
+                public boolean wssConnect(SelectionKey key)
+                {
+                        return true;
+                }
+
+                @Override
+                public void wssOpen(WebSocket conn, ClientHandshake handshake)
+                {
+                }
+
+                @Override
+                public void wssMessage(WebSocket conn, String message)
+                {
+                        conn.send(message);
+                }
+        }
+
+        private static void client(final int port, int connections, int seconds) throws Exception
+        {
+                final long start = System.nanoTime();
+                final long measureStart = start + WARMUP * 1_000_000_000l;
+                final long end = measureStart + seconds * 1_000_000_000l;
+                final AtomicLong messages = new AtomicLong();
+
+                // A burst of masked text frames (with a mask of 0), and the unmasked echoes
+                final byte[] burst = new byte[BURST * (MESSAGE_SIZE + 6)];
+                ByteBuffer frames = ByteBuffer.wrap(burst);
+                for (int a = 0; a < BURST; ++a)
+                {
+                        frames.put((byte) 0x81).put((byte) (0x80 | MESSAGE_SIZE)).putInt(0);
+                        for (int b = 0; b < MESSAGE_SIZE; ++b)
+                        {
+                                frames.put((byte) 'x');
+                        }
+                }
+                final int echoes = BURST * (MESSAGE_SIZE + 2);
+
+                final Socket[] sockets = new Socket[connections];
+                for (int a = 0; a < connections; ++a)
+                {
+                        sockets[a] = new Socket("127.0.0.1", port);
+                        sockets[a].setTcpNoDelay(true);
+                        sockets[a].getOutputStream().write((
+                                "GET / HTTP/1.1\r\n"
+                                + "Host: localhost\r\n"
+                                + "Upgrade: websocket\r\n"
+                                + "Connection: Upgrade\r\n"
+                                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                                + "Sec-WebSocket-Version: 13\r\n"
+                                + "\r\n").getBytes(HttpUtil.UTF8));
+                        StringBuilder head = new StringBuilder();
+                        while (head.length() < 4 || head.lastIndexOf("\r\n\r\n") != head.length() - 4)
+                        {
+                                int b = sockets[a].getInputStream().read();
+                                if (b < 0)
+                                {
+                                        throw new EOFException();
+                                }
+                                head.append((char) b);
+                        }
+                }
+
+                Thread[] threads = new Thread[Math.min(CLIENT_THREADS, connections)];
+                for (int a = 0; a < threads.length; ++a)
+                {
+                        final int first = a;
+                        final int step = threads.length;
+                        threads[a] = new Thread()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        byte[] buf = new byte[echoes];
+                                        try
+                                        {
+                                                while (System.nanoTime() < end)
+                                                {
+                                                        for (int c = first; c < sockets.length; c += step)
+                                                        {
+                                                                OutputStream out = sockets[c].getOutputStream();
+                                                                out.write(burst);
+                                                                out.flush();
+                                                        }
+                                                        for (int c = first; c < sockets.length; c += step)
+                                                        {
+                                                                InputStream in = sockets[c].getInputStream();
+                                                                int offset = 0;
+                                                                while (offset < echoes)
+                                                                {
+                                                                        int read = in.read(buf, offset, echoes - offset);
+                                                                        if (read < 0)
+                                                                        {
+                                                                                throw new EOFException();
+                                                                        }
+                                                                        offset += read;
+                                                                }
+                                                        }
+                                                        if (System.nanoTime() >= measureStart)
+                                                        {
+                                                                messages.addAndGet((sockets.length - first + step - 1) / step * BURST);
+                                                        }
+                                                }
+                                        }
+                                        catch (IOException ex)
+                                        {
+                                                ex.printStackTrace();
+                                        }
+                                }
+                        };
+                }
+
+                for (Thread thread : threads)
+                {
+                        thread.start();
+                }
+                for (Thread thread : threads)
+                {
+                        thread.join();
+                }
+
+                System.out.printf("%9.0f messages/s%n", messages.get() / (double) seconds);
+                System.out.flush();
+                System.in.read(); // until the server has looked at the connections
+                for (Socket socket : sockets)
+                {
+                        socket.close();
+                }
+        }
+}
@@ -0,0 +1,234 @@
+package wshttpserver;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the latency of small static files while a few large static files are downloaded on the same download
+ * thread, as fast as the clients can read them. Reports the latency of the small requests (from writing the request
+ * until the last byte of the response) and the throughput of the large downloads. This is not a unit test, run it
+ * manually:
+ *
+ * java -cp target/classes:target/test-classes:[dependencies] wshttpserver.WriteSchedulingBenchmark [bulk connections] [seconds]
+ *
+ * The client runs in a separate JVM, every connection has its own thread and sends its next request once the
+ * previous response has been received.
+ *
+ * @author Joris
+ */
+public class WriteSchedulingBenchmark
+{
+        private static final Logger log = Logger.getLogger("wshttpserver");
+        private static final int SMALL_SIZE = 4096;
+        private static final long BULK_SIZE = 1L << 30; // sparse
+        private static final int SMALL_CONNECTIONS = 8;
+        private static final int WARMUP = 2; // seconds
+
+        public static void main(String[] args) throws Exception
+        {
+                if (args.length > 0 && "client".equals(args[0]))
+                {
+                        client(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                        return;
+                }
+
+                int bulk = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+                int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+                log.setLevel(Level.WARNING);
+
+                File httpdocs = Files.createTempDirectory("bench").toFile();
+                File small = new File(httpdocs, "small.bin");
+                Files.write(small.toPath(), new byte[SMALL_SIZE]);
+                File large = new File(httpdocs, "large.bin");
+                try (RandomAccessFile raf = new RandomAccessFile(large, "rw"))
+                {
+                        raf.setLength(BULK_SIZE);
+                }
+                small.deleteOnExit();
+                large.deleteOnExit();
+                httpdocs.deleteOnExit();
+
+                ServerSocketChannel ssChannel = HttpServer.openServerChannel(new InetSocketAddress("127.0.0.1", 0), false, 1024);
+                HttpServer server = new HttpServer(ssChannel, httpdocs, null);
+                server.setDownloadThreads(1);
+                server.setup();
+
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                Process client = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                    WriteSchedulingBenchmark.class.getName(), "client",
+                                                    Integer.toString(server.getListeningPort()), Integer.toString(bulk), Integer.toString(seconds))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), HttpUtil.UTF8));
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                        System.out.printf("%d bulk connections: %s%n", bulk, line);
+                }
+                client.waitFor();
+
+                server.stop();
+                ssChannel.close();
+        }
+
+        private static void client(final int port, int bulk, int seconds) throws Exception
+        {
+                final long start = System.nanoTime();
+                final long measureStart = start + WARMUP * 1_000_000_000l;
+                final long end = measureStart + seconds * 1_000_000_000l;
+                final AtomicLong bulkBytes = new AtomicLong();
+                final long[][] latencies = new long[SMALL_CONNECTIONS][];
+                final int[] counts = new int[SMALL_CONNECTIONS];
+
+                Thread[] threads = new Thread[bulk + SMALL_CONNECTIONS];
+                for (int a = 0; a < bulk; ++a)
+                {
+                        threads[a] = new Thread()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        try (Socket socket = new Socket("127.0.0.1", port))
+                                        {
+                                                while (System.nanoTime() < end)
+                                                {
+                                                        get(socket, "/large.bin", bulkBytes, end);
+                                                }
+                                        }
+                                        catch (IOException ex)
+                                        {
+                                                ex.printStackTrace();
+                                        }
+                                }
+                        };
+                }
+
+                for (int a = 0; a < SMALL_CONNECTIONS; ++a)
+                {
+                        final int index = a;
+                        threads[bulk + a] = new Thread()
+                        {
+                                @Override
+                                public void run()
+                                {
+                                        long[] mine = new long[1 << 20];
+                                        int count = 0;
+                                        try (Socket socket = new Socket("127.0.0.1", port))
+                                        {
+                                                socket.setTcpNoDelay(true);
+                                                while (true)
+                                                {
+                                                        long sent = System.nanoTime();
+                                                        if (sent >= end)
+                                                        {
+                                                                break;
+                                                        }
+                                                        get(socket, "/small.bin", null, Long.MAX_VALUE);
+                                                        if (sent >= measureStart && count < mine.length)
+                                                        {
+                                                                mine[count++] = System.nanoTime() - sent;
+                                                        }
+                                                }
+                                        }
+                                        catch (IOException ex)
+                                        {
+                                                ex.printStackTrace();
+                                        }
+                                        latencies[index] = mine;
+                                        counts[index] = count;
+                                }
+                        };
+                }
+
+                for (Thread thread : threads)
+                {
+                        thread.start();
+                }
+                for (Thread thread : threads)
+                {
+                        thread.join();
+                }
+
+                int total = 0;
+                for (int count : counts)
+                {
+                        total += count;
+                }
+                long[] all = new long[total];
+                int offset = 0;
+                for (int a = 0; a < SMALL_CONNECTIONS; ++a)
+                {
+                        System.arraycopy(latencies[a], 0, all, offset, counts[a]);
+                        offset += counts[a];
+                }
+                Arrays.sort(all);
+
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%7d small requests (%5d/s), latency ms: p50 %6.2f  p99 %6.2f  p99.9 %6.2f  max %6.2f;  bulk %6.0f MB/s%n",
+                                  total, total / seconds, percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999),
+                                  total == 0 ? 0 : all[total - 1] / 1e6, bulkBytes.get() / elapsed / 1e6);
+                System.out.flush();
+        }
+
+        private static double percentile(long[] sorted, double p)
+        {
+                return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+        }
+
+        /** Send a GET request and read its response. A large response is abandoned (by closing) once end has passed. */
+        private static void get(Socket socket, String path, AtomicLong bodyBytes, long end) throws IOException
+        {
+                OutputStream out = socket.getOutputStream();
+                out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n").getBytes(HttpUtil.UTF8));
+                out.flush();
+
+                InputStream in = socket.getInputStream();
+                StringBuilder head = new StringBuilder();
+                while (head.length() < 4 || head.lastIndexOf("\r\n\r\n") != head.length() - 4)
+                {
+                        int b = in.read();
+                        if (b < 0)
+                        {
+                                throw new EOFException();
+                        }
+                        head.append((char) b);
+                }
+
+                int contentLength = head.indexOf("Content-Length: ");
+                long remaining = Long.parseLong(head.substring(contentLength + 16, head.indexOf("\r\n", contentLength)));
+                byte[] buf = new byte[65536];
+                while (remaining > 0)
+                {
+                        int read = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                        if (read < 0)
+                        {
+                                throw new EOFException();
+                        }
+                        remaining -= read;
+                        if (bodyBytes != null)
+                        {
+                                bodyBytes.addAndGet(read);
+                                if (System.nanoTime() >= end)
+                                {
+                                        socket.close();
+                                        return;
+                                }
+                        }
+                }
+        }
+}